@@ -0,0 +1,112 @@
+package streaming;
+
+// Picks the quality tier for each batch of frames VideoClient requests, using a
+// throughput/BOLA hybrid. While the playout buffer is short, the tier comes from measured
+// throughput alone, which is the quickest way to react when the link slows down. Once the
+// buffer is comfortable, BOLA picks the tier from the buffer level, which holds quality
+// steady through throughput noise. A tier's bitrate is its average frame size (from the
+// VIDEO response) times the frame rate.
+class AbrController {
+    private static final double SAFETY_FACTOR = 0.9;      // Use only this share of measured throughput
+    private static final double MIN_BUFFER_SECONDS = 0.5; // BOLA picks the lowest tier at or below this
+    private static final double BOLA_BUFFER_SECONDS = 1.0; // Below this, choose by throughput only
+    // Throughput averages; half-lives in seconds (see onDownload for how samples are weighted)
+    private static final double FAST_HALF_LIFE_SECONDS = 0.5;
+    private static final double SLOW_HALF_LIFE_SECONDS = 2.0;
+
+    private final double[] bitrates; // bits per second of each tier, lowest first
+    private final double[] utilities;
+    private final double bolaGamma;
+    private final double bolaV;
+    private final double frameSeconds;
+
+    private double fastThroughput = -1;
+    private double slowThroughput = -1;
+    private int quality = 0;
+
+    // frameBytes: average frame size of each tier, lowest first
+    AbrController(int[] frameBytes, int fps, double targetBufferSeconds) {
+        frameSeconds = 1.0 / fps;
+        bitrates = new double[frameBytes.length];
+        utilities = new double[frameBytes.length];
+        for (int i = 0; i < frameBytes.length; i++) {
+            bitrates[i] = Math.max(1, frameBytes[i]) * 8.0 * fps;
+            utilities[i] = Math.log(bitrates[i] / bitrates[0]) + 1; // Lowest tier has utility 1
+        }
+        // BOLA parameters chosen so the lowest tier wins at MIN_BUFFER_SECONDS and the
+        // highest tier wins as the buffer approaches targetBufferSeconds
+        double topUtility = utilities[utilities.length - 1];
+        bolaGamma = (topUtility - 1) / Math.max(1e-9, targetBufferSeconds / MIN_BUFFER_SECONDS - 1);
+        bolaV = MIN_BUFFER_SECONDS / Math.max(1e-9, bolaGamma);
+    }
+
+    // A download of the given size holding the given number of frames (one, or a whole
+    // segment) finished, elapsedNanos after the previous one (or after the request, if the
+    // link was idle). A sample weighs as much as the longer of its download time and its
+    // playback time: a slow download pulls the estimate down as fast as it drains the buffer,
+    // and a fast link is still believed within a few segments.
+    void onDownload(int bytes, int frames, long elapsedNanos) {
+        if (elapsedNanos <= 0) return;
+        double seconds = elapsedNanos / 1e9;
+        double sample = bytes * 8.0 / seconds;
+        double weight = Math.max(seconds, frames * frameSeconds);
+        fastThroughput = ewma(fastThroughput, sample, weight, FAST_HALF_LIFE_SECONDS);
+        slowThroughput = ewma(slowThroughput, sample, weight, SLOW_HALF_LIFE_SECONDS);
+    }
+
+    // Conservative estimate: the lower of the fast- and slow-reacting averages, so a drop is
+    // believed at once and a spike only once it lasts. -1 before the first sample.
+    double throughput() {
+        return Math.min(fastThroughput, slowThroughput);
+    }
+
+    int chooseQuality(double bufferSeconds) {
+        int byThroughput = throughputQuality();
+        if (bufferSeconds < BOLA_BUFFER_SECONDS) {
+            quality = byThroughput;
+        } else {
+            int byBuffer = bolaQuality(bufferSeconds);
+            // Step down whenever BOLA says so, but only step up as far as throughput allows,
+            // so a full buffer cannot push quality past what the link can sustain
+            quality = byBuffer <= quality ? byBuffer : Math.max(quality, Math.min(byBuffer, byThroughput));
+        }
+        return quality;
+    }
+
+    int quality() {
+        return quality;
+    }
+
+    double bitrate(int tier) {
+        return bitrates[tier];
+    }
+
+    private int throughputQuality() {
+        if (throughput() < 0) return 0; // Start low until the first measurement
+        double budget = throughput() * SAFETY_FACTOR;
+        int best = 0;
+        for (int i = 1; i < bitrates.length; i++) {
+            if (bitrates[i] <= budget) best = i;
+        }
+        return best;
+    }
+
+    private int bolaQuality(double bufferSeconds) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < bitrates.length; i++) {
+            double score = (bolaV * (utilities[i] + bolaGamma) - bufferSeconds) / bitrates[i];
+            if (score >= bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static double ewma(double average, double sample, double weight, double halfLife) {
+        if (average < 0) return sample;
+        double alpha = 1 - Math.pow(0.5, weight / halfLife);
+        return average + alpha * (sample - average);
+    }
+}
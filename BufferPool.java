@@ -0,0 +1,146 @@
+package streaming;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Reusable byte arrays for frame payloads, in power-of-two size classes, shared by a
+// process's receive, decode and forward paths. acquire() hands out a Buffer holding one
+// reference; every extra holder takes its own with retain(), and every holder calls
+// release() exactly once when it is done. The last release puts the array back on its
+// class's free list, as long as the pool holds less than maxRetainedBytes in free arrays.
+//
+// The arrays live on the Java heap: everything that fills or drains them (DataInputStream,
+// OutputStream, ImageIO) works on byte[], so direct buffers would only add a copy. It also
+// makes a missed release harmless - the array is collected like any other and the pool
+// allocates a new one. Releasing twice is the real bug, and throws rather than handing the
+// same array to two owners. Only the arrays are reused; each acquire() returns a new small
+// Buffer, so a stale reference can never release someone else's array.
+class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 10; // 1 KB
+    private static final int MAX_CLASS_SHIFT = 24; // 16 MB; larger buffers are not pooled
+
+    private final long maxRetainedBytes;
+    private final ConcurrentLinkedQueue<byte[]>[] free;
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // maxRetainedBytes of 0 turns pooling off: every acquire() allocates exactly length bytes
+    @SuppressWarnings("unchecked")
+    BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.free = (ConcurrentLinkedQueue<byte[]>[]) new ConcurrentLinkedQueue<?>[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) free[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    // A buffer of at least length bytes (the array may be longer), holding one reference.
+    Buffer acquire(int length) {
+        acquired.increment();
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0 || maxRetainedBytes == 0) {
+            allocatedBytes.add(length);
+            return new Buffer(new byte[length], null);
+        }
+        byte[] array = free[sizeClass].poll();
+        if (array != null) {
+            retainedBytes.addAndGet(-array.length);
+            reused.increment();
+        } else {
+            array = new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+            allocatedBytes.add(array.length);
+        }
+        return new Buffer(array, this);
+    }
+
+    // An unpooled buffer around an existing array; releasing it just drops the reference.
+    static Buffer wrap(byte[] array) {
+        return new Buffer(array, null);
+    }
+
+    private void recycle(byte[] array) {
+        if (retainedBytes.addAndGet(array.length) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-array.length);
+            dropped.increment();
+            return;
+        }
+        free[sizeClass(array.length)].add(array);
+        returned.increment();
+    }
+
+    // Index of the smallest class that holds length bytes, or -1 if it is too large to pool.
+    private static int sizeClass(int length) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    Stats stats() {
+        return new Stats(acquired.sum(), reused.sum(), allocatedBytes.sum(), returned.sum(), dropped.sum(), retainedBytes.get());
+    }
+
+    // A reference-counted array from a BufferPool (or wrapped without one).
+    static final class Buffer {
+        final byte[] array;
+        private final BufferPool pool;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Buffer(byte[] array, BufferPool pool) {
+            this.array = array;
+            this.pool = pool;
+        }
+
+        Buffer retain() {
+            if (!tryRetain()) throw new IllegalStateException("buffer already released");
+            return this;
+        }
+
+        // Takes a reference unless the buffer has already gone back to the pool; for readers
+        // that race with the last holder (a cache lookup racing an eviction).
+        boolean tryRetain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) return false;
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release() {
+            int count = references.decrementAndGet();
+            if (count < 0) throw new IllegalStateException("buffer released twice");
+            if (count == 0 && pool != null) pool.recycle(array);
+        }
+    }
+
+    // Point-in-time snapshot of the pool counters
+    static class Stats {
+        final long acquired;
+        final long reused;
+        final long allocatedBytes;
+        final long returned;
+        final long dropped;
+        final long retainedBytes;
+
+        Stats(long acquired, long reused, long allocatedBytes, long returned, long dropped, long retainedBytes) {
+            this.acquired = acquired;
+            this.reused = reused;
+            this.allocatedBytes = allocatedBytes;
+            this.returned = returned;
+            this.dropped = dropped;
+            this.retainedBytes = retainedBytes;
+        }
+
+        double reuseRate() {
+            return acquired == 0 ? 0.0 : (double) reused / acquired;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("acquired=%d reused=%d (%.2f%%) allocated=%dKB returned=%d dropped=%d free=%dKB",
+                    acquired, reused, reuseRate() * 100, allocatedBytes / 1024, returned, dropped, retainedBytes / 1024);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package streaming;
+
+import java.util.*;
+
+// How VideoRelay paces each client's stream, chosen by the second program argument:
+//   aimd - loss-based window: grows while sends go through, halves when the client falls behind
+//   bbr  - delivery-rate model: paces at the measured bottleneck rate, probing above it now and then
+enum CongestionControl {
+    AIMD, BBR;
+
+    static CongestionControl fromArgs(String[] args) {
+        if (args.length < 2) return AIMD;
+        try {
+            return valueOf(args[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: Unknown congestion control " + args[1] + ", using aimd");
+            return AIMD;
+        }
+    }
+
+    CongestionController newController() {
+        return this == BBR ? new CongestionController.Bbr() : new CongestionController.Aimd();
+    }
+}
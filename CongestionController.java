@@ -0,0 +1,157 @@
+package streaming;
+
+// Congestion state of one relay -> client stream; drives that stream's Pacer. Java exposes
+// no TCP ACK clock, so the signals are what the relay can see of its own socket:
+//   onSent - a response was fully handed to the socket, sendNanos after its first byte was
+//            written; backlogged if the socket pushed back (send buffer full) meanwhile,
+//            which means the client is draining slower than the relay is sending
+//   onLoss - the client reported a corrupt frame (NACK)
+// Each session owns its controller and calls it from one thread at a time.
+abstract class CongestionController {
+    static final int MSS = 1460;
+    private static final long MIN_RTT_NANOS = 1_000_000; // Floor for send-time RTT samples
+
+    private long smoothedRttNanos = -1;
+
+    abstract void onSent(long bytes, long sendNanos, boolean backlogged);
+
+    abstract void onLoss();
+
+    // Bytes per second the stream may be sent at; Double.POSITIVE_INFINITY for no limit.
+    abstract double pacingRate();
+
+    long smoothedRttNanos() {
+        return Math.max(MIN_RTT_NANOS, smoothedRttNanos);
+    }
+
+    void sampleRtt(long sendNanos) {
+        smoothedRttNanos = smoothedRttNanos < 0 ? sendNanos : (smoothedRttNanos * 7 + sendNanos) / 8;
+    }
+
+    // The relay's original AIMD, per client and in bytes: slow start doubles the window each
+    // RTT up to ssthresh, congestion avoidance adds one MSS per RTT, and a NACK or a
+    // backlogged send that drained slower than the pacing rate halves it (at most once per
+    // RTT). Paced at one window per smoothed RTT.
+    static final class Aimd extends CongestionController {
+        private static final double MULTIPLICATIVE_DECREASE = 0.5;
+        private static final long INITIAL_CWND = 16L * MSS;
+        private static final long INITIAL_SSTHRESH = 1024L * 1024;
+        private static final long MIN_CWND = 2L * MSS;
+        private static final long MAX_CWND = 64L * 1024 * 1024;
+
+        private long cwnd = INITIAL_CWND;
+        private long ssthresh = INITIAL_SSTHRESH;
+        private long lastDecrease = 0;
+
+        void onSent(long bytes, long sendNanos, boolean backlogged) {
+            boolean congested = backlogged && bytes * 1e9 / Math.max(1, sendNanos) < pacingRate();
+            sampleRtt(sendNanos);
+            if (congested) {
+                onLoss();
+                return;
+            }
+            if (cwnd < ssthresh) {
+                cwnd += bytes; // Slow start
+            } else {
+                cwnd += Math.max(1, MSS * bytes / cwnd); // Congestion avoidance (AIMD)
+            }
+            cwnd = Math.min(cwnd, MAX_CWND);
+        }
+
+        void onLoss() {
+            long now = System.nanoTime();
+            if (now - lastDecrease < smoothedRttNanos()) return; // One cut per RTT
+            lastDecrease = now;
+            ssthresh = Math.max((long) (cwnd * MULTIPLICATIVE_DECREASE), MIN_CWND);
+            cwnd = ssthresh;
+        }
+
+        double pacingRate() {
+            return cwnd * 1e9 / smoothedRttNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("aimd cwnd=%dKB ssthresh=%dKB srtt=%.1fms rate=%.1fMbps",
+                    cwnd / 1024, ssthresh / 1024, smoothedRttNanos() / 1e6, pacingRate() * 8 / 1e6);
+        }
+    }
+
+    // BBR-style model. Delivery rate is sampled once per round (at least ROUND_NANOS); the
+    // bottleneck rate is the highest sample of the last BW_WINDOW_ROUNDS. Startup paces at
+    // STARTUP_GAIN times that until it stops growing by 25% for three rounds; after that the
+    // gain cycles through PROBE_GAINS so the stream keeps testing for more bandwidth and then
+    // drains what the probe queued. Rounds in which the socket never pushed back are
+    // app-limited (the client simply asked for less): they only count if they raise the
+    // estimate, so a viewer that pauses does not lose its rate.
+    static final class Bbr extends CongestionController {
+        private static final long ROUND_NANOS = 10_000_000;
+        private static final int BW_WINDOW_ROUNDS = 10;
+        private static final double STARTUP_GAIN = 2.89;
+        private static final double[] PROBE_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+
+        private final double[] bandwidthSamples = new double[BW_WINDOW_ROUNDS];
+        private int round = 0;
+        private long roundStart = System.nanoTime();
+        private long roundBytes = 0;
+        private boolean roundBacklogged = false;
+        private boolean startup = true;
+        private double fullBandwidth = 0;
+        private int roundsWithoutGrowth = 0;
+        private int cycleIndex = 0;
+
+        void onSent(long bytes, long sendNanos, boolean backlogged) {
+            sampleRtt(sendNanos);
+            roundBytes += bytes;
+            roundBacklogged |= backlogged;
+            long now = System.nanoTime();
+            long elapsed = now - roundStart;
+            if (elapsed < Math.max(ROUND_NANOS, smoothedRttNanos())) return;
+
+            double sample = roundBytes * 1e9 / elapsed;
+            if (roundBacklogged || sample > bandwidth()) {
+                bandwidthSamples[round % BW_WINDOW_ROUNDS] = sample;
+                round++;
+            }
+            roundStart = now;
+            roundBytes = 0;
+            roundBacklogged = false;
+
+            if (startup) {
+                double bandwidth = bandwidth();
+                if (bandwidth >= fullBandwidth * 1.25) {
+                    fullBandwidth = bandwidth;
+                    roundsWithoutGrowth = 0;
+                } else if (++roundsWithoutGrowth >= 3) {
+                    startup = false;
+                }
+            } else {
+                cycleIndex = (cycleIndex + 1) % PROBE_GAINS.length;
+            }
+        }
+
+        void onLoss() {
+            // BBR does not treat a single loss as congestion; leave startup so the gain
+            // stops overshooting and let the probe cycle settle the rate
+            startup = false;
+        }
+
+        double pacingRate() {
+            double bandwidth = bandwidth();
+            if (bandwidth <= 0) return Double.POSITIVE_INFINITY; // No estimate yet
+            return bandwidth * (startup ? STARTUP_GAIN : PROBE_GAINS[cycleIndex]);
+        }
+
+        private double bandwidth() {
+            double max = 0;
+            for (double sample : bandwidthSamples) max = Math.max(max, sample);
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("bbr %s bw=%.1fMbps srtt=%.1fms rate=%.1fMbps", startup ? "startup" : "probe",
+                    bandwidth() * 8 / 1e6, smoothedRttNanos() / 1e6, pacingRate() * 8 / 1e6);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Non-blocking connection handling for ExecutionModel.NIO, shared by VideoServer and
+// VideoRelay. Accepted channels are spread over a few worker threads, each running one
+// Selector. A Session only ever sees its connection's bytes on that worker thread and must
+// not block; responses are queued with Connection.write/transfer, which any thread may call.
+//
+// Back-pressure: once a connection has more than HIGH_WATER_BYTES queued for a peer that is
+// not reading, the loop stops reading its requests until the queue drains below LOW_WATER_BYTES.
+//
+// Pacing: a connection with a Pacer only starts its next queued response once the pacer
+// allows it; until then a timer on the worker, not OP_WRITE, brings it back. Each completed
+// response is reported to the pacer with how long the socket took to accept it.
+class EventLoop {
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final long HIGH_WATER_BYTES = 4L * 1024 * 1024;
+    private static final long LOW_WATER_BYTES = 1024 * 1024;
+
+    interface Session {
+        // Newly read bytes; anything the session wants to keep must be copied out.
+        void onRead(ByteBuffer in) throws IOException;
+
+        void onClose();
+    }
+
+    interface SessionFactory {
+        Session open(Connection connection);
+    }
+
+    private final Worker[] workers;
+    private final SessionFactory factory;
+    private final long idleTimeoutMillis;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    // idleTimeoutMillis of 0 keeps idle connections open forever
+    EventLoop(String name, int workerCount, long idleTimeoutMillis, SessionFactory factory) throws IOException {
+        this.factory = factory;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker();
+            Thread thread = new Thread(workers[i], name + "-loop-" + i);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    // Hands an accepted channel to a worker; onClosed runs once when the connection ends.
+    void register(SocketChannel channel, Runnable onClosed) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+        worker.execute(() -> worker.open(channel, onClosed));
+    }
+
+    final class Connection {
+        private final SocketChannel channel;
+        private final Worker worker;
+        private final Runnable onClosed;
+        private final ConcurrentLinkedQueue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private SelectionKey key;
+        private Session session;
+        private volatile Pacer pacer;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean readPaused = false;
+        private long flushAt = 0; // Pending pacing timer, 0 if none
+        private volatile boolean closed = false;
+
+        private Connection(SocketChannel channel, Worker worker, Runnable onClosed) {
+            this.channel = channel;
+            this.worker = worker;
+            this.onClosed = onClosed;
+        }
+
+        // The buffers go out back to back, in one write call where possible, as one response.
+        void write(ByteBuffer... buffers) {
+            write(null, buffers);
+        }
+
+        // Same; onDone runs on the worker once the buffers have been written, or dropped
+        // because the connection closed, so whatever backs them can be released.
+        void write(Runnable onDone, ByteBuffer... buffers) {
+            write(-1, onDone, buffers);
+        }
+
+        // Same, tagged with the ID of the request it answers, so discard() can drop it.
+        void write(int requestId, Runnable onDone, ByteBuffer... buffers) {
+            Outbound item = new Outbound(buffers, null, 0, 0);
+            item.onDone = onDone;
+            item.requestId = requestId;
+            enqueue(item);
+        }
+
+        // Queues count bytes of file to be sent with transferTo (sendfile), without copying.
+        void transfer(FileChannel file, long position, long count) {
+            enqueue(new Outbound(null, file, position, count));
+        }
+
+        // Queues item for the worker to flush, or drops it (running onDone) if the connection
+        // has closed. closed is checked again once the item is in the queue: if Worker.close
+        // drained the queue in between, the item is taken back here, so it is never stranded.
+        // Whichever side removes it from the queue runs its onDone.
+        private void enqueue(Outbound item) {
+            if (!closed) {
+                queuedBytes.addAndGet(item.bytes);
+                outbound.add(item);
+                if (!closed) {
+                    worker.requestFlush(this);
+                    return;
+                }
+                if (!outbound.remove(item)) return; // Drained by the close
+                queuedBytes.addAndGet(-item.bytes);
+            }
+            if (item.onDone != null) item.onDone.run();
+        }
+
+        // Runs task on the connection's worker, between the session's own callbacks, so a
+        // response written from it cannot land between the parts of one the session is writing.
+        // If it throws, the connection is closed.
+        void execute(Runnable task) {
+            worker.execute(() -> worker.run(this, task));
+        }
+
+        // Drops queued responses tagged with a request ID below firstWanted that have not started
+        // going out (a client that seeked no longer wants them). Runs on the worker.
+        void discard(int firstWanted) {
+            execute(() -> worker.discard(this, firstWanted));
+        }
+
+        // Paces every response queued from now on; see Pacer.
+        void setPacer(Pacer pacer) {
+            this.pacer = pacer;
+        }
+
+        void close() {
+            worker.execute(() -> worker.close(this));
+        }
+
+        long queuedBytes() {
+            return queuedBytes.get();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        SocketAddress remoteAddress() {
+            return channel.socket().getRemoteSocketAddress();
+        }
+    }
+
+    // One queued response: buffers, or a region of a file
+    private static final class Outbound {
+        final ByteBuffer[] buffers;
+        final FileChannel file;
+        final long bytes;
+        long position;
+        long remaining;
+        long startedAt = -1;
+        boolean backlogged = false;
+        Runnable onDone;
+        int requestId = -1; // Request answered, for discard(); -1 if untagged
+
+        Outbound(ByteBuffer[] buffers, FileChannel file, long position, long count) {
+            this.buffers = buffers;
+            this.file = file;
+            this.position = position;
+            long bytes = count;
+            if (buffers != null) {
+                for (ByteBuffer buffer : buffers) bytes += buffer.remaining();
+            }
+            this.bytes = bytes;
+            this.remaining = bytes;
+        }
+
+        long write(SocketChannel channel) throws IOException {
+            long sent = buffers != null ? channel.write(buffers) : file.transferTo(position, remaining, channel);
+            position += sent;
+            remaining -= sent;
+            return sent;
+        }
+    }
+
+    private static final class Timer {
+        final long deadline;
+        final Connection connection;
+
+        Timer(long deadline, Connection connection) {
+            this.deadline = deadline;
+            this.connection = connection;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong((Timer t) -> t.deadline));
+        private Thread thread;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Also from the worker itself, which must not then sleep in select() with the task
+        // queued: the wakeup makes the next select() return at once.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void requestFlush(Connection connection) {
+            if (Thread.currentThread() == thread) flush(connection);
+            else execute(() -> flush(connection));
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    long timeout = 1000;
+                    if (!timers.isEmpty()) {
+                        timeout = Math.max(1, Math.min(timeout, (timers.peek().deadline - System.nanoTime() + 999_999) / 1_000_000));
+                    }
+                    selector.select(timeout);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // Tasks tied to a connection are wrapped by run(Connection, Runnable)
+                            System.out.println("ERROR: Event loop " + thread.getName() + " task failed: " + e);
+                        }
+                    }
+                    runTimers();
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) flush(connection);
+                        if (key.isValid() && key.isReadable()) read(connection);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (idleTimeoutMillis > 0 && now - lastIdleCheck >= 1000) {
+                        lastIdleCheck = now;
+                        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                            Connection connection = (Connection) key.attachment();
+                            if (now - connection.lastActivity > idleTimeoutMillis) {
+                                if (Log.DEBUG) System.out.println("DEBUG: Closing idle connection " + connection.remoteAddress());
+                                close(connection);
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Whatever failed, the other connections on this selector keep being served
+                    System.out.println("ERROR: Event loop " + thread.getName() + ": " + e);
+                }
+            }
+        }
+
+        // Runs a task of connection's; one that throws closes that connection only.
+        void run(Connection connection, Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        private void fail(Connection connection, RuntimeException e) {
+            System.out.println("ERROR: Connection " + connection.remoteAddress() + " failed: " + e);
+            close(connection);
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline <= now) {
+                Timer timer = timers.poll();
+                if (timer.connection.flushAt != timer.deadline) continue; // Superseded
+                timer.connection.flushAt = 0;
+                flush(timer.connection);
+            }
+        }
+
+        private void schedule(Connection connection, long deadline) {
+            if (connection.flushAt != 0 && connection.flushAt <= deadline) return;
+            connection.flushAt = deadline;
+            timers.add(new Timer(deadline, connection));
+        }
+
+        void open(SocketChannel channel, Runnable onClosed) {
+            Connection connection = new Connection(channel, this, onClosed);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.session = factory.open(connection);
+            } catch (IOException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        private void read(Connection connection) {
+            try {
+                readBuffer.clear();
+                int read = connection.channel.read(readBuffer);
+                if (read < 0) {
+                    close(connection);
+                    return;
+                }
+                connection.lastActivity = System.currentTimeMillis();
+                readBuffer.flip();
+                connection.session.onRead(readBuffer);
+
+                if (!connection.closed && connection.queuedBytes.get() > HIGH_WATER_BYTES) {
+                    connection.readPaused = true;
+                    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                if (Log.DEBUG) System.out.println("DEBUG: Connection " + connection.remoteAddress() + " failed: " + e.getMessage());
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        private void flush(Connection connection) {
+            if (connection.closed) return;
+            try {
+                Outbound item;
+                boolean socketFull = false;
+                while ((item = connection.outbound.peek()) != null) {
+                    Pacer pacer = connection.pacer;
+                    if (item.startedAt < 0) {
+                        long delay = pacer == null ? 0 : pacer.delayNanos();
+                        if (delay > 0) {
+                            schedule(connection, System.nanoTime() + delay);
+                            break;
+                        }
+                        item.startedAt = System.nanoTime();
+                    }
+                    connection.queuedBytes.addAndGet(-item.write(connection.channel));
+                    if (item.remaining > 0) {
+                        item.backlogged = true;
+                        socketFull = true;
+                        break;
+                    }
+                    connection.outbound.poll();
+                    if (item.onDone != null) item.onDone.run();
+                    if (pacer != null) pacer.onSent(item.bytes, System.nanoTime() - item.startedAt, item.backlogged);
+                }
+
+                // Ask to be told when the socket can take more, and resume reading once drained
+                int ops = connection.key.interestOps();
+                ops = socketFull ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+                if (connection.readPaused && connection.queuedBytes.get() < LOW_WATER_BYTES) {
+                    connection.readPaused = false;
+                    ops |= SelectionKey.OP_READ;
+                }
+                connection.key.interestOps(ops);
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e); // A completion callback or the pacer
+            }
+        }
+
+        private void discard(Connection connection, int firstWanted) {
+            int dropped = 0;
+            for (Iterator<Outbound> it = connection.outbound.iterator(); it.hasNext(); ) {
+                Outbound item = it.next();
+                if (item.requestId < 0 || item.requestId >= firstWanted || item.startedAt >= 0) continue;
+                it.remove();
+                connection.queuedBytes.addAndGet(-item.bytes);
+                if (item.onDone != null) item.onDone.run();
+                dropped++;
+            }
+            if (Log.DEBUG && dropped > 0) System.out.println("DEBUG: Discarded " + dropped + " responses queued for " + connection.remoteAddress());
+            if (dropped > 0) flush(connection); // May be back under the low-water mark
+        }
+
+        private void close(Connection connection) {
+            if (connection.closed) return;
+            connection.closed = true;
+            if (connection.key != null) connection.key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {}
+            Outbound item;
+            while ((item = connection.outbound.poll()) != null) {
+                if (item.onDone != null) closing(connection, item.onDone);
+            }
+            if (connection.session != null) closing(connection, connection.session::onClose);
+            connection.onClosed.run();
+        }
+
+        // One clean-up step of a closing connection; if it throws, the rest still run.
+        private void closing(Connection connection, Runnable step) {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                System.out.println("ERROR: Closing connection " + connection.remoteAddress() + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package streaming;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// How VideoServer and VideoRelay run their connections, chosen by the first program argument:
+//   thread  - one platform thread per connection with blocking streams (the original model)
+//   virtual - one virtual thread per connection with blocking streams (needs a Java 21+ runtime;
+//             rejected at startup on an older one)
+//   nio     - a few Selector event loops with non-blocking channels (EventLoop)
+enum ExecutionModel {
+    THREAD, VIRTUAL, NIO;
+
+    static ExecutionModel fromArgs(String[] args) {
+        if (args.length == 0) return THREAD;
+        ExecutionModel model;
+        try {
+            model = valueOf(args[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: Unknown execution model " + args[0] + ", using thread");
+            return THREAD;
+        }
+        if (model == VIRTUAL && Runtime.version().feature() < 21) {
+            throw new IllegalArgumentException("Execution model virtual needs Java 21+, this is Java "
+                    + Runtime.version().feature() + "; use thread or nio");
+        }
+        return model;
+    }
+
+    // Executor that gives each blocking connection handler its own thread.
+    ExecutorService connectionExecutor() {
+        if (this != VIRTUAL) return Executors.newCachedThreadPool();
+        try {
+            // The build targets Java 17, whose API has no virtual threads; fromArgs has checked
+            // that the runtime does
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads unavailable on Java " + Runtime.version(), e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package streaming;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// All extracted frames of one video packed into a single file, served by slicing
+// memory-mapped regions instead of opening one JPG per request.
+//
+// Layout: int MAGIC, int VERSION, int frameCount, int unused, then frameCount index
+// entries of (long offset, int length, int crc32c, int byteSum), then the frame payloads.
+// Checksums, one per Integrity algorithm, are computed once while packing, never per send.
+// Payloads never cross a WINDOW_BYTES boundary, so each one can be sliced out of a single
+// mapping even for containers larger than 2 GB.
+class FrameContainer {
+    static final String EXTENSION = ".pack";
+    private static final int MAGIC = 0x5646504b; // "VFPK"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 20;
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int frameCount;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] windows;
+    private final int averageLength;
+
+    private FrameContainer(File file, FileChannel channel, int frameCount, MappedByteBuffer index, MappedByteBuffer[] windows) {
+        this.file = file;
+        this.channel = channel;
+        this.frameCount = frameCount;
+        this.index = index;
+        this.windows = windows;
+        long total = 0;
+        for (int i = 0; i < frameCount; i++) total += length(i);
+        this.averageLength = frameCount == 0 ? 0 : (int) (total / frameCount);
+    }
+
+    // True if the file is a container this version of the server can open.
+    static boolean isCurrent(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // The channel stays open for the life of the container so frames can be sent
+    // straight from it with transferTo.
+    static FrameContainer open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES) throw new IOException("Not a frame container: " + file);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a frame container: " + file);
+            }
+            int frameCount = header.getInt(8);
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + (long) frameCount * INDEX_ENTRY_BYTES);
+
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((size + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = i * WINDOW_BYTES;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, size - start));
+            }
+            return new FrameContainer(file, channel, frameCount, index, windows);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int frameCount() {
+        return frameCount;
+    }
+
+    // Mean payload size; what a client budgets per frame when choosing a rendition.
+    int averageLength() {
+        return averageLength;
+    }
+
+    File file() {
+        return file;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    long offset(int frameIndex) {
+        return index.getLong(HEADER_BYTES + frameIndex * INDEX_ENTRY_BYTES);
+    }
+
+    int length(int frameIndex) {
+        return index.getInt(HEADER_BYTES + frameIndex * INDEX_ENTRY_BYTES + 8);
+    }
+
+    int checksum(int frameIndex, Integrity integrity) {
+        int field = integrity == Integrity.CRC32C ? 12 : 16;
+        return index.getInt(HEADER_BYTES + frameIndex * INDEX_ENTRY_BYTES + field);
+    }
+
+    // Mappings already made stay readable after the channel is closed.
+    void close() throws IOException {
+        channel.close();
+    }
+
+    // Read-only view of one frame's bytes; no copy and no system call.
+    ByteBuffer frame(int frameIndex) {
+        long offset = offset(frameIndex);
+        ByteBuffer window = windows[(int) (offset / WINDOW_BYTES)].duplicate();
+        int start = (int) (offset % WINDOW_BYTES);
+        window.limit(start + length(frameIndex)).position(start);
+        return window.slice().asReadOnlyBuffer();
+    }
+
+    // Packs frame_%04d.jpg files from an extracted frame directory into one container.
+    // Written to a temporary file and renamed, so a half-written container is never opened.
+    static void pack(File frameDir, File output) throws IOException {
+        File[] frames = frameDir.listFiles((dir, name) -> name.endsWith(".jpg"));
+        if (frames == null) throw new FileNotFoundException("No frame directory " + frameDir);
+        Arrays.sort(frames, Comparator.comparing(File::getName));
+        pack(frames.length, i -> Files.readAllBytes(frames[i].toPath()), output);
+    }
+
+    // Packs frames already in memory, in order.
+    static void pack(List<byte[]> frames, File output) throws IOException {
+        pack(frames.size(), frames::get, output);
+    }
+
+    private interface Payloads {
+        byte[] get(int frameIndex) throws IOException;
+    }
+
+    private static void pack(int frameCount, Payloads frames, File output) throws IOException {
+        File temp = new File(output.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + frameCount * INDEX_ENTRY_BYTES);
+            index.putInt(MAGIC).putInt(VERSION).putInt(frameCount).putInt(0);
+
+            long position = index.capacity();
+            for (int i = 0; i < frameCount; i++) {
+                byte[] data = frames.get(i);
+                // Start a new window rather than let a frame straddle two mappings
+                if (position / WINDOW_BYTES != (position + data.length - 1) / WINDOW_BYTES) {
+                    position = (position / WINDOW_BYTES + 1) * WINDOW_BYTES;
+                }
+                ByteBuffer payload = ByteBuffer.wrap(data);
+                while (payload.hasRemaining()) {
+                    out.write(payload, position + payload.position());
+                }
+                index.putLong(position).putInt(data.length)
+                        .putInt(Integrity.CRC32C.compute(data, 0, data.length))
+                        .putInt(Integrity.BYTE_SUM.compute(data, 0, data.length));
+                position += data.length;
+            }
+            index.flip();
+            out.write(index, 0);
+        }
+        Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Converts existing "Video Frames/<name>/frame_%04d.jpg" trees into containers:
+    //   java streaming.FrameContainer ["Video Frames/"]
+    public static void main(String[] args) throws IOException {
+        File root = new File(args.length > 0 ? args[0] : VideoServer.FRAME_DIR);
+        File[] videoDirs = root.listFiles(File::isDirectory);
+        if (videoDirs == null) {
+            System.out.println("ERROR: " + root + " not found!");
+            return;
+        }
+        for (File videoDir : videoDirs) {
+            File output = new File(root, videoDir.getName() + EXTENSION);
+            pack(videoDir, output);
+            System.out.println("Packed " + videoDir.getName() + " into " + output + " (" + open(output).frameCount() + " frames)");
+        }
+    }
+}
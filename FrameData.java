@@ -0,0 +1,40 @@
+package streaming;
+
+// A frame payload together with the checksum it was sent with. For a segment this is the
+// whole segment body and the checksum is 0; each frame's checksum is in the body's table.
+//
+// The payload is data[0, length); data may be a longer pooled array. Every FrameData handed
+// out by RelayCache.get, OffHeapFrameStore.get or a SingleFlightFetcher future carries one
+// reference to its buffer, which the receiver must release() once the frame has been
+// written (or dropped). Keeping a frame beyond that, as the heap cache does, takes a
+// reference of its own with retain().
+class FrameData {
+    final byte[] data;
+    final int length;
+    final int checksum;
+    private final BufferPool.Buffer buffer;
+
+    FrameData(byte[] data, int checksum) {
+        this(BufferPool.wrap(data), data.length, checksum);
+    }
+
+    FrameData(BufferPool.Buffer buffer, int length, int checksum) {
+        this.data = buffer.array;
+        this.length = length;
+        this.checksum = checksum;
+        this.buffer = buffer;
+    }
+
+    FrameData retain() {
+        buffer.retain();
+        return this;
+    }
+
+    boolean tryRetain() {
+        return buffer.tryRetain();
+    }
+
+    void release() {
+        buffer.release();
+    }
+}
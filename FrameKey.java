@@ -0,0 +1,45 @@
+package streaming;
+
+// Identifies one frame of one rendition of a video, or one whole segment of it; used to key
+// relay-side maps, so each quality tier and each segment is cached separately. For a
+// segment key, frameIndex holds the segment index.
+final class FrameKey {
+    final String videoName;
+    final int quality;
+    final int frameIndex;
+    final boolean segment;
+
+    FrameKey(String videoName, int quality, int frameIndex) {
+        this(videoName, quality, frameIndex, false);
+    }
+
+    private FrameKey(String videoName, int quality, int frameIndex, boolean segment) {
+        this.videoName = videoName;
+        this.quality = quality;
+        this.frameIndex = frameIndex;
+        this.segment = segment;
+    }
+
+    static FrameKey segment(String videoName, int quality, int segmentIndex) {
+        return new FrameKey(videoName, quality, segmentIndex, true);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameKey)) return false;
+        FrameKey other = (FrameKey) o;
+        return frameIndex == other.frameIndex && quality == other.quality && segment == other.segment
+                && videoName.equals(other.videoName);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((31 * videoName.hashCode() + quality) * 31 + frameIndex) * 2 + (segment ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return videoName + " q" + quality + (segment ? " segment " : " ") + frameIndex;
+    }
+}
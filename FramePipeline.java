@@ -0,0 +1,403 @@
+package streaming;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+// Decode and presentation stages of VideoClient playback. The network loop hands received
+// JPEGs to submit(); a pool of decoder threads takes them from a bounded queue (so a slow
+// decoder holds the network loop back instead of piling up frames), and decoded frames are
+// reordered by frame index for the presentation thread, which shows them on a playout clock
+// at the source frame rate. Frames are never shown early; a frame that is not ready when
+// it is due is a stall, and the clock restarts from it rather than rushing the backlog.
+//
+// Nothing on the way is copied or thrown away per frame: payloads stay in the pooled buffer
+// they were received into until they are decoded, each decoder keeps one JPEG reader, and
+// images the presenter is done with come back through recycle() to be decoded into again.
+//
+// With decoding off (headless viewers in LoadGenerator) there are no decoder threads:
+// submitted frames go straight to the playout clock and are presented as NOT_DECODED.
+class FramePipeline {
+    private static final int DECODE_QUEUE_FRAMES = 32;
+    private static final int DECODERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int MAX_FREE_IMAGES = DECODERS + 2;
+    // Stands in for the image of every frame presented while decoding is off
+    static final BufferedImage NOT_DECODED = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+
+    // Shows one decoded frame; called on the presentation thread, at the frame's due time.
+    // The image is the presenter's until it hands it back with recycle().
+    interface Presenter {
+        void present(int frameIndex, BufferedImage image, boolean fromCache);
+
+        void onStall(int stalls);
+    }
+
+    private final long frameNanos;
+    private final int startupFrames;
+    private final int endFrame;
+    private final Presenter presenter;
+    private final IntConsumer onDecodeFailure;
+    private final BooleanSupplier paused;
+    private final boolean decode;
+
+    private final ArrayBlockingQueue<Protocol.Response> decodeQueue = new ArrayBlockingQueue<>(DECODE_QUEUE_FRAMES);
+    private final ConcurrentLinkedQueue<BufferedImage> freeImages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeImageCount = new AtomicInteger();
+    private final List<Thread> decoders = new ArrayList<>();
+    private final Thread presentation;
+
+    // Decoded (or skipped) frames not yet shown, by frame index; guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TreeMap<Integer, DecodedFrame> ready = new TreeMap<>();
+    private volatile int nextPlay;
+    private volatile boolean running = true;
+    private boolean endOfStream = false;
+    private int stalls = 0;
+
+    // Frames submitted and not yet shown or dropped, wherever they are in the pipeline
+    private final AtomicInteger inPipeline = new AtomicInteger();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder decoded = new LongAdder();
+    private final AtomicLong maxDecodeNanos = new AtomicLong();
+    private static final Metrics.Histogram decodeLatency = Metrics.histogram("client_decode_seconds");
+    private static final Metrics.Counter rebuffers = Metrics.counter("client_rebuffers_total");
+    private final LongAdder imagesReused = new LongAdder();
+    private int maxDecodeQueue = 0;
+    private int maxReady = 0;
+
+    // Plays frames [firstFrame, endFrame). onDecodeFailure is told about frames that could not
+    // be decoded, so the network loop can fetch them again.
+    FramePipeline(int firstFrame, int endFrame, int fps, int startupFrames, Presenter presenter,
+                  IntConsumer onDecodeFailure, BooleanSupplier paused) {
+        this(firstFrame, endFrame, fps, startupFrames, true, presenter, onDecodeFailure, paused);
+    }
+
+    FramePipeline(int firstFrame, int endFrame, int fps, int startupFrames, boolean decode, Presenter presenter,
+                  IntConsumer onDecodeFailure, BooleanSupplier paused) {
+        this.nextPlay = firstFrame;
+        this.endFrame = endFrame;
+        this.frameNanos = 1_000_000_000L / fps;
+        this.startupFrames = startupFrames;
+        this.presenter = presenter;
+        this.onDecodeFailure = onDecodeFailure;
+        this.paused = paused;
+        this.decode = decode;
+        for (int i = 0; decode && i < DECODERS; i++) {
+            Thread decoder = new Thread(this::decodeLoop, "decoder-" + i);
+            decoder.setDaemon(true);
+            decoders.add(decoder);
+            decoder.start();
+        }
+        presentation = new Thread(this::presentLoop, "presentation");
+        presentation.setDaemon(true);
+        presentation.start();
+    }
+
+    // Queues a received FRAME for decoding; blocks while the decode queue is full. The
+    // pipeline takes over the frame's buffer and releases it once the frame is decoded.
+    void submit(Protocol.Response frame) throws InterruptedException {
+        if (frame.frameIndex < nextPlay || !running) {
+            frame.release(); // Arrived after its slot was skipped
+            return;
+        }
+        inPipeline.incrementAndGet();
+        if (!decode) {
+            addReady(new DecodedFrame(frame.frameIndex, NOT_DECODED, frame.fromCache()));
+            frame.release();
+            return;
+        }
+        decodeQueue.put(frame);
+        maxDecodeQueue = Math.max(maxDecodeQueue, decodeQueue.size());
+    }
+
+    // Returns an image from Presenter.present for a later frame to be decoded into.
+    void recycle(BufferedImage image) {
+        if (image == NOT_DECODED) return;
+        if (freeImageCount.incrementAndGet() > MAX_FREE_IMAGES) {
+            freeImageCount.decrementAndGet();
+            return;
+        }
+        freeImages.add(image);
+    }
+
+    // A frame the relay does not have: its slot passes without showing anything.
+    void skip(int frameIndex) {
+        if (frameIndex < nextPlay) return;
+        inPipeline.incrementAndGet();
+        addReady(new DecodedFrame(frameIndex, null, false));
+    }
+
+    // Nothing more will be submitted except retries: start playing even if short of startupFrames.
+    void endOfStream() {
+        lock.lock();
+        try {
+            endOfStream = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int nextPlay() {
+        return nextPlay;
+    }
+
+    // Frames received and not yet shown: the playout buffer the ABR controller budgets against
+    int buffered() {
+        return inPipeline.get();
+    }
+
+    boolean finished() {
+        return nextPlay >= endFrame || !running;
+    }
+
+    int stalls() {
+        return stalls;
+    }
+
+    // Waits up to nanos for playback to move on (or finish).
+    void awaitProgress(long nanos) throws InterruptedException {
+        int from = nextPlay;
+        lock.lock();
+        try {
+            while (nextPlay == from && running && nanos > 0) nanos = changed.awaitNanos(nanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        running = false;
+        for (Thread decoder : decoders) decoder.interrupt();
+        presentation.interrupt();
+        Protocol.Response frame;
+        while ((frame = decodeQueue.poll()) != null) frame.release();
+    }
+
+    String stats() {
+        long count = decoded.sum();
+        lock.lock();
+        try {
+            return String.format("decoded=%d avgDecode=%.2fms maxDecode=%.2fms decodeQueue=%d (max %d) ready=%d (max %d) imagesReused=%d stalls=%d",
+                    count, count == 0 ? 0.0 : decodeNanos.sum() / 1e6 / count, maxDecodeNanos.get() / 1e6,
+                    decodeQueue.size(), maxDecodeQueue, ready.size(), maxReady, imagesReused.sum(), stalls);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decodeLoop() {
+        Decoder decoder = new Decoder();
+        try {
+            while (running) {
+                Protocol.Response frame = decodeQueue.take();
+                BufferedImage reuse = freeImages.poll();
+                if (reuse != null) freeImageCount.decrementAndGet();
+                long start = System.nanoTime();
+                BufferedImage image = null;
+                boolean failed = false;
+                try {
+                    image = decoder.decode(frame.data, frame.offset, frame.length, reuse);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Error decoding frame " + frame.frameIndex + ": " + e.getMessage());
+                    failed = true;
+                } finally {
+                    frame.release();
+                }
+                long elapsed = System.nanoTime() - start;
+                decodeNanos.add(elapsed);
+                decoded.increment();
+                maxDecodeNanos.accumulateAndGet(elapsed, Math::max);
+                decodeLatency.record(elapsed);
+                if (reuse != null && image == reuse) imagesReused.increment();
+
+                if (failed) {
+                    inPipeline.decrementAndGet();
+                    onDecodeFailure.accept(frame.frameIndex);
+                } else {
+                    // Data ImageIO has no reader for decodes to null: its slot passes blank
+                    addReady(new DecodedFrame(frame.frameIndex, image, frame.fromCache()));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Pipeline closed
+        }
+    }
+
+    private void addReady(DecodedFrame frame) {
+        lock.lock();
+        try {
+            if (frame.index < nextPlay || ready.containsKey(frame.index)) {
+                inPipeline.decrementAndGet();
+                if (frame.image != null) recycle(frame.image);
+                return;
+            }
+            ready.put(frame.index, frame);
+            maxReady = Math.max(maxReady, ready.size());
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void presentLoop() {
+        long clockStart = -1; // When frame clockFrame was due; -1 until playback (re)starts
+        int clockFrame = 0;
+        try {
+            while (running && nextPlay < endFrame) {
+                DecodedFrame frame;
+                lock.lock();
+                try {
+                    if (paused.getAsBoolean()) {
+                        clockStart = -1;
+                        changed.awaitNanos(100_000_000);
+                        continue;
+                    }
+                    // Start the clock once a little is buffered (or nothing more is coming)
+                    if (clockStart < 0) {
+                        if (ready.size() < startupFrames && !endOfStream) {
+                            changed.awaitNanos(frameNanos);
+                            continue;
+                        }
+                        clockStart = System.nanoTime();
+                        clockFrame = nextPlay;
+                    }
+
+                    long now = System.nanoTime();
+                    long due = clockStart + (nextPlay - clockFrame) * frameNanos;
+                    frame = ready.get(nextPlay);
+                    if (frame == null) {
+                        // Nothing to show and nothing buffered: playback is starved, so stop the
+                        // clock and let the buffer refill to startupFrames before resuming
+                        if (ready.isEmpty() && !endOfStream && now > due + frameNanos) {
+                            clockStart = -1;
+                            stalls++;
+                            rebuffers.increment();
+                            presenter.onStall(stalls);
+                        } else {
+                            changed.awaitNanos(Math.max(1_000_000, due - now));
+                        }
+                        continue;
+                    }
+                    if (now < due) {
+                        changed.awaitNanos(due - now);
+                        continue;
+                    }
+                    ready.remove(nextPlay);
+                    if (frame.readyAt > due + frameNanos) {
+                        // The frame was not ready when it was due: a stall. Restart the clock
+                        // from this frame rather than rushing through the backlog.
+                        stalls++;
+                        rebuffers.increment();
+                        clockStart = now;
+                        clockFrame = nextPlay;
+                        presenter.onStall(stalls);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (frame.image != null) presenter.present(frame.index, frame.image, frame.fromCache);
+                inPipeline.decrementAndGet();
+                lock.lock();
+                try {
+                    nextPlay++;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Pipeline closed
+        } finally {
+            lock.lock();
+            try {
+                running = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class DecodedFrame {
+        final int index;
+        final BufferedImage image; // null for a skipped or unreadable frame
+        final boolean fromCache;
+        final long readyAt = System.nanoTime();
+
+        DecodedFrame(int index, BufferedImage image, boolean fromCache) {
+            this.index = index;
+            this.image = image;
+            this.fromCache = fromCache;
+        }
+    }
+
+    // Decodes frames for one thread. JPEG frames (all the server extracts) go through one
+    // ImageReader kept for the thread's lifetime, which reads straight from the payload array
+    // and decodes into a recycled image when it has the right size and type. Anything else
+    // falls back to ImageIO.read, which returns null for data it has no reader for.
+    static final class Decoder {
+        private final ImageReader jpeg = ImageIO.getImageReadersByFormatName("jpeg").next();
+
+        // Decodes data[offset, offset + length), into reuse if it fits (may be null).
+        BufferedImage decode(byte[] data, int offset, int length, BufferedImage reuse) throws IOException {
+            if (length < 2 || data[offset] != (byte) 0xFF || data[offset + 1] != (byte) 0xD8) {
+                return ImageIO.read(new ByteArrayInputStream(data, offset, length));
+            }
+            try (ImageInputStream in = new ArrayImageInputStream(data, offset, length)) {
+                jpeg.setInput(in, true, true);
+                ImageReadParam param = jpeg.getDefaultReadParam();
+                if (reuse != null && reuse.getWidth() == jpeg.getWidth(0) && reuse.getHeight() == jpeg.getHeight(0)
+                        && jpeg.getImageTypes(0).next().getBufferedImageType() == reuse.getType()) {
+                    param.setDestination(reuse);
+                }
+                return jpeg.read(0, param);
+            } finally {
+                jpeg.setInput(null);
+            }
+        }
+    }
+
+    // ImageInputStream over part of a byte array, so the reader needs no copy of the payload.
+    private static final class ArrayImageInputStream extends ImageInputStreamImpl {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        ArrayImageInputStream(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            bitOffset = 0;
+            if (streamPos >= length) return -1;
+            return data[offset + (int) streamPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            bitOffset = 0;
+            if (streamPos >= length) return -1;
+            int count = (int) Math.min(len, length - streamPos);
+            System.arraycopy(data, offset + (int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
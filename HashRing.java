@@ -0,0 +1,62 @@
+package streaming;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hash ring that assigns keys (video names) to nodes (parent relays). Each node is
+// placed at VIRTUAL_NODES points on a 64-bit ring so keys spread evenly, and adding or
+// removing a node only moves the keys that hashed next to its points. route() lists every
+// node in the order met walking clockwise from the key, so the second entry is the key's
+// failover parent, the third the next one, and so on - the same for every relay that
+// shares the ring.
+class HashRing<T> {
+    static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final int nodes;
+
+    HashRing(List<T> nodes) {
+        this(nodes, VIRTUAL_NODES);
+    }
+
+    // Points are derived from each node's toString(), so relays that list the same parents
+    // in any order build the same ring.
+    HashRing(List<T> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("hash ring needs at least one node");
+        this.nodes = nodes.size();
+        for (T node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Every node, owner first, then in the order met walking clockwise from key. The walk
+    // stops as soon as every node has been met.
+    List<T> route(String key) {
+        Set<T> order = new LinkedHashSet<>(nodes * 2);
+        long point = hash(key);
+        for (Collection<T> half : List.of(ring.tailMap(point).values(), ring.headMap(point).values())) {
+            for (T node : half) {
+                if (order.add(node) && order.size() == nodes) return new ArrayList<>(order);
+            }
+        }
+        return new ArrayList<>(order);
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that keys differing
+    // only in their last characters ("node#1", "node#2") still land far apart.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,77 @@
+package streaming;
+
+import java.util.zip.*;
+
+// Frame checksum algorithms, shared by server, relay and client. A requester lists the ones
+// it can verify in OPEN; the responder picks one per video (CRC32C whenever it is offered)
+// and names it in VIDEO, and every later request for that video's frames repeats it.
+// Checksums are computed once, when the server packs a video, and travel with the frame
+// from then on; only the client computes them again, while the bytes arrive.
+//
+//   BYTE_SUM - the original sum of all bytes; cheap but blind to reordered bytes
+//   CRC32C   - Castagnoli CRC, computed with the CPU's CRC32 instructions where the JVM
+//              has an intrinsic for them (SSE4.2 on x86, the CRC extension on ARMv8)
+enum Integrity {
+    BYTE_SUM(1), CRC32C(2);
+
+    // Every algorithm this build can compute, as an OPEN bitmask
+    static final int SUPPORTED = BYTE_SUM.bit | CRC32C.bit;
+
+    final int bit;
+
+    Integrity(int bit) {
+        this.bit = bit;
+    }
+
+    // The algorithm to use given the requester's OPEN bitmask, or null if none is shared.
+    static Integrity negotiate(int offered) {
+        if ((offered & CRC32C.bit) != 0) return CRC32C;
+        if ((offered & BYTE_SUM.bit) != 0) return BYTE_SUM;
+        return null;
+    }
+
+    // The algorithm with the given wire bit, or null.
+    static Integrity fromBit(int bit) {
+        for (Integrity integrity : values()) {
+            if (integrity.bit == bit) return integrity;
+        }
+        return null;
+    }
+
+    // A running checksum, for verifying a payload piece by piece as it is read.
+    Checksum newChecksum() {
+        return this == CRC32C ? new java.util.zip.CRC32C() : new ByteSum();
+    }
+
+    int compute(byte[] data, int offset, int length) {
+        if (this == BYTE_SUM) return ByteSum.sum(0, data, offset, length);
+        Checksum checksum = newChecksum();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    private static final class ByteSum implements Checksum {
+        private int sum = 0;
+
+        static int sum(int sum, byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) sum += data[i] & 0xFF;
+            return sum;
+        }
+
+        public void update(int b) {
+            sum += b & 0xFF;
+        }
+
+        public void update(byte[] data, int offset, int length) {
+            sum = sum(sum, data, offset, length);
+        }
+
+        public long getValue() {
+            return sum & 0xFFFFFFFFL;
+        }
+
+        public void reset() {
+            sum = 0;
+        }
+    }
+}
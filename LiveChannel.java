@@ -0,0 +1,280 @@
+package streaming;
+
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+
+// One live channel as the server or a relay holds it: a ring of its most recent frames and
+// the sessions subscribed to it. publish() appends a frame and hands it to every subscriber
+// in one pass, with no request per viewer; each Subscription then queues it on its own
+// connection through a Sink, sharing the payload rather than copying it. A new subscriber
+// starts with as much of the ring as it asks for - a few frames, so it has a picture at
+// once, or up to RING_SECONDS to watch slightly behind live - and then gets every frame as
+// it is published.
+//
+// Slow subscribers: a subscription has at most one frame out on its connection at a time,
+// and at most MAX_UNACKED_FRAMES the subscriber has not acknowledged (LIVE_ACK), so frames
+// wait here rather than in socket buffers, where nothing could drop them. What is published
+// meanwhile goes in a short queue of the subscription's own. Once the queue holds
+// MAX_QUEUED_FRAMES (or the backlog asked for, if more) the oldest is dropped for the
+// newest, and a frame that has been queued for MAX_WAIT_NANOS is dropped rather than sent: a
+// live frame that arrives late is worth less than the one after it, so a viewer on a slow
+// link skips ahead instead of falling further behind the live edge. Every frame is a JPEG
+// that decodes on its own, so nothing else has to go with it. Drops show up as gaps in the
+// frame numbers the viewer sees.
+class LiveChannel {
+    // Every live frame is checksummed with this; subscribers must offer it
+    static final Integrity INTEGRITY = Integrity.CRC32C;
+    static final int FPS = 30;
+    static final int RING_SECONDS = 5;
+    static final int MAX_QUEUED_FRAMES = FPS / 2;
+    static final long MAX_WAIT_NANOS = 500_000_000L;
+    static final int MAX_UNACKED_FRAMES = FPS / 4;
+
+    // Where a subscription's frames go: a blocking socket or an EventLoop connection.
+    interface Sink {
+        // Queues frame as a LIVE response to requestId without blocking the caller. onSent
+        // runs once it has been written, or dropped because the connection closed.
+        void sendLive(int requestId, LiveFrame frame, Runnable onSent);
+    }
+
+    final String name;
+    private final LiveFrame[] ring = new LiveFrame[RING_SECONDS * FPS];
+    private long published = 0; // Frames ever published; the newest is in slot (published - 1) % ring.length
+    private final List<Subscription> subscribers = new ArrayList<>();
+    private final Runnable onUnsubscribe;
+    private final Metrics.Counter frames;
+    private final Metrics.Counter dropped;
+
+    // role prefixes the channel's metrics (server_live_..., relay_live_...); onUnsubscribe,
+    // if not null, runs whenever a subscriber leaves.
+    LiveChannel(String name, String role, Runnable onUnsubscribe) {
+        this.name = name;
+        this.onUnsubscribe = onUnsubscribe;
+        this.frames = Metrics.counter(role + "_live_frames_total");
+        this.dropped = Metrics.counter(role + "_live_dropped_total");
+    }
+
+    // Wall-clock microseconds since the epoch, the unit of LiveFrame.capturedAtMicros
+    static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    // Appends frame to the ring, taking over the caller's reference, and offers it to every
+    // subscriber. Frames are published from one thread per channel (the ingest or the
+    // upstream reader), so subscribers see them in order.
+    void publish(LiveFrame frame) {
+        LiveFrame evicted;
+        synchronized (this) {
+            int slot = (int) (published++ % ring.length);
+            evicted = ring[slot];
+            ring[slot] = frame;
+            for (Subscription subscriber : subscribers) subscriber.offer(frame);
+        }
+        frames.increment();
+        if (evicted != null) evicted.release();
+    }
+
+    // Subscribes sink, starting with up to backlog of the latest frames (at most the ring).
+    synchronized Subscription subscribe(int requestId, Sink sink, int backlog) {
+        int count = (int) Math.min(Math.min(backlog, ring.length), published);
+        Subscription subscription = new Subscription(this, requestId, sink, Math.max(MAX_QUEUED_FRAMES, count));
+        for (long i = published - count; i < published; i++) subscription.offer(ring[(int) (i % ring.length)]);
+        subscribers.add(subscription);
+        if (Log.DEBUG) System.out.println("DEBUG: " + name + " has " + subscribers.size() + " subscribers");
+        return subscription;
+    }
+
+    synchronized int subscribers() {
+        return subscribers.size();
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        synchronized (this) {
+            if (!subscribers.remove(subscription)) return;
+        }
+        if (onUnsubscribe != null) onUnsubscribe.run();
+    }
+
+    // Drops every frame in the ring; the channel is not used again.
+    synchronized void close() {
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] != null) ring[i].release();
+            ring[i] = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": " + published + " frames, " + subscribers.size() + " subscribers";
+    }
+
+    // One frame of a channel. The payload is a JPEG, checksummed with INTEGRITY.
+    static final class LiveFrame {
+        final int sequence;          // Frames since the channel started
+        final int quality;           // Rendition ordinal the channel is ingested at
+        final long capturedAtMicros; // When the origin read it from its source
+        final FrameData frame;
+
+        LiveFrame(int sequence, int quality, long capturedAtMicros, FrameData frame) {
+            this.sequence = sequence;
+            this.quality = quality;
+            this.capturedAtMicros = capturedAtMicros;
+            this.frame = frame;
+        }
+
+        LiveFrame retain() {
+            frame.retain();
+            return this;
+        }
+
+        void release() {
+            frame.release();
+        }
+    }
+
+    // One subscriber's place in a channel: the frames queued for it and those on their way.
+    static final class Subscription {
+        final int requestId;
+        private final LiveChannel channel;
+        private final Sink sink;
+        private final int maxQueued;
+        private final ArrayDeque<Queued> queued = new ArrayDeque<>();
+        private final ArrayDeque<Integer> unacked = new ArrayDeque<>(); // Sequences sent, oldest first
+        private boolean sending = false;
+        private boolean closed = false;
+
+        private Subscription(LiveChannel channel, int requestId, Sink sink, int maxQueued) {
+            this.channel = channel;
+            this.requestId = requestId;
+            this.sink = sink;
+            this.maxQueued = maxQueued;
+        }
+
+        String channelName() {
+            return channel.name;
+        }
+
+        private void offer(LiveFrame frame) {
+            synchronized (this) {
+                if (closed) return;
+                queued.add(new Queued(frame.retain()));
+                if (queued.size() > maxQueued) drop(queued.poll());
+                if (sending) return;
+                sending = true;
+            }
+            sendNext();
+        }
+
+        // Hands the oldest queued frame that is still fresh to the sink; once it is sent, the
+        // next. Stops when the queue is empty, until the next offer, or when the window of
+        // unacknowledged frames is full, until the next ack.
+        private void sendNext() {
+            Queued next;
+            synchronized (this) {
+                if (unacked.size() >= MAX_UNACKED_FRAMES) {
+                    sending = false;
+                    return;
+                }
+                long now = System.nanoTime();
+                while ((next = queued.poll()) != null && now - next.at > MAX_WAIT_NANOS) drop(next);
+                if (next == null || closed) {
+                    if (next != null) next.frame.release();
+                    sending = false;
+                    return;
+                }
+                unacked.add(next.frame.sequence);
+            }
+            LiveFrame frame = next.frame;
+            sink.sendLive(requestId, frame, () -> {
+                frame.release();
+                sendNext();
+            });
+        }
+
+        // The subscriber has read frame sequence, and every frame sent before it.
+        void ack(int sequence) {
+            synchronized (this) {
+                if (!unacked.contains(sequence)) return;
+                int sent;
+                do {
+                    sent = unacked.poll();
+                } while (sent != sequence);
+                if (sending || queued.isEmpty()) return;
+                sending = true;
+            }
+            sendNext();
+        }
+
+        private void drop(Queued stale) {
+            stale.frame.release();
+            channel.dropped.increment();
+        }
+
+        // Stops the subscription and releases what it still had queued.
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                Queued stale;
+                while ((stale = queued.poll()) != null) stale.frame.release();
+            }
+            channel.unsubscribe(this);
+        }
+
+        private static final class Queued {
+            final LiveFrame frame;
+            final long at = System.nanoTime();
+
+            Queued(LiveFrame frame) {
+                this.frame = frame;
+            }
+        }
+    }
+
+    // The live subscriptions made on one connection, by the requestId of their SUBSCRIBE, so
+    // UNSUBSCRIBE can find them and the connection can end them all when it closes.
+    static final class Subscriptions {
+        private final Map<Integer, Subscription> byRequestId = new HashMap<>();
+        private boolean closed = false;
+
+        // Keeps subscription, or closes it at once if the connection has closed meanwhile.
+        void add(Subscription subscription) {
+            Subscription replaced;
+            synchronized (this) {
+                if (closed) {
+                    replaced = subscription;
+                } else {
+                    replaced = byRequestId.put(subscription.requestId, subscription);
+                }
+            }
+            if (replaced != null) replaced.close();
+        }
+
+        void remove(int requestId) {
+            Subscription subscription;
+            synchronized (this) {
+                subscription = byRequestId.remove(requestId);
+            }
+            if (subscription != null) subscription.close();
+        }
+
+        void ack(int requestId, int sequence) {
+            Subscription subscription;
+            synchronized (this) {
+                subscription = byRequestId.get(requestId);
+            }
+            if (subscription != null) subscription.ack(sequence);
+        }
+
+        void closeAll() {
+            List<Subscription> all;
+            synchronized (this) {
+                closed = true;
+                all = new ArrayList<>(byRequestId.values());
+                byRequestId.clear();
+            }
+            for (Subscription subscription : all) subscription.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package streaming;
+
+import java.util.concurrent.*;
+
+// The live channels a relay passes on, with one upstream subscription per channel however
+// many of its clients watch it. Frames from the parent are published into a LiveChannel of
+// the relay's own, whose ring and one-pass fan-out serve the relay's subscribers just as the
+// server's serve relays, so a channel crosses each hop once and a slow client only ever
+// drops frames from its own queue.
+//
+// A channel is subscribed upstream when its first viewer arrives and dropped LINGER_MILLIS
+// after the last one leaves, so a viewer who comes straight back finds it still running. If
+// the parent refuses the channel, the viewers waiting for it get the error; if the stream
+// breaks later, it is subscribed again (on the next parent of its route, see UpstreamRouter)
+// after RETRY_MILLIS, and viewers see a gap in the frame numbers.
+class LiveFeeds {
+    private static final long LINGER_MILLIS = 10_000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final UpstreamRouter upstream;
+    private final ConcurrentHashMap<String, Feed> feeds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "live-feeds");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LiveFeeds(UpstreamRouter upstream) {
+        this.upstream = upstream;
+    }
+
+    // Subscribes sink to channelName, adding the subscription to subscriptions. The future
+    // completes once the parent has sent the channel's first frame (at once if the relay
+    // carries it already), or exceptionally if it could not be subscribed, in which case the
+    // subscription has been removed again.
+    CompletableFuture<Void> subscribe(String channelName, LiveChannel.Subscriptions subscriptions, int requestId, LiveChannel.Sink sink, int backlog) {
+        while (true) {
+            Feed feed = feeds.computeIfAbsent(channelName, Feed::new);
+            LiveChannel.Subscription subscription = feed.join(requestId, sink, backlog);
+            if (subscription == null) continue; // Closed just now; a fresh feed replaces it
+            subscriptions.add(subscription);
+            return feed.accepted.whenComplete((ok, error) -> {
+                if (error != null) subscriptions.remove(requestId);
+            });
+        }
+    }
+
+    int channels() {
+        return feeds.size();
+    }
+
+    long subscribers() {
+        long subscribers = 0;
+        for (Feed feed : feeds.values()) subscribers += feed.channel.subscribers();
+        return subscribers;
+    }
+
+    private final class Feed {
+        final LiveChannel channel;
+        final CompletableFuture<Void> accepted = new CompletableFuture<>();
+        private UpstreamPool.LiveStream stream; // null until the first viewer joins
+        // Frames asked of the parent: as many as the first viewer asked for, so it starts no
+        // further behind live than the viewers after it, whose backlog comes from the ring
+        private int upstreamBacklog;
+        private volatile int lastSequence = -1;
+        private volatile boolean closed = false;
+
+        Feed(String channelName) {
+            this.channel = new LiveChannel(channelName, "relay", this::onUnsubscribe);
+        }
+
+        // A new subscription to the channel, or null if the feed has closed.
+        synchronized LiveChannel.Subscription join(int requestId, LiveChannel.Sink sink, int backlog) {
+            if (closed) return null;
+            LiveChannel.Subscription subscription = channel.subscribe(requestId, sink, backlog);
+            if (stream == null) {
+                upstreamBacklog = Math.min(backlog, LiveChannel.MAX_QUEUED_FRAMES);
+                open();
+            }
+            return subscription;
+        }
+
+        private synchronized void open() {
+            if (closed) return;
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): Subscribing upstream to live channel " + channel.name);
+            UpstreamPool.LiveStream fresh = upstream.subscribe(channel.name, upstreamBacklog, this::onFrame);
+            stream = fresh;
+            fresh.ended.whenComplete((ok, error) -> {
+                if (error != null) onBroken(fresh, error);
+            });
+        }
+
+        // Runs on the upstream reader thread. A resubscribed stream starts with frames from
+        // the parent's ring, some of which the relay has passed on already; frame numbers
+        // further back than that mean the origin has restarted the channel.
+        private void onFrame(Protocol.Response response) {
+            boolean repeated = response.frameIndex <= lastSequence && lastSequence - response.frameIndex <= upstreamBacklog;
+            if (closed || repeated) {
+                response.release();
+                return;
+            }
+            lastSequence = response.frameIndex;
+            accepted.complete(null);
+            FrameData frame = new FrameData(response.buffer, response.length, response.checksum);
+            channel.publish(new LiveChannel.LiveFrame(response.frameIndex, response.quality, response.capturedAtMicros, frame));
+        }
+
+        private void onBroken(UpstreamPool.LiveStream broken, Throwable error) {
+            synchronized (this) {
+                if (closed || stream != broken) return;
+                if (accepted.isDone()) {
+                    System.out.println("ERROR: Live channel " + channel.name + " lost upstream (" + error.getMessage() + "), resubscribing");
+                    timer.schedule(this::open, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                close();
+            }
+            accepted.completeExceptionally(error);
+        }
+
+        private void onUnsubscribe() {
+            if (channel.subscribers() == 0) timer.schedule(this::closeIfIdle, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void closeIfIdle() {
+            if (!closed && channel.subscribers() == 0) close();
+        }
+
+        private void close() {
+            closed = true;
+            feeds.remove(channel.name, this);
+            if (stream != null) stream.close();
+            channel.close();
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): Dropped live channel " + channel.name);
+        }
+    }
+}
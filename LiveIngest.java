@@ -0,0 +1,164 @@
+package streaming;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// The source of one live channel on the server, read continuously and published frame by
+// frame as it grows:
+//   a directory - every .jpg written into it (by a capture tool, or ffmpeg writing an image
+//                 sequence), in name order. A file is taken once the next one appears, so
+//                 the one still being written is never sent. Images go out as they are.
+//   anything else - handed to ffmpeg as its input (a capture device, a stream URL, or a file,
+//                 which is played in a loop at its own rate with -re), scaled to RENDITION
+//                 and written as MJPEG to a pipe that is split into images as it arrives.
+// Each frame is checksummed once and stamped with the wall-clock time it was read, which the
+// viewer compares with the time it shows the frame (glass-to-glass latency). When the source
+// ends or fails it is opened again after RESTART_MILLIS; frame numbers carry on, so viewers
+// see a gap rather than a new channel.
+class LiveIngest {
+    static final Rendition RENDITION = Rendition.MEDIUM;
+    private static final long RESTART_MILLIS = 2000;
+
+    private final LiveChannel channel;
+    private final String source;
+    private int sequence = 0;
+
+    LiveIngest(LiveChannel channel, String source) {
+        this.channel = channel;
+        this.source = source;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, "live-" + channel.name);
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("INFO (Server): Live channel " + channel.name + " from " + source);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                if (new File(source).isDirectory()) watch(new File(source));
+                else pipe();
+                System.out.println("ERROR: Live source " + source + " ended, reopening");
+            } catch (IOException e) {
+                System.out.println("ERROR: Live source " + source + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RESTART_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void pipe() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList("ffmpeg", "-v", "error"));
+        if (new File(source).isFile()) command.addAll(Arrays.asList("-re", "-stream_loop", "-1"));
+        command.addAll(Arrays.asList("-i", source, "-vf", RENDITION.ffmpegFilter(), "-q:v", String.valueOf(RENDITION.jpegQuality),
+                "-f", "image2pipe", "-c:v", "mjpeg", "pipe:1"));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (InputStream in = process.getInputStream()) {
+            JpegReader reader = new JpegReader(in);
+            byte[] jpeg;
+            while ((jpeg = reader.next()) != null) publish(jpeg);
+        } finally {
+            process.destroy();
+        }
+        process.waitFor();
+    }
+
+    private void watch(File dir) throws IOException, InterruptedException {
+        // Whatever is there already is history; start with what is written from now on
+        String[] existing = images(dir, "");
+        String last = existing.length == 0 ? "" : existing[existing.length - 1];
+        while (true) {
+            String[] names = images(dir, last);
+            for (int i = 0; i < names.length - 1; i++) {
+                publish(Files.readAllBytes(new File(dir, names[i]).toPath()));
+                last = names[i];
+            }
+            Thread.sleep(1000 / LiveChannel.FPS);
+        }
+    }
+
+    // The .jpg files in dir named after last, in name order
+    private static String[] images(File dir, String last) throws IOException {
+        String[] names = dir.list((d, name) -> name.endsWith(".jpg") && name.compareTo(last) > 0);
+        if (names == null) throw new IOException("cannot list " + dir);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private void publish(byte[] jpeg) {
+        long capturedAt = LiveChannel.nowMicros();
+        FrameData frame = new FrameData(jpeg, LiveChannel.INTEGRITY.compute(jpeg, 0, jpeg.length));
+        channel.publish(new LiveChannel.LiveFrame(sequence++, RENDITION.ordinal(), capturedAt, frame));
+    }
+
+    // Splits a stream of concatenated JPEG images as it arrives, walking their markers as
+    // OnDemandVideo.splitJpegs does, so an image is handed out as soon as its EOI is read.
+    static final class JpegReader {
+        private final InputStream in;
+        private byte[] buf = new byte[256 * 1024];
+        private int limit = 0; // End of the bytes read so far; the next image starts at 0
+
+        JpegReader(InputStream in) {
+            this.in = in;
+        }
+
+        // The next image, or null if the stream ends cleanly between images.
+        byte[] next() throws IOException {
+            if (!available(2)) {
+                if (limit == 0) return null;
+                throw new EOFException("truncated JPEG image");
+            }
+            if ((buf[0] & 0xFF) != 0xFF || (buf[1] & 0xFF) != 0xD8) throw new IOException("expected a JPEG image");
+            int pos = 2;
+            boolean scan = false;
+            while (true) {
+                need(pos + 2);
+                int b = buf[pos] & 0xFF;
+                int next = buf[pos + 1] & 0xFF;
+                if (scan && (b != 0xFF || next == 0x00 || (next >= 0xD0 && next <= 0xD7))) {
+                    pos += b == 0xFF ? 2 : 1; // Entropy-coded data, a stuffed FF or a restart marker
+                    continue;
+                }
+                if (b != 0xFF) throw new IOException("bad JPEG marker at byte " + pos);
+                if (next == 0xFF) {
+                    pos++; // Fill byte
+                    continue;
+                }
+                pos += 2;
+                scan = false;
+                if (next == 0xD9) break; // EOI
+                if (next == 0x01 || (next >= 0xD0 && next <= 0xD7)) continue; // No length
+                need(pos + 2);
+                pos += ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+                if (next == 0xDA) scan = true; // Start of scan: entropy-coded data follows its header
+            }
+            byte[] image = Arrays.copyOf(buf, pos);
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            return image;
+        }
+
+        private void need(int end) throws IOException {
+            if (!available(end)) throw new EOFException("truncated JPEG image");
+        }
+
+        // Reads until buf holds at least end bytes; false if the stream ends first.
+        private boolean available(int end) throws IOException {
+            while (limit < end) {
+                if (limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) return false;
+                limit += n;
+            }
+            return true;
+        }
+    }
+}
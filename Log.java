@@ -0,0 +1,18 @@
+package streaming;
+
+import java.util.*;
+
+// Log level shared by the server, relay and client, set with -Dlog=debug|info (default info).
+// Per-request, per-connection and per-step messages are DEBUG and written as
+//
+//   if (Log.DEBUG) System.out.println("DEBUG (Relay): ...");
+//
+// so that with debug logging off the message is never built: DEBUG is a static final, and
+// the JIT drops the whole statement. Startup and once-per-video lifecycle messages are
+// always printed, as "INFO (Relay): ...", and errors as "ERROR: ...".
+// Counts and latencies that used to be read off these lines are in Metrics.
+final class Log {
+    static final boolean DEBUG = "debug".equals(System.getProperty("log", "info").toLowerCase(Locale.ROOT));
+
+    private Log() {}
+}
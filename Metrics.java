@@ -0,0 +1,264 @@
+package streaming;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+// Process-wide counters, gauges and latency histograms for the server, relay and client.
+// Recording never takes a lock: counters are LongAdders and histograms bump one slot of an
+// AtomicLongArray, so hot paths can record every frame. Metrics are created on first use by
+// name (Prometheus style, e.g. relay_cache_hits_total) and kept in a static registry.
+//
+// They are exported, when asked for with -Dmetrics.port=N, over HTTP at
+// http://localhost:N/metrics in the Prometheus text format, and always over JMX as the
+// attributes of the MBean video:type=Metrics (jconsole, jcmd).
+final class Metrics {
+    private static final ConcurrentSkipListMap<String, Object> registry = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    static Counter counter(String name) {
+        return (Counter) registry.computeIfAbsent(name, n -> new Counter());
+    }
+
+    // Histogram of durations, recorded in nanoseconds and exported in seconds
+    static Histogram histogram(String name) {
+        return (Histogram) registry.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    // A value read when metrics are exported, e.g. a cache size the owner already tracks.
+    // Names ending in _total are exported as counters, for totals kept elsewhere.
+    static void gauge(String name, LongSupplier value) {
+        registry.put(name, value);
+    }
+
+    // Starts the exporters for this process; role ("server", "relay", "client") names the
+    // JMX bean's process in jconsole.
+    static void export(String role) {
+        try {
+            ObjectName name = new ObjectName("video:type=Metrics,role=" + role);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsBean(), name);
+        } catch (JMException e) {
+            System.out.println("ERROR: Could not register metrics MBean: " + e.getMessage());
+        }
+        String port = System.getProperty("metrics.port");
+        if (port == null) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            System.out.println("INFO (" + role + "): Metrics at http://localhost:" + port + "/metrics");
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("ERROR: Could not serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    // Prometheus text format; histograms are written as summaries with fixed quantiles.
+    static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Object> entry : registry.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(((Counter) metric).get()).append('\n');
+            } else if (metric instanceof Histogram) {
+                Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+                out.append("# TYPE ").append(name).append(" summary\n");
+                for (double q : Histogram.QUANTILES) {
+                    out.append(name).append("{quantile=\"").append(q).append("\"} ").append(seconds(snapshot.percentile(q))).append('\n');
+                }
+                out.append(name).append("_sum ").append(seconds(snapshot.sum)).append('\n');
+                out.append(name).append("_count ").append(snapshot.count).append('\n');
+                out.append(name).append("_max ").append(seconds(snapshot.max)).append('\n');
+            } else {
+                out.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+                out.append(name).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    // HDR-style log-linear histogram: values below 2^SUB_BITS get a slot each, and every
+    // power of two above that is split into 2^SUB_BITS equal slots, so any recorded value is
+    // within 1/2^SUB_BITS (about 3%) of its slot's bounds from a nanosecond up to centuries,
+    // in a fixed 15 KB with no resizing. Percentiles read the slots without stopping writers.
+    static final class Histogram {
+        static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        static final String[] QUANTILE_LABELS = {"p50", "p90", "p99", "p999"};
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int SLOTS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(slot(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) max.accumulateAndGet(value, Math::max);
+        }
+
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int slot(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        // Highest value that falls in slot
+        static long upperBound(int slot) {
+            if (slot < SUB_BUCKETS) return slot;
+            int shift = slot / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + slot % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        Snapshot snapshot() {
+            long[] slots = new long[SLOTS];
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                slots[i] = counts.get(i);
+                total += slots[i];
+            }
+            return new Snapshot(slots, total, sum.sum(), max.get());
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        static final class Snapshot {
+            private final long[] slots;
+            final long count;
+            final long sum;
+            final long max;
+
+            Snapshot(long[] slots, long count, long sum, long max) {
+                this.slots = slots;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            // Upper bound of the slot holding the q-th value, capped at the largest recorded
+            long percentile(double q) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * count));
+                long seen = 0;
+                for (int i = 0; i < slots.length; i++) {
+                    seen += slots[i];
+                    if (seen >= rank) return Math.min(upperBound(i), max);
+                }
+                return max;
+            }
+
+            double meanNanos() {
+                return count == 0 ? 0 : (double) sum / count;
+            }
+        }
+    }
+
+    // Every metric as a read-only JMX attribute; histograms appear as name_p50, name_p99, ...
+    // in seconds. The attribute list follows the registry, so metrics created later show up.
+    private static final class MetricsBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> all = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (all.containsKey(name)) list.add(new Attribute(name, all.get(name)));
+            }
+            return list;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : attributes().entrySet()) {
+                infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Video streaming metrics", infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private static Map<String, Object> attributes() {
+            Map<String, Object> values = new TreeMap<>();
+            for (Map.Entry<String, Object> entry : registry.entrySet()) {
+                String name = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    values.put(name, ((Counter) metric).get());
+                } else if (metric instanceof Histogram) {
+                    Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+                    values.put(name + "_count", snapshot.count);
+                    values.put(name + "_mean", snapshot.meanNanos() / 1e9);
+                    for (int i = 0; i < Histogram.QUANTILES.length; i++) {
+                        values.put(name + "_" + Histogram.QUANTILE_LABELS[i], snapshot.percentile(Histogram.QUANTILES[i]) / 1e9);
+                    }
+                    values.put(name + "_max", snapshot.max / 1e9);
+                } else {
+                    values.put(name, ((LongSupplier) metric).getAsLong());
+                }
+            }
+            return values;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+    }
+}
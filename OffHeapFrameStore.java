@@ -0,0 +1,392 @@
+package streaming;
+
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Relay cache tier whose frame payloads live outside the Java heap, in a ring of
+// memory-mapped segment files. The only on-heap state is an open-addressing index of
+// primitive longs (key hash -> segment/offset), so a large cache adds next to nothing to
+// GC work. Segments are written append-only and recycled oldest first; because the data
+// is in ordinary files, a restarted relay rebuilds the index by scanning them and starts warm.
+//
+// Segment layout: int MAGIC, long generation, int unused, then records of
+//   int recordSize, long keyHash, int frameIndex, int checksum, int payloadLength,
+//   short nameLength, byte quality, byte kind (0 frame, 1 segment), name bytes (UTF-8), payload bytes
+// terminated by a recordSize of 0. A removed record keeps its space until its segment is
+// recycled, with its keyHash zeroed so that recovery skips it.
+class OffHeapFrameStore {
+    private static final int MAGIC = 0x56525334; // "VRS4"; files holding byte-sum checksums are discarded
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 28;
+
+    private final int segmentBytes;
+    private final BufferPool bufferPool;
+    private final MappedByteBuffer[] segments;
+    private final AtomicLongArray generations;
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    // Guarded by indexLock
+    private long[] indexKeys;
+    private long[] indexLocations;
+    private int indexSize = 0;
+    private int currentSegment = 0;
+    private int writePosition = SEGMENT_HEADER;
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong recycledSegments = new AtomicLong();
+
+    // get() copies frames out into buffers from bufferPool
+    OffHeapFrameStore(File directory, int segmentCount, int segmentBytes, BufferPool bufferPool) throws IOException {
+        this.segmentBytes = segmentBytes;
+        this.bufferPool = bufferPool;
+        this.segments = new MappedByteBuffer[segmentCount];
+        this.generations = new AtomicLongArray(segmentCount);
+        this.indexKeys = new long[1024];
+        this.indexLocations = new long[1024];
+
+        if (!directory.exists()) directory.mkdirs();
+        for (int i = 0; i < segmentCount; i++) {
+            File file = new File(directory, String.format("segment_%02d.dat", i));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segmentBytes);
+                // The mapping stays valid after the channel is closed
+                segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+        }
+        recover();
+    }
+
+    // Rebuilds the index from whatever a previous relay process left in the segment files.
+    private void recover() {
+        Integer[] order = new Integer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            order[i] = i;
+            MappedByteBuffer segment = segments[i];
+            generations.set(i, segment.getInt(0) == MAGIC ? segment.getLong(4) : 0);
+        }
+        Arrays.sort(order, Comparator.comparingLong(generations::get));
+
+        int recovered = 0;
+        for (int segmentIndex : order) {
+            if (generations.get(segmentIndex) == 0) continue;
+            MappedByteBuffer segment = segments[segmentIndex];
+            int position = SEGMENT_HEADER;
+            while (position + RECORD_HEADER <= segmentBytes) {
+                int recordSize = segment.getInt(position);
+                if (recordSize <= 0 || position + recordSize > segmentBytes) break;
+                long hash = segment.getLong(position + 4);
+                if (hash != 0) {
+                    indexPut(hash, location(segmentIndex, position));
+                    bytes += segment.getInt(position + 20);
+                    recovered++;
+                }
+                position += recordSize;
+            }
+            currentSegment = segmentIndex;
+            writePosition = position;
+        }
+        if (generations.get(currentSegment) == 0) startSegment(currentSegment);
+        System.out.println("INFO (Relay): Off-heap store recovered " + recovered + " frames");
+    }
+
+    void put(FrameKey key, FrameData frame) {
+        byte[] name = key.videoName.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER + name.length + frame.length;
+        if (SEGMENT_HEADER + recordSize + 4 > segmentBytes) return;
+        long hash = hash(key);
+
+        indexLock.writeLock().lock();
+        try {
+            if (indexGet(hash) != -1) return;
+            if (writePosition + recordSize + 4 > segmentBytes) {
+                currentSegment = (currentSegment + 1) % segments.length;
+                recycle(currentSegment);
+            }
+
+            ByteBuffer segment = segments[currentSegment].duplicate();
+            segment.position(writePosition);
+            segment.putInt(recordSize);
+            segment.putLong(hash);
+            segment.putInt(key.frameIndex);
+            segment.putInt(frame.checksum);
+            segment.putInt(frame.length);
+            segment.putShort((short) name.length);
+            segment.put((byte) key.quality);
+            segment.put((byte) (key.segment ? 1 : 0));
+            segment.put(name);
+            segment.put(frame.data, 0, frame.length);
+            segment.putInt(0); // End marker for recovery; overwritten by the next record
+
+            indexPut(hash, location(currentSegment, writePosition));
+            writePosition += recordSize;
+            bytes += frame.length;
+            writes.incrementAndGet();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    // Forgets the frame, if stored, and marks its record dead so a restart does not bring it
+    // back. Returns whether it was stored.
+    boolean remove(FrameKey key) {
+        long hash = hash(key);
+        indexLock.writeLock().lock();
+        try {
+            long location = indexRemove(hash);
+            if (location == -1) return false;
+            MappedByteBuffer segment = segments[segmentOf(location)];
+            segment.putLong(offsetOf(location) + 4, 0);
+            bytes -= segment.getInt(offsetOf(location) + 20);
+            return true;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    // Whether the key is indexed, without copying the frame or counting a lookup. A hash
+    // collision can make this true for an absent frame; fine for the prefetcher, which
+    // only uses it to skip work.
+    boolean contains(FrameKey key) {
+        long hash = hash(key);
+        indexLock.readLock().lock();
+        try {
+            return indexGet(hash) != -1;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Copies the frame out of the mapped segment into a pooled buffer, or returns null if it
+    // is not stored. The caller owns the returned frame's reference.
+    FrameData get(FrameKey key) {
+        long hash = hash(key);
+        long location;
+        long generation;
+        indexLock.readLock().lock();
+        try {
+            location = indexGet(hash);
+            if (location == -1) {
+                misses.incrementAndGet();
+                return null;
+            }
+            generation = generations.get(segmentOf(location));
+        } finally {
+            indexLock.readLock().unlock();
+        }
+
+        // Copy outside the lock, then check the segment was not recycled meanwhile (seqlock
+        // style). A torn copy can hold garbage lengths, so treat any failure as a miss.
+        int segmentIndex = segmentOf(location);
+        int frameIndex = -1;
+        int quality = -1;
+        boolean isSegment = false;
+        boolean nameMatches = false;
+        int checksum = 0;
+        int payloadLength = 0;
+        BufferPool.Buffer data = null;
+        try {
+            ByteBuffer record = segments[segmentIndex].duplicate();
+            record.position(offsetOf(location) + 12);
+            frameIndex = record.getInt();
+            checksum = record.getInt();
+            payloadLength = record.getInt();
+            int nameLength = record.getShort();
+            quality = record.get() & 0xFF;
+            isSegment = record.get() == 1;
+            nameMatches = nameMatches(record, nameLength, key.videoName);
+            if (nameMatches && payloadLength >= 0 && payloadLength <= record.remaining()) {
+                data = bufferPool.acquire(payloadLength);
+                record.get(data.array, 0, payloadLength);
+            }
+        } catch (RuntimeException e) {
+            nameMatches = false;
+        }
+
+        VarHandle.acquireFence();
+        if (data == null
+                || !nameMatches
+                || generations.get(segmentIndex) != generation
+                || frameIndex != key.frameIndex
+                || quality != key.quality
+                || isSegment != key.segment) {
+            if (data != null) data.release();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new FrameData(data, payloadLength, checksum);
+    }
+
+    // Compares the record's stored name (advancing past it) with name, without decoding it.
+    private static boolean nameMatches(ByteBuffer record, int length, String name) {
+        if (length != name.length()) {
+            // Differs in length, unless the name has non-ASCII characters; decode to be sure
+            byte[] bytes = new byte[length];
+            record.get(bytes);
+            return name.equals(new String(bytes, StandardCharsets.UTF_8));
+        }
+        boolean matches = true;
+        for (int i = 0; i < length; i++) {
+            if (record.get() != (byte) name.charAt(i) || name.charAt(i) >= 0x80) matches = false;
+        }
+        return matches;
+    }
+
+    // Caller holds the write lock
+    private void recycle(int segmentIndex) {
+        long[] keys = indexKeys;
+        long[] locations = indexLocations;
+        indexKeys = new long[keys.length];
+        indexLocations = new long[keys.length];
+        indexSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0) continue;
+            if (segmentOf(locations[i]) == segmentIndex) {
+                bytes -= segments[segmentIndex].getInt(offsetOf(locations[i]) + 20);
+            } else {
+                indexPut(keys[i], locations[i]);
+            }
+        }
+        startSegment(segmentIndex);
+        recycledSegments.incrementAndGet();
+    }
+
+    private void startSegment(int segmentIndex) {
+        long generation = 0;
+        for (int i = 0; i < segments.length; i++) generation = Math.max(generation, generations.get(i));
+        MappedByteBuffer segment = segments[segmentIndex];
+        segment.putInt(0, MAGIC);
+        segment.putLong(4, generation + 1);
+        segment.putInt(SEGMENT_HEADER, 0);
+        generations.set(segmentIndex, generation + 1);
+        writePosition = SEGMENT_HEADER;
+    }
+
+    // Open-addressing index with linear probing; 0 marks an empty slot. Caller holds a lock.
+    private long indexGet(long hash) {
+        int mask = indexKeys.length - 1;
+        for (int slot = (int) hash & mask; indexKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (indexKeys[slot] == hash) return indexLocations[slot];
+        }
+        return -1;
+    }
+
+    private void indexPut(long hash, long location) {
+        if ((indexSize + 1) * 2 > indexKeys.length) {
+            long[] keys = indexKeys;
+            long[] locations = indexLocations;
+            indexKeys = new long[keys.length * 2];
+            indexLocations = new long[keys.length * 2];
+            indexSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) indexPut(keys[i], locations[i]);
+            }
+        }
+        int mask = indexKeys.length - 1;
+        int slot = (int) hash & mask;
+        while (indexKeys[slot] != 0 && indexKeys[slot] != hash) slot = (slot + 1) & mask;
+        if (indexKeys[slot] == 0) indexSize++;
+        indexKeys[slot] = hash;
+        indexLocations[slot] = location;
+    }
+
+    // Removes hash and returns its location, or -1. Later entries of the same probe run are
+    // shifted back into the hole, so lookups never stop short at an empty slot.
+    private long indexRemove(long hash) {
+        int mask = indexKeys.length - 1;
+        int slot = (int) hash & mask;
+        while (indexKeys[slot] != hash) {
+            if (indexKeys[slot] == 0) return -1;
+            slot = (slot + 1) & mask;
+        }
+        long location = indexLocations[slot];
+        int hole = slot;
+        for (int next = (hole + 1) & mask; indexKeys[next] != 0; next = (next + 1) & mask) {
+            int home = (int) indexKeys[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                indexKeys[hole] = indexKeys[next];
+                indexLocations[hole] = indexLocations[next];
+                hole = next;
+            }
+        }
+        indexKeys[hole] = 0;
+        indexLocations[hole] = 0;
+        indexSize--;
+        return location;
+    }
+
+    private static long location(int segmentIndex, int offset) {
+        return ((long) segmentIndex << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    // 64-bit FNV-1a over the video name, mixed with the quality, kind and frame index; never 0.
+    private static long hash(FrameKey key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.videoName.length(); i++) {
+            h ^= key.videoName.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= key.quality;
+        h *= 0x100000001b3L;
+        h ^= key.segment ? 1 : 0;
+        h *= 0x100000001b3L;
+        h ^= key.frameIndex;
+        h *= 0x100000001b3L;
+        h ^= h >>> 29;
+        return h == 0 ? 1 : h;
+    }
+
+    Stats stats() {
+        indexLock.readLock().lock();
+        try {
+            return new Stats(hits.get(), misses.get(), writes.get(), recycledSegments.get(), indexSize, bytes,
+                    (long) segmentBytes * segments.length);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Point-in-time snapshot of the store counters
+    static class Stats {
+        final long hits;
+        final long misses;
+        final long writes;
+        final long recycledSegments;
+        final int entries;
+        final long bytes;
+        final long capacityBytes;
+
+        Stats(long hits, long misses, long writes, long recycledSegments, int entries, long bytes, long capacityBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.writes = writes;
+            this.recycledSegments = recycledSegments;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.capacityBytes = capacityBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d writes=%d recycled segments=%d entries=%d bytes=%d/%d",
+                    hits, misses, writes, recycledSegments, entries, bytes, capacityBytes);
+        }
+    }
+}
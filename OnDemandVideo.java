@@ -0,0 +1,429 @@
+package streaming;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// A video the server has not extracted, served in on-demand mode (java streaming.VideoServer <model> lazy).
+// Nothing is extracted until it is asked for: OPEN probes the file with ffprobe for its length
+// and size, and the first request for a frame extracts just the one-second window holding it,
+// seeking ffmpeg there with -ss and stopping it with -frames:v, one rendition at a time. The
+// frames come back over a pipe, are checksummed once, and go into a shared, byte-bounded
+// window cache; the next window is extracted behind them for a sequential viewer. Each window
+// is also packed to disk afterwards, off the request path, so a window that has been evicted,
+// or one from before a restart, is read back instead of extracted again.
+//
+// Responses are completed on the extractor threads and handed to ResponseSink.sendLater, so
+// a window being extracted never blocks the connection it was asked for on.
+class OnDemandVideo {
+    static final int FPS = 30; // Output rate of Rendition.ffmpegFilter
+    static final int WINDOW_FRAMES = VideoServer.SEGMENT_FRAMES; // A window is exactly one segment
+    private static final long CACHE_BYTES = 256L * 1024 * 1024;
+    private static final int EXTRACTORS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    // Shared by every on-demand video
+    private static final WindowCache cache = new WindowCache(CACHE_BYTES);
+    private static final ConcurrentHashMap<FrameKey, CompletableFuture<Window>> inFlight = new ConcurrentHashMap<>();
+    private static final ExecutorService extractors = Executors.newFixedThreadPool(EXTRACTORS, daemon("extract"));
+    private static final ExecutorService materializer = Executors.newSingleThreadExecutor(daemon("materialize"));
+    private static final AtomicLong extractions = new AtomicLong();
+    private static final AtomicLong diskReads = new AtomicLong();
+    private static final Metrics.Histogram extractLatency = Metrics.histogram("server_window_extract_seconds");
+
+    private final File file;
+    private final String videoName;
+    private volatile CompletableFuture<Probe> probe;
+
+    OnDemandVideo(File file, String videoName) {
+        this.file = file;
+        this.videoName = videoName;
+    }
+
+    // ----- Serving -----
+
+    // VIDEO once the file has been probed (only the first OPEN waits for ffprobe), and the first
+    // window of every rendition is started, since the client's first request will want one.
+    void serveOpen(Protocol.Request request, int videoId, Integrity integrity, ResponseSink sink) throws IOException {
+        sink.sendLater(probe().handle((probe, error) -> {
+            if (error != null) {
+                System.out.println("ERROR: Could not probe " + file + ": " + rootCause(error).getMessage());
+                return new ByteBuffer[] { Protocol.error(request.requestId, -1, Protocol.UNAVAILABLE, "could not probe " + videoName) };
+            }
+            for (int quality = 0; quality < Rendition.values().length; quality++) window(quality, 0);
+            return new ByteBuffer[] {
+                    Protocol.video(request.requestId, videoId, probe.frameCount, WINDOW_FRAMES, probe.frameBytes, integrity) };
+        }));
+    }
+
+    void serveFrames(Protocol.Request request, ResponseSink sink) throws IOException {
+        Probe probe = opened(request, sink);
+        if (probe == null) return;
+
+        int first = Math.max(request.frameIndex, 0);
+        int end = (int) Math.min(probe.frameCount, (long) request.frameIndex + request.count);
+        for (long frameIndex = request.frameIndex; frameIndex < request.frameIndex + request.count; frameIndex++) {
+            if (frameIndex < first || frameIndex >= end) {
+                sink.send(Protocol.notFound(request.requestId, (int) Math.min(Integer.MAX_VALUE, frameIndex)));
+            }
+        }
+        if (first >= end) return;
+
+        // One response per window, each holding that window's FRAME messages back to back
+        int lastWindow = (end - 1) / WINDOW_FRAMES;
+        for (int windowIndex = first / WINDOW_FRAMES; windowIndex <= lastWindow; windowIndex++) {
+            int from = Math.max(first, windowIndex * WINDOW_FRAMES);
+            int to = Math.min(end, (windowIndex + 1) * WINDOW_FRAMES);
+            sink.sendLater(window(request.quality, windowIndex).handle((window, error) -> {
+                List<ByteBuffer> messages = new ArrayList<>();
+                for (int frameIndex = from; frameIndex < to; frameIndex++) {
+                    if (error != null) {
+                        messages.add(Protocol.error(request.requestId, frameIndex, Protocol.UNAVAILABLE, String.valueOf(rootCause(error).getMessage())));
+                    } else if (frameIndex - window.firstFrame >= window.frames.length) {
+                        messages.add(Protocol.notFound(request.requestId, frameIndex)); // The video ended early
+                    } else {
+                        int i = frameIndex - window.firstFrame;
+                        messages.add(Protocol.frameHeader(request.requestId, frameIndex, request.quality, 0,
+                                window.checksum(i, request.integrity), window.frames[i].length));
+                        messages.add(ByteBuffer.wrap(window.frames[i]));
+                    }
+                }
+                return messages.toArray(new ByteBuffer[0]);
+            }));
+        }
+        readAhead(request.quality, lastWindow + 1, probe);
+    }
+
+    void serveSegment(Protocol.Request request, ResponseSink sink) throws IOException {
+        Probe probe = opened(request, sink);
+        if (probe == null) return;
+
+        long first = (long) request.segmentIndex * WINDOW_FRAMES;
+        if (first >= probe.frameCount) {
+            sink.send(Protocol.notFound(request.requestId, (int) Math.min(Integer.MAX_VALUE, first)));
+            return;
+        }
+        int firstFrame = (int) first;
+        sink.sendLater(window(request.quality, request.segmentIndex).handle((window, error) -> {
+            if (error != null) {
+                return new ByteBuffer[] { Protocol.error(request.requestId, firstFrame, Protocol.UNAVAILABLE, String.valueOf(rootCause(error).getMessage())) };
+            }
+            int count = window.frames.length;
+            if (count == 0) return new ByteBuffer[] { Protocol.notFound(request.requestId, firstFrame) };
+            int[] lengths = new int[count];
+            int[] checksums = new int[count];
+            ByteBuffer[] message = new ByteBuffer[2 + count];
+            int payloadBytes = 0;
+            for (int i = 0; i < count; i++) {
+                lengths[i] = window.frames[i].length;
+                checksums[i] = window.checksum(i, request.integrity);
+                message[2 + i] = ByteBuffer.wrap(window.frames[i]);
+                payloadBytes += lengths[i];
+            }
+            ByteBuffer table = Protocol.segmentTable(firstFrame, lengths, checksums);
+            message[0] = Protocol.segmentHeader(request.requestId, request.segmentIndex, request.quality, 0, table.remaining() + payloadBytes);
+            message[1] = table;
+            return message;
+        }));
+        readAhead(request.quality, request.segmentIndex + 1, probe);
+    }
+
+    // The probe, or null after answering with an ERROR if the quality tier does not exist or
+    // the video has not been opened (so its length is not known yet).
+    private Probe opened(Protocol.Request request, ResponseSink sink) throws IOException {
+        if (request.quality >= Rendition.values().length) {
+            sink.send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "no quality tier " + request.quality));
+            return null;
+        }
+        CompletableFuture<Probe> probed = this.probe;
+        Probe probe = probed != null && probed.isDone() && !probed.isCompletedExceptionally() ? probed.join() : null;
+        if (probe == null) {
+            sink.send(Protocol.error(request.requestId, -1, Protocol.UNAVAILABLE, videoName + " has not been opened"));
+        }
+        return probe;
+    }
+
+    private void readAhead(int quality, int windowIndex, Probe probe) {
+        if ((long) windowIndex * WINDOW_FRAMES < probe.frameCount) window(quality, windowIndex);
+    }
+
+    // ----- Windows -----
+
+    // The window from the cache, from disk, or extracted; concurrent requests for a window
+    // that is not cached share one extraction.
+    private CompletableFuture<Window> window(int quality, int windowIndex) {
+        FrameKey key = FrameKey.segment(videoName, quality, windowIndex);
+        Window cached = cache.get(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        CompletableFuture<Window> mine = new CompletableFuture<>();
+        CompletableFuture<Window> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) return existing;
+        extractors.execute(() -> {
+            try {
+                Window window = cache.get(key); // Finished just before we registered
+                if (window == null) window = load(Rendition.values()[quality], windowIndex);
+                cache.put(key, window);
+                mine.complete(window);
+            } catch (IOException | RuntimeException e) {
+                mine.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        });
+        return mine;
+    }
+
+    private Window load(Rendition rendition, int windowIndex) throws IOException {
+        File packed = windowFile(rendition, windowIndex);
+        if (FrameContainer.isCurrent(packed)) {
+            diskReads.incrementAndGet();
+            return Window.read(windowIndex * WINDOW_FRAMES, packed);
+        }
+
+        long start = System.nanoTime();
+        List<byte[]> frames = extract(rendition, windowIndex * WINDOW_FRAMES, WINDOW_FRAMES);
+        extractions.incrementAndGet();
+        extractLatency.recordSince(start);
+        if (Log.DEBUG) System.out.println("DEBUG (Server): Extracted " + videoName + " " + rendition.label + " window " + windowIndex
+                + " (" + frames.size() + " frames) in " + (System.nanoTime() - start) / 1_000_000 + " ms; " + stats());
+        materializer.execute(() -> {
+            try {
+                packed.getParentFile().mkdirs();
+                FrameContainer.pack(frames, packed);
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not save " + packed + ": " + e.getMessage());
+            }
+        });
+        return new Window(windowIndex * WINDOW_FRAMES, frames.toArray(new byte[0][]));
+    }
+
+    private File windowFile(Rendition rendition, int windowIndex) {
+        return new File(rendition.frameDir(videoName).getPath() + ".windows",
+                String.format("window_%05d%s", windowIndex, FrameContainer.EXTENSION));
+    }
+
+    // Runs ffmpeg from firstFrame for at most count frames and splits its JPEG output.
+    private List<byte[]> extract(Rendition rendition, int firstFrame, int count) throws IOException {
+        List<String> command = Arrays.asList("ffmpeg", "-v", "error",
+                "-ss", String.format(Locale.ROOT, "%.3f", (double) firstFrame / FPS), "-i", file.getPath(),
+                "-frames:v", String.valueOf(count), "-vf", rendition.ffmpegFilter(), "-q:v", String.valueOf(rendition.jpegQuality),
+                "-f", "image2pipe", "-c:v", "mjpeg", "pipe:1");
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        byte[] output;
+        try (InputStream in = process.getInputStream()) {
+            output = in.readAllBytes();
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) throw new IOException("ffmpeg exited with " + exitCode + " extracting " + videoName + " from frame " + firstFrame);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted extracting " + videoName);
+        }
+        return splitJpegs(output);
+    }
+
+    // Splits concatenated JPEG images at their EOI markers. Marker segments are skipped by
+    // their length and entropy-coded data by its byte stuffing, so image bytes that happen to
+    // look like FF D9 do not end a frame early.
+    static List<byte[]> splitJpegs(byte[] data) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        int pos = 0;
+        while (pos < data.length) {
+            if (pos + 1 >= data.length || (data[pos] & 0xFF) != 0xFF || (data[pos + 1] & 0xFF) != 0xD8) {
+                throw new IOException("expected a JPEG image at byte " + pos);
+            }
+            int start = pos;
+            pos += 2;
+            boolean scan = false;
+            while (true) {
+                if (pos + 1 >= data.length) throw new IOException("truncated JPEG image at byte " + start);
+                int b = data[pos] & 0xFF;
+                int next = data[pos + 1] & 0xFF;
+                if (scan && (b != 0xFF || next == 0x00 || (next >= 0xD0 && next <= 0xD7))) {
+                    pos += b == 0xFF ? 2 : 1; // Entropy-coded data, a stuffed FF or a restart marker
+                    continue;
+                }
+                if (b != 0xFF) throw new IOException("bad JPEG marker at byte " + pos);
+                if (next == 0xFF) {
+                    pos++; // Fill byte
+                    continue;
+                }
+                pos += 2;
+                scan = false;
+                if (next == 0xD9) break; // EOI
+                if (next == 0x01 || (next >= 0xD0 && next <= 0xD7)) continue; // No length
+                if (pos + 1 >= data.length) throw new IOException("truncated JPEG image at byte " + start);
+                pos += ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+                if (next == 0xDA) scan = true; // Start of scan: entropy-coded data follows its header
+            }
+            frames.add(Arrays.copyOfRange(data, start, pos));
+        }
+        return frames;
+    }
+
+    // ----- Probing -----
+
+    private synchronized CompletableFuture<Probe> probe() {
+        if (probe == null || probe.isCompletedExceptionally()) {
+            probe = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Probe.run(file);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, extractors);
+        }
+        return probe;
+    }
+
+    // What OPEN needs to know about a video without extracting any of it.
+    private static final class Probe {
+        final int frameCount;
+        final int[] frameBytes; // Estimated; see estimateFrameBytes
+
+        private Probe(int frameCount, int[] frameBytes) {
+            this.frameCount = frameCount;
+            this.frameBytes = frameBytes;
+        }
+
+        static Probe run(File file) throws IOException {
+            List<String> command = Arrays.asList("ffprobe", "-v", "error", "-select_streams", "v:0",
+                    "-show_entries", "stream=width,height:format=duration", "-of", "default=noprint_wrappers=1", file.getPath());
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            Properties fields = new Properties();
+            try (InputStream in = process.getInputStream()) {
+                fields.load(in);
+            }
+            try {
+                process.waitFor();
+                int width = Integer.parseInt(fields.getProperty("width"));
+                int height = Integer.parseInt(fields.getProperty("height"));
+                double duration = Double.parseDouble(fields.getProperty("duration"));
+                Rendition[] renditions = Rendition.values();
+                int[] frameBytes = new int[renditions.length];
+                for (int i = 0; i < renditions.length; i++) frameBytes[i] = estimateFrameBytes(renditions[i], width, height);
+                return new Probe((int) Math.round(duration * FPS), frameBytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted probing " + file);
+            } catch (RuntimeException e) {
+                throw new IOException("ffprobe could not read " + file + ": " + fields, e);
+            }
+        }
+
+        // VIDEO has to name each tier's frame size before anything is extracted, so it is
+        // estimated from the scaled resolution and the JPEG quality setting. The client only
+        // uses it to rank tiers against measured throughput, so a rough figure is enough.
+        private static int estimateFrameBytes(Rendition rendition, int width, int height) {
+            int scaledHeight = rendition.height == 0 ? height : Math.min(rendition.height, height);
+            double pixels = (double) width * scaledHeight / height * scaledHeight;
+            double bitsPerPixel = 0.3 + 4.0 / rendition.jpegQuality;
+            return (int) (pixels * bitsPerPixel / 8);
+        }
+    }
+
+    // ----- Cache -----
+
+    // One extracted window of one rendition; immutable, so the cache can hand it out freely.
+    private static final class Window {
+        final int firstFrame;
+        final byte[][] frames;
+        final int[] crc32c;
+        final int[] byteSums;
+        final long bytes;
+
+        Window(int firstFrame, byte[][] frames) {
+            this.firstFrame = firstFrame;
+            this.frames = frames;
+            this.crc32c = new int[frames.length];
+            this.byteSums = new int[frames.length];
+            long bytes = 0;
+            for (int i = 0; i < frames.length; i++) {
+                crc32c[i] = Integrity.CRC32C.compute(frames[i], 0, frames[i].length);
+                byteSums[i] = Integrity.BYTE_SUM.compute(frames[i], 0, frames[i].length);
+                bytes += frames[i].length;
+            }
+            this.bytes = bytes;
+        }
+
+        static Window read(int firstFrame, File packed) throws IOException {
+            FrameContainer container = FrameContainer.open(packed);
+            try {
+                byte[][] frames = new byte[container.frameCount()][];
+                for (int i = 0; i < frames.length; i++) {
+                    ByteBuffer frame = container.frame(i);
+                    frames[i] = new byte[frame.remaining()];
+                    frame.get(frames[i]);
+                }
+                return new Window(firstFrame, frames);
+            } finally {
+                container.close();
+            }
+        }
+
+        int checksum(int i, Integrity integrity) {
+            return integrity == Integrity.CRC32C ? crc32c[i] : byteSums[i];
+        }
+    }
+
+    // Least-recently-used windows of every on-demand video under one byte budget. Lookups
+    // are a few per request rather than per frame, so a lock around a LinkedHashMap is plenty.
+    private static final class WindowCache {
+        private final long maxBytes;
+        private final LinkedHashMap<FrameKey, Window> windows = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+        private long hits = 0;
+        private long misses = 0;
+
+        WindowCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Window get(FrameKey key) {
+            Window window = windows.get(key);
+            if (window != null) hits++;
+            else misses++;
+            return window;
+        }
+
+        synchronized void put(FrameKey key, Window window) {
+            Window previous = windows.put(key, window);
+            if (previous != null) bytes -= previous.bytes;
+            bytes += window.bytes;
+            Iterator<Window> eldest = windows.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Window evicted = eldest.next();
+                if (evicted == window) break; // Never evict what was just added
+                bytes -= evicted.bytes;
+                eldest.remove();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("window cache hits=%d misses=%d windows=%d bytes=%d/%d", hits, misses, windows.size(), bytes, maxBytes);
+        }
+    }
+
+    static String stats() {
+        return cache + ", extractions=" + extractions.get() + ", disk reads=" + diskReads.get();
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return error;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger next = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
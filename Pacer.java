@@ -0,0 +1,93 @@
+package streaming;
+
+import java.util.concurrent.atomic.*;
+
+// Token bucket on one relay -> client stream, refilled at the rate the stream's
+// CongestionController allows, capped at its share of the relay uplink if one is set. A
+// response may start once the bucket is out of debt and takes its full size when sent, so a
+// large frame is followed by a proportionally long pause instead of being split up. The
+// blocking ClientHandler sleeps in await(); the EventLoop asks delayNanos() and sets a timer.
+class Pacer {
+    private static final long BURST_NANOS = 5_000_000;     // Credit an idle stream may bank
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private final CongestionController controller;
+    private final Uplink uplink;
+    private double tokens = MIN_BURST_BYTES;
+    private long lastRefill = System.nanoTime();
+    private long sentBytes = 0;
+    private long waits = 0;
+    private boolean closed = false;
+
+    Pacer(CongestionController controller, Uplink uplink) {
+        this.controller = controller;
+        this.uplink = uplink;
+        uplink.sessions.incrementAndGet();
+    }
+
+    // How long the next response must wait; 0 if it may be sent now.
+    synchronized long delayNanos() {
+        refill();
+        if (tokens >= 0) return 0;
+        waits++;
+        return (long) Math.ceil(-tokens / rate() * 1e9);
+    }
+
+    void await() throws InterruptedException {
+        long delay;
+        while ((delay = delayNanos()) > 0) {
+            Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+        }
+    }
+
+    // A response of bytes was handed to the socket; see CongestionController.onSent.
+    synchronized void onSent(long bytes, long sendNanos, boolean backlogged) {
+        refill();
+        tokens -= bytes;
+        sentBytes += bytes;
+        controller.onSent(bytes, sendNanos, backlogged);
+    }
+
+    synchronized void onLoss() {
+        controller.onLoss();
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        uplink.sessions.decrementAndGet();
+    }
+
+    synchronized double rate() {
+        return Math.min(controller.pacingRate(), uplink.share());
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double rate = rate();
+        double burst = Double.isInfinite(rate) ? MIN_BURST_BYTES : Math.max(MIN_BURST_BYTES, rate * BURST_NANOS / 1e9);
+        tokens = Double.isInfinite(rate) ? burst : Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+        lastRefill = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return controller + String.format(" sent=%dKB waits=%d", sentBytes / 1024, waits);
+    }
+
+    // The relay's total client-facing bandwidth, split evenly among connected sessions.
+    // bytesPerSecond of 0 leaves the uplink unlimited.
+    static final class Uplink {
+        private final double bytesPerSecond;
+        private final AtomicInteger sessions = new AtomicInteger();
+
+        Uplink(double bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        double share() {
+            if (bytesPerSecond <= 0) return Double.POSITIVE_INFINITY;
+            return bytesPerSecond / Math.max(1, sessions.get());
+        }
+    }
+}
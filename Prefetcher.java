@@ -0,0 +1,204 @@
+package streaming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Relay read-ahead. Each client session gets a ReadAhead that watches its requests; once
+// they run sequentially (each starting where the last one ended) it fetches the frames or
+// segments the client will ask for next into the cache, so the client's request finds them
+// there, or already in flight, instead of paying a relay -> server round trip.
+//
+// How far ahead: enough to cover the next request, plus what the client consumes in two
+// smoothed upstream RTTs at its observed request rate. A request that starts somewhere new
+// (playback starting, or a seek) does not wait for the run to prove itself sequential: the
+// next SEEK_BURST_FRAMES (or SEEK_BURST_SEGMENTS) after it are fetched at once, so the
+// requests that follow a seek find the new position warm. Prefetches always yield to demand:
+// they are issued after the session's own misses, only while few demand fetches are waiting
+// upstream, and at most MAX_IN_FLIGHT at a time across all sessions.
+class Prefetcher {
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final int DEMAND_BUSY = 32;      // Demand fetches upstream before prefetch backs off
+    private static final int SEQUENTIAL_RUNS = 2;   // Sequential requests before read-ahead starts
+    private static final int MAX_FRAMES_AHEAD = 240;
+    private static final int MAX_SEGMENTS_AHEAD = 8;
+    private static final int SEEK_BURST_FRAMES = 60;
+    private static final int SEEK_BURST_SEGMENTS = 2;
+
+    private final SingleFlightFetcher fetcher;
+    private final UpstreamRouter upstream;
+    private final Predicate<FrameKey> cached;
+    private final LongSupplier rttMillis;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong bursts = new AtomicLong();
+
+    // cached: whether a key is already in either cache tier, without counting as a lookup
+    Prefetcher(SingleFlightFetcher fetcher, UpstreamRouter upstream, Predicate<FrameKey> cached, LongSupplier rttMillis) {
+        this.fetcher = fetcher;
+        this.upstream = upstream;
+        this.cached = cached;
+        this.rttMillis = rttMillis;
+    }
+
+    ReadAhead session() {
+        return new ReadAhead();
+    }
+
+    // Read-ahead state of one client session. Not thread-safe: a session's requests are
+    // handled one at a time, on its handler thread or its event loop worker.
+    final class ReadAhead {
+        private String videoName;
+        private boolean segments;
+        private int quality = -1;
+        private int nextExpected = -1;   // Where a sequential request would start
+        private int sequentialRuns = 0;
+        private long runStartNanos;
+        private long runUnits;
+        private int prefetchedUpTo = 0;  // Everything below this has been considered
+        // Units prefetched and not yet asked for, by frame or segment index
+        private final TreeMap<Integer, FrameKey> pending = new TreeMap<>();
+
+        private ReadAhead() {}
+
+        // A client asked for units [first, first + count) of videoName at the given quality
+        // (frames, or segments if segment is set); limit is the number of units the video
+        // has. Call after the request's own misses have been sent upstream.
+        void onRequest(String videoName, int quality, int first, int count, boolean segment, int limit) {
+            if (!videoName.equals(this.videoName) || segment != segments) {
+                discardPending();
+                this.videoName = videoName;
+                this.segments = segment;
+                nextExpected = -1;
+            }
+            if (quality != this.quality) {
+                // ABR switched tiers: read-ahead at the old tier will not be asked for
+                discardPending();
+                this.quality = quality;
+            }
+            settle(first, count);
+
+            long now = System.nanoTime();
+            if (first == nextExpected) {
+                sequentialRuns++;
+                runUnits += count;
+            } else {
+                // Start (or seek): begin a new run and warm the new position straight away
+                sequentialRuns = 0;
+                runStartNanos = now;
+                runUnits = count;
+                prefetchedUpTo = 0;
+                nextExpected = first + count;
+                bursts.incrementAndGet();
+                fetchAhead(nextExpected, (int) Math.min(limit, (long) nextExpected + (segment ? SEEK_BURST_SEGMENTS : SEEK_BURST_FRAMES)));
+                return;
+            }
+            nextExpected = first + count;
+            if (sequentialRuns < SEQUENTIAL_RUNS) return;
+
+            fetchAhead(Math.max(nextExpected, prefetchedUpTo), (int) Math.min(limit, (long) nextExpected + depth(count, now)));
+        }
+
+        void close() {
+            discardPending();
+        }
+
+        // Fetches units [from, to) that are neither cached nor pending, while prefetch has
+        // permits and demand is not busy upstream.
+        private void fetchAhead(int from, int to) {
+            for (int index = from; index < to; index++) {
+                if (!inFlight.tryAcquire()) {
+                    deferred.incrementAndGet();
+                    break;
+                }
+                if (upstream.outstanding() - (MAX_IN_FLIGHT - inFlight.availablePermits()) >= DEMAND_BUSY) {
+                    inFlight.release();
+                    deferred.incrementAndGet();
+                    break;
+                }
+                FrameKey key = segments ? FrameKey.segment(videoName, quality, index) : new FrameKey(videoName, quality, index);
+                prefetchedUpTo = index + 1;
+                if (pending.containsKey(index) || cached.test(key)) {
+                    inFlight.release();
+                    continue;
+                }
+                pending.put(index, key);
+                issued.incrementAndGet();
+                fetcher.fetch(key).whenComplete((data, error) -> {
+                    inFlight.release();
+                    if (error != null) failed.incrementAndGet();
+                    else data.release(); // Only wanted in the cache
+                });
+            }
+        }
+
+        // Units ahead to keep fetched: the next request's worth, or the client's consumption
+        // over two smoothed RTTs if that is more.
+        private int depth(int count, long now) {
+            double seconds = (now - runStartNanos) / 1e9;
+            double unitsPerSecond = seconds > 0 ? runUnits / seconds : 0;
+            int byRtt = (int) Math.ceil(unitsPerSecond * 2 * rttMillis.getAsLong() / 1000.0);
+            return Math.min(Math.max(count, byRtt), segments ? MAX_SEGMENTS_AHEAD : MAX_FRAMES_AHEAD);
+        }
+
+        // Credits read-ahead the request used; what it skipped was wasted.
+        private void settle(int first, int count) {
+            Iterator<Map.Entry<Integer, FrameKey>> it = pending.headMap(first + count).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, FrameKey> entry = it.next();
+                if (entry.getKey() >= first) used.incrementAndGet();
+                else wasted.incrementAndGet();
+                it.remove();
+            }
+        }
+
+        private void discardPending() {
+            wasted.addAndGet(pending.size());
+            pending.clear();
+            prefetchedUpTo = 0;
+        }
+    }
+
+    Stats stats() {
+        return new Stats(issued.get(), used.get(), wasted.get(), failed.get(), deferred.get(), bursts.get(), MAX_IN_FLIGHT - inFlight.availablePermits());
+    }
+
+    // Point-in-time snapshot of the prefetch counters
+    static class Stats {
+        final long issued;
+        final long used;
+        final long wasted;
+        final long failed;
+        final long deferred;
+        final long bursts;   // Starts and seeks warmed
+        final int inFlight;
+
+        Stats(long issued, long used, long wasted, long failed, long deferred, long bursts, int inFlight) {
+            this.issued = issued;
+            this.used = used;
+            this.wasted = wasted;
+            this.failed = failed;
+            this.deferred = deferred;
+            this.bursts = bursts;
+            this.inFlight = inFlight;
+        }
+
+        // Share of settled prefetches that a client went on to request
+        double hitRate() {
+            long settled = used + wasted;
+            return settled == 0 ? 0.0 : (double) used / settled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("issued=%d used=%d wasted=%d (%.2f%% useful) failed=%d deferred=%d bursts=%d inFlight=%d",
+                    issued, used, wasted, hitRate() * 100, failed, deferred, bursts, inFlight);
+        }
+    }
+}
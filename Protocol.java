@@ -0,0 +1,650 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.*;
+import java.util.zip.Checksum;
+
+// Binary wire protocol spoken client -> relay and relay -> server. Every message is
+//
+//   int  length      bytes that follow, opcode included
+//   byte opcode
+//   int  requestId   chosen by the requester and echoed in every response to that request
+//   ...              opcode-specific body
+//
+// Requests                                       Responses
+//   OPEN        videoName, checksums               VIDEO      videoId, frameCount, segmentFrames,
+//                                                             qualities, average frame bytes per quality,
+//                                                             checksum
+//   GET         videoId, firstFrame, count,        FRAME      frameIndex, quality, flags, checksum, payload
+//               quality, checksum                  SEGMENT    segmentIndex, quality, flags, segment body
+//   GET_SEGMENT videoId, segmentIndex, quality,    NOT_FOUND  frameIndex
+//               checksum                           ERROR      frameIndex, code, message
+//   NACK        videoId, frameIndex, quality,    LIVE       frameIndex, quality, flags, checksum,
+//               checksum                                      capturedAt, payload
+//   CANCEL      (no body, no response)
+//   SUBSCRIBE   channelName, checksums, backlog
+//   LIVE_ACK    frameIndex (no response)
+//   UNSUBSCRIBE (no body, no response)
+//   PING, DISCONNECT   (no body, no response)
+//
+// A video name crosses the wire once, in OPEN; later requests use the interned videoId. Quality
+// tiers are numbered from 0 (smallest frames) up; VIDEO lists their average frame sizes so the
+// client can match a tier to its measured throughput. A GET asks for count consecutive frames
+// of one quality tier and is answered with exactly count FRAME / NOT_FOUND / ERROR messages,
+// one per frame, in any order. A GET_SEGMENT asks for segment segmentIndex, frames
+// [segmentIndex * segmentFrames, + segmentFrames), and is answered with one SEGMENT, or with a
+// NOT_FOUND / ERROR whose frameIndex is the segment's first frame. A NACK reports that one
+// frame (received alone or in a segment) failed its checksum; it is a selective retransmit
+// request, answered like a one-frame GET with a fresh copy of the frame. A relay that gets one
+// drops its cached copy and sends a NACK of its own upstream, so every tier repairs it. CANCEL
+// tells the responder that answers to requests with IDs below its requestId are no longer
+// wanted (the client seeked away); answers not yet sent may be dropped, and the client ignores
+// any that still arrive.
+//
+// Live channels are pushed rather than pulled: a SUBSCRIBE is answered with a LIVE message
+// for every frame of the channel from then on (the first backlog of them from the recent
+// past), all carrying the SUBSCRIBE's requestId, until an UNSUBSCRIBE with that requestId or
+// the connection ends; or with a single ERROR if there is no such channel. A LIVE frame's
+// frameIndex counts frames since the channel started, so gaps are frames dropped on the way
+// (see LiveChannel); capturedAt is the wall-clock time, in microseconds since the epoch, at
+// which the origin read the frame from its source. Live checksums are always
+// LiveChannel.INTEGRITY, which the SUBSCRIBE must offer. The subscriber acknowledges every
+// LIVE frame as it reads it with a LIVE_ACK (the SUBSCRIBE's requestId and the frame's
+// frameIndex); the responder keeps only a few frames unacknowledged, so a slow subscriber's
+// backlog waits, and is dropped when stale, at the responder rather than in socket buffers
+// on the way. The segment body is
+//
+//   int firstFrame, short frameCount, frameCount x (int length, int checksum), the payloads
+//
+// so a sequential viewer pays one request and one header per segment instead of per frame,
+// and the relay can cache and forward the body as a single object.
+//
+// Frame checksums are negotiated per video: OPEN carries a bitmask of the Integrity algorithms
+// the requester can verify, VIDEO names the one the responder picked, and GET / GET_SEGMENT
+// repeat it so that any connection can serve them. Every checksum in FRAME headers and segment
+// tables for that request is in that algorithm. A request that cannot be
+// served at all (malformed, unknown video, too large a batch) gets a single ERROR with
+// frameIndex -1 instead. Since every message carries its length, a bad request is skipped
+// without losing the stream; only a length that is out of range closes the connection.
+final class Protocol {
+    static final byte OPEN = 1;
+    static final byte GET = 2;
+    static final byte NACK = 3;
+    static final byte PING = 4;
+    static final byte DISCONNECT = 5;
+    static final byte GET_SEGMENT = 6;
+    static final byte CANCEL = 7;
+    static final byte SUBSCRIBE = 8;
+    static final byte UNSUBSCRIBE = 9;
+    static final byte LIVE_ACK = 10;
+
+    static final byte VIDEO = (byte) 0x81;
+    static final byte FRAME = (byte) 0x82;
+    static final byte NOT_FOUND = (byte) 0x83;
+    static final byte ERROR = (byte) 0x84;
+    static final byte SEGMENT = (byte) 0x85;
+    static final byte LIVE = (byte) 0x86;
+
+    // ERROR codes
+    static final byte BAD_REQUEST = 1;
+    static final byte UNKNOWN_VIDEO = 2;
+    static final byte UNAVAILABLE = 3; // Transient; the frame may be requested again
+
+    static final byte FLAG_FROM_CACHE = 1;
+
+    static final int MAX_REQUEST_BYTES = 1024;
+    static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+    static final int MAX_BATCH_FRAMES = 256;
+    private static final int MAX_ERROR_TEXT_BYTES = 512;
+    private static final int VERIFY_CHUNK_BYTES = 32 * 1024; // Read and checksummed while in L1/L2
+    // length, opcode, requestId, frameIndex, quality, flags, checksum
+    static final int FRAME_HEADER_BYTES = 4 + 1 + 4 + 4 + 1 + 1 + 4;
+    // length, opcode, requestId, segmentIndex, quality, flags
+    static final int SEGMENT_HEADER_BYTES = 4 + 1 + 4 + 4 + 1 + 1;
+    // length, opcode, requestId, frameIndex, quality, flags, checksum, capturedAt
+    static final int LIVE_HEADER_BYTES = 4 + 1 + 4 + 4 + 1 + 1 + 4 + 8;
+
+    private Protocol() {}
+
+    // ----- Requests -----
+
+    static final class Request {
+        final byte opcode;
+        final int requestId;
+        String videoName;     // OPEN; SUBSCRIBE (the channel name)
+        int videoId;          // GET, GET_SEGMENT, NACK
+        int frameIndex;       // GET (first frame), NACK, LIVE_ACK
+        int segmentIndex;     // GET_SEGMENT
+        int count;            // GET; always 1 for NACK; SUBSCRIBE (backlog frames)
+        int quality;          // GET, GET_SEGMENT, NACK
+        int checksums;        // OPEN, SUBSCRIBE: Integrity bits the requester accepts
+        Integrity integrity;  // GET, GET_SEGMENT, NACK
+        String malformed;     // Why the request could not be parsed; null if it was fine
+
+        Request(byte opcode, int requestId) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public String toString() {
+            switch (opcode) {
+                case OPEN: return "#" + requestId + " OPEN " + videoName;
+                case GET: return "#" + requestId + " GET video " + videoId + " frames " + frameIndex + "+" + count + " q" + quality;
+                case GET_SEGMENT: return "#" + requestId + " GET_SEGMENT video " + videoId + " segment " + segmentIndex + " q" + quality;
+                case NACK: return "#" + requestId + " NACK video " + videoId + " frame " + frameIndex + " q" + quality;
+                case CANCEL: return "CANCEL below #" + requestId;
+                case SUBSCRIBE: return "#" + requestId + " SUBSCRIBE " + videoName + " backlog " + count;
+                case UNSUBSCRIBE: return "#" + requestId + " UNSUBSCRIBE";
+                case LIVE_ACK: return "#" + requestId + " LIVE_ACK " + frameIndex;
+                case PING: return "PING";
+                case DISCONNECT: return "DISCONNECT";
+                default: return "#" + requestId + " opcode " + opcode;
+            }
+        }
+    }
+
+    static ByteBuffer open(int requestId, String videoName, int checksums) {
+        byte[] name = videoName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = start(OPEN, requestId, 2 + name.length + 1);
+        message.putShort((short) name.length).put(name).put((byte) checksums);
+        return finish(message);
+    }
+
+    static ByteBuffer get(int requestId, int videoId, int firstFrame, int count, int quality, Integrity integrity) {
+        ByteBuffer message = start(GET, requestId, 4 + 4 + 2 + 1 + 1);
+        message.putInt(videoId).putInt(firstFrame).putShort((short) count).put((byte) quality).put((byte) integrity.bit);
+        return finish(message);
+    }
+
+    static ByteBuffer getSegment(int requestId, int videoId, int segmentIndex, int quality, Integrity integrity) {
+        ByteBuffer message = start(GET_SEGMENT, requestId, 4 + 4 + 1 + 1);
+        message.putInt(videoId).putInt(segmentIndex).put((byte) quality).put((byte) integrity.bit);
+        return finish(message);
+    }
+
+    static ByteBuffer nack(int requestId, int videoId, int frameIndex, int quality, Integrity integrity) {
+        ByteBuffer message = start(NACK, requestId, 4 + 4 + 1 + 1);
+        message.putInt(videoId).putInt(frameIndex).put((byte) quality).put((byte) integrity.bit);
+        return finish(message);
+    }
+
+    // Answers to requests below firstWanted are no longer needed
+    static ByteBuffer cancel(int firstWanted) {
+        return finish(start(CANCEL, firstWanted, 0));
+    }
+
+    // A live subscription, starting with up to backlog frames from the channel's recent past
+    static ByteBuffer subscribe(int requestId, String channelName, int checksums, int backlog) {
+        byte[] name = channelName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = start(SUBSCRIBE, requestId, 2 + name.length + 1 + 2);
+        message.putShort((short) name.length).put(name).put((byte) checksums).putShort((short) backlog);
+        return finish(message);
+    }
+
+    // Acknowledges LIVE frame frameIndex of the subscription made by SUBSCRIBE requestId
+    static ByteBuffer liveAck(int requestId, int frameIndex) {
+        return finish(start(LIVE_ACK, requestId, 4).putInt(frameIndex));
+    }
+
+    // Ends the subscription made by SUBSCRIBE requestId
+    static ByteBuffer unsubscribe(int requestId) {
+        return finish(start(UNSUBSCRIBE, requestId, 0));
+    }
+
+    static ByteBuffer ping() {
+        return finish(start(PING, 0, 0));
+    }
+
+    static ByteBuffer disconnect() {
+        return finish(start(DISCONNECT, 0, 0));
+    }
+
+    // Parses one request (opcode onwards). Never throws: a request that does not parse comes
+    // back with malformed set, so the caller can answer it with an ERROR and carry on.
+    static Request parseRequest(ByteBuffer message) {
+        Request request = new Request(message.get(), message.getInt());
+        try {
+            switch (request.opcode) {
+                case OPEN:
+                    request.videoName = getString(message);
+                    request.checksums = message.get() & 0xFF;
+                    break;
+                case GET:
+                    request.videoId = message.getInt();
+                    request.frameIndex = message.getInt();
+                    request.count = message.getShort() & 0xFFFF;
+                    request.quality = message.get() & 0xFF;
+                    request.integrity = getIntegrity(message, request);
+                    if (request.count == 0 || request.count > MAX_BATCH_FRAMES) {
+                        request.malformed = "batch of " + request.count + " frames (1-" + MAX_BATCH_FRAMES + " allowed)";
+                    }
+                    break;
+                case GET_SEGMENT:
+                    request.videoId = message.getInt();
+                    request.segmentIndex = message.getInt();
+                    request.quality = message.get() & 0xFF;
+                    request.integrity = getIntegrity(message, request);
+                    if (request.segmentIndex < 0) request.malformed = "negative segment index " + request.segmentIndex;
+                    break;
+                case NACK:
+                    request.videoId = message.getInt();
+                    request.frameIndex = message.getInt();
+                    request.count = 1;
+                    request.quality = message.get() & 0xFF;
+                    request.integrity = getIntegrity(message, request);
+                    break;
+                case SUBSCRIBE:
+                    request.videoName = getString(message);
+                    request.checksums = message.get() & 0xFF;
+                    request.count = message.getShort() & 0xFFFF;
+                    break;
+                case LIVE_ACK:
+                    request.frameIndex = message.getInt();
+                    break;
+                case CANCEL:
+                case UNSUBSCRIBE:
+                case PING:
+                case DISCONNECT:
+                    break;
+                default:
+                    request.malformed = "unknown opcode " + request.opcode;
+                    return request;
+            }
+            if (message.hasRemaining() && request.malformed == null) request.malformed = message.remaining() + " unexpected trailing bytes";
+        } catch (BufferUnderflowException e) {
+            request.malformed = "truncated " + request;
+        }
+        return request;
+    }
+
+    // Blocking read of one request; null once the peer has closed the connection.
+    static Request readRequest(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length, MAX_REQUEST_BYTES);
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return parseRequest(ByteBuffer.wrap(message));
+    }
+
+    // Reassembles requests from the arbitrary chunks a non-blocking read returns.
+    static final class RequestReader {
+        private final ByteBuffer buffer = ByteBuffer.allocate(4 + MAX_REQUEST_BYTES);
+
+        void read(ByteBuffer in, Consumer<Request> onRequest) throws ProtocolException {
+            while (in.hasRemaining()) {
+                int chunk = Math.min(in.remaining(), buffer.remaining());
+                ByteBuffer slice = in.duplicate();
+                slice.limit(slice.position() + chunk);
+                buffer.put(slice);
+                in.position(in.position() + chunk);
+
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    int start = buffer.position();
+                    int length = buffer.getInt(start);
+                    checkLength(length, MAX_REQUEST_BYTES);
+                    if (buffer.remaining() < 4 + length) break;
+                    ByteBuffer message = buffer.duplicate();
+                    message.limit(start + 4 + length).position(start + 4);
+                    buffer.position(start + 4 + length);
+                    onRequest.accept(parseRequest(message));
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    // ----- Responses -----
+
+    static final class Response {
+        final byte opcode;
+        final int requestId;
+        int frameIndex = -1;  // FRAME, NOT_FOUND, ERROR
+        int videoId;          // VIDEO
+        int frameCount;       // VIDEO
+        int segmentFrames;    // VIDEO
+        int[] frameBytes;     // VIDEO: average frame size of each quality tier
+        Integrity integrity;  // VIDEO: the algorithm of every checksum sent for the video
+        int segmentIndex;     // SEGMENT
+        int quality;          // FRAME, SEGMENT
+        int flags;            // FRAME, SEGMENT, LIVE
+        int checksum;         // FRAME, LIVE
+        long capturedAtMicros; // LIVE: when the origin read the frame from its source
+        boolean verified;     // FRAME, SEGMENT, LIVE: read with an Integrity, so the fields below are set
+        int actualChecksum;   // FRAME, LIVE: checksum of the payload as it arrived
+        int[] actualChecksums; // SEGMENT: the same for each frame
+        byte[] data;          // FRAME and LIVE payload, SEGMENT body: data[offset, offset + length)
+        int offset;
+        int length;
+        BufferPool.Buffer buffer; // Holds data if it came from a pool; see release()
+        byte code;            // ERROR
+        String message;       // ERROR
+
+        Response(byte opcode, int requestId) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+        }
+
+        boolean fromCache() {
+            return (flags & FLAG_FROM_CACHE) != 0;
+        }
+
+        // Whether a FRAME or LIVE frame arrived with the checksum it was sent with.
+        boolean intact() {
+            if (!verified) throw new IllegalStateException(this + " was read without an Integrity");
+            return actualChecksum == checksum;
+        }
+
+        // Hands a pooled payload back once the response has been consumed; a no-op otherwise.
+        void release() {
+            if (buffer != null) buffer.release();
+            buffer = null;
+        }
+
+        @Override
+        public String toString() {
+            switch (opcode) {
+                case VIDEO: return "#" + requestId + " VIDEO " + videoId + " (" + frameCount + " frames, qualities " + Arrays.toString(frameBytes) + " bytes/frame, " + integrity + ")";
+                case FRAME: return "#" + requestId + " FRAME " + frameIndex + " q" + quality + " (" + length + " bytes)";
+                case SEGMENT: return "#" + requestId + " SEGMENT " + segmentIndex + " q" + quality + " (" + length + " bytes)";
+                case LIVE: return "#" + requestId + " LIVE " + frameIndex + " q" + quality + " (" + length + " bytes)";
+                case NOT_FOUND: return "#" + requestId + " NOT_FOUND frame " + frameIndex;
+                case ERROR: return "#" + requestId + " ERROR " + code + " frame " + frameIndex + ": " + message;
+                default: return "#" + requestId + " opcode " + opcode;
+            }
+        }
+    }
+
+    static ByteBuffer video(int requestId, int videoId, int frameCount, int segmentFrames, int[] frameBytes, Integrity integrity) {
+        ByteBuffer message = start(VIDEO, requestId, 4 + 4 + 4 + 1 + 4 * frameBytes.length + 1);
+        message.putInt(videoId).putInt(frameCount).putInt(segmentFrames).put((byte) frameBytes.length);
+        for (int bytes : frameBytes) message.putInt(bytes);
+        message.put((byte) integrity.bit);
+        return finish(message);
+    }
+
+    // Header of a FRAME response; payloadLength bytes of payload must follow it directly.
+    static ByteBuffer frameHeader(int requestId, int frameIndex, int quality, int flags, int checksum, int payloadLength) {
+        return frameHeader(ByteBuffer.allocate(FRAME_HEADER_BYTES), requestId, frameIndex, quality, flags, checksum, payloadLength);
+    }
+
+    // Same, written into a reusable buffer of at least FRAME_HEADER_BYTES.
+    static ByteBuffer frameHeader(ByteBuffer into, int requestId, int frameIndex, int quality, int flags, int checksum, int payloadLength) {
+        into.clear();
+        into.putInt(FRAME_HEADER_BYTES - 4 + payloadLength).put(FRAME).putInt(requestId)
+                .putInt(frameIndex).put((byte) quality).put((byte) flags).putInt(checksum);
+        into.flip();
+        return into;
+    }
+
+    // Header of a SEGMENT response; bodyLength bytes of segment body must follow it directly.
+    static ByteBuffer segmentHeader(int requestId, int segmentIndex, int quality, int flags, int bodyLength) {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(SEGMENT_HEADER_BYTES - 4 + bodyLength).put(SEGMENT).putInt(requestId)
+                .putInt(segmentIndex).put((byte) quality).put((byte) flags);
+        return finish(header);
+    }
+
+    // Header of a LIVE response; payloadLength bytes of payload must follow it directly.
+    static ByteBuffer liveHeader(int requestId, int frameIndex, int quality, int flags, int checksum, long capturedAtMicros, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(LIVE_HEADER_BYTES);
+        header.putInt(LIVE_HEADER_BYTES - 4 + payloadLength).put(LIVE).putInt(requestId)
+                .putInt(frameIndex).put((byte) quality).put((byte) flags).putInt(checksum).putLong(capturedAtMicros);
+        return finish(header);
+    }
+
+    // The start of a segment body, up to the payloads: firstFrame, frameCount and the
+    // (length, checksum) table. The payloads, in frame order, complete the body.
+    static ByteBuffer segmentTable(int firstFrame, int[] lengths, int[] checksums) {
+        ByteBuffer table = ByteBuffer.allocate(4 + 2 + 8 * lengths.length);
+        table.putInt(firstFrame).putShort((short) lengths.length);
+        for (int i = 0; i < lengths.length; i++) table.putInt(lengths[i]).putInt(checksums[i]);
+        return finish(table);
+    }
+
+    // Splits a SEGMENT response into one FRAME response per frame it holds. The frames are
+    // views into the segment's body, not copies: each holds its own reference to the segment's
+    // buffer and must be released, and the segment itself still needs its own release().
+    static List<Response> unpackSegment(Response segment) throws ProtocolException {
+        try {
+            ByteBuffer body = ByteBuffer.wrap(segment.data, segment.offset, segment.length);
+            int end = segment.offset + segment.length;
+            int firstFrame = body.getInt();
+            int frameCount = body.getShort() & 0xFFFF;
+            int payloadStart = body.position() + 8 * frameCount;
+            List<Response> frames = new ArrayList<>(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                Response frame = new Response(FRAME, segment.requestId);
+                frame.frameIndex = firstFrame + i;
+                frame.quality = segment.quality;
+                frame.flags = segment.flags;
+                int length = body.getInt();
+                frame.checksum = body.getInt();
+                if (length < 0 || payloadStart + length > end) throw new BufferUnderflowException();
+                if (segment.verified) {
+                    frame.verified = true;
+                    frame.actualChecksum = segment.actualChecksums[i];
+                }
+                frame.data = segment.data;
+                frame.offset = payloadStart;
+                frame.length = length;
+                payloadStart += length;
+                frames.add(frame);
+            }
+            if (segment.buffer != null) {
+                for (Response frame : frames) frame.buffer = segment.buffer.retain();
+            }
+            return frames;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("malformed " + segment);
+        }
+    }
+
+    static ByteBuffer notFound(int requestId, int frameIndex) {
+        ByteBuffer message = start(NOT_FOUND, requestId, 4);
+        message.putInt(frameIndex);
+        return finish(message);
+    }
+
+    static ByteBuffer error(int requestId, int frameIndex, byte code, String reason) {
+        byte[] text = truncate(reason.getBytes(StandardCharsets.UTF_8), MAX_ERROR_TEXT_BYTES);
+        ByteBuffer message = start(ERROR, requestId, 4 + 1 + 2 + text.length);
+        message.putInt(frameIndex).put(code).putShort((short) text.length).put(text);
+        return finish(message);
+    }
+
+    // Blocking read of one response. Unknown opcodes are skipped over and returned without a
+    // body; a length that is out of range means the stream is lost and throws.
+    static Response readResponse(DataInputStream in) throws IOException {
+        return readResponse(in, null, null);
+    }
+
+    // Same, reading FRAME and LIVE payloads and SEGMENT bodies into buffers from pool (if not null);
+    // the caller then owns the response's buffer and must release() it. With an integrity,
+    // each frame's payload is also checksummed as it arrives, a chunk at a time while the
+    // bytes are still in cache, and intact() tells whether it matched (after unpackSegment,
+    // for a segment's frames).
+    static Response readResponse(DataInputStream in, BufferPool pool, Integrity integrity) throws IOException {
+        int length = in.readInt();
+        checkLength(length, MAX_RESPONSE_BYTES);
+        Response response = new Response(in.readByte(), in.readInt());
+        int body = length - 5;
+        switch (response.opcode) {
+            case VIDEO:
+                if (body < 13) throw new ProtocolException("short VIDEO response: " + length + " bytes");
+                response.videoId = in.readInt();
+                response.frameCount = in.readInt();
+                response.segmentFrames = in.readInt();
+                response.frameBytes = new int[in.readUnsignedByte()];
+                expect(response, body, 13 + 4 * response.frameBytes.length + 1);
+                for (int i = 0; i < response.frameBytes.length; i++) response.frameBytes[i] = in.readInt();
+                int bit = in.readUnsignedByte();
+                response.integrity = Integrity.fromBit(bit);
+                if (response.integrity == null) throw new ProtocolException("VIDEO with unknown checksum algorithm " + bit);
+                break;
+            case FRAME:
+                if (body < FRAME_HEADER_BYTES - 9) throw new ProtocolException("short FRAME response: " + length + " bytes");
+                response.frameIndex = in.readInt();
+                response.quality = in.readUnsignedByte();
+                response.flags = in.readUnsignedByte();
+                response.checksum = in.readInt();
+                readBody(in, response, body - (FRAME_HEADER_BYTES - 9), pool, integrity);
+                break;
+            case SEGMENT:
+                if (body < SEGMENT_HEADER_BYTES - 9) throw new ProtocolException("short SEGMENT response: " + length + " bytes");
+                response.segmentIndex = in.readInt();
+                response.quality = in.readUnsignedByte();
+                response.flags = in.readUnsignedByte();
+                readBody(in, response, body - (SEGMENT_HEADER_BYTES - 9), pool, integrity);
+                break;
+            case LIVE:
+                if (body < LIVE_HEADER_BYTES - 9) throw new ProtocolException("short LIVE response: " + length + " bytes");
+                response.frameIndex = in.readInt();
+                response.quality = in.readUnsignedByte();
+                response.flags = in.readUnsignedByte();
+                response.checksum = in.readInt();
+                response.capturedAtMicros = in.readLong();
+                readBody(in, response, body - (LIVE_HEADER_BYTES - 9), pool, integrity);
+                break;
+            case NOT_FOUND:
+                expect(response, body, 4);
+                response.frameIndex = in.readInt();
+                break;
+            case ERROR:
+                if (body < 7) throw new ProtocolException("short ERROR response: " + length + " bytes");
+                response.frameIndex = in.readInt();
+                response.code = in.readByte();
+                byte[] text = new byte[in.readUnsignedShort()];
+                expect(response, body, 7 + text.length);
+                in.readFully(text);
+                response.message = new String(text, StandardCharsets.UTF_8);
+                break;
+            default:
+                in.readFully(new byte[body]);
+        }
+        return response;
+    }
+
+    private static void readBody(DataInputStream in, Response response, int length, BufferPool pool, Integrity integrity) throws IOException {
+        if (pool == null) {
+            response.data = new byte[length];
+        } else {
+            response.buffer = pool.acquire(length);
+            response.data = response.buffer.array;
+        }
+        response.length = length;
+        try {
+            if (integrity == null) {
+                in.readFully(response.data, 0, length);
+            } else if (response.opcode != SEGMENT) {
+                response.actualChecksum = readVerified(in, response.data, 0, length, integrity.newChecksum());
+                response.verified = true;
+            } else {
+                readSegmentVerified(in, response, integrity);
+            }
+        } catch (IOException e) {
+            response.release();
+            throw e;
+        }
+    }
+
+    // Reads a segment body: the table first, then each payload checksummed against its entry.
+    // A table that does not fit the body is read unchecked and left for unpackSegment to reject.
+    private static void readSegmentVerified(DataInputStream in, Response segment, Integrity integrity) throws IOException {
+        byte[] data = segment.data;
+        int read = Math.min(6, segment.length);
+        in.readFully(data, 0, read);
+        int frameCount = read == 6 ? ((data[4] & 0xFF) << 8) | (data[5] & 0xFF) : -1;
+        if (frameCount >= 0 && 6 + 8 * frameCount <= segment.length) {
+            in.readFully(data, read, 8 * frameCount);
+            read += 8 * frameCount;
+            int[] actual = new int[frameCount];
+            Checksum checksum = integrity.newChecksum();
+            ByteBuffer table = ByteBuffer.wrap(data, 6, 8 * frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                int length = table.getInt();
+                table.getInt();
+                if (length < 0 || length > segment.length - read) break;
+                checksum.reset();
+                actual[i] = readVerified(in, data, read, length, checksum);
+                read += length;
+            }
+            segment.actualChecksums = actual;
+            segment.verified = true;
+        }
+        in.readFully(data, read, segment.length - read);
+    }
+
+    // Reads length bytes into data at offset, feeding each chunk to checksum as it lands.
+    private static int readVerified(DataInputStream in, byte[] data, int offset, int length, Checksum checksum) throws IOException {
+        for (int done = 0; done < length; ) {
+            int chunk = Math.min(VERIFY_CHUNK_BYTES, length - done);
+            in.readFully(data, offset + done, chunk);
+            checksum.update(data, offset + done, chunk);
+            done += chunk;
+        }
+        return (int) checksum.getValue();
+    }
+
+    // ----- Shared -----
+
+    // Writes one whole message and flushes. Synchronized on out, so threads sharing a
+    // connection (e.g. a heartbeat and the request loop) never interleave their messages.
+    static void write(OutputStream out, ByteBuffer message) throws IOException {
+        synchronized (out) {
+            out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            out.flush();
+        }
+    }
+
+    private static ByteBuffer start(byte opcode, int requestId, int bodyLength) {
+        ByteBuffer message = ByteBuffer.allocate(4 + 1 + 4 + bodyLength);
+        message.putInt(1 + 4 + bodyLength).put(opcode).putInt(requestId);
+        return message;
+    }
+
+    private static ByteBuffer finish(ByteBuffer message) {
+        message.flip();
+        return message;
+    }
+
+    private static String getString(ByteBuffer message) {
+        int length = message.getShort() & 0xFFFF;
+        if (length > message.remaining()) throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        message.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Integrity getIntegrity(ByteBuffer message, Request request) {
+        int bit = message.get() & 0xFF;
+        Integrity integrity = Integrity.fromBit(bit);
+        if (integrity == null) request.malformed = "unknown checksum algorithm " + bit;
+        return integrity;
+    }
+
+    private static byte[] truncate(byte[] bytes, int max) {
+        if (bytes.length <= max) return bytes;
+        byte[] truncated = new byte[max];
+        System.arraycopy(bytes, 0, truncated, 0, max);
+        return truncated;
+    }
+
+    private static void checkLength(int length, int max) throws ProtocolException {
+        if (length < 5 || length > max) throw new ProtocolException("message length " + length + " out of range");
+    }
+
+    private static void expect(Response response, int body, int expected) throws ProtocolException {
+        if (body != expected) throw new ProtocolException("malformed " + response + ": " + body + " body bytes");
+    }
+}
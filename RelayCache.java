@@ -0,0 +1,198 @@
+package streaming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Relay frame cache shared by every ClientHandler. Holds frames of all videos under one
+// global byte budget. Lookups are lock-free (ConcurrentHashMap plus a frequency bump);
+// only inserts take the eviction lock.
+//
+// Eviction is S3-FIFO: new frames enter a small FIFO (10% of the budget). Frames that are
+// hit again before they reach its head are promoted to the main FIFO, the rest are
+// dropped and remembered in a ghost queue so a quick re-request goes straight to main.
+// A one-pass scan of a video therefore cannot flush the frames other viewers keep hitting.
+//
+// The cache holds its own reference to every frame it stores and releases it on eviction;
+// get() hands the caller a further reference (see FrameData).
+class RelayCache {
+    private static final int MAX_FREQ = 3;
+
+    private final long maxBytes;
+    private final long smallTargetBytes;
+    private final ConcurrentHashMap<FrameKey, Entry> entries = new ConcurrentHashMap<>();
+
+    // Guarded by evictionLock
+    private final Object evictionLock = new Object();
+    private final ArrayDeque<Entry> small = new ArrayDeque<>();
+    private final ArrayDeque<Entry> main = new ArrayDeque<>();
+    private final LinkedHashSet<FrameKey> ghost = new LinkedHashSet<>();
+    private long smallBytes = 0;
+    private volatile long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong insertions = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    RelayCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.smallTargetBytes = maxBytes / 10;
+    }
+
+    FrameData get(FrameKey key) {
+        Entry entry = entries.get(key);
+        // An entry evicted (and released) since the lookup is a miss
+        if (entry == null || !entry.frame.tryRetain()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        // Racy increment is fine: the counter is only a hint for eviction.
+        if (entry.freq < MAX_FREQ) entry.freq++;
+        hits.incrementAndGet();
+        return entry.frame;
+    }
+
+    // Presence check that neither counts as a lookup nor bumps the frequency.
+    boolean contains(FrameKey key) {
+        return entries.containsKey(key);
+    }
+
+    void put(FrameKey key, FrameData frame) {
+        long size = frame.length;
+        if (size > maxBytes) return;
+
+        synchronized (evictionLock) {
+            if (entries.containsKey(key)) return;
+
+            Entry entry = new Entry(key, frame.retain());
+            if (ghost.remove(key)) {
+                main.addLast(entry);
+            } else {
+                small.addLast(entry);
+                entry.inSmall = true;
+                smallBytes += size;
+            }
+            entries.put(key, entry);
+            bytes += size;
+            insertions.incrementAndGet();
+
+            while (bytes > maxBytes) {
+                evictOne();
+            }
+        }
+    }
+
+    // Drops the frame if it is cached, without remembering it in the ghost queue; for copies
+    // a client reported as corrupt, so not counted as an eviction. Returns whether it was
+    // cached. The entry stays queued, marked removed, until eviction reaches and skips it:
+    // taking it out of the middle of a queue would walk the queue under the lock.
+    boolean remove(FrameKey key) {
+        synchronized (evictionLock) {
+            Entry entry = entries.get(key);
+            if (entry == null) return false;
+            if (entry.inSmall) smallBytes -= entry.size();
+            entry.removed = true;
+            release(entry);
+            return true;
+        }
+    }
+
+    // Caller holds evictionLock
+    private void evictOne() {
+        if (smallBytes > smallTargetBytes || main.isEmpty()) {
+            Entry entry = small.pollFirst();
+            if (entry == null || entry.removed) return;
+            smallBytes -= entry.size();
+            entry.inSmall = false;
+            if (entry.freq > 0) {
+                entry.freq = 0;
+                main.addLast(entry);
+            } else {
+                drop(entry);
+                ghost.add(entry.key);
+                // Ghost only needs to remember about as many keys as the cache holds
+                Iterator<FrameKey> oldest = ghost.iterator();
+                while (ghost.size() > entries.size() && oldest.hasNext()) {
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+        } else {
+            Entry entry = main.pollFirst();
+            if (entry.removed) return;
+            if (entry.freq > 0) {
+                entry.freq--;
+                main.addLast(entry);
+            } else {
+                drop(entry);
+            }
+        }
+    }
+
+    // Caller holds evictionLock
+    private void drop(Entry entry) {
+        release(entry);
+        evictions.incrementAndGet();
+    }
+
+    // Caller holds evictionLock
+    private void release(Entry entry) {
+        entries.remove(entry.key, entry);
+        entry.frame.release();
+        bytes -= entry.size();
+    }
+
+    Stats stats() {
+        return new Stats(hits.get(), misses.get(), insertions.get(), evictions.get(), entries.size(), bytes, maxBytes);
+    }
+
+    private static class Entry {
+        final FrameKey key;
+        final FrameData frame;
+        volatile int freq = 0;
+        boolean inSmall; // Guarded by evictionLock
+        boolean removed; // Guarded by evictionLock
+
+        Entry(FrameKey key, FrameData frame) {
+            this.key = key;
+            this.frame = frame;
+        }
+
+        long size() {
+            return frame.length;
+        }
+    }
+
+    // Point-in-time snapshot of the cache counters
+    static class Stats {
+        final long hits;
+        final long misses;
+        final long insertions;
+        final long evictions;
+        final int entries;
+        final long bytes;
+        final long maxBytes;
+
+        Stats(long hits, long misses, long insertions, long evictions, int entries, long bytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.insertions = insertions;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+
+        double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d (%.2f%% hit rate) insertions=%d evictions=%d entries=%d bytes=%d/%d",
+                    hits, misses, hitRate() * 100, insertions, evictions, entries, bytes, maxBytes);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package streaming;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+// Answers one relay connection on a thread of its own (ExecutionModel.THREAD and VIRTUAL):
+// requests are read and answered one at a time, and frames go from the container file to the
+// blocking socket without a heap copy.
+class RelayHandler implements Runnable, ResponseSink {
+    // Writes live frames for every blocking handler, so publishing never waits on a socket
+    private static final ExecutorService liveWriters = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "live-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SocketChannel relaySocket;
+    // FRAME response header, reused for every frame
+    private final ByteBuffer header = ByteBuffer.allocateDirect(Protocol.FRAME_HEADER_BYTES);
+    private final LiveChannel.Subscriptions subscriptions = new LiveChannel.Subscriptions();
+
+    public RelayHandler(SocketChannel relaySocket) {
+        this.relaySocket = relaySocket;
+    }
+
+    public void run() {
+        try {
+            DataInputStream inFromRelay = new DataInputStream(new BufferedInputStream(relaySocket.socket().getInputStream()));
+
+            // The relay multiplexes several handlers over one connection and matches
+            // responses to requests by request ID.
+            while (true) {
+                Protocol.Request request = Protocol.readRequest(inFromRelay);
+                if (request == null) break;
+
+                if (Log.DEBUG) System.out.println("DEBUG (Server): Received request = " + request);
+                // Locked so a sendLater completing meanwhile waits for whole responses
+                synchronized (this) {
+                    if (!VideoServer.serve(request, this)) break;
+                }
+            }
+        } catch (IOException e) {
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Relay connection closed or error occurred.");
+        } finally {
+            subscriptions.closeAll();
+            try {
+                relaySocket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    public void send(ByteBuffer... message) throws IOException {
+        while (message[message.length - 1].hasRemaining()) relaySocket.write(message);
+    }
+
+    // Header with the stored checksum, then the payload straight from the container file
+    // to the socket (sendfile): no heap copy and no per-frame allocation.
+    public void sendFrame(int requestId, int frameIndex, int quality, int checksum, FileChannel file, long position, int length) throws IOException {
+        send(Protocol.frameHeader(header, requestId, frameIndex, quality, 0, checksum, length));
+        transfer(file, position, length);
+    }
+
+    public void transfer(FileChannel file, long position, long count) throws IOException {
+        while (count > 0) {
+            long sent = file.transferTo(position, count, relaySocket);
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    public void sendLater(CompletableFuture<ByteBuffer[]> message) {
+        message.thenAccept(buffers -> {
+            synchronized (this) {
+                try {
+                    send(buffers);
+                } catch (IOException e) {
+                    // The read loop sees the broken connection and ends the handler
+                    try {
+                        relaySocket.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        });
+    }
+
+    public void sendLive(int requestId, LiveChannel.LiveFrame frame, Runnable onSent) {
+        liveWriters.execute(() -> {
+            try {
+                synchronized (this) {
+                    send(Protocol.liveHeader(requestId, frame.sequence, frame.quality, 0, frame.frame.checksum, frame.capturedAtMicros, frame.frame.length),
+                            ByteBuffer.wrap(frame.frame.data, 0, frame.frame.length));
+                }
+            } catch (IOException e) {
+                // As in sendLater: the read loop ends the handler, and its subscriptions with it
+                try {
+                    relaySocket.close();
+                } catch (IOException ignored) {}
+            } finally {
+                onSent.run();
+            }
+        });
+    }
+
+    public LiveChannel.Subscriptions subscriptions() {
+        return subscriptions;
+    }
+}
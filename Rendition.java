@@ -0,0 +1,41 @@
+package streaming;
+
+import java.io.*;
+
+// The quality ladder the server extracts for every video, lowest first; a rendition's
+// ordinal is the quality tier clients ask for. SOURCE is the original full-resolution
+// extraction and keeps its original directory, so containers packed before the ladder
+// existed are still used. Lower rungs are scaled down (never up) to at most height pixels.
+enum Rendition {
+    LOW("360p", 360, 8),
+    MEDIUM("540p", 540, 5),
+    HIGH("720p", 720, 3),
+    SOURCE("source", 0, 2);
+
+    final String label;
+    final int height;      // 0 keeps the source resolution
+    final int jpegQuality; // ffmpeg -q:v, 2 (best) to 31
+
+    Rendition(String label, int height, int jpegQuality) {
+        this.label = label;
+        this.height = height;
+        this.jpegQuality = jpegQuality;
+    }
+
+    File frameDir(String videoName) {
+        return new File(VideoServer.FRAME_DIR + videoName + (this == SOURCE ? "" : "@" + label));
+    }
+
+    File containerFile(String videoName) {
+        return new File(frameDir(videoName).getPath() + FrameContainer.EXTENSION);
+    }
+
+    // Ingest checkpoint for this rendition (see VideoIngest.Manifest)
+    File manifestFile(String videoName) {
+        return new File(frameDir(videoName).getPath() + ".manifest");
+    }
+
+    String ffmpegFilter() {
+        return height == 0 ? "fps=30" : "fps=30,scale=-2:'min(" + height + ",ih)'";
+    }
+}
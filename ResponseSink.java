@@ -0,0 +1,26 @@
+package streaming;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+// Where a handler's responses go: a blocking channel or an EventLoop connection. Live
+// frames go out between responses, never in the middle of one.
+interface ResponseSink extends LiveChannel.Sink {
+    // Buffers are sent back to back, in one write where the channel allows it.
+    void send(ByteBuffer... message) throws IOException;
+
+    // A FRAME response whose payload is length bytes of file, sent without copying it.
+    void sendFrame(int requestId, int frameIndex, int quality, int checksum, FileChannel file, long position, int length) throws IOException;
+
+    // count bytes of file, sent without copying; the rest of a response already begun with send.
+    void transfer(FileChannel file, long position, long count) throws IOException;
+
+    // Sends the message once it is ready, as one send, without waiting for it meanwhile; it
+    // never goes out in the middle of another response.
+    void sendLater(CompletableFuture<ByteBuffer[]> message);
+
+    // The live subscriptions made on this connection, ended when it closes
+    LiveChannel.Subscriptions subscriptions();
+}
@@ -0,0 +1,128 @@
+package streaming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Deduplicates concurrent upstream fetches of the same frame (or segment). The first miss on a
+// (video, quality, frameIndex) originates the server fetch; every other handler that misses on
+// the same frame while it is in flight joins it. Each caller gets its own future, completed
+// with its own reference to the fetched frame, which it must release (see FrameData).
+class SingleFlightFetcher {
+    private final UpstreamRouter upstream;
+    private final BiConsumer<FrameKey, FrameData> onFetched;
+    private final ConcurrentHashMap<FrameKey, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong originated = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // onFetched runs once per originated fetch, before the in-flight entry is released,
+    // so a miss that arrives just after completion finds the frame in the cache. It must
+    // retain() the frame if it keeps it.
+    SingleFlightFetcher(UpstreamRouter upstream, BiConsumer<FrameKey, FrameData> onFetched) {
+        this.upstream = upstream;
+        this.onFetched = onFetched;
+    }
+
+    CompletableFuture<FrameData> fetch(FrameKey key) {
+        while (true) {
+            Flight mine = new Flight();
+            Flight existing = inFlight.putIfAbsent(key, mine);
+            if (existing != null) {
+                CompletableFuture<FrameData> waiter = existing.join();
+                if (waiter != null) {
+                    coalesced.incrementAndGet();
+                    return waiter;
+                }
+                continue; // Completed while we looked: it has left the map, so start afresh
+            }
+
+            originated.incrementAndGet();
+            CompletableFuture<FrameData> waiter = mine.join();
+            CompletableFuture<FrameData> fetch = key.segment
+                    ? upstream.fetchSegment(key.videoName, key.quality, key.frameIndex)
+                    : upstream.fetch(key.videoName, key.quality, key.frameIndex);
+            fetch.whenComplete((frame, error) -> completed(key, mine, frame, error));
+            return waiter;
+        }
+    }
+
+    // A fresh copy of a frame a client got corrupt, asked for with a NACK (see
+    // UpstreamRouter.refetch) and cached like any fetch. It never joins a fetch in flight,
+    // which may be bringing the corrupt copy again: it takes that fetch's place, so later
+    // misses join the refetch, and the superseded fetch no longer caches what it brings.
+    // evict, which drops the cached copies, runs after that, so none of them comes back.
+    CompletableFuture<FrameData> refetch(FrameKey key, Runnable evict) {
+        Flight mine = new Flight();
+        Flight superseded = inFlight.put(key, mine);
+        if (superseded != null) superseded.supersede();
+        evict.run();
+
+        originated.incrementAndGet();
+        CompletableFuture<FrameData> waiter = mine.join();
+        upstream.refetch(key.videoName, key.quality, key.frameIndex)
+                .whenComplete((frame, error) -> completed(key, mine, frame, error));
+        return waiter;
+    }
+
+    private void completed(FrameKey key, Flight flight, FrameData frame, Throwable error) {
+        try {
+            if (error == null) flight.store(() -> onFetched.accept(key, frame));
+        } finally {
+            inFlight.remove(key, flight);
+            flight.complete(frame, error);
+        }
+    }
+
+    long originated() {
+        return originated.get();
+    }
+
+    long coalesced() {
+        return coalesced.get();
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    // One upstream fetch and the callers waiting on it
+    private static final class Flight {
+        private final List<CompletableFuture<FrameData>> waiters = new ArrayList<>();
+        private boolean done = false;
+        private boolean superseded = false;
+
+        // A future for one more caller, or null if the fetch has already completed.
+        synchronized CompletableFuture<FrameData> join() {
+            if (done) return null;
+            CompletableFuture<FrameData> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+
+        // Runs onFetched, unless a refetch has taken this fetch's place.
+        synchronized void store(Runnable onFetched) {
+            if (!superseded) onFetched.run();
+        }
+
+        // Waits out a store in progress, so none follows once this returns.
+        synchronized void supersede() {
+            superseded = true;
+        }
+
+        // Gives each waiter its own reference, then drops the fetch's.
+        void complete(FrameData frame, Throwable error) {
+            synchronized (this) {
+                done = true;
+            }
+            for (CompletableFuture<FrameData> waiter : waiters) {
+                if (error != null) {
+                    waiter.completeExceptionally(error);
+                } else {
+                    waiter.complete(frame.retain());
+                }
+            }
+            if (frame != null) frame.release();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package streaming;
+
+import java.util.*;
+
+// Scrub thumbnails kept by the relay: every STRIDE-th frame of each opened video, at the
+// lowest quality tier, fetched in the background when the video is first opened. They are
+// held outside RelayCache and OffHeapFrameStore, so eviction never touches them, and a client
+// dragging its timeline (a one-frame GET of a thumbnail frame) is answered from memory
+// however cold that part of the video is.
+//
+// Bounded by maxBytes over all videos; when it is full, the thumbnails of the video opened
+// least recently make room. At most MAX_IN_FLIGHT fetches run at a time, so warming a long
+// video does not crowd out the viewers' own misses upstream.
+class ThumbnailStore {
+    static final int STRIDE = 10; // 3 thumbnails per second at 30 fps
+    static final int QUALITY = 0; // The lowest tier has the smallest frames
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private final UpstreamRouter upstream;
+    private final long maxBytes;
+    // Thumbnails by video, then frame index; least recently opened or used video first
+    private final LinkedHashMap<String, Map<Integer, FrameData>> videos = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<FrameKey> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private boolean pumping = false;
+    private long bytes = 0;
+    private long fetched = 0;
+    private long failed = 0;
+    private long evictedVideos = 0;
+
+    ThumbnailStore(UpstreamRouter upstream, long maxBytes) {
+        this.upstream = upstream;
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isThumbnail(FrameKey key) {
+        return !key.segment && key.quality == QUALITY && key.frameIndex % STRIDE == 0;
+    }
+
+    // Starts fetching a video's thumbnails, unless it has them (or is fetching them) already.
+    synchronized void warm(String videoName, int frameCount) {
+        if (videos.get(videoName) != null) return;
+        videos.put(videoName, new HashMap<>());
+        for (int i = 0; i < frameCount; i += STRIDE) queue.add(new FrameKey(videoName, QUALITY, i));
+        pump();
+    }
+
+    // The thumbnail for key, with a reference the caller releases; null if key is not a
+    // thumbnail frame or it has not arrived.
+    FrameData get(FrameKey key) {
+        if (!isThumbnail(key)) return null;
+        synchronized (this) {
+            Map<Integer, FrameData> frames = videos.get(key.videoName);
+            FrameData frame = frames == null ? null : frames.get(key.frameIndex);
+            return frame == null ? null : frame.retain();
+        }
+    }
+
+    boolean contains(FrameKey key) {
+        if (!isThumbnail(key)) return false;
+        synchronized (this) {
+            Map<Integer, FrameData> frames = videos.get(key.videoName);
+            return frames != null && frames.containsKey(key.frameIndex);
+        }
+    }
+
+    // Drops a thumbnail a client got corrupt (see VideoRelay.evictCorrupt), so the frame is
+    // served from the retransmission cached in the tiers below from then on.
+    synchronized boolean remove(FrameKey key) {
+        if (!isThumbnail(key)) return false;
+        Map<Integer, FrameData> frames = videos.get(key.videoName);
+        FrameData frame = frames == null ? null : frames.remove(key.frameIndex);
+        if (frame == null) return false;
+        bytes -= frame.length;
+        frame.release();
+        return true;
+    }
+
+    // Starts queued fetches up to MAX_IN_FLIGHT. A fetch that completes at once (a parent
+    // that is down) comes back into stored() from here, which must not start more itself.
+    private void pump() {
+        if (pumping) return;
+        pumping = true;
+        try {
+            while (inFlight < MAX_IN_FLIGHT && !queue.isEmpty()) {
+                FrameKey key = queue.poll();
+                inFlight++;
+                upstream.fetch(key.videoName, key.quality, key.frameIndex).whenComplete((frame, error) -> stored(key, frame, error));
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private synchronized void stored(FrameKey key, FrameData frame, Throwable error) {
+        inFlight--;
+        Map<Integer, FrameData> frames = videos.get(key.videoName);
+        if (error != null) {
+            failed++;
+        } else if (frames == null) {
+            frame.release(); // The video was evicted meanwhile
+        } else {
+            fetched++;
+            bytes += frame.length;
+            FrameData replaced = frames.put(key.frameIndex, frame); // Keeps the fetch's reference
+            if (replaced != null) {
+                bytes -= replaced.length;
+                replaced.release();
+            }
+            makeRoom(key.videoName);
+        }
+        pump();
+    }
+
+    // Evicts whole videos, least recently opened first, until the store fits maxBytes; the
+    // video being warmed goes last, which stops its warming.
+    private void makeRoom(String warming) {
+        Iterator<Map.Entry<String, Map<Integer, FrameData>>> it = videos.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Map<Integer, FrameData>> video = it.next();
+            if (video.getKey().equals(warming) && videos.size() > 1) continue;
+            evict(video.getKey(), video.getValue());
+            it.remove();
+        }
+    }
+
+    private void evict(String videoName, Map<Integer, FrameData> frames) {
+        for (FrameData frame : frames.values()) {
+            bytes -= frame.length;
+            frame.release();
+        }
+        queue.removeIf(key -> key.videoName.equals(videoName));
+        evictedVideos++;
+        if (Log.DEBUG) System.out.println("DEBUG (Relay): Dropped thumbnails of " + videoName + " to make room");
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("videos=%d bytes=%dKB fetched=%d failed=%d queued=%d evictedVideos=%d",
+                videos.size(), bytes / 1024, fetched, failed, queue.size(), evictedVideos);
+    }
+}
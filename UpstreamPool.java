@@ -0,0 +1,352 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Relay -> server upstream. Keeps a small pool of server connections and multiplexes
+// many outstanding frame fetches over each of them. Every request carries a request ID
+// that the server echoes back, so a response is handed to whichever handler is waiting
+// for it no matter which client thread sent the request. Video names are interned with
+// the server once (OPEN) and cached here; frame requests carry the server's video ID.
+// The relay offers every Integrity algorithm and stores frames with whichever checksum the
+// server picked for the video, so clients are offered only that one (see VideoRelay).
+// The upstream may itself be a relay (see UpstreamRouter); one pool talks to one parent.
+// Live channels (subscribe) share the same connections: the parent pushes their frames under
+// the SUBSCRIBE's request ID, between the answers to fetches.
+class UpstreamPool {
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    private final String host;
+    private final int port;
+    private final UpstreamConnection[] connections;
+    private final BufferPool bufferPool;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final AtomicInteger connected = new AtomicInteger(); // Connections with a live socket
+    private final ConcurrentHashMap<String, CompletableFuture<VideoInfo>> videos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, VideoInfo> videosById = new ConcurrentHashMap<>();
+    // Smoothed request -> response time over all connections, -1 before the first response
+    private final AtomicLong smoothedRttNanos = new AtomicLong(-1);
+    // Every request -> response time, over all parents
+    private static final Metrics.Histogram fetchLatency = Metrics.histogram("relay_upstream_fetch_seconds");
+
+    // Frame payloads and segment bodies are read into buffers from bufferPool. A parent that
+    // cannot be reached yet is not an error: each send retries the connection, and the
+    // router fails over to another parent in the meantime.
+    UpstreamPool(String host, int port, int size, BufferPool bufferPool) {
+        this.host = host;
+        this.port = port;
+        this.bufferPool = bufferPool;
+        this.connections = new UpstreamConnection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new UpstreamConnection(i);
+        }
+        System.out.println("INFO (Relay): Opened " + size + " upstream connections to " + host + ":" + port);
+    }
+
+    // Interns a video name with the server. The VideoInfo is fetched once and shared; a failed
+    // lookup is forgotten so the next caller asks again.
+    CompletableFuture<VideoInfo> video(String videoName) {
+        CompletableFuture<VideoInfo> known = videos.get(videoName);
+        if (known != null) return known;
+
+        CompletableFuture<VideoInfo> mine = new CompletableFuture<>();
+        known = videos.putIfAbsent(videoName, mine);
+        if (known != null) return known;
+
+        int requestId = nextRequestId.getAndIncrement();
+        leastLoaded().send(requestId, Protocol.open(requestId, videoName, Integrity.SUPPORTED)).whenComplete((response, error) -> {
+            if (error == null && response.opcode != Protocol.VIDEO) error = failure(response);
+            if (error != null) {
+                videos.remove(videoName, mine);
+                mine.completeExceptionally(error);
+                return;
+            }
+            VideoInfo info = new VideoInfo(response.videoId, videoName, response.frameCount, response.segmentFrames, response.frameBytes, response.integrity);
+            videosById.put(info.id, info);
+            mine.complete(info);
+        });
+        return mine;
+    }
+
+    // A video already interned through video(name), or null.
+    VideoInfo video(int videoId) {
+        return videosById.get(videoId);
+    }
+
+    // Sends a fetch on the least loaded connection. The future completes when the server
+    // answers, or exceptionally if the frame does not exist or the connection drops. The
+    // FrameData it completes with holds the pooled buffer the payload was read into.
+    CompletableFuture<FrameData> fetch(String videoName, int quality, int frameIndex) {
+        return fetchFrame(videoName, (requestId, info) -> Protocol.get(requestId, info.id, frameIndex, 1, quality, info.integrity));
+    }
+
+    // Same, with a NACK: the frame arrived corrupt, so a parent relay must not answer from the
+    // copy it has cached but drop it and ask its own parent the same way.
+    CompletableFuture<FrameData> refetch(String videoName, int quality, int frameIndex) {
+        return fetchFrame(videoName, (requestId, info) -> Protocol.nack(requestId, info.id, frameIndex, quality, info.integrity));
+    }
+
+    private CompletableFuture<FrameData> fetchFrame(String videoName, BiFunction<Integer, VideoInfo, ByteBuffer> request) {
+        return video(videoName).thenCompose(info -> {
+            int requestId = nextRequestId.getAndIncrement();
+            return leastLoaded().send(requestId, request.apply(requestId, info));
+        }).thenApply(response -> {
+            if (response.opcode != Protocol.FRAME) throw new CompletionException(failure(response));
+            return new FrameData(response.buffer, response.length, response.checksum);
+        });
+    }
+
+    // Same for a whole segment; the FrameData holds the segment body as the server sent it.
+    CompletableFuture<FrameData> fetchSegment(String videoName, int quality, int segmentIndex) {
+        return video(videoName).thenCompose(info -> {
+            int requestId = nextRequestId.getAndIncrement();
+            return leastLoaded().send(requestId, Protocol.getSegment(requestId, info.id, segmentIndex, quality, info.integrity));
+        }).thenApply(response -> {
+            if (response.opcode != Protocol.SEGMENT) throw new CompletionException(failure(response));
+            return new FrameData(response.buffer, response.length, 0);
+        });
+    }
+
+    // Subscribes to a live channel, starting with up to backlog frames from the parent's ring.
+    // Every LIVE frame goes to onFrame, on the connection's reader thread, which must release it.
+    LiveStream subscribe(String channelName, int backlog, Consumer<Protocol.Response> onFrame) {
+        int requestId = nextRequestId.getAndIncrement();
+        UpstreamConnection connection = leastLoaded();
+        LiveStream stream = new LiveStream(connection, requestId, onFrame);
+        connection.subscribe(stream, Protocol.subscribe(requestId, channelName, Integrity.SUPPORTED, backlog));
+        return stream;
+    }
+
+    // NOT_FOUND and unknown-video errors become FileNotFoundException, so the relay can tell
+    // a frame that does not exist from one the server could not deliver.
+    private static IOException failure(Protocol.Response response) {
+        if (response.opcode == Protocol.NOT_FOUND) return new FileNotFoundException("server has no frame " + response.frameIndex);
+        if (response.opcode == Protocol.ERROR && response.code == Protocol.UNKNOWN_VIDEO) return new FileNotFoundException(response.message);
+        if (response.opcode == Protocol.ERROR) return new IOException("server error: " + response.message);
+        return new IOException("unexpected response " + response);
+    }
+
+    // Relay -> server round trip, including the server's time to answer; 50 ms until measured.
+    long smoothedRttMillis() {
+        long rtt = smoothedRttNanos.get();
+        return rtt < 0 ? 50 : rtt / 1_000_000;
+    }
+
+    private void sampleRtt(long nanos) {
+        fetchLatency.record(nanos);
+        smoothedRttNanos.accumulateAndGet(nanos, (average, sample) -> average < 0 ? sample : (average * 7 + sample) / 8);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    int outstanding() {
+        int total = 0;
+        for (UpstreamConnection connection : connections) total += connection.pending.size();
+        return total;
+    }
+
+    private UpstreamConnection leastLoaded() {
+        UpstreamConnection best = connections[0];
+        for (UpstreamConnection connection : connections) {
+            if (connection.pending.size() < best.pending.size()) best = connection;
+        }
+        return best;
+    }
+
+    private class UpstreamConnection {
+        private final int id;
+        private final Map<Integer, CompletableFuture<Protocol.Response>> pending = new ConcurrentHashMap<>();
+        private final Map<Integer, LiveStream> streams = new ConcurrentHashMap<>();
+        private Socket socket;
+        private DataOutputStream out;
+
+        UpstreamConnection(int id) {
+            this.id = id;
+            try {
+                connect();
+            } catch (IOException e) {
+                System.out.println("ERROR: Upstream " + UpstreamPool.this + " unreachable: " + e.getMessage());
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket fresh = new Socket();
+            try {
+                fresh.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                fresh.close();
+                throw e;
+            }
+            socket = fresh;
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Socket current = socket;
+            connected.incrementAndGet();
+            Thread reader = new Thread(() -> readLoop(current, in), "upstream-reader-" + id);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // One request, answered by exactly one response (every GET sent here is for a single
+        // frame, and a GET_SEGMENT is answered by one SEGMENT).
+        CompletableFuture<Protocol.Response> send(int requestId, ByteBuffer request) {
+            CompletableFuture<Protocol.Response> future = new CompletableFuture<>();
+            long sentAt = System.nanoTime();
+            future.thenRun(() -> sampleRtt(System.nanoTime() - sentAt));
+            synchronized (this) {
+                try {
+                    if (socket == null || socket.isClosed()) connect();
+                    pending.put(requestId, future);
+                    Protocol.write(out, request);
+                } catch (IOException e) {
+                    pending.remove(requestId);
+                    future.completeExceptionally(e);
+                }
+            }
+            return future;
+        }
+
+        // A SUBSCRIBE, answered by LIVE frames until the stream is closed or ended by an ERROR.
+        void subscribe(LiveStream stream, ByteBuffer request) {
+            synchronized (this) {
+                try {
+                    if (socket == null || socket.isClosed()) connect();
+                    streams.put(stream.requestId, stream);
+                    Protocol.write(out, request);
+                    return;
+                } catch (IOException e) {
+                    streams.remove(stream.requestId);
+                    stream.ended.completeExceptionally(e);
+                }
+            }
+        }
+
+        // Frames the parent has already sent are dropped as they arrive, by request ID.
+        void unsubscribe(LiveStream stream) {
+            if (streams.remove(stream.requestId) == null) return;
+            synchronized (this) {
+                try {
+                    if (socket != null && !socket.isClosed()) Protocol.write(out, Protocol.unsubscribe(stream.requestId));
+                } catch (IOException ignored) {
+                    // The connection is gone, and the subscription with it
+                }
+            }
+            stream.ended.complete(null);
+        }
+
+        // Lets the parent send the stream more, now that frameIndex has been taken in.
+        private void acknowledge(LiveStream stream, int frameIndex) {
+            synchronized (this) {
+                try {
+                    if (socket != null && !socket.isClosed()) Protocol.write(out, Protocol.liveAck(stream.requestId, frameIndex));
+                } catch (IOException ignored) {
+                    // The reader sees the connection fail and ends the stream
+                }
+            }
+        }
+
+        private void readLoop(Socket current, DataInputStream in) {
+            try {
+                while (true) {
+                    // Not verified here: frames are forwarded as sent and the client checks them end to end
+                    Protocol.Response response = Protocol.readResponse(in, bufferPool, null);
+                    LiveStream stream = streams.get(response.requestId);
+                    if (stream != null) {
+                        if (response.opcode == Protocol.LIVE) {
+                            int frameIndex = response.frameIndex;
+                            stream.onFrame.accept(response);
+                            acknowledge(stream, frameIndex);
+                        } else if (streams.remove(response.requestId) != null) {
+                            stream.ended.completeExceptionally(failure(response));
+                            response.release();
+                        }
+                        continue;
+                    }
+                    CompletableFuture<Protocol.Response> future = pending.remove(response.requestId);
+                    if (future == null || !future.complete(response)) response.release();
+                }
+            } catch (IOException e) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Upstream connection " + id + " to " + UpstreamPool.this + " closed.");
+            } finally {
+                // A parent relay that restarts hands out new video IDs, so once every connection
+                // to it is lost the videos are opened again. The IDs stay valid while any
+                // connection is up: one connection dropping on its own leaves the parent running.
+                if (connected.decrementAndGet() == 0) {
+                    videos.values().removeIf(CompletableFuture::isDone);
+                    videosById.clear();
+                }
+                // Fail everything still waiting on this socket; the next send reconnects.
+                synchronized (this) {
+                    try {
+                        current.close();
+                    } catch (IOException ignored) {}
+                    IOException closed = new IOException("upstream connection " + id + " closed");
+                    for (Integer requestId : new ArrayList<>(pending.keySet())) {
+                        CompletableFuture<Protocol.Response> future = pending.remove(requestId);
+                        if (future != null) future.completeExceptionally(closed);
+                    }
+                    for (Integer requestId : new ArrayList<>(streams.keySet())) {
+                        LiveStream stream = streams.remove(requestId);
+                        if (stream != null) stream.ended.completeExceptionally(closed);
+                    }
+                }
+            }
+        }
+    }
+
+    // One live channel pushed by a parent. ended completes normally once close() has
+    // unsubscribed, or exceptionally when the parent refuses the channel (FileNotFoundException
+    // if it has no such channel) or the connection drops.
+    final class LiveStream {
+        final CompletableFuture<Void> ended = new CompletableFuture<>();
+        private final UpstreamConnection connection;
+        private final int requestId;
+        private final Consumer<Protocol.Response> onFrame;
+
+        private LiveStream(UpstreamConnection connection, int requestId, Consumer<Protocol.Response> onFrame) {
+            this.connection = connection;
+            this.requestId = requestId;
+            this.onFrame = onFrame;
+        }
+
+        void close() {
+            connection.unsubscribe(this);
+        }
+    }
+
+    // What the server told us about a video when it was opened.
+    static final class VideoInfo {
+        final int id;
+        final String name;
+        final int frameCount;
+        final int segmentFrames;
+        final int[] frameBytes; // Average frame size of each quality tier
+        final Integrity integrity; // Algorithm of every checksum fetched for the video
+
+        VideoInfo(int id, String name, int frameCount, int segmentFrames, int[] frameBytes, Integrity integrity) {
+            this.id = id;
+            this.name = name;
+            this.frameCount = frameCount;
+            this.segmentFrames = segmentFrames;
+            this.frameBytes = frameBytes;
+            this.integrity = integrity;
+        }
+
+        int qualities() {
+            return frameBytes.length;
+        }
+
+        int segmentCount() {
+            return (frameCount + segmentFrames - 1) / segmentFrames;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package streaming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Relay -> parents. A relay's upstream is one or more parents - the origin VideoServer or
+// other relays, which speak the same protocol - each with its own UpstreamPool. Videos are
+// assigned to parents by consistent hashing on the name (HashRing), so every edge relay
+// sends a given video to the same mid-tier relay and that relay's cache serves all of them.
+// When a parent cannot be reached, the request fails over to the next parent on the ring,
+// and the parent is passed over for FAILOVER_BACKOFF_MS before it is tried first again.
+//
+// Parents number videos independently, so the relay hands its clients IDs of its own and
+// keeps them across failover; a video's name is what is sent to whichever parent serves it.
+class UpstreamRouter {
+    private static final long FAILOVER_BACKOFF_MS = 5000;
+    // A parent that has not answered by then is treated as down when another one can be asked
+    private static final long ATTEMPT_TIMEOUT_MS = 3000;
+    private static final Metrics.Counter failovers = Metrics.counter("relay_upstream_failovers_total");
+
+    private final List<UpstreamPool> parents;
+    private final HashRing<UpstreamPool> ring;
+    private final Map<UpstreamPool, Long> downUntil = new ConcurrentHashMap<>();
+    private final AtomicInteger nextVideoId = new AtomicInteger(1);
+    private final ConcurrentHashMap<String, CompletableFuture<UpstreamPool.VideoInfo>> videos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, UpstreamPool.VideoInfo> videosById = new ConcurrentHashMap<>();
+
+    UpstreamRouter(List<UpstreamPool> parents) {
+        this.parents = List.copyOf(parents);
+        this.ring = new HashRing<>(this.parents);
+        System.out.println("INFO (Relay): Routing over " + parents.size() + " parent(s): " + parents);
+    }
+
+    // "host:port,host:port" -> one pool per parent
+    static UpstreamRouter connect(String parentList, int connectionsPerParent, BufferPool bufferPool) {
+        List<UpstreamPool> parents = new ArrayList<>();
+        for (String parent : parentList.split(",")) {
+            String address = parent.trim();
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("Upstream " + address + " is not host:port");
+            parents.add(new UpstreamPool(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                    connectionsPerParent, bufferPool));
+        }
+        return new UpstreamRouter(parents);
+    }
+
+    // Opens a video with the first parent on its route that answers. The VideoInfo carries
+    // this relay's own video ID; a failed lookup is forgotten so the next caller asks again.
+    CompletableFuture<UpstreamPool.VideoInfo> video(String videoName) {
+        CompletableFuture<UpstreamPool.VideoInfo> known = videos.get(videoName);
+        if (known != null) return known;
+
+        CompletableFuture<UpstreamPool.VideoInfo> mine = new CompletableFuture<>();
+        known = videos.putIfAbsent(videoName, mine);
+        if (known != null) return known;
+
+        withFailover(videoName, parent -> parent.video(videoName)).whenComplete((opened, error) -> {
+            if (error != null) {
+                videos.remove(videoName, mine);
+                mine.completeExceptionally(unwrap(error));
+                return;
+            }
+            UpstreamPool.VideoInfo info = new UpstreamPool.VideoInfo(nextVideoId.getAndIncrement(), videoName,
+                    opened.frameCount, opened.segmentFrames, opened.frameBytes, opened.integrity);
+            videosById.put(info.id, info);
+            mine.complete(info);
+        });
+        return mine;
+    }
+
+    // A video already opened through video(name), by this relay's ID, or null.
+    UpstreamPool.VideoInfo video(int videoId) {
+        return videosById.get(videoId);
+    }
+
+    CompletableFuture<FrameData> fetch(String videoName, int quality, int frameIndex) {
+        return video(videoName).thenCompose(info -> withFailover(videoName,
+                parent -> matching(parent, info).thenCompose(ok -> parent.fetch(videoName, quality, frameIndex))));
+    }
+
+    CompletableFuture<FrameData> refetch(String videoName, int quality, int frameIndex) {
+        return video(videoName).thenCompose(info -> withFailover(videoName,
+                parent -> matching(parent, info).thenCompose(ok -> parent.refetch(videoName, quality, frameIndex))));
+    }
+
+    CompletableFuture<FrameData> fetchSegment(String videoName, int quality, int segmentIndex) {
+        return video(videoName).thenCompose(info -> withFailover(videoName,
+                parent -> matching(parent, info).thenCompose(ok -> parent.fetchSegment(videoName, quality, segmentIndex))));
+    }
+
+    // Subscribes to a live channel on the first parent of its route. A stream is not failed
+    // over while it runs; a parent whose stream breaks is passed over like one whose fetch
+    // failed, so subscribing again (see LiveFeeds) goes to the next parent.
+    UpstreamPool.LiveStream subscribe(String channelName, int backlog, Consumer<Protocol.Response> onFrame) {
+        UpstreamPool parent = route(channelName).get(0);
+        UpstreamPool.LiveStream stream = parent.subscribe(channelName, backlog, onFrame);
+        stream.ended.whenComplete((ok, error) -> {
+            if (error == null || unwrap(error) instanceof FileNotFoundException || parents.size() == 1) return;
+            failovers.increment();
+            downUntil.put(parent, System.currentTimeMillis() + FAILOVER_BACKOFF_MS);
+        });
+        return stream;
+    }
+
+    // Cached frames keep the checksum algorithm the video was first opened with, so a parent
+    // that negotiated a different one (an older build) cannot serve it.
+    private static CompletableFuture<UpstreamPool.VideoInfo> matching(UpstreamPool parent, UpstreamPool.VideoInfo info) {
+        return parent.video(info.name).thenApply(opened -> {
+            if (opened.integrity != info.integrity || opened.frameCount != info.frameCount) {
+                throw new CompletionException(new IOException("parent " + parent + " disagrees about " + info.name));
+            }
+            return opened;
+        });
+    }
+
+    // Tries the parents on the video's route until one answers. FileNotFoundException is the
+    // parent's final word (every parent reaches the same origin) and is not retried.
+    private <T> CompletableFuture<T> withFailover(String videoName, Function<UpstreamPool, CompletableFuture<T>> call) {
+        return attempt(route(videoName), 0, call);
+    }
+
+    private <T> CompletableFuture<T> attempt(List<UpstreamPool> route, int i, Function<UpstreamPool, CompletableFuture<T>> call) {
+        UpstreamPool parent = route.get(i);
+        boolean last = i + 1 == route.size();
+        // Copied so the timeout cannot fail a future the pool shares with other callers
+        CompletableFuture<T> result = call.apply(parent).copy();
+        if (!last) result = result.orTimeout(ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return result.handle((value, error) -> {
+            if (error == null) {
+                downUntil.remove(parent);
+                return CompletableFuture.completedFuture(value);
+            }
+            Throwable cause = unwrap(error);
+            if (cause instanceof FileNotFoundException || last) return CompletableFuture.<T>failedFuture(cause);
+            failovers.increment();
+            if (downUntil.put(parent, System.currentTimeMillis() + FAILOVER_BACKOFF_MS) == null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Parent " + parent + " failed (" + cause + "), failing over to " + route.get(i + 1));
+            }
+            return attempt(route, i + 1, call);
+        }).thenCompose(Function.identity());
+    }
+
+    // The video's parents in ring order, with parents in their failover backoff moved to the end
+    // (still tried if every other parent fails too).
+    List<UpstreamPool> route(String videoName) {
+        List<UpstreamPool> order = ring.route(videoName);
+        if (downUntil.isEmpty()) return order;
+        long now = System.currentTimeMillis();
+        List<UpstreamPool> up = new ArrayList<>(order.size());
+        List<UpstreamPool> down = new ArrayList<>();
+        for (UpstreamPool parent : order) {
+            Long until = downUntil.get(parent);
+            (until != null && until > now ? down : up).add(parent);
+        }
+        up.addAll(down);
+        return up;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // Slowest parent's smoothed RTT: read-ahead sized for it covers all of them.
+    long smoothedRttMillis() {
+        long rtt = 0;
+        for (UpstreamPool parent : parents) rtt = Math.max(rtt, parent.smoothedRttMillis());
+        return rtt;
+    }
+
+    int outstanding() {
+        int total = 0;
+        for (UpstreamPool parent : parents) total += parent.outstanding();
+        return total;
+    }
+}
@@ -1,15 +1,18 @@
+package streaming;
+
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import javax.imageio.ImageIO;
+import java.util.concurrent.*;
+import javax.imageio.*;
 import javax.swing.*;
 
 public class VideoClient {
     private static final int HEARTBEAT_INTERVAL = 5000;
-    private static boolean isPaused = false;
-    private static boolean isRunning = true;
+    private static volatile boolean isPaused = false;
+    private static volatile boolean isRunning = true;
     private static long lastFrameTime = System.currentTimeMillis();
     private static JLabel fpsLabel, logLabel;
     private static JProgressBar progressBar;
@@ -18,12 +21,21 @@ public class VideoClient {
     private static JLabel videoLabel;
     private static boolean darkMode = false;
     private static JSlider timelineSlider;
-    private static Map<Integer, BufferedImage> frameCache = new HashMap<>();
-
-    // TCP AIMD Congestion Control Variables
-    private static int cwnd = 1;
-    private static int ssthresh = 10;
-    private static final int maxCwnd = 50;
+    private static boolean movingTimeline = false; // Set while playback moves the slider; EDT only
+    private static int scrubbedThumbnail = -1;     // Last thumbnail asked for while dragging; EDT only
+    private static BufferedImage shownImage; // On the video label; touched only on the EDT
+
+    // Playback: the network loop, decoding and presentation run in a ViewerSession
+    // Received payloads are read into pooled buffers and handed back once decoded
+    private static final long BUFFER_POOL_BYTES = 32L * 1024 * 1024;
+    private static final BufferPool bufferPool = new BufferPool(BUFFER_POOL_BYTES);
+    private static ViewerSession session;
+    // Decodes scrub thumbnails, so neither the network thread nor the EDT waits on them
+    private static final ExecutorService thumbnailDecoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     private static String getWifiIPAddress() {
         try {
@@ -46,7 +58,10 @@ public class VideoClient {
         return "localhost";
     }
     
+    // java streaming.VideoClient [frames]: fetches whole segments (GET_SEGMENT) unless "frames" asks for
+    // the per-frame GET mode
     public static void main(String[] args) throws IOException {
+        boolean segmentMode = !(args.length > 0 && args[0].equalsIgnoreCase("frames"));
         Scanner scanner = new Scanner(System.in);
         System.out.print("Enter relay IP Address: ");
         String relayIP = scanner.nextLine();
@@ -54,20 +69,19 @@ public class VideoClient {
         int relayPort = scanner.nextInt();
         scanner.nextLine();
         System.out.println("The device is running in IP Address: " + getWifiIPAddress());
+        Metrics.export("client");
         
         // Maintain a single connection to the relay throughout
-        Socket relaySocket = new Socket(relayIP, relayPort);
+        session = new ViewerSession(relayIP, relayPort, bufferPool, segmentMode, true, ViewerSession.Link.UNLIMITED);
         System.out.println("Client connected to relay on port " + relayPort);
         String IP = InetAddress.getLocalHost().getHostAddress();
         System.out.println("Client is running in IP: "+IP);
-        DataInputStream in = new DataInputStream(relaySocket.getInputStream());
-        PrintWriter out = new PrintWriter(relaySocket.getOutputStream(), true);
 
         // Heartbeat Mechanism
         new Thread(() -> {
             try {
                 while (isRunning) {
-                    out.println("PING");
+                    session.ping();
                     Thread.sleep(HEARTBEAT_INTERVAL);
                 }
             } catch (Exception e) {
@@ -108,14 +122,32 @@ public class VideoClient {
         progressBar.setPreferredSize(new Dimension(300, 20));
         progressBar.setStringPainted(true);
 
-        // Timeline Slider
+        // Timeline Slider: dragging it shows the relay's thumbnail of each position passed,
+        // releasing it seeks there
         timelineSlider = new JSlider(0, 100, 0);
         timelineSlider.setMajorTickSpacing(10);
         timelineSlider.setMinorTickSpacing(1);
         timelineSlider.setPaintTicks(true);
         timelineSlider.setPaintLabels(true);
         timelineSlider.setEnabled(false);
-        frame.add(timelineSlider, BorderLayout.SOUTH);
+        timelineSlider.addChangeListener(e -> {
+            if (movingTimeline || !timelineSlider.isEnabled()) return;
+            int position = timelineSlider.getValue();
+            try {
+                if (timelineSlider.getValueIsAdjusting()) {
+                    int thumbnail = position / ThumbnailStore.STRIDE;
+                    if (thumbnail == scrubbedThumbnail) return;
+                    scrubbedThumbnail = thumbnail;
+                    session.thumbnail(position);
+                } else {
+                    scrubbedThumbnail = -1;
+                    logLabel.setText("Logs: Seeking to frame " + position);
+                    session.seek(position);
+                }
+            } catch (IOException ex) {
+                logLabel.setText("Logs: Could not reach the relay: " + ex.getMessage());
+            }
+        });
 
         controlPanel.add(pauseButton);
         controlPanel.add(resumeButton);
@@ -123,9 +155,13 @@ public class VideoClient {
         controlPanel.add(darkModeButton);
         controlPanel.add(fpsLabel);
 
+        JPanel timelinePanel = new JPanel(new BorderLayout());
+        timelinePanel.add(logLabel, BorderLayout.NORTH);
+        timelinePanel.add(timelineSlider, BorderLayout.CENTER);
+        timelinePanel.add(progressBar, BorderLayout.SOUTH);
+
         frame.add(controlPanel, BorderLayout.NORTH);
-        frame.add(logLabel, BorderLayout.SOUTH);
-        frame.add(progressBar, BorderLayout.SOUTH);
+        frame.add(timelinePanel, BorderLayout.SOUTH);
         frame.setVisible(true);
 
         // Button Listeners
@@ -143,7 +179,7 @@ public class VideoClient {
             isRunning = false;
             logLabel.setText("Logs: Stopped");
             try {
-                relaySocket.close();
+                session.close();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -152,129 +188,144 @@ public class VideoClient {
 
         darkModeButton.addActionListener(e -> toggleDarkMode());
 
+        ViewerSession.Listener listener = new ViewerSession.Listener() {
+            public void present(int frameIndex, BufferedImage image, boolean fromCache) {
+                displayFrame(frameIndex, image, fromCache);
+            }
+
+            public void onStall(int stalls) {
+                SwingUtilities.invokeLater(() -> logLabel.setText("Logs: Rebuffering (" + stalls + " stalls)"));
+            }
+
+            public void onStatus(String status) {
+                SwingUtilities.invokeLater(() -> logLabel.setText("Logs: " + status));
+            }
+
+            public void onMessage(String message) {
+                System.out.println("Client: " + message);
+            }
+
+            public void onThumbnail(int frameIndex, Protocol.Response thumbnail) {
+                thumbnailDecoder.execute(() -> showThumbnail(frameIndex, thumbnail));
+            }
+        };
+
         // Main loop for video requests
         while (isRunning) {
-            System.out.print("Enter video name and number of frames (e.g., marc 300) or 0 to exit: ");
+            System.out.print("Enter video name and number of frames (e.g., marc 300), live <channel>, or 0 to exit: ");
             String videoInput = scanner.nextLine();
 
             if (videoInput.equals("0")) {
-                out.println("DISCONNECT");
+                session.disconnect();
                 System.out.println("Client: Disconnecting...");
-                relaySocket.close();
                 break;
             }
 
             String[] inputParts = videoInput.split(" ");
             if (inputParts.length != 2) {
-                System.out.println("Invalid input format! Use: <VideoName> <NumberOfFrames>");
+                System.out.println("Invalid input format! Use: <VideoName> <NumberOfFrames> or live <channel>");
+                continue;
+            }
+
+            if (inputParts[0].equalsIgnoreCase("live")) {
+                // A live channel has no length or positions to seek to; it plays until Stop
+                SwingUtilities.invokeLater(() -> progressBar.setIndeterminate(true));
+                try {
+                    ViewerSession.Playback playback = session.watchLive(inputParts[1], listener, () -> isPaused);
+                    System.out.println("Client: Played " + playback.played + " live frames with " + playback.stalls + " stalls");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    SwingUtilities.invokeLater(() -> progressBar.setIndeterminate(false));
+                }
                 continue;
             }
 
             String videoName = inputParts[0];
             int numFrames = Integer.parseInt(inputParts[1]);
 
+            // Intern the video name with the relay; frame requests then carry only its ID
+            Protocol.Response opened = session.open(videoName);
+            if (opened.opcode != Protocol.VIDEO) {
+                System.out.println("Client: Could not open " + videoName + ": " + opened.message);
+                continue;
+            }
+            if (numFrames > opened.frameCount) {
+                System.out.println("Client: " + videoName + " only has " + opened.frameCount + " frames");
+                numFrames = opened.frameCount;
+            }
+
             progressBar.setMaximum(numFrames);
             progressBar.setValue(0);
             timelineSlider.setMaximum(numFrames);
             timelineSlider.setValue(0);
             timelineSlider.setEnabled(true);
 
-            // Request each frame individually
-            for (int frameIndex = 0; frameIndex < numFrames; frameIndex++) {
-                while (isPaused) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ex) {}
-                }
+            ViewerSession.Playback playback;
+            try {
+                playback = session.play(opened, 0, numFrames, listener, () -> isPaused);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                SwingUtilities.invokeLater(() -> timelineSlider.setEnabled(false));
+            }
+            System.out.println("Client: Played " + playback.played + " frames with " + playback.stalls + " stalls");
+            System.out.println("Client: Pipeline " + session.pipeline().stats());
+            System.out.println("Client: Buffers " + bufferPool.stats());
+        }
+    }
 
-                System.out.println("Client: Requesting frame " + frameIndex);
-                // Send individual frame request
-                out.println(videoName + " " + frameIndex);
-
-                // Receive frame data
-                int frameSize = in.readInt();
-                byte[] frameData = new byte[frameSize];
-                in.readFully(frameData);
-                int receivedChecksum = in.readInt();
-                
-                // Receive cache status (new field added)
-                boolean fromCache = in.readBoolean();
-                String cacheStatus = fromCache ? "from CACHE" : "from SERVER";
-                System.out.println("Client: Received frame " + frameIndex + " " + cacheStatus);
-
-                // Verify checksum
-                if (receivedChecksum != calculateChecksum(frameData)) {
-                    logLabel.setText("Logs: Checksum failed for frame " + frameIndex + ". Requesting retransmission.");
-                    out.println("NACK " + frameIndex);
-                    ssthresh = Math.max(cwnd / 2, 1);
-                    cwnd = 1;
-                    frameIndex--; // Retry the same frame
-                    continue;
-                } else {
-                    // AIMD congestion control
-                    if (cwnd < ssthresh) {
-                        cwnd *= 2; // Exponential increase
-                    } else {
-                        cwnd++; // Additive increase
-                    }
-                    cwnd = Math.min(cwnd, maxCwnd);
-                }
+    // Shows one decoded frame; runs on the pipeline's presentation thread at the frame's due time.
+    private static void displayFrame(int frameIndex, BufferedImage image, boolean fromCache) {
+        String cacheStatus = fromCache ? "from CACHE" : "from SERVER";
+        final String logMessage = "Logs: Displaying frame " + frameIndex + " " + cacheStatus;
+        FramePipeline owner = session.pipeline();
+
+        SwingUtilities.invokeLater(() -> {
+            videoLabel.setIcon(new ImageIcon(image));
+            // The label no longer paints the previous frame, so it can be decoded into again
+            if (shownImage != null) owner.recycle(shownImage);
+            shownImage = image;
+            frame.repaint();
+            logLabel.setText(logMessage);
+            progressBar.setValue(frameIndex + 1);
+            if (!timelineSlider.getValueIsAdjusting()) {
+                movingTimeline = true;
+                timelineSlider.setValue(frameIndex);
+                movingTimeline = false;
+            }
+        });
 
-                // Process the received frame
-                ByteArrayInputStream bis = new ByteArrayInputStream(frameData);
-                BufferedImage image = null;
-                try {
-                    image = ImageIO.read(bis);
-                } catch (Exception e) {
-                    System.out.println("Error decoding frame " + frameIndex + ": " + e.getMessage());
-                    frameIndex--; // Retry the same frame
-                    continue;
-                }
+        // FPS calculation
+        long currentTime = System.currentTimeMillis();
+        double fps = 1000.0 / Math.max(1, currentTime - lastFrameTime);
+        lastFrameTime = currentTime;
+        final String fpsText = "FPS: " + String.format("%.2f", fps);
 
-                // Display the frame
-                if (image != null) {
-                    final BufferedImage displayImage = image;
-                    final int currentFrame = frameIndex;
-                    final String logMessage = "Logs: Displaying frame " + currentFrame + " " + cacheStatus;
-                    
-                    SwingUtilities.invokeLater(() -> {
-                        videoLabel.setIcon(new ImageIcon(displayImage));
-                        frame.repaint();
-                        logLabel.setText(logMessage);
-                        progressBar.setValue(currentFrame + 1);
-                        timelineSlider.setValue(currentFrame);
-                    });
-
-                    // Cache management
-                    if (frameCache.size() > 100) {
-                        int firstKey = frameCache.keySet().iterator().next();
-                        if (frameCache.get(firstKey) != null) {
-                            frameCache.get(firstKey).flush();
-                        }
-                        frameCache.remove(firstKey);
-                    }
-                    frameCache.put(frameIndex, image);
-
-                    // FPS calculation
-                    long currentTime = System.currentTimeMillis();
-                    double fps = 1000.0 / (currentTime - lastFrameTime);
-                    lastFrameTime = currentTime;
-                    final String fpsText = "FPS: " + String.format("%.2f", fps);
-                    
-                    SwingUtilities.invokeLater(() -> {
-                        fpsLabel.setText(fpsText);
-                    });
-                }
+        SwingUtilities.invokeLater(() -> {
+            fpsLabel.setText(fpsText);
+        });
+    }
 
-                // Memory management
-                if (frameIndex % 50 == 0) {
-                    System.gc();
-                    System.out.println("DEBUG: Memory cleaned at frame " + frameIndex);
-                }
-                
-                System.out.println("Client: cwnd = " + cwnd + ", ssthresh = " + ssthresh);
-            }
+    // Shows a scrub thumbnail while the timeline is still being dragged; runs on the thumbnail
+    // decoder. Playback replaces it with the next frame it shows.
+    private static void showThumbnail(int frameIndex, Protocol.Response thumbnail) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(thumbnail.data, thumbnail.offset, thumbnail.length));
+        } catch (IOException e) {
+            return;
+        } finally {
+            thumbnail.release();
         }
+        if (image == null) return;
+        SwingUtilities.invokeLater(() -> {
+            if (!timelineSlider.getValueIsAdjusting()) return; // Already released: the seek shows the real frame
+            videoLabel.setIcon(new ImageIcon(image));
+            logLabel.setText("Logs: Thumbnail of frame " + frameIndex);
+        });
     }
 
     private static JButton createStyledButton(String text, Color color) {
@@ -299,10 +350,4 @@ public class VideoClient {
         }
         frame.repaint();
     }
-
-    private static int calculateChecksum(byte[] data) {
-        int checksum = 0;
-        for (byte b : data) checksum += (b & 0xFF);
-        return checksum;
-    }
 }
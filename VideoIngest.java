@@ -0,0 +1,384 @@
+package streaming;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+// Turns the videos in VideoServer.VIDEO_DIR into rendition ladders of frame containers, in
+// the background while the server is already serving. start() opens every video whose
+// renditions are already packed before it returns, so those are served at once; everything
+// else is extracted and packed by a bounded pool of workers, one job per (video, rendition),
+// and a ladder is handed to onReady as soon as all of its rungs are done. A WatchService
+// picks up videos dropped into the directory later, once they have stopped growing. In lazy
+// mode, videos that are not fully ingested go to onDemand instead and are never extracted here.
+//
+// Each rendition has a manifest next to its container that checkpoints how far ingest got
+// (see Manifest). After a crash or a failed ffmpeg run a rendition resumes from its last
+// completed stage; a frame directory without an "extracted" checkpoint may be partial and is
+// extracted again from scratch, since ffmpeg cannot resume a numbered image sequence.
+class VideoIngest {
+    private static final long SETTLE_MILLIS = 2000; // A new file must stop changing this long before ingest
+
+    private final File videoDir;
+    private final BiConsumer<String, FrameContainer[]> onReady;
+    private final BiConsumer<String, File> onDemand; // null unless lazy
+    private final ExecutorService workers;
+    private final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(daemon("ingest-watch"));
+    // Videos ingested or being ingested; a name is only ever handed to onReady once
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    // Pending settle checks for files still being written, by file name
+    private final Map<String, ScheduledFuture<?>> settling = new ConcurrentHashMap<>();
+
+    VideoIngest(File videoDir, int workerCount, BiConsumer<String, FrameContainer[]> onReady, BiConsumer<String, File> onDemand) {
+        this.videoDir = videoDir;
+        this.onReady = onReady;
+        this.onDemand = onDemand;
+        this.workers = Executors.newFixedThreadPool(workerCount, daemon("ingest"));
+    }
+
+    // Registers the videos that are already ingested, queues the rest and starts watching
+    // the directory. Returns without waiting for any extraction.
+    void start() throws IOException {
+        if (!videoDir.exists()) {
+            System.out.println("ERROR: Videos folder not found!");
+            return;
+        }
+        File[] videoFiles = videoDir.listFiles(VideoIngest::isVideo);
+        if (videoFiles == null || videoFiles.length == 0) {
+            System.out.println("ERROR: No video files found in " + videoDir);
+        } else {
+            // Name order for registering what is already packed and queueing the rest; the IDs of
+            // queued videos still follow the order their extraction finishes in
+            Arrays.sort(videoFiles, Comparator.comparing(File::getName));
+            List<File> pending = new ArrayList<>();
+            for (File video : videoFiles) {
+                if (!openIngested(video)) pending.add(video);
+            }
+            for (File video : pending) admit(video);
+        }
+        watch();
+    }
+
+    // Hands a video that is not ingested yet to onDemand in lazy mode, or to the workers.
+    private void admit(File video) {
+        if (onDemand == null) ingest(video);
+        else if (known.add(videoName(video))) onDemand.accept(videoName(video), video);
+    }
+
+    // Extracts, packs and registers video on the worker pool, unless it is already known.
+    void ingest(File video) {
+        String videoName = videoName(video);
+        if (!known.add(videoName)) return;
+
+        Rendition[] renditions = Rendition.values();
+        List<CompletableFuture<FrameContainer>> rungs = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            rungs.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return loadRendition(video, videoName, rendition);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, workers));
+        }
+        CompletableFuture.allOf(rungs.toArray(CompletableFuture<?>[]::new)).handle((ignored, error) -> {
+            FrameContainer[] ladder = new FrameContainer[renditions.length];
+            for (int i = 0; i < renditions.length; i++) {
+                try {
+                    ladder[i] = rungs.get(i).join();
+                } catch (CompletionException e) {
+                    System.out.println("ERROR: Could not load " + renditions[i].label + " frames for " + videoName + ": " + e.getCause().getMessage());
+                }
+            }
+            register(videoName, ladder);
+            return null;
+        });
+    }
+
+    // Opens video's containers without extracting anything; false (and nothing registered)
+    // unless every rendition is already packed from the current source file.
+    private boolean openIngested(File video) {
+        String videoName = videoName(video);
+        Rendition[] renditions = Rendition.values();
+        for (Rendition rendition : renditions) {
+            Manifest manifest = Manifest.load(rendition.manifestFile(videoName));
+            if (manifest == null || !manifest.matches(video, rendition) || !manifest.packed()) return false;
+        }
+        FrameContainer[] ladder = new FrameContainer[renditions.length];
+        for (int i = 0; i < renditions.length; i++) {
+            try {
+                ladder[i] = FrameContainer.open(renditions[i].containerFile(videoName));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        if (!known.add(videoName)) return true;
+        register(videoName, ladder);
+        return true;
+    }
+
+    private void register(String videoName, FrameContainer[] ladder) {
+        if (!fillLadderGaps(videoName, ladder)) {
+            System.out.println("ERROR: Could not load frames for " + videoName);
+            known.remove(videoName); // Tried again if the file changes
+            return;
+        }
+        onReady.accept(videoName, ladder);
+        System.out.println("INFO (Server): Ingested " + VideoServer.frameCount(ladder) + " frames in " + ladder.length + " renditions for " + videoName);
+    }
+
+    // Brings one rendition up to date from whatever stage its manifest records.
+    private static FrameContainer loadRendition(File video, String videoName, Rendition rendition) throws IOException {
+        File frameDir = rendition.frameDir(videoName);
+        File containerFile = rendition.containerFile(videoName);
+        File manifestFile = rendition.manifestFile(videoName);
+        Manifest manifest = Manifest.load(manifestFile);
+
+        if (manifest == null && FrameContainer.isCurrent(containerFile)) {
+            // Packed before manifests existed; adopt it rather than extract it all again
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Adopting existing " + rendition.label + " container for " + videoName);
+            FrameContainer container = FrameContainer.open(containerFile);
+            Manifest.extracted(video, rendition, container.frameCount()).packed(true).save(manifestFile);
+            if (container.frameCount() == 0) throw new IOException("no frames in " + containerFile);
+            return container;
+        }
+        if (manifest != null && !manifest.matches(video, rendition)) {
+            if (Log.DEBUG) System.out.println("DEBUG (Server): " + video.getName() + " or its " + rendition.label + " settings changed since extraction. Extracting again.");
+            manifest = null;
+        }
+        if (manifest != null && !manifest.packed() && countFrames(frameDir) != manifest.frames) {
+            if (Log.DEBUG) System.out.println("DEBUG (Server): " + rendition.label + " frames for " + videoName + " are incomplete. Extracting again.");
+            manifest = null;
+        }
+
+        if (manifest == null) {
+            // No checkpoint: whatever is in the frame directory may be a partial extraction
+            Files.deleteIfExists(manifestFile.toPath());
+            clearDirectory(frameDir);
+            frameDir.mkdirs();
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Extracting " + rendition.label + " frames for " + video.getName());
+            extractFrames(video.getAbsolutePath(), frameDir, rendition);
+            manifest = Manifest.extracted(video, rendition, countFrames(frameDir));
+            if (manifest.frames == 0) throw new IOException("ffmpeg produced no frames for " + video.getName());
+            manifest.save(manifestFile);
+        }
+        if (!manifest.packed() || !FrameContainer.isCurrent(containerFile)) {
+            if (countFrames(frameDir) != manifest.frames) {
+                // Packed by an older server whose container this one cannot read, frames since deleted
+                Files.deleteIfExists(manifestFile.toPath());
+                return loadRendition(video, videoName, rendition);
+            }
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Packing " + rendition.label + " frames for " + videoName);
+            FrameContainer.pack(frameDir, containerFile);
+            manifest.packed(true).save(manifestFile);
+        }
+
+        FrameContainer container = FrameContainer.open(containerFile);
+        if (container.frameCount() == 0) throw new IOException("no frames in " + containerFile);
+        return container;
+    }
+
+    // A rung that could not be loaded is served from the nearest rung above it (or below,
+    // at the top), so clients always see a complete ladder. False if no rung loaded at all.
+    private static boolean fillLadderGaps(String videoName, FrameContainer[] ladder) {
+        for (int i = 0; i < ladder.length; i++) {
+            if (ladder[i] != null) continue;
+            for (int distance = 1; distance < ladder.length && ladder[i] == null; distance++) {
+                if (i + distance < ladder.length && ladder[i + distance] != null) ladder[i] = ladder[i + distance];
+                else if (i - distance >= 0 && ladder[i - distance] != null) ladder[i] = ladder[i - distance];
+            }
+            if (ladder[i] == null) return false;
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Serving " + videoName + " " + Rendition.values()[i].label + " from " + ladder[i].file().getName());
+        }
+        return true;
+    }
+
+    // Extraction failures remove the partial frame directory so the next attempt starts clean.
+    private static void extractFrames(String videoPath, File outputDir, Rendition rendition) throws IOException {
+        try {
+            List<String> command = Arrays.asList("ffmpeg", "-i", videoPath, "-vf", rendition.ffmpegFilter(),
+                    "-q:v", String.valueOf(rendition.jpegQuality), outputDir.getPath() + "/frame_%04d.jpg");
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (Log.DEBUG) System.out.println("FFmpeg (" + rendition.label + "): " + line);
+            }
+            int exitCode = process.waitFor();
+            if (exitCode == 0) {
+                if (Log.DEBUG) System.out.println("Frame extraction completed for " + videoPath + " (" + rendition.label + ")");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("ERROR: Frame extraction failed for " + videoPath + ": " + e.getMessage());
+        }
+        clearDirectory(outputDir);
+        throw new IOException("frame extraction failed for " + videoPath + " (" + rendition.label + ")");
+    }
+
+    // ----- Watching for new videos -----
+
+    private void watch() throws IOException {
+        WatchService watchService = videoDir.toPath().getFileSystem().newWatchService();
+        videoDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            File[] videoFiles = videoDir.listFiles(VideoIngest::isVideo);
+                            if (videoFiles != null) for (File video : videoFiles) settle(video);
+                        } else {
+                            File video = new File(videoDir, event.context().toString());
+                            if (isVideo(videoDir, video.getName())) settle(video);
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.out.println("ERROR: " + videoDir + " can no longer be watched for new videos");
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "ingest-events");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("INFO (Server): Watching " + videoDir + " for new videos");
+    }
+
+    // Ingests video once its size and modification time have held still for SETTLE_MILLIS,
+    // so a file that is still being copied in is not handed to ffmpeg half-written. Every
+    // event for the file restarts the wait.
+    private void settle(File video) {
+        if (known.contains(videoName(video))) return;
+        long length = video.length();
+        long modified = video.lastModified();
+        ScheduledFuture<?> previous = settling.put(video.getName(), watcher.schedule(() -> {
+            if (video.length() != length || video.lastModified() != modified) {
+                settle(video);
+                return;
+            }
+            settling.remove(video.getName());
+            System.out.println("INFO (Server): New video " + video.getName());
+            admit(video);
+        }, SETTLE_MILLIS, TimeUnit.MILLISECONDS));
+        if (previous != null) previous.cancel(false);
+    }
+
+    // ----- Helpers -----
+
+    private static boolean isVideo(File dir, String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".mp4") || lower.endsWith(".avi");
+    }
+
+    private static String videoName(File video) {
+        return video.getName().replaceAll("\\..+$", "");
+    }
+
+    private static int countFrames(File frameDir) {
+        String[] frames = frameDir.list((dir, name) -> name.endsWith(".jpg"));
+        return frames == null ? -1 : frames.length;
+    }
+
+    private static void clearDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Checkpoint for one rendition of one video, kept as a properties file beside its
+    // container. Identifies the source file (size and modification time) and the ffmpeg
+    // settings it was extracted with, so a changed source or rendition is extracted again,
+    // and records the last stage that finished:
+    //   extracted - ffmpeg exited cleanly and left frames .jpg files in the frame directory
+    //   packed    - those frames are in the container as well
+    // Written to a temporary file and renamed, like a container, so it is never half-written.
+    static final class Manifest {
+        private final String source;
+        private final long sourceBytes;
+        private final long sourceModified;
+        private final String filter;
+        private final int jpegQuality;
+        final int frames;
+        private boolean packed;
+
+        private Manifest(String source, long sourceBytes, long sourceModified, String filter, int jpegQuality, int frames, boolean packed) {
+            this.source = source;
+            this.sourceBytes = sourceBytes;
+            this.sourceModified = sourceModified;
+            this.filter = filter;
+            this.jpegQuality = jpegQuality;
+            this.frames = frames;
+            this.packed = packed;
+        }
+
+        static Manifest extracted(File video, Rendition rendition, int frames) {
+            return new Manifest(video.getName(), video.length(), video.lastModified(), rendition.ffmpegFilter(), rendition.jpegQuality, frames, false);
+        }
+
+        // The saved manifest, or null if there is none or it cannot be read.
+        static Manifest load(File file) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                return new Manifest(properties.getProperty("source"),
+                        Long.parseLong(properties.getProperty("sourceBytes")),
+                        Long.parseLong(properties.getProperty("sourceModified")),
+                        properties.getProperty("filter"),
+                        Integer.parseInt(properties.getProperty("jpegQuality")),
+                        Integer.parseInt(properties.getProperty("frames")),
+                        "packed".equals(properties.getProperty("stage")));
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        boolean matches(File video, Rendition rendition) {
+            return video.getName().equals(source) && video.length() == sourceBytes && video.lastModified() == sourceModified
+                    && rendition.ffmpegFilter().equals(filter) && rendition.jpegQuality == jpegQuality;
+        }
+
+        boolean packed() {
+            return packed;
+        }
+
+        Manifest packed(boolean packed) {
+            this.packed = packed;
+            return this;
+        }
+
+        void save(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("source", source);
+            properties.setProperty("sourceBytes", String.valueOf(sourceBytes));
+            properties.setProperty("sourceModified", String.valueOf(sourceModified));
+            properties.setProperty("filter", filter);
+            properties.setProperty("jpegQuality", String.valueOf(jpegQuality));
+            properties.setProperty("frames", String.valueOf(frames));
+            properties.setProperty("stage", packed ? "packed" : "extracted");
+            File temp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "Ingest checkpoint for " + source);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
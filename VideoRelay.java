@@ -1,28 +1,76 @@
+package streaming;
+
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 class VideoRelay {
     private static final int SERVER_PORT = 5000;
-    private static final int BUFFER_SIZE = 500; // Increased from 100 to 500
+    private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024; // Hot on-heap tier, shared by all videos
+    private static final String OFFHEAP_CACHE_DIR = "Relay Cache/"; // Relays sharing a machine need --cache
+    private static final int OFFHEAP_SEGMENTS = 16;
+    private static final int OFFHEAP_SEGMENT_BYTES = 32 * 1024 * 1024;
+    private static final long BUFFER_POOL_BYTES = 32L * 1024 * 1024; // Free payload buffers kept for reuse
+    private static final long THUMBNAIL_MAX_BYTES = 32L * 1024 * 1024; // Scrub thumbnails, pinned
     private static final int TIMEOUT = 10000;
+    private static final int UPSTREAM_CONNECTIONS = 4;
+    private static final int MAX_CLIENTS = 10000;
+    private static final int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+    // Blocking writes that take longer than this mean the client's socket buffer was full
+    private static final long BLOCKED_WRITE_NANOS = 1_000_000;
 
-    private static final double ADDITIVE_INCREASE = 1.0;
-    private static final double MULTIPLICATIVE_DECREASE = 0.5;
-    private static final int INITIAL_CWND = 1;
-    private static final int INITIAL_SSTHRESH = 16;
-
-    private static double cwnd = INITIAL_CWND;
-    private static double ssthresh = INITIAL_SSTHRESH;
-    private static long lastRTT = 50; // Initial RTT estimate in ms
-    private static final int BASE_BITRATE = 500; // Base bitrate in kbps
-    private static final int MAX_BITRATE = 4000; // Max bitrate in kbps
-
-    // LRU Cache for video frames (each video is cached by a LinkedHashMap mapping frame index → byte[]).
-    // The key of the outer map is the video name.
-    // Making the cache size much larger to preserve more frames across requests
-    public static final Map<String, Map<Integer, byte[]>> relayCache = new HashMap<>();
+    // Payload buffers for upstream reads and off-heap cache hits, returned once a frame has
+    // been written to the client (or evicted from the heap cache).
+    private static final BufferPool bufferPool = new BufferPool(BUFFER_POOL_BYTES);
+    // Frame cache for all videos, bounded by total payload bytes rather than frame count.
+    public static final RelayCache relayCache = new RelayCache(CACHE_MAX_BYTES);
+    // Larger second tier kept off the Java heap in memory-mapped files; survives restarts.
+    public static OffHeapFrameStore frameStore;
+
+    // Shared by every ClientHandler; fetches from different clients run concurrently,
+    // and concurrent misses on the same frame share a single upstream fetch. The upstream is
+    // the server or, in a tiered setup, one or more parent relays (see UpstreamRouter).
+    private static UpstreamRouter upstream;
+    private static SingleFlightFetcher fetcher;
+    // Fetches ahead of sequential viewers; each session has its own ReadAhead
+    private static Prefetcher prefetcher;
+    // Every opened video's scrub thumbnails, kept outside both cache tiers
+    private static ThumbnailStore thumbnails;
+    // Live channels being passed on, one upstream subscription each
+    private static LiveFeeds liveFeeds;
+    // Exported through Metrics for every session; the per-session counts below are debug output
+    private static final Metrics.Counter requests = Metrics.counter("relay_requests_total");
+    private static final Metrics.Counter totalHits = Metrics.counter("relay_cache_hits_total");
+    private static final Metrics.Counter totalMisses = Metrics.counter("relay_cache_misses_total");
+    private static final Metrics.Counter framesServed = Metrics.counter("relay_frames_served_total");
+    private static final Metrics.Counter bytesServed = Metrics.counter("relay_bytes_served_total");
+    private static final Metrics.Counter nacks = Metrics.counter("relay_nacks_total");
+    private static final Metrics.Counter cancels = Metrics.counter("relay_cancels_total");
+    private static final Metrics.Counter cancelledResponses = Metrics.counter("relay_cancelled_responses_total");
+    // Time to find a hit and read it out of the heap or off-heap tier
+    private static final Metrics.Histogram hitLatency = Metrics.histogram("relay_cache_hit_seconds");
+    // Each session paces its own stream with its own congestion controller
+    private static CongestionControl congestionControl;
+    private static Pacer.Uplink uplink;
     
+    // --name=value arguments; everything else is positional
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static String[] positional(String[] args) {
+        return Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+    }
+
     private static String getWifiIPAddress() {
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
@@ -44,105 +92,149 @@ class VideoRelay {
         return "localhost";
     }
     
-    public static void main(String[] args) throws IOException {
-        Scanner sc = new Scanner(System.in);
-        System.out.println("Enter Server IP Address");
-        String serverIP = sc.nextLine();
-        Socket serverSocket = new Socket(serverIP, SERVER_PORT); // Linux-compatible IP
-        System.out.println("DEBUG (Relay): Connected to server at port " + SERVER_PORT);
+    // java streaming.VideoRelay [thread|virtual|nio] [aimd|bbr] [uplinkMbps] [--port=N] [--upstream=host:port,...] [--cache=dir]
+    //   --port      listen port (default: any free port)
+    //   --upstream  parents to fetch from: the server, or relays of the tier above. Videos are
+    //               spread over several parents by consistent hashing, with failover between
+    //               them. Without it the relay asks for the server's IP on stdin.
+    //   --cache     directory of the off-heap cache tier, one per relay on the same machine
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = options(args);
+        args = positional(args);
+        ExecutionModel model = ExecutionModel.fromArgs(args);
+        congestionControl = CongestionControl.fromArgs(args);
+        uplink = new Pacer.Uplink(args.length > 2 ? Double.parseDouble(args[2]) * 1e6 / 8 : 0);
+        String parents = options.get("upstream");
+        if (parents == null) {
+            Scanner sc = new Scanner(System.in);
+            System.out.println("Enter Server IP Address");
+            parents = sc.nextLine().trim() + ":" + SERVER_PORT;
+        }
+        frameStore = new OffHeapFrameStore(new File(options.getOrDefault("cache", OFFHEAP_CACHE_DIR)), OFFHEAP_SEGMENTS, OFFHEAP_SEGMENT_BYTES, bufferPool);
+        upstream = UpstreamRouter.connect(parents, UPSTREAM_CONNECTIONS, bufferPool);
+        fetcher = new SingleFlightFetcher(upstream, VideoRelay::storeInCache);
+        prefetcher = new Prefetcher(fetcher, upstream, VideoRelay::isCached, upstream::smoothedRttMillis);
+        thumbnails = new ThumbnailStore(upstream, THUMBNAIL_MAX_BYTES);
+        liveFeeds = new LiveFeeds(upstream);
+        exportMetrics();
         System.out.println("Relay is running in IP: "+ getWifiIPAddress());
-        ServerSocket relayServerSocket = new ServerSocket(0);
-        int relayPort = relayServerSocket.getLocalPort();
-        System.out.println("DEBUG (Relay): Listening on port: " + relayPort);
+        ServerSocketChannel relayServerSocket = ServerSocketChannel.open();
+        relayServerSocket.bind(new InetSocketAddress(Integer.parseInt(options.getOrDefault("port", "0"))));
+        int relayPort = relayServerSocket.socket().getLocalPort();
+        System.out.println("INFO (Relay): Listening on port: " + relayPort + " (" + model + " mode, " + congestionControl + " pacing)");
+
+        EventLoop eventLoop = model == ExecutionModel.NIO ? new EventLoop("relay", EVENT_LOOPS, TIMEOUT, ClientSession::new) : null;
+        ExecutorService executor = model == ExecutionModel.NIO ? null : model.connectionExecutor();
+        Semaphore clientSlots = new Semaphore(MAX_CLIENTS);
 
         while (true) {
-            Socket clientSocket = relayServerSocket.accept();
-            clientSocket.setSoTimeout(TIMEOUT);
-            System.out.println("DEBUG (Relay): New client connected!");
+            // At the limit, stop accepting and let new clients wait in the listen backlog
+            clientSlots.acquire();
+            SocketChannel clientSocket = relayServerSocket.accept();
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): New client connected!");
 
-            Thread clientHandler = new Thread(new ClientHandler(clientSocket, serverSocket));
-            clientHandler.start();
+            if (eventLoop != null) {
+                eventLoop.register(clientSocket, clientSlots::release);
+            } else {
+                clientSocket.socket().setSoTimeout(TIMEOUT);
+                executor.execute(() -> {
+                    try {
+                        new ClientHandler(clientSocket.socket()).run();
+                    } finally {
+                        clientSlots.release();
+                    }
+                });
+            }
         }
     }
 
-    private static synchronized void onSuccessfulTransmission(long rtt) {
-        lastRTT = (long)((lastRTT * 0.875) + (rtt * 0.125)); // Smoothed RTT
-        if (cwnd < ssthresh) {
-            cwnd += ADDITIVE_INCREASE; // Slow start
-        } else {
-            cwnd += 1.0 / cwnd; // Congestion avoidance (AIMD)
-        }
-        System.out.println("DEBUG (Relay): Successful transmission, cwnd increased to " + cwnd);
+    // Shared state the relay already tracks, read when metrics are exported
+    private static void exportMetrics() {
+        Metrics.gauge("relay_upstream_fetches_total", fetcher::originated);
+        Metrics.gauge("relay_upstream_coalesced_total", fetcher::coalesced);
+        Metrics.gauge("relay_upstream_in_flight_keys", fetcher::inFlight);
+        Metrics.gauge("relay_upstream_outstanding", upstream::outstanding);
+        Metrics.gauge("relay_prefetch_used_total", () -> prefetcher.stats().used);
+        Metrics.gauge("relay_prefetch_wasted_total", () -> prefetcher.stats().wasted);
+        Metrics.gauge("relay_prefetch_bursts_total", () -> prefetcher.stats().bursts);
+        Metrics.gauge("relay_thumbnail_bytes", thumbnails::bytes);
+        Metrics.gauge("relay_live_channels", liveFeeds::channels);
+        Metrics.gauge("relay_live_subscribers", liveFeeds::subscribers);
+        Metrics.gauge("relay_heap_cache_bytes", () -> relayCache.stats().bytes);
+        Metrics.gauge("relay_heap_cache_evictions_total", () -> relayCache.stats().evictions);
+        Metrics.gauge("relay_offheap_cache_bytes", () -> frameStore.stats().bytes);
+        Metrics.gauge("relay_offheap_cache_hits_total", () -> frameStore.stats().hits);
+        Metrics.gauge("relay_buffers_allocated_bytes", () -> bufferPool.stats().allocatedBytes);
+        Metrics.export("relay");
     }
 
-    private static synchronized void onPacketLoss() {
-        ssthresh = Math.max((int)(cwnd / 2), 2);
-        cwnd = Math.max(1, cwnd * MULTIPLICATIVE_DECREASE);
-        System.out.println("DEBUG (Relay): Packet loss detected, cwnd reduced to " + cwnd + ", ssthresh set to " + ssthresh);
+    // Pinned thumbnails (for thumbnail frames only), then the hot heap tier, then the off-heap
+    // tier. Off-heap hits are not promoted, so the heap tier only churns on frames fetched
+    // upstream. The caller releases the frame.
+    private static FrameData cachedFrame(FrameKey key) {
+        long start = System.nanoTime();
+        FrameData frame = thumbnails.get(key);
+        if (frame == null) frame = relayCache.get(key);
+        if (frame == null) frame = frameStore.get(key);
+        if (frame != null) hitLatency.recordSince(start);
+        return frame;
     }
 
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket, serverSocket;
-        private DataInputStream inFromServer;
-        private DataOutputStream outToClient;
-        private PrintWriter outToServer;
-        
-        // Stats tracking
+    private static boolean isCached(FrameKey key) {
+        return thumbnails.contains(key) || relayCache.contains(key) || frameStore.contains(key);
+    }
+
+    private static void storeInCache(FrameKey key, FrameData frame) {
+        relayCache.put(key, frame);
+        frameStore.put(key, frame);
+        if (Log.DEBUG) System.out.println("DEBUG (Relay): Stored " + (key.segment ? "segment " : "frame ") + key.frameIndex + " (q" + key.quality + ") into cache for " + key.videoName);
+    }
+
+    // A NACK means the client got a corrupt copy of the frame. The copy the relay holds, alone
+    // or inside the segment that contains the frame, may be the corrupt one, so it is dropped
+    // from both tiers and the pinned thumbnails, and the retransmission is fetched with a NACK
+    // of the relay's own (SingleFlightFetcher.refetch), so a parent relay drops its copy too.
+    private static void evictCorrupt(UpstreamPool.VideoInfo video, FrameKey key) {
+        FrameKey segmentKey = FrameKey.segment(video.name, key.quality, key.frameIndex / video.segmentFrames);
+        boolean evicted = thumbnails.remove(key) | relayCache.remove(key) | frameStore.remove(key);
+        evicted |= relayCache.remove(segmentKey) | frameStore.remove(segmentKey);
+        nacks.increment();
+        if (Log.DEBUG) System.out.println("DEBUG (Relay): NACK for " + video.name + " frame " + key.frameIndex + " (q" + key.quality + ")"
+                + (evicted ? ", evicted cached copy" : "") + ". Refetching from upstream...");
+    }
+
+    // Per-client cache statistics, printed every 50 requests with debug logging on (see Log);
+    // hits and misses also count towards the relay-wide metrics
+    private static class SessionStats {
+        private final Pacer pacer;
         private int cacheHits = 0;
         private int cacheMisses = 0;
         private Map<String, Integer> videoHitStats = new HashMap<>();
         private Map<String, Integer> videoMissStats = new HashMap<>();
+        private int lastPrinted = 0;
 
-        public ClientHandler(Socket client, Socket server) {
-            this.clientSocket = client;
-            this.serverSocket = server;
+        SessionStats(Pacer pacer) {
+            this.pacer = pacer;
         }
 
-        public void run() {
-            try {
-                inFromServer = new DataInputStream(serverSocket.getInputStream());
-                outToClient = new DataOutputStream(clientSocket.getOutputStream());
-                outToServer = new PrintWriter(serverSocket.getOutputStream(), true);
-                BufferedReader inFromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-                while (true) {
-                    String request = inFromClient.readLine();
-                    if (request == null) break;
-
-                    request = request.trim();
-                    System.out.println("DEBUG (Relay): Raw received request: [" + request + "]");
-
-                    if (request.equals("PING")) {
-                        System.out.println("(Relay): Client is alive (PING).");
-                        continue;
-                    }
-                    if (request.equals("DISCONNECT")) {
-                        System.out.println("DEBUG (Relay): Client disconnected.");
-                        clientSocket.close();
-                        break;
-                    }
+        void recordHit(String videoName) {
+            totalHits.increment();
+            cacheHits++;
+            videoHitStats.put(videoName, videoHitStats.getOrDefault(videoName, 0) + 1);
+        }
 
-                    // Handle individual frame request (from client incremental fetch)
-                    if (request.startsWith("NACK")) {
-                        String[] nackParts = request.split(" ");
-                        if (nackParts.length == 2) {
-                            int frameIndex = Integer.parseInt(nackParts[1]);
-                            // This would need additional handling for NACK
-                            continue;
-                        }
-                    }
+        void recordMiss(String videoName) {
+            totalMisses.increment();
+            cacheMisses++;
+            videoMissStats.put(videoName, videoMissStats.getOrDefault(videoName, 0) + 1);
+        }
 
-                    // Handle normal video request which comes directly from client
-                    handleVideoRequest(request);
-                    
-                    // Print cache stats periodically
-                    if ((cacheHits + cacheMisses) % 50 == 0) {
-                        printCacheStats();
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("DEBUG (Relay): Connection lost.");
-                e.printStackTrace();
+        void printPeriodically() {
+            if (!Log.DEBUG) return;
+            // Batched requests add several frames at a time, so compare against the last print
+            if (cacheHits + cacheMisses - lastPrinted >= 50) {
+                lastPrinted = cacheHits + cacheMisses;
+                printCacheStats();
             }
         }
 
@@ -162,107 +254,680 @@ class VideoRelay {
                                   String.format("%.2f", rate) + "% hit rate)");
             }
             
-            // Add cache size information
-            System.out.println("----- Cache Size Information -----");
-            for (String video : relayCache.keySet()) {
-                System.out.println(video + ": " + relayCache.get(video).size() + " frames in cache");
-            }
+            System.out.println("----- Upstream Fetches -----");
+            System.out.println("Originated: " + fetcher.originated() + ", coalesced: " + fetcher.coalesced());
+            System.out.println("Prefetch: " + prefetcher.stats());
+            System.out.println("Thumbnails: " + thumbnails);
+
+            System.out.println("----- Pacing -----");
+            System.out.println(pacer);
+
+            System.out.println("----- Shared Cache -----");
+            System.out.println(relayCache.stats());
+            System.out.println("Off-heap: " + frameStore.stats());
+            System.out.println("Buffers: " + bufferPool.stats());
             
             System.out.println("===================================");
         }
+    }
+
+    // Null if a GET can be served, otherwise the ERROR that rejects it as a whole. Clients
+    // must OPEN a video (which interns it with the server) before asking for its frames.
+    private static ByteBuffer rejection(Protocol.Request request, UpstreamPool.VideoInfo video) {
+        if (request.malformed != null) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.malformed);
+        }
+        if (video == null) {
+            return Protocol.error(request.requestId, -1, Protocol.UNKNOWN_VIDEO, "video " + request.videoId + " has not been opened");
+        }
+        if (request.quality >= video.qualities()) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "no quality tier " + request.quality);
+        }
+        if (request.integrity != video.integrity) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "video " + video.id + " is checksummed with " + video.integrity);
+        }
+        return null;
+    }
+
+    // Cached frames keep the checksum the server sent, so the relay can only offer the
+    // algorithm it negotiated upstream; recomputing per client would cost a pass per send.
+    // Opening a video also starts warming its scrub thumbnails.
+    private static ByteBuffer openResponse(Protocol.Request request, UpstreamPool.VideoInfo video, Throwable error) {
+        if (error == null && (request.checksums & video.integrity.bit) == 0) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.videoName + " is checksummed with " + video.integrity + ", which was not offered");
+        }
+        if (error == null) thumbnails.warm(video.name, video.frameCount);
+        if (error == null) return Protocol.video(request.requestId, video.id, video.frameCount, video.segmentFrames, video.frameBytes, video.integrity);
+        Throwable cause = rootCause(error);
+        System.out.println("ERROR: Could not open " + request.videoName + ": " + cause.getMessage());
+        byte code = cause instanceof FileNotFoundException ? Protocol.UNKNOWN_VIDEO : Protocol.UNAVAILABLE;
+        return Protocol.error(request.requestId, -1, code, String.valueOf(cause.getMessage()));
+    }
+
+    // NOT_FOUND for a GET_SEGMENT past the end of the video (answered without asking the
+    // server), or null if the segment exists.
+    private static ByteBuffer missingSegment(Protocol.Request request, UpstreamPool.VideoInfo video) {
+        if (request.segmentIndex < video.segmentCount()) return null;
+        return Protocol.notFound(request.requestId, firstFrame(request, video));
+    }
+
+    private static int firstFrame(Protocol.Request request, UpstreamPool.VideoInfo video) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) request.segmentIndex * video.segmentFrames);
+    }
+
+    // Frames the server does not have are NOT_FOUND; anything else (timeout, lost upstream
+    // connection) is an UNAVAILABLE error the client may retry.
+    // A fetch still completes with a reference for its caller after the caller has given up
+    // waiting (a timeout); this releases it whenever it arrives.
+    private static void abandon(CompletableFuture<FrameData> fetch) {
+        fetch.whenComplete((frame, error) -> {
+            if (frame != null) frame.release();
+        });
+    }
+
+    private static ByteBuffer fetchFailure(int requestId, String videoName, int frameIndex, Throwable error) {
+        Throwable cause = rootCause(error);
+        System.out.println("ERROR: Could not fetch " + videoName + " frame " + frameIndex + " from server: " + cause);
+        if (cause instanceof FileNotFoundException) return Protocol.notFound(requestId, frameIndex);
+        return Protocol.error(requestId, frameIndex, Protocol.UNAVAILABLE, String.valueOf(cause));
+    }
+
+    // Null if a SUBSCRIBE can be served, otherwise the ERROR that rejects it. Live frames are
+    // forwarded with the checksum the origin computed, so the client must accept that one.
+    private static ByteBuffer subscribeRejection(Protocol.Request request) {
+        if (request.malformed != null) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.malformed);
+        }
+        if ((request.checksums & LiveChannel.INTEGRITY.bit) == 0) {
+            return Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "live channels are checksummed with " + LiveChannel.INTEGRITY + ", which was not offered");
+        }
+        return null;
+    }
+
+    // The ERROR for a SUBSCRIBE whose channel could not be subscribed upstream
+    private static ByteBuffer subscribeFailure(Protocol.Request request, Throwable error) {
+        Throwable cause = rootCause(error);
+        System.out.println("ERROR: Could not subscribe to " + request.videoName + ": " + cause.getMessage());
+        byte code = cause instanceof FileNotFoundException ? Protocol.UNKNOWN_VIDEO : Protocol.UNAVAILABLE;
+        return Protocol.error(request.requestId, -1, code, String.valueOf(cause.getMessage()));
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while ((error instanceof ExecutionException || error instanceof CompletionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // Live frames are written by a writer thread of their own (liveWriters), between the
+    // handler's responses: each response is written whole under the stream's lock.
+    private static class ClientHandler implements Runnable, LiveChannel.Sink {
+        private static final ExecutorService liveWriters = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "live-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private Socket clientSocket;
+        private DataOutputStream outToClient;
+        private final Pacer pacer = new Pacer(congestionControl.newController(), uplink);
+        private final SessionStats stats = new SessionStats(pacer);
+        private final ByteBuffer header = ByteBuffer.allocate(Protocol.FRAME_HEADER_BYTES);
+        private final Prefetcher.ReadAhead readAhead = prefetcher.session();
+        private final LiveChannel.Subscriptions subscriptions = new LiveChannel.Subscriptions();
+
+        public ClientHandler(Socket client) {
+            this.clientSocket = client;
+        }
+
+        public void run() {
+            try {
+                outToClient = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+                DataInputStream inFromClient = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+
+                while (true) {
+                    Protocol.Request request = Protocol.readRequest(inFromClient);
+                    if (request == null) break;
+
+                    requests.increment();
+                    if (Log.DEBUG) System.out.println("DEBUG (Relay): Received request: " + request);
+
+                    if (request.opcode == Protocol.PING) {
+                        if (Log.DEBUG) System.out.println("(Relay): Client is alive (PING).");
+                        continue;
+                    }
+                    if (request.opcode == Protocol.CANCEL) {
+                        // Requests are answered one at a time, in order, so by the time a
+                        // CANCEL is read everything before it has been answered; the client
+                        // discards what it no longer wants
+                        cancels.increment();
+                        continue;
+                    }
+                    if (request.opcode == Protocol.DISCONNECT) {
+                        if (Log.DEBUG) System.out.println("DEBUG (Relay): Client disconnected.");
+                        break;
+                    }
+                    if (request.opcode == Protocol.LIVE_ACK) {
+                        subscriptions.ack(request.requestId, request.frameIndex);
+                        continue;
+                    }
+                    if (request.opcode == Protocol.UNSUBSCRIBE) {
+                        subscriptions.remove(request.requestId);
+                        continue;
+                    }
+                    if (request.opcode == Protocol.OPEN) {
+                        handleOpen(request);
+                    } else if (request.opcode == Protocol.GET_SEGMENT) {
+                        handleSegmentRequest(request);
+                    } else if (request.opcode == Protocol.NACK) {
+                        handleNack(request);
+                    } else if (request.opcode == Protocol.SUBSCRIBE) {
+                        handleSubscribe(request);
+                    } else {
+                        handleVideoRequest(request);
+                    }
+                    outToClient.flush();
+
+                    // Print cache stats periodically
+                    stats.printPeriodically();
+                }
+            } catch (IOException e) {
+                if (Log.DEBUG) {
+                    System.out.println("DEBUG (Relay): Connection lost.");
+                    e.printStackTrace();
+                }
+            } finally {
+                subscriptions.closeAll();
+                readAhead.close();
+                pacer.close();
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {}
+            }
+        }
 
-       private void handleVideoRequest(String request) throws IOException {
-            String[] parts = request.split(" ");
-            if (parts.length != 2) {
-                System.out.println("ERROR: Invalid request format!");
+        // Frames follow from the writer threads; only a channel the relay could not subscribe
+        // to is answered here.
+        private void handleSubscribe(Protocol.Request request) throws IOException {
+            ByteBuffer rejection = subscribeRejection(request);
+            if (rejection != null) {
+                send(rejection);
                 return;
             }
+            CompletableFuture<Void> accepted = liveFeeds.subscribe(request.videoName, subscriptions, request.requestId, this, request.count);
+            try {
+                accepted.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                send(subscribeFailure(request, e));
+            } catch (TimeoutException e) {
+                // Subscribed, but the channel has sent nothing yet; frames follow when it does
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while subscribing");
+            }
+        }
 
-            String videoName = parts[0];
-            int frameIndex = Integer.parseInt(parts[1]);
+        public void sendLive(int requestId, LiveChannel.LiveFrame frame, Runnable onSent) {
+            liveWriters.execute(() -> {
+                try {
+                    ByteBuffer liveHeader = Protocol.liveHeader(requestId, frame.sequence, frame.quality, 0,
+                            frame.frame.checksum, frame.capturedAtMicros, frame.frame.length);
+                    sendPaced(liveHeader.array(), liveHeader.limit(), frame.frame.data, frame.frame.length);
+                } catch (IOException e) {
+                    // The read loop sees the broken connection and ends the handler
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ignored) {}
+                } finally {
+                    onSent.run();
+                }
+            });
+        }
 
-            // Ensure cache exists for this video
-            if (!relayCache.containsKey(videoName)) {
-                // Create a cache with a higher capacity and true access-order parameter
-                relayCache.put(videoName, Collections.synchronizedMap(new LinkedHashMap<Integer, byte[]>(BUFFER_SIZE, 0.75f, true) {
-                    @Override
-                    protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
-                        return size() > BUFFER_SIZE;
-                    }
-                }));
-                System.out.println("DEBUG (Relay): Created new cache for " + videoName);
-            }
-
-            Map<Integer, byte[]> videoCache = relayCache.get(videoName);
-
-            // Debug: show current cache keys
-            System.out.println("DEBUG (Relay): Cache keys for " + videoName + " = " + videoCache.keySet());
-
-            // Check if frame is in cache
-            if (videoCache.containsKey(frameIndex)) {
-                System.out.println("DEBUG (Relay): Cache HIT for " + videoName + " frame " + frameIndex + " ✅");
-                byte[] cachedFrame = videoCache.get(frameIndex);
-                
-                // Update cache statistics
-                cacheHits++;
-                videoHitStats.put(videoName, videoHitStats.getOrDefault(videoName, 0) + 1);
-                
-                // Move this entry to the end of the LRU queue by accessing it
-                videoCache.get(frameIndex);
-                
-                sendFrame(cachedFrame, calculateChecksum(cachedFrame), frameIndex, true);
-            } else {
-                System.out.println("DEBUG (Relay): Cache MISS for " + videoName + " frame " + frameIndex + ". Requesting from server...");
-                
-                // Update cache statistics
-                cacheMisses++;
-                videoMissStats.put(videoName, videoMissStats.getOrDefault(videoName, 0) + 1);
-                
-                requestFrameFromServer(videoName, frameIndex);
+        private void handleOpen(Protocol.Request request) throws IOException {
+            if (request.malformed != null) {
+                send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.malformed));
+                return;
             }
+            UpstreamPool.VideoInfo video = null;
+            Throwable error = null;
+            try {
+                video = upstream.video(request.videoName).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            }
+            send(openResponse(request, video, error));
         }
 
-        private void requestFrameFromServer(String videoName, int frameIndex) throws IOException {
+        // Cache hits are written straight away; misses are fetched concurrently and written
+        // as they arrive, so one slow frame does not hold up the rest of the batch.
+        private void handleVideoRequest(Protocol.Request request) throws IOException {
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection != null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Invalid request for video " + request.videoId);
+                send(rejection);
+                return;
+            }
+
+            String videoName = video.name;
+            List<Integer> missedFrames = new ArrayList<>();
+            List<CompletableFuture<FrameData>> fetches = new ArrayList<>();
             long startTime = System.currentTimeMillis();
-            outToServer.println(videoName + " " + frameIndex);
 
-            int frameSize = inFromServer.readInt();
-            byte[] frameData = new byte[frameSize];
-            inFromServer.readFully(frameData);
-            int checksum = inFromServer.readInt();
-            long endTime = System.currentTimeMillis();
+            for (int i = 0; i < request.count; i++) {
+                int frameIndex = request.frameIndex + i;
+                if (frameIndex < 0 || frameIndex >= video.frameCount) {
+                    send(Protocol.notFound(request.requestId, frameIndex));
+                    continue;
+                }
+
+                // Check if frame is in cache; each rendition is cached under its own key
+                FrameKey key = new FrameKey(videoName, request.quality, frameIndex);
+                FrameData cachedFrame = cachedFrame(key);
+                if (cachedFrame != null) {
+                    if (Log.DEBUG) System.out.println("DEBUG (Relay): Cache HIT for " + videoName + " frame " + frameIndex + " ✅");
+
+                    // Update cache statistics
+                    stats.recordHit(videoName);
+
+                    // The checksum travels with the cached frame, so a hit costs no pass over the payload
+                    sendFrame(request, frameIndex, cachedFrame, true);
+                } else {
+                    if (Log.DEBUG) System.out.println("DEBUG (Relay): Cache MISS for " + videoName + " frame " + frameIndex + ". Requesting from server...");
+
+                    // Update cache statistics
+                    stats.recordMiss(videoName);
+
+                    missedFrames.add(frameIndex);
+                    fetches.add(fetcher.fetch(key));
+                }
+            }
+            // Read ahead only once this request's own misses are on their way upstream
+            readAhead.onRequest(videoName, request.quality, request.frameIndex, request.count, false, video.frameCount);
+            if (fetches.isEmpty()) return;
+            outToClient.flush();
+
+            long deadline = startTime + TIMEOUT;
+            for (int i = 0; i < fetches.size(); i++) {
+                int frameIndex = missedFrames.get(i);
+                try {
+                    FrameData fetched = fetches.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    sendFrame(request, frameIndex, fetched, false);
+                } catch (ExecutionException e) {
+                    send(fetchFailure(request.requestId, videoName, frameIndex, e));
+                } catch (TimeoutException e) {
+                    abandon(fetches.get(i));
+                    send(fetchFailure(request.requestId, videoName, frameIndex, e));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abandon(fetches.get(i));
+                    send(fetchFailure(request.requestId, videoName, frameIndex, e));
+                }
+                outToClient.flush();
+            }
+        }
+
+        // Retransmits one frame the client could not verify. Unlike a GET it bypasses the
+        // cache and the read-ahead, and the other requests on the connection carry on.
+        private void handleNack(Protocol.Request request) throws IOException {
+            // The client got a corrupt frame: back off this client's stream
+            pacer.onLoss();
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection == null && (request.frameIndex < 0 || request.frameIndex >= video.frameCount)) {
+                rejection = Protocol.notFound(request.requestId, request.frameIndex);
+            }
+            if (rejection != null) {
+                send(rejection);
+                return;
+            }
+
+            FrameKey key = new FrameKey(video.name, request.quality, request.frameIndex);
+            CompletableFuture<FrameData> refetch = fetcher.refetch(key, () -> evictCorrupt(video, key));
+            try {
+                FrameData fetched = refetch.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                sendFrame(request, request.frameIndex, fetched, false);
+            } catch (ExecutionException e) {
+                send(fetchFailure(request.requestId, video.name, request.frameIndex, e));
+            } catch (TimeoutException e) {
+                abandon(refetch);
+                send(fetchFailure(request.requestId, video.name, request.frameIndex, e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(refetch);
+                send(fetchFailure(request.requestId, video.name, request.frameIndex, e));
+            }
+        }
+
+        // A segment is cached and forwarded as one body, exactly as the server sent it.
+        private void handleSegmentRequest(Protocol.Request request) throws IOException {
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection == null) rejection = missingSegment(request, video);
+            if (rejection != null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Invalid segment request: " + request.segmentIndex);
+                send(rejection);
+                return;
+            }
+
+            String videoName = video.name;
+            FrameKey key = FrameKey.segment(videoName, request.quality, request.segmentIndex);
+            FrameData cachedSegment = cachedFrame(key);
+            if (cachedSegment != null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Cache HIT for " + videoName + " segment " + request.segmentIndex + " ✅");
+                stats.recordHit(videoName);
+                sendSegment(request, cachedSegment, true);
+                readAhead.onRequest(videoName, request.quality, request.segmentIndex, 1, true, video.segmentCount());
+                return;
+            }
+
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): Cache MISS for " + videoName + " segment " + request.segmentIndex + ". Requesting from server...");
+            stats.recordMiss(videoName);
+            CompletableFuture<FrameData> fetch = fetcher.fetch(key);
+            readAhead.onRequest(videoName, request.quality, request.segmentIndex, 1, true, video.segmentCount());
+            try {
+                FrameData fetched = fetch.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                sendSegment(request, fetched, false);
+            } catch (ExecutionException e) {
+                send(fetchFailure(request.requestId, videoName, firstFrame(request, video), e));
+            } catch (TimeoutException e) {
+                abandon(fetch);
+                send(fetchFailure(request.requestId, videoName, firstFrame(request, video), e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(fetch);
+                send(fetchFailure(request.requestId, videoName, firstFrame(request, video), e));
+            }
+        }
+
+        // Writes the segment, then releases the caller's reference to it.
+        private void sendSegment(Protocol.Request request, FrameData segment, boolean fromCache) throws IOException {
+            ByteBuffer segmentHeader = Protocol.segmentHeader(request.requestId, request.segmentIndex, request.quality,
+                    fromCache ? Protocol.FLAG_FROM_CACHE : 0, segment.length);
+            try {
+                sendPaced(segmentHeader.array(), segmentHeader.limit(), segment.data, segment.length);
+            } finally {
+                segment.release();
+            }
+        }
+
+        // Writes the frame, then releases the caller's reference to it.
+        private void sendFrame(Protocol.Request request, int frameIndex, FrameData frame, boolean fromCache) throws IOException {
+            if (Log.DEBUG) {
+                System.out.println(fromCache ? "DEBUG (Relay): Sending frame " + frameIndex + " from cache ✅"
+                        : "DEBUG (Relay): Forwarding frame " + frameIndex + " from server 🔄");
+            }
+            Protocol.frameHeader(header, request.requestId, frameIndex, request.quality,
+                    fromCache ? Protocol.FLAG_FROM_CACHE : 0, frame.checksum, frame.length);
+            try {
+                sendPaced(header.array(), header.limit(), frame.data, frame.length);
+            } finally {
+                frame.release();
+            }
+        }
+
+        // Waits for the pacer, then writes and flushes one response, timing how long the
+        // socket takes to accept it.
+        private void sendPaced(byte[] header, int headerLength, byte[] body, int bodyLength) throws IOException {
+            try {
+                pacer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while pacing");
+            }
+            long start = System.nanoTime();
+            synchronized (outToClient) {
+                outToClient.write(header, 0, headerLength);
+                outToClient.write(body, 0, bodyLength);
+                outToClient.flush();
+            }
+            long sendNanos = System.nanoTime() - start;
+            pacer.onSent(headerLength + bodyLength, sendNanos, sendNanos > BLOCKED_WRITE_NANOS);
+            framesServed.increment();
+            bytesServed.add(headerLength + bodyLength);
+        }
+
+        private void send(ByteBuffer message) throws IOException {
+            outToClient.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+    }
+
+    // Non-blocking counterpart of ClientHandler for ExecutionModel.NIO. Runs on an EventLoop
+    // worker: hits are queued straight away, misses are queued when their upstream fetch
+    // completes, so a slow fetch never holds up other clients on the same loop. Live frames
+    // are queued from the thread that publishes them; every response is a single write.
+    private static class ClientSession implements EventLoop.Session, LiveChannel.Sink {
+        private final EventLoop.Connection connection;
+        private final Protocol.RequestReader reader = new Protocol.RequestReader();
+        private final Pacer pacer = new Pacer(congestionControl.newController(), uplink);
+        private final SessionStats stats = new SessionStats(pacer);
+        private final Prefetcher.ReadAhead readAhead = prefetcher.session();
+        private final LiveChannel.Subscriptions subscriptions = new LiveChannel.Subscriptions();
+        // Answers to requests below this are no longer wanted (see Protocol.CANCEL)
+        private volatile int firstWanted = 0;
+
+        ClientSession(EventLoop.Connection connection) {
+            this.connection = connection;
+            connection.setPacer(pacer);
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): New client session " + connection.remoteAddress());
+        }
+
+        public void onRead(ByteBuffer in) throws IOException {
+            reader.read(in, this::handleRequest);
+        }
+
+        public void onClose() {
+            subscriptions.closeAll();
+            readAhead.close();
+            pacer.close();
+            if (Log.DEBUG) System.out.println("DEBUG (Relay): Client disconnected.");
+        }
+
+        private void handleRequest(Protocol.Request request) {
+            requests.increment();
+            switch (request.opcode) {
+                case Protocol.PING:
+                    return;
+                case Protocol.CANCEL:
+                    // The client seeked: drop answers still queued for the old position, and
+                    // those whose fetches complete later
+                    cancels.increment();
+                    firstWanted = Math.max(firstWanted, request.requestId);
+                    connection.discard(firstWanted);
+                    return;
+                case Protocol.NACK:
+                    handleNack(request);
+                    return;
+                case Protocol.DISCONNECT:
+                    connection.close();
+                    return;
+                case Protocol.OPEN:
+                    handleOpen(request);
+                    return;
+                case Protocol.SUBSCRIBE:
+                    handleSubscribe(request);
+                    return;
+                case Protocol.LIVE_ACK:
+                    subscriptions.ack(request.requestId, request.frameIndex);
+                    return;
+                case Protocol.UNSUBSCRIBE:
+                    subscriptions.remove(request.requestId);
+                    return;
+                case Protocol.GET_SEGMENT:
+                    handleSegmentRequest(request);
+                    stats.printPeriodically();
+                    return;
+                default:
+                    handleVideoRequest(request);
+                    stats.printPeriodically();
+            }
+        }
+
+        private void handleOpen(Protocol.Request request) {
+            if (request.malformed != null) {
+                connection.write(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.malformed));
+                return;
+            }
+            upstream.video(request.videoName).copy()
+                    .orTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenComplete((video, error) -> connection.write(openResponse(request, video, error)));
+        }
+
+        private void handleSubscribe(Protocol.Request request) {
+            ByteBuffer rejection = subscribeRejection(request);
+            if (rejection != null) {
+                connection.write(rejection);
+                return;
+            }
+            liveFeeds.subscribe(request.videoName, subscriptions, request.requestId, this, request.count)
+                    .whenComplete((ok, error) -> {
+                        if (error != null) connection.write(subscribeFailure(request, error));
+                    });
+        }
 
-            long rtt = endTime - startTime;
-            onSuccessfulTransmission(rtt);
+        public void sendLive(int requestId, LiveChannel.LiveFrame frame, Runnable onSent) {
+            ByteBuffer header = Protocol.liveHeader(requestId, frame.sequence, frame.quality, 0,
+                    frame.frame.checksum, frame.capturedAtMicros, frame.frame.length);
+            framesServed.increment();
+            bytesServed.add(header.remaining() + frame.frame.length);
+            connection.write(onSent, header, ByteBuffer.wrap(frame.frame.data, 0, frame.frame.length));
+        }
 
-            // Store in cache
-            Map<Integer, byte[]> videoCache = relayCache.get(videoName);
-            videoCache.put(frameIndex, frameData);
+        private void handleVideoRequest(Protocol.Request request) {
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection != null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Invalid request for video " + request.videoId);
+                connection.write(rejection);
+                return;
+            }
+
+            String videoName = video.name;
+            for (int i = 0; i < request.count; i++) {
+                int frameIndex = request.frameIndex + i;
+                if (frameIndex < 0 || frameIndex >= video.frameCount) {
+                    connection.write(Protocol.notFound(request.requestId, frameIndex));
+                    continue;
+                }
+
+                FrameKey key = new FrameKey(videoName, request.quality, frameIndex);
+                FrameData cachedFrame = cachedFrame(key);
+                if (cachedFrame != null) {
+                    stats.recordHit(videoName);
+                    sendFrame(request, frameIndex, cachedFrame, true);
+                    continue;
+                }
+
+                stats.recordMiss(videoName);
+                // copy() so the timeout only applies to this waiter, not the shared in-flight fetch;
+                // on a timeout the frame the fetch brings later is released (abandon)
+                CompletableFuture<FrameData> fetch = fetcher.fetch(key);
+                fetch.copy()
+                        .orTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete((fetched, error) -> {
+                            if (error != null) {
+                                abandon(fetch);
+                                connection.write(fetchFailure(request.requestId, videoName, frameIndex, error));
+                                return;
+                            }
+                            sendFrame(request, frameIndex, fetched, false);
+                        });
+            }
+            readAhead.onRequest(videoName, request.quality, request.frameIndex, request.count, false, video.frameCount);
+        }
 
-            System.out.println("DEBUG (Relay): Stored frame " + frameIndex + " into cache for " + videoName);
-            System.out.println("DEBUG (Relay): Cache size for " + videoName + " = " + videoCache.size());
+        // Same as ClientHandler.handleNack, answered when the fetch completes.
+        private void handleNack(Protocol.Request request) {
+            pacer.onLoss(); // The client got a corrupt frame: back off this client's stream
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection == null && (request.frameIndex < 0 || request.frameIndex >= video.frameCount)) {
+                rejection = Protocol.notFound(request.requestId, request.frameIndex);
+            }
+            if (rejection != null) {
+                connection.write(rejection);
+                return;
+            }
 
-            sendFrame(frameData, checksum, frameIndex, false);
+            FrameKey key = new FrameKey(video.name, request.quality, request.frameIndex);
+            CompletableFuture<FrameData> refetch = fetcher.refetch(key, () -> evictCorrupt(video, key));
+            refetch.copy()
+                    .orTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenComplete((fetched, error) -> {
+                        if (error != null) {
+                            abandon(refetch);
+                            connection.write(fetchFailure(request.requestId, video.name, request.frameIndex, error));
+                            return;
+                        }
+                        sendFrame(request, request.frameIndex, fetched, false);
+                    });
         }
 
-        private void sendFrame(byte[] frame, int checksum, int frameIndex, boolean fromCache) throws IOException {
-            if (fromCache) {
-                System.out.println("DEBUG (Relay): Sending frame " + frameIndex + " from cache ✅");
+        private void handleSegmentRequest(Protocol.Request request) {
+            UpstreamPool.VideoInfo video = upstream.video(request.videoId);
+            ByteBuffer rejection = rejection(request, video);
+            if (rejection == null) rejection = missingSegment(request, video);
+            if (rejection != null) {
+                if (Log.DEBUG) System.out.println("DEBUG (Relay): Invalid segment request: " + request.segmentIndex);
+                connection.write(rejection);
+                return;
+            }
+
+            String videoName = video.name;
+            FrameKey key = FrameKey.segment(videoName, request.quality, request.segmentIndex);
+            FrameData cachedSegment = cachedFrame(key);
+            if (cachedSegment != null) {
+                stats.recordHit(videoName);
+                sendSegment(request, cachedSegment, true);
             } else {
-                System.out.println("DEBUG (Relay): Forwarding frame " + frameIndex + " from server 🔄");
+                stats.recordMiss(videoName);
+                CompletableFuture<FrameData> fetch = fetcher.fetch(key);
+                fetch.copy()
+                        .orTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete((fetched, error) -> {
+                            if (error != null) {
+                                abandon(fetch);
+                                connection.write(fetchFailure(request.requestId, videoName, firstFrame(request, video), error));
+                                return;
+                            }
+                            sendSegment(request, fetched, false);
+                        });
             }
-            outToClient.writeInt(frame.length);
-            outToClient.write(frame);
-            outToClient.writeInt(checksum);
-            outToClient.writeBoolean(fromCache); // Send cache status to client
-            outToClient.flush();
+            readAhead.onRequest(videoName, request.quality, request.segmentIndex, 1, true, video.segmentCount());
+        }
+
+        // Queues the segment; the caller's reference is released once it has been written.
+        private void sendSegment(Protocol.Request request, FrameData segment, boolean fromCache) {
+            if (cancelled(request, segment)) return;
+            ByteBuffer header = Protocol.segmentHeader(request.requestId, request.segmentIndex, request.quality,
+                    fromCache ? Protocol.FLAG_FROM_CACHE : 0, segment.length);
+            framesServed.increment();
+            bytesServed.add(header.remaining() + segment.length);
+            connection.write(request.requestId, segment::release, header, ByteBuffer.wrap(segment.data, 0, segment.length));
+        }
+
+        // Same wire format as ClientHandler.sendFrame; the payload is not copied, and the
+        // caller's reference is released once it has been written.
+        private void sendFrame(Protocol.Request request, int frameIndex, FrameData frame, boolean fromCache) {
+            if (cancelled(request, frame)) return;
+            ByteBuffer header = Protocol.frameHeader(request.requestId, frameIndex, request.quality,
+                    fromCache ? Protocol.FLAG_FROM_CACHE : 0, frame.checksum, frame.length);
+            framesServed.increment();
+            bytesServed.add(header.remaining() + frame.length);
+            connection.write(request.requestId, frame::release, header, ByteBuffer.wrap(frame.data, 0, frame.length));
         }
 
-        private int calculateChecksum(byte[] data) {
-            int checksum = 0;
-            for (byte b : data)
-                checksum += (b & 0xFF);
-            return checksum;
+        // Releases the frame instead of sending it if the client has cancelled its request
+        // (a fetch that completed after the client seeked away).
+        private boolean cancelled(Protocol.Request request, FrameData frame) {
+            if (request.requestId >= firstWanted) return false;
+            frame.release();
+            cancelledResponses.increment();
+            return true;
         }
     }
 }
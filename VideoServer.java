@@ -1,12 +1,31 @@
+package streaming;
+
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 class VideoServer {
     private static final int SERVER_PORT = 5000;
+    private static final int MAX_RELAY_CONNECTIONS = 1024;
+    private static final int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    // Videos extracted at once; each ffmpeg run is itself multi-threaded
+    private static final int INGEST_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    // Frames per GET_SEGMENT segment: one second of video at 30 fps
+    static final int SEGMENT_FRAMES = 30;
     public static final String VIDEO_DIR = "Videos/";         
     public static final String FRAME_DIR = "Video Frames/";//path to store frame//
-    public static final Map<String, File[]> videoFrames = new HashMap<>();
+    // Videos are interned: OPEN maps a name to its ID once, later requests carry only the ID.
+    // Both grow while the server runs, as VideoIngest finishes videos (see register).
+    public static final Map<String, Integer> videoIds = new ConcurrentHashMap<>();
+    // Indexed by video ID, then by quality tier (Rendition ordinal); null for on-demand videos
+    public static final List<FrameContainer[]> videosById = new CopyOnWriteArrayList<>();
+    // Videos served by extracting windows as they are asked for, by video ID (lazy mode only)
+    public static final Map<Integer, OnDemandVideo> onDemandById = new ConcurrentHashMap<>();
+    // Live channels by name, each fed by its own LiveIngest; fixed once the server starts
+    public static final Map<String, LiveChannel> liveChannels = new ConcurrentHashMap<>();
     private static String getWifiIPAddress() {
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
@@ -27,153 +46,316 @@ class VideoServer {
         }
         return "localhost";
     }
+    private static final Metrics.Counter requests = Metrics.counter("server_requests_total");
+    private static final Metrics.Counter framesServed = Metrics.counter("server_frames_served_total");
+    private static final Metrics.Counter bytesServed = Metrics.counter("server_bytes_served_total");
+    // Time to answer one request: written out in blocking mode, queued on the connection in nio
+    private static final Metrics.Histogram requestLatency = Metrics.histogram("server_request_seconds");
+
+    // java streaming.VideoServer [thread|virtual|nio] [eager|lazy] [--live=name=source,...]: eager (the
+    // default) extracts every video in the background before serving it; lazy serves videos
+    // that are not ingested yet at once, extracting each window as it is first asked for
+    // (OnDemandVideo). --live adds live channels, each read continuously from its source (an
+    // ffmpeg input or a directory of images, see LiveIngest) and pushed to subscribers.
     public static void main(String[] args) throws IOException, InterruptedException {
-        processVideos();
+        String live = null;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--live=")) live = arg.substring("--live=".length());
+            else positional.add(arg);
+        }
+        args = positional.toArray(new String[0]);
+        ExecutionModel model = ExecutionModel.fromArgs(args);
+        boolean lazy = args.length > 1 && args[1].equalsIgnoreCase("lazy");
+        // Already-ingested videos are registered before the port opens; the rest follow in the background
+        new VideoIngest(new File(VIDEO_DIR), INGEST_WORKERS, VideoServer::register,
+                lazy ? VideoServer::registerOnDemand : null).start();
+        if (live != null) {
+            for (String channel : live.split(",")) {
+                int eq = channel.indexOf('=');
+                if (eq <= 0) {
+                    System.out.println("ERROR: Expected --live=name=source, got " + channel);
+                    continue;
+                }
+                LiveChannel liveChannel = new LiveChannel(channel.substring(0, eq), "server", null);
+                liveChannels.put(liveChannel.name, liveChannel);
+                new LiveIngest(liveChannel, channel.substring(eq + 1)).start();
+            }
+        }
+        Metrics.gauge("server_videos", videoIds::size);
+        Metrics.gauge("server_live_subscribers", () -> {
+            long subscribers = 0;
+            for (LiveChannel channel : liveChannels.values()) subscribers += channel.subscribers();
+            return subscribers;
+        });
+        Metrics.export("server");
         
         System.out.println("Server is running in IP: "+getWifiIPAddress()+"at port no"+SERVER_PORT);
-        ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
-        System.out.println("DEBUG (Server): Waiting for relay connections...");
+        // Channels rather than plain sockets so frames can go file -> socket with transferTo
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(SERVER_PORT));
+        System.out.println("INFO (Server): Waiting for relay connections (" + model + " mode)...");
+
+        EventLoop eventLoop = model == ExecutionModel.NIO ? new EventLoop("server", EVENT_LOOPS, 0, RelaySession::new) : null;
+        ExecutorService executor = model == ExecutionModel.NIO ? null : model.connectionExecutor();
+        Semaphore connectionSlots = new Semaphore(MAX_RELAY_CONNECTIONS);
 
         while (true) {
-            Socket relaySocket = serverSocket.accept();
-            System.out.println("DEBUG (Server): Relay connected!");
-            new Thread(new RelayHandler(relaySocket)).start();
+            // At the limit, stop accepting and let new connections wait in the listen backlog
+            connectionSlots.acquire();
+            SocketChannel relaySocket = serverSocket.accept();
+            // Header and payload leave in separate writes; don't let Nagle hold the payload back
+            relaySocket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Relay connected!");
+
+            if (eventLoop != null) {
+                eventLoop.register(relaySocket, connectionSlots::release);
+            } else {
+                executor.execute(() -> {
+                    try {
+                        new RelayHandler(relaySocket).run();
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
+            }
         }
     }
 
-    private static void processVideos() {
-        File videoFolder = new File(VIDEO_DIR);
-        if (!videoFolder.exists()) {
-            System.out.println("ERROR: Videos folder not found!");
-            return;
+    // Answers one relay request; shared by RelayHandler and RelaySession. Returns false once
+    // the relay has asked to disconnect.
+    static boolean serve(Protocol.Request request, ResponseSink sink) throws IOException {
+        long start = System.nanoTime();
+        requests.increment();
+        try {
+            return answer(request, sink);
+        } finally {
+            requestLatency.recordSince(start);
         }
+    }
 
-        File[] videoFiles = videoFolder.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4") || name.toLowerCase().endsWith(".avi"));
-        if (videoFiles == null || videoFiles.length == 0) {
-            System.out.println("ERROR: No video files found in " + VIDEO_DIR);
-            return;
+    private static boolean answer(Protocol.Request request, ResponseSink sink) throws IOException {
+        if (request.malformed != null) {
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Invalid request: " + request.malformed);
+            sink.send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, request.malformed));
+            return true;
         }
+        switch (request.opcode) {
+            case Protocol.OPEN:
+                Integer videoId = videoIds.get(request.videoName);
+                if (videoId == null) {
+                    System.out.println("ERROR: Requested video not found!");
+                    sink.send(Protocol.error(request.requestId, -1, Protocol.UNKNOWN_VIDEO, "no video named " + request.videoName));
+                    return true;
+                }
+                // Containers hold every algorithm's checksums, so any offer can be served
+                Integrity integrity = Integrity.negotiate(request.checksums);
+                if (integrity == null) {
+                    sink.send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "no supported checksum algorithm offered"));
+                    return true;
+                }
+                OnDemandVideo onDemand = onDemandById.get(videoId);
+                if (onDemand != null) {
+                    onDemand.serveOpen(request, videoId, integrity, sink);
+                    return true;
+                }
+                FrameContainer[] ladder = videosById.get(videoId);
+                int[] frameBytes = new int[ladder.length];
+                for (int i = 0; i < ladder.length; i++) frameBytes[i] = ladder[i].averageLength();
+                sink.send(Protocol.video(request.requestId, videoId, frameCount(ladder), SEGMENT_FRAMES, frameBytes, integrity));
+                return true;
+            case Protocol.GET:
+            case Protocol.NACK: // The relay asks for a fresh copy of one frame
+                if (onDemandById.containsKey(request.videoId)) onDemandById.get(request.videoId).serveFrames(request, sink);
+                else serveFrames(request, sink);
+                return true;
+            case Protocol.GET_SEGMENT:
+                if (onDemandById.containsKey(request.videoId)) onDemandById.get(request.videoId).serveSegment(request, sink);
+                else serveSegment(request, sink);
+                return true;
+            case Protocol.SUBSCRIBE:
+                LiveChannel channel = liveChannels.get(request.videoName);
+                if (channel == null) {
+                    sink.send(Protocol.error(request.requestId, -1, Protocol.UNKNOWN_VIDEO, "no live channel named " + request.videoName));
+                } else if ((request.checksums & LiveChannel.INTEGRITY.bit) == 0) {
+                    sink.send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "live channels need " + LiveChannel.INTEGRITY));
+                } else {
+                    if (Log.DEBUG) System.out.println("DEBUG (Server): Subscribing to " + channel);
+                    sink.subscriptions().add(channel.subscribe(request.requestId, sink, request.count));
+                }
+                return true;
+            case Protocol.LIVE_ACK:
+                sink.subscriptions().ack(request.requestId, request.frameIndex);
+                return true;
+            case Protocol.UNSUBSCRIBE:
+                sink.subscriptions().remove(request.requestId);
+                return true;
+            case Protocol.DISCONNECT:
+                return false;
+            default:
+                return true; // PING needs no answer; CANCEL has nothing to drop, as GETs are answered in order
+        }
+    }
 
-        for (File video : videoFiles) {
-            String videoName = video.getName().replaceAll("\\..+$", "");
-            String framePath = FRAME_DIR + videoName;
-            File frameDir = new File(framePath);
-
-            if (!frameDir.exists()) {
-                frameDir.mkdirs();
-                System.out.println("DEBUG (Server): Extracting frames for " + video.getName());
-                extractFrames(video.getAbsolutePath(), framePath);
-            } else {
-                System.out.println("DEBUG (Server): Frames for " + video.getName() + " already exist. Skipping extraction.");
-            }
+    private static void serveFrames(Protocol.Request request, ResponseSink sink) throws IOException {
+        FrameContainer[] ladder = ladder(request, sink);
+        if (ladder == null) return;
 
-            File[] frames = frameDir.listFiles((dir, name) -> name.endsWith(".jpg"));
-            if (frames != null) {
-                Arrays.sort(frames, Comparator.comparing(File::getName));
-                videoFrames.put(videoName, frames);
-                System.out.println("DEBUG (Server): Processed " + frames.length + " frames for " + videoName);
+        FrameContainer frames = ladder[request.quality];
+        int frameCount = frameCount(ladder);
+        for (int i = 0; i < request.count; i++) {
+            int frameIndex = request.frameIndex + i;
+            if (frameIndex < 0 || frameIndex >= frameCount) {
+                if (Log.DEBUG) System.out.println("DEBUG (Server): Invalid frame request: " + frameIndex);
+                sink.send(Protocol.notFound(request.requestId, frameIndex));
+                continue;
             }
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Sending video " + request.videoId + " frame " + frameIndex + " (" + Rendition.values()[request.quality].label + ")");
+            sink.sendFrame(request.requestId, frameIndex, request.quality, frames.checksum(frameIndex, request.integrity),
+                    frames.channel(), frames.offset(frameIndex), frames.length(frameIndex));
+            framesServed.increment();
+            bytesServed.add(Protocol.FRAME_HEADER_BYTES + frames.length(frameIndex));
         }
     }
 
-    private static void extractFrames(String videoPath, String outputDir) {
-        try {
-            List<String> command = Arrays.asList("ffmpeg", "-i", videoPath, "-vf", "fps=30", "-q:v", "2", outputDir + "/frame_%04d.jpg");
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("FFmpeg: " + line);
-            }
-            int exitCode = process.waitFor();
-            if (exitCode == 0) {
-                System.out.println("Frame extraction completed for " + videoPath);
-            } else {
-                System.out.println("ERROR: Frame extraction failed for " + videoPath);
+    // One SEGMENT: header and frame table in one write, then the payloads straight from the
+    // container. Frames are packed back to back, so a segment is usually a single transfer.
+    private static void serveSegment(Protocol.Request request, ResponseSink sink) throws IOException {
+        FrameContainer[] ladder = ladder(request, sink);
+        if (ladder == null) return;
+
+        FrameContainer frames = ladder[request.quality];
+        int frameCount = frameCount(ladder);
+        long first = (long) request.segmentIndex * SEGMENT_FRAMES;
+        if (first >= frameCount) {
+            if (Log.DEBUG) System.out.println("DEBUG (Server): Invalid segment request: " + request.segmentIndex);
+            sink.send(Protocol.notFound(request.requestId, (int) Math.min(Integer.MAX_VALUE, first)));
+            return;
+        }
+
+        int firstFrame = (int) first;
+        int count = Math.min(SEGMENT_FRAMES, frameCount - firstFrame);
+        int[] lengths = new int[count];
+        int[] checksums = new int[count];
+        int payloadBytes = 0;
+        for (int i = 0; i < count; i++) {
+            lengths[i] = frames.length(firstFrame + i);
+            checksums[i] = frames.checksum(firstFrame + i, request.integrity);
+            payloadBytes += lengths[i];
+        }
+        ByteBuffer table = Protocol.segmentTable(firstFrame, lengths, checksums);
+        if (Log.DEBUG) System.out.println("DEBUG (Server): Sending video " + request.videoId + " segment " + request.segmentIndex + " (" + Rendition.values()[request.quality].label + ")");
+        framesServed.add(count);
+        bytesServed.add(Protocol.SEGMENT_HEADER_BYTES + table.remaining() + payloadBytes);
+        sink.send(Protocol.segmentHeader(request.requestId, request.segmentIndex, request.quality, 0, table.remaining() + payloadBytes), table);
+
+        // Coalesce runs of adjacent payloads into one transfer each
+        long runStart = frames.offset(firstFrame);
+        long runLength = 0;
+        for (int i = 0; i < count; i++) {
+            long offset = frames.offset(firstFrame + i);
+            if (offset != runStart + runLength) {
+                sink.transfer(frames.channel(), runStart, runLength);
+                runStart = offset;
+                runLength = 0;
             }
-        } catch (Exception e) {
-            System.out.println("ERROR: Frame extraction failed for " + videoPath);
-            e.printStackTrace();
+            runLength += lengths[i];
         }
+        sink.transfer(frames.channel(), runStart, runLength);
     }
-}
 
-class RelayHandler implements Runnable {
-    private Socket relaySocket;
-    private DataOutputStream outToRelay;
-    private BufferedReader inFromRelay;
-    private String currentVideo = null;
-    private File[] currentFrames = null;
+    // The requested video's ladder, or null after answering with an ERROR if the video or
+    // quality tier does not exist.
+    private static FrameContainer[] ladder(Protocol.Request request, ResponseSink sink) throws IOException {
+        if (request.videoId < 0 || request.videoId >= videosById.size()) {
+            System.out.println("ERROR: Requested video not found!");
+            sink.send(Protocol.error(request.requestId, -1, Protocol.UNKNOWN_VIDEO, "no video with ID " + request.videoId));
+            return null;
+        }
+        FrameContainer[] ladder = videosById.get(request.videoId);
+        if (request.quality >= ladder.length) {
+            sink.send(Protocol.error(request.requestId, -1, Protocol.BAD_REQUEST, "no quality tier " + request.quality));
+            return null;
+        }
+        return ladder;
+    }
 
-    public RelayHandler(Socket relaySocket) {
-        this.relaySocket = relaySocket;
+    // Makes a video servable. The ladder is published before the name, so any ID a relay
+    // has been given is already valid.
+    static synchronized void register(String videoName, FrameContainer[] ladder) {
+        videosById.add(ladder);
+        videoIds.put(videoName, videosById.size() - 1);
     }
 
-    public void run() {
-        try {
-            outToRelay = new DataOutputStream(relaySocket.getOutputStream());
-            inFromRelay = new BufferedReader(new InputStreamReader(relaySocket.getInputStream()));
+    static synchronized void registerOnDemand(String videoName, File file) {
+        videosById.add(null);
+        onDemandById.put(videosById.size() - 1, new OnDemandVideo(file, videoName));
+        videoIds.put(videoName, videosById.size() - 1);
+        System.out.println("INFO (Server): Serving " + videoName + " on demand");
+    }
 
-            while (true) {
-                String request = inFromRelay.readLine();
-                if (request == null) break;
+    // Renditions can differ by a frame at the end; only offer frames every rung has.
+    static int frameCount(FrameContainer[] ladder) {
+        int frameCount = Integer.MAX_VALUE;
+        for (FrameContainer frames : ladder) frameCount = Math.min(frameCount, frames.frameCount());
+        return frameCount;
+    }
+}
 
-                System.out.println("DEBUG (Server): Received request = " + request);
+// Non-blocking counterpart of RelayHandler for ExecutionModel.NIO: same requests and
+// responses, but driven by an EventLoop worker and never blocking it.
+class RelaySession implements EventLoop.Session, ResponseSink {
+    private final EventLoop.Connection connection;
+    private final Protocol.RequestReader reader = new Protocol.RequestReader();
+    private final LiveChannel.Subscriptions subscriptions = new LiveChannel.Subscriptions();
 
-                String[] parts = request.split(" ");
-                if (parts.length != 2) {
-                    System.out.println("ERROR: Invalid request format!");
-                    continue;
-                }
+    RelaySession(EventLoop.Connection connection) {
+        this.connection = connection;
+    }
 
-                String videoName = parts[0];
-                int frameIndex = Integer.parseInt(parts[1]);
+    public void onRead(ByteBuffer in) throws IOException {
+        reader.read(in, this::handleRequest);
+    }
 
-                if (!VideoServer.videoFrames.containsKey(videoName)) {
-                    System.out.println("ERROR: Requested video not found!");
-                    continue;
-                }
+    public void onClose() {
+        subscriptions.closeAll();
+        if (Log.DEBUG) System.out.println("DEBUG (Server): Relay connection closed.");
+    }
 
-                currentFrames = VideoServer.videoFrames.get(videoName);
-                sendFrame(frameIndex, videoName);
-            }
+    private void handleRequest(Protocol.Request request) {
+        try {
+            if (!VideoServer.serve(request, this)) connection.close();
         } catch (IOException e) {
-            System.out.println("DEBUG (Server): Relay connection closed or error occurred.");
+            // Connection writes only queue, so this is not expected
+            connection.close();
         }
     }
 
-    private void sendFrame(int frameIndex, String videoName) throws IOException {
-        if (frameIndex < 0 || frameIndex >= currentFrames.length) {
-            System.out.println("DEBUG (Server): Invalid frame request: " + frameIndex);
-            return;
-        }
+    public void send(ByteBuffer... message) {
+        connection.write(message);
+    }
 
-        File frameFile = currentFrames[frameIndex];
-        byte[] frameData = readFileToByteArray(frameFile);
-        int checksum = calculateChecksum(frameData);
+    public void sendFrame(int requestId, int frameIndex, int quality, int checksum, FileChannel file, long position, int length) {
+        connection.write(Protocol.frameHeader(requestId, frameIndex, quality, 0, checksum, length));
+        connection.transfer(file, position, length);
+    }
 
-        System.out.println("DEBUG (Server): Sending " + videoName + " frame " + frameIndex);
+    public void transfer(FileChannel file, long position, long count) {
+        connection.transfer(file, position, count);
+    }
 
-        outToRelay.writeInt(frameData.length);
-        outToRelay.write(frameData);
-        outToRelay.writeInt(checksum);
-        outToRelay.flush();
+    // Written from the worker, so it cannot split a response the session is queueing in parts
+    public void sendLater(CompletableFuture<ByteBuffer[]> message) {
+        message.thenAccept(buffers -> connection.execute(() -> connection.write(buffers)));
     }
 
-    private byte[] readFileToByteArray(File file) throws IOException {
-        FileInputStream fis = new FileInputStream(file);
-        byte[] data = new byte[(int) file.length()];
-        fis.read(data);
-        fis.close();
-        return data;
+    // Queued from the worker, as in sendLater; onSent runs there once the frame is written
+    public void sendLive(int requestId, LiveChannel.LiveFrame frame, Runnable onSent) {
+        ByteBuffer header = Protocol.liveHeader(requestId, frame.sequence, frame.quality, 0, frame.frame.checksum, frame.capturedAtMicros, frame.frame.length);
+        connection.execute(() -> connection.write(onSent, header, ByteBuffer.wrap(frame.frame.data, 0, frame.frame.length)));
     }
 
-    private int calculateChecksum(byte[] data) {
-        int checksum = 0;
-        for (byte b : data) checksum += (b & 0xFF);
-        return checksum;
+    public LiveChannel.Subscriptions subscriptions() {
+        return subscriptions;
     }
 }
@@ -0,0 +1,668 @@
+package streaming;
+
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+// The network side of VideoClient playback on one relay connection: opens videos and plays
+// ranges of their frames, keeping requests outstanding under the client's AIMD window,
+// choosing each segment's quality with an AbrController, verifying every frame (NACKing the
+// corrupt ones) and handing frames to a FramePipeline for decoding and presentation. The
+// Swing client drives one session and shows what its Listener is given; LoadGenerator
+// drives thousands of them headless, with decoding off and an emulated Link in between.
+//
+// Sessions that share a process share its client_* metrics, so a load test reads the
+// aggregate frame latency, time to first frame, seek latency and glass-to-glass latency off
+// the same histograms one client has.
+class ViewerSession implements Closeable {
+    static final int FPS = 30;
+    private static final long FRAME_NANOS = 1_000_000_000L / FPS;
+    private static final int STARTUP_FRAMES = FPS / 2;   // Buffered before playback starts
+    private static final int MAX_BUFFER_FRAMES = 3 * FPS; // Never request further ahead of playback
+    private static final int BATCH_FRAMES = FPS / 2;     // Frames per GET in frame mode; ABR decides per batch
+    private static final int MAX_RETRANSMITS = 3;        // NACKs per frame before playback skips it
+    private static final int MAX_CWND = 50;
+    private static final int SENT_TIMES = 256;           // Requests remembered for frame latency
+    // Live channels: buffered before playback starts, also asked for from the relay's ring so
+    // they are there at once; how far playback may fall behind the newest frame before it
+    // jumps to it; and how often to tell the relay the viewer is still there
+    private static final int LIVE_STARTUP_FRAMES = 3;
+    private static final int LIVE_MAX_BEHIND_FRAMES = FPS;
+    private static final long LIVE_PING_NANOS = 5_000_000_000L;
+    private static final int CAPTURE_TIMES = 256;        // Live frames remembered for glass-to-glass latency
+
+    private static final Metrics.Counter bytesReceived = Metrics.counter("client_bytes_received_total");
+    private static final Metrics.Counter framesReceived = Metrics.counter("client_frames_received_total");
+    private static final Metrics.Counter framesFromCache = Metrics.counter("client_frames_from_cache_total");
+    private static final Metrics.Counter retransmitted = Metrics.counter("client_retransmits_total");
+    // Time each segment or frame took to arrive: since the previous arrival, or since the
+    // request if the link was idle (the interval ABR measures throughput over)
+    private static final Metrics.Histogram downloadLatency = Metrics.histogram("client_download_seconds");
+    // From sending a request to each frame (or segment) of it arriving
+    private static final Metrics.Histogram frameLatency = Metrics.histogram("client_frame_latency_seconds");
+    // From starting playback to showing its first frame
+    private static final Metrics.Histogram firstFrameLatency = Metrics.histogram("client_first_frame_seconds");
+    // From asking for a new position to showing its first frame
+    private static final Metrics.Histogram seekLatency = Metrics.histogram("client_seek_seconds");
+    // Live: from the origin reading a frame from its source to showing it, by the two wall clocks
+    private static final Metrics.Histogram glassToGlass = Metrics.histogram("client_glass_to_glass_seconds");
+    private static final Metrics.Counter liveCatchUps = Metrics.counter("client_live_catchups_total");
+
+    // What the session reports besides frames: the Swing client shows these, LoadGenerator
+    // ignores them.
+    interface Listener extends FramePipeline.Presenter {
+        // A short status line (the client's log label)
+        default void onStatus(String status) {}
+
+        // A message worth printing (quality switches, frames given up on)
+        default void onMessage(String message) {}
+
+        // A thumbnail asked for with thumbnail(), undecoded, on the network thread; the
+        // listener releases it
+        default void onThumbnail(int frameIndex, Protocol.Response frame) {
+            frame.release();
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final BufferPool bufferPool;
+    private final boolean segmentMode;
+    private final boolean decode;
+    private final Link link;
+
+    // AIMD window, in frames
+    private int cwnd = 1;
+    private int ssthresh = 10;
+    // Taken by the network thread and, for thumbnails, by whichever thread scrubs
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    // Checksum algorithm the relay picked for the open video; every frame is verified as it arrives
+    private volatile Integrity integrity = Integrity.CRC32C;
+    private volatile FramePipeline pipeline;
+    private volatile int playingVideoId = -1;
+    // Position asked for by seek() and not yet acted on, or -1; and when it was asked for
+    private final AtomicInteger seekTarget = new AtomicInteger(-1);
+    private volatile long seekRequestedAt;
+    private volatile boolean stopped = false;
+    // Thumbnail requests not yet answered; guarded by itself, as a seek cancels older ones
+    private final Set<Integer> thumbnailRequests = new HashSet<>();
+    private final Map<Integer, Long> sentAt = new LinkedHashMap<Integer, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > SENT_TIMES;
+        }
+    };
+
+    // segmentMode fetches whole segments (GET_SEGMENT) rather than batches of frames; decode
+    // off passes frames to the listener undecoded (see FramePipeline.NOT_DECODED).
+    ViewerSession(String host, int port, BufferPool bufferPool, boolean segmentMode, boolean decode, Link link) throws IOException {
+        this.socket = new Socket(host, port);
+        this.bufferPool = bufferPool;
+        this.segmentMode = segmentMode;
+        this.decode = decode;
+        this.link = link;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(link.throttle(socket.getInputStream())));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // Interns a video with the relay; the VIDEO response (ID, frame count, qualities), or the
+    // NOT_FOUND or ERROR it was answered with.
+    Protocol.Response open(String videoName) throws IOException {
+        int openId = nextRequestId.getAndIncrement();
+        Protocol.write(out, Protocol.open(openId, videoName, Integrity.SUPPORTED));
+        Protocol.Response opened;
+        do {
+            opened = Protocol.readResponse(in); // Skips late answers to an earlier video
+        } while (opened.requestId != openId);
+        if (opened.opcode == Protocol.VIDEO) integrity = opened.integrity;
+        return opened;
+    }
+
+    // Plays frames [firstFrame, endFrame) of an opened video at FPS and returns once the last
+    // one has been shown (or skipped), the relay rejected a request, or the session was
+    // stopped or closed. In segment mode playback starts at the segment holding firstFrame.
+    //
+    // Three stages: this thread is the network stage, keeping up to cwnd frames' worth of
+    // requests outstanding on the relay connection; received frames go to a FramePipeline,
+    // whose decoder pool decodes them in parallel and whose presentation thread shows them in
+    // frame order at FPS. Each segment's quality tier is chosen by the ABR controller from
+    // measured throughput and how many seconds of frames are in the pipeline. In segment mode
+    // a request is a whole server segment, unpacked into frames on arrival; single frames that
+    // do not decode are re-fetched with a GET, and single frames that fail their checksum are
+    // NACKed, which the relay answers with a fresh copy like a one-frame GET.
+    //
+    // A seek() restarts playback at the new position with a fresh pipeline: everything asked
+    // for the old position is CANCELled, so the relay drops what it still has queued, and
+    // whatever was already on its way is discarded here as stale.
+    Playback play(Protocol.Response opened, int firstFrame, int endFrame, Listener listener,
+                  BooleanSupplier paused) throws IOException, InterruptedException {
+        int videoId = opened.videoId;
+        int segmentFrames = segmentMode ? opened.segmentFrames : 0;
+        endFrame = Math.min(endFrame, opened.frameCount);
+        if (segmentFrames > 0) firstFrame -= firstFrame % segmentFrames;
+        int firstRequestId = nextRequestId.get();
+        seekTarget.set(-1);
+        synchronized (thumbnailRequests) {
+            thumbnailRequests.clear(); // Asked for as the last play() ended; their answers are stale now
+        }
+        playingVideoId = videoId;
+
+        Set<Integer> segmentRequests = new HashSet<>();
+        Map<Integer, Integer> retransmits = new HashMap<>();
+        AbrController abr = new AbrController(opened.frameBytes, FPS, (double) MAX_BUFFER_FRAMES / FPS);
+        ConcurrentLinkedQueue<Integer> undecodable = new ConcurrentLinkedQueue<>();
+        long started = System.nanoTime();
+        AtomicLong firstShown = new AtomicLong(); // Set on the presentation thread
+        FramePipeline pipeline = startPipeline(firstFrame, endFrame, STARTUP_FRAMES, firstFrameLatency, started, firstShown, listener, undecodable, paused);
+        int from = firstFrame; // Where the current pipeline started
+        int played = 0;
+        int stalls = 0;
+        int nextRequest = firstFrame;
+        int outstanding = 0;
+        long lastArrival = 0;
+        long lastStats = System.nanoTime();
+
+        try {
+            while (!stopped && !pipeline.finished() && !socket.isClosed()) {
+                int target = seekTarget.getAndSet(-1);
+                if (target >= 0) {
+                    synchronized (thumbnailRequests) {
+                        int firstWanted = nextRequestId.get();
+                        Protocol.write(out, Protocol.cancel(firstWanted));
+                        thumbnailRequests.removeIf(id -> id < firstWanted); // Cancelled too
+                        firstRequestId = firstWanted;
+                    }
+                    played += pipeline.nextPlay() - from;
+                    stalls += pipeline.stalls();
+                    pipeline.close();
+                    from = Math.max(0, Math.min(target, endFrame - 1));
+                    if (segmentFrames > 0) from -= from % segmentFrames;
+                    if (Log.DEBUG) System.out.println("Client: Seeking to frame " + from);
+                    listener.onStatus("Seeking to frame " + from);
+                    segmentRequests.clear();
+                    retransmits.clear();
+                    undecodable.clear();
+                    nextRequest = from;
+                    outstanding = 0;
+                    pipeline = startPipeline(from, endFrame, STARTUP_FRAMES, seekLatency, seekRequestedAt, new AtomicLong(), listener, undecodable, paused);
+                    continue;
+                }
+
+                // Frames the decoders rejected are fetched again before anything new
+                Integer retry;
+                while ((retry = undecodable.poll()) != null) {
+                    requestFrames(videoId, retry, 1, abr.quality());
+                    outstanding++;
+                }
+
+                // Fill the window with one request for the next segment: a whole server segment
+                // (always allowed when nothing is in flight), or a batch of frames
+                int nextPlay = pipeline.nextPlay();
+                int batch;
+                if (segmentFrames > 0) {
+                    batch = Math.min(segmentFrames, endFrame - nextRequest);
+                    if (outstanding > 0 && outstanding + batch > cwnd || nextRequest + batch > nextPlay + MAX_BUFFER_FRAMES) batch = 0;
+                } else {
+                    batch = Math.min(Math.min(cwnd - outstanding, endFrame - nextRequest),
+                            Math.min(nextPlay + MAX_BUFFER_FRAMES - nextRequest, BATCH_FRAMES));
+                }
+                if (batch > 0) {
+                    int previousQuality = abr.quality();
+                    int quality = abr.chooseQuality((double) pipeline.buffered() / FPS);
+                    if (quality != previousQuality) {
+                        listener.onMessage("Switching to quality " + quality + " (" + (int) (abr.bitrate(quality) / 1000)
+                                + " kbps, measured " + (int) (abr.throughput() / 1000) + " kbps)");
+                    }
+                    if (Log.DEBUG) System.out.println("Client: Requesting frames " + nextRequest + "-" + (nextRequest + batch - 1) + " at quality " + quality);
+                    if (outstanding == 0) lastArrival = System.nanoTime(); // Link was idle; time from now
+                    if (segmentFrames > 0) segmentRequests.add(requestSegment(videoId, nextRequest / segmentFrames, quality));
+                    else requestFrames(videoId, nextRequest, batch, quality);
+                    nextRequest += batch;
+                    outstanding += batch;
+                    if (nextRequest >= endFrame) pipeline.endOfStream();
+                }
+
+                if (outstanding == 0 && !thumbnailsPending()) {
+                    // Buffer full or everything requested: wait for playback to move on (or a seek)
+                    pipeline.awaitProgress(FRAME_NANOS);
+                    continue;
+                }
+
+                // Every requested frame is answered by a FRAME, NOT_FOUND or ERROR carrying its
+                // index; every segment by a SEGMENT, or a NOT_FOUND or ERROR carrying its first frame
+                Protocol.Response response = Protocol.readResponse(in, bufferPool, integrity);
+                if (answersThumbnail(response.requestId)) {
+                    if (response.opcode == Protocol.FRAME && intact(response)) listener.onThumbnail(response.frameIndex, response);
+                    else response.release();
+                    continue;
+                }
+                if (response.requestId < firstRequestId) {
+                    response.release(); // Left over from an earlier video or position
+                    continue;
+                }
+                if (response.opcode == Protocol.ERROR && response.frameIndex < 0) {
+                    listener.onMessage("Relay rejected request: " + response.message);
+                    listener.onStatus(response.message);
+                    break;
+                }
+                if (segmentRequests.remove(response.requestId)) {
+                    int first = response.opcode == Protocol.SEGMENT ? response.segmentIndex * segmentFrames : response.frameIndex;
+                    int count = Math.min(segmentFrames, endFrame - first);
+                    if (response.opcode == Protocol.ERROR) {
+                        listener.onStatus("Segment at frame " + first + " unavailable (" + response.message + "). Retrying.");
+                        ssthresh = Math.max(cwnd / 2, 1);
+                        cwnd = 1;
+                        segmentRequests.add(requestSegment(videoId, first / segmentFrames, abr.quality()));
+                        continue;
+                    }
+                    outstanding -= count;
+                    List<Protocol.Response> frames;
+                    try {
+                        frames = response.opcode == Protocol.SEGMENT ? Protocol.unpackSegment(response) : Collections.emptyList();
+                    } finally {
+                        response.release(); // Each unpacked frame holds its own reference
+                    }
+                    if (response.opcode == Protocol.SEGMENT) {
+                        long now = System.nanoTime();
+                        abr.onDownload(response.length, frames.size(), now - lastArrival);
+                        downloadLatency.record(now - lastArrival);
+                        recordArrival(response, frames.size(), now);
+                        lastArrival = now;
+                        if (Log.DEBUG) System.out.println("Client: Received segment " + response.segmentIndex + " q" + response.quality + " ("
+                                + frames.size() + " frames) " + (response.fromCache() ? "from CACHE" : "from SERVER"));
+                    } else {
+                        if (Log.DEBUG) System.out.println("Client: Segment at frame " + first + " not found, skipping");
+                    }
+                    Set<Integer> delivered = new HashSet<>();
+                    for (Protocol.Response unpacked : frames) {
+                        if (unpacked.frameIndex >= first + count) {
+                            unpacked.release(); // Past the frames asked for
+                            continue;
+                        }
+                        delivered.add(unpacked.frameIndex);
+                        if (!intact(unpacked)) {
+                            unpacked.release();
+                            if (retransmit(videoId, unpacked.frameIndex, unpacked.quality, retransmits, listener)) outstanding++;
+                            else pipeline.skip(unpacked.frameIndex);
+                            continue;
+                        }
+                        growWindow();
+                        pipeline.submit(unpacked);
+                    }
+                    // Frames the segment did not hold (or a NOT_FOUND segment) are skipped in playback
+                    for (int i = first; i < first + count; i++) {
+                        if (!delivered.contains(i)) pipeline.skip(i);
+                    }
+                    continue;
+                }
+                int frameIndex = response.frameIndex;
+                outstanding--;
+
+                if (response.opcode == Protocol.NOT_FOUND) {
+                    if (Log.DEBUG) System.out.println("Client: Frame " + frameIndex + " not found, skipping");
+                    pipeline.skip(frameIndex);
+                } else if (response.opcode == Protocol.ERROR) {
+                    listener.onStatus("Frame " + frameIndex + " unavailable (" + response.message + "). Retrying.");
+                    ssthresh = Math.max(cwnd / 2, 1);
+                    cwnd = 1;
+                    requestFrames(videoId, frameIndex, 1, abr.quality()); // Retry the same frame
+                    outstanding++;
+                } else {
+                    long now = System.nanoTime();
+                    abr.onDownload(response.length, 1, now - lastArrival);
+                    downloadLatency.record(now - lastArrival);
+                    recordArrival(response, 1, now);
+                    lastArrival = now;
+                    boolean fromCache = response.fromCache();
+                    if (Log.DEBUG) System.out.println("Client: Received frame " + frameIndex + " q" + response.quality + " " + (fromCache ? "from CACHE" : "from SERVER"));
+
+                    // Checksummed while it was read
+                    if (!intact(response)) {
+                        response.release();
+                        if (retransmit(videoId, frameIndex, response.quality, retransmits, listener)) outstanding++;
+                        else pipeline.skip(frameIndex);
+                        continue;
+                    }
+                    growWindow();
+                    pipeline.submit(response);
+                }
+
+                if (Log.DEBUG) System.out.println("Client: cwnd = " + cwnd + ", ssthresh = " + ssthresh + ", outstanding = " + outstanding
+                        + ", buffered = " + pipeline.buffered() + ", quality = " + abr.quality());
+                if (Log.DEBUG && System.nanoTime() - lastStats >= 5_000_000_000L) {
+                    lastStats = System.nanoTime();
+                    System.out.println("Client: Pipeline " + pipeline.stats());
+                    System.out.println("Client: Buffers " + bufferPool.stats());
+                }
+            }
+        } finally {
+            pipeline.close();
+            playingVideoId = -1;
+        }
+        played += pipeline.nextPlay() - from;
+        stalls += pipeline.stalls();
+        return new Playback(played, stalls, firstShown.get() == 0 ? -1 : firstShown.get() - started);
+    }
+
+    // Watches a live channel from its newest frames until stop() or close(), or until the
+    // relay refuses the channel (the ERROR's message is reported to the listener). Nothing is
+    // requested per frame: the relay pushes every frame of the channel (see Protocol.SUBSCRIBE),
+    // this thread acknowledges each as it reads it and hands them to a FramePipeline, which shows them LIVE_STARTUP_FRAMES
+    // behind the newest. Frames the relay dropped for a slow link, and frames that arrive
+    // corrupt or do not decode, are skipped rather than fetched again, as they would be late
+    // by the time they came; if playback still falls LIVE_MAX_BEHIND_FRAMES behind the newest
+    // frame it starts again from that one. Pausing drops the pipeline, and resuming starts at
+    // the newest frame, as live playback does. Every frame shown records its glass-to-glass
+    // latency, which reads the origin's wall clock against this one's, so it is only
+    // meaningful on one machine or clocks kept in sync.
+    Playback watchLive(String channelName, Listener listener, BooleanSupplier paused) throws IOException, InterruptedException {
+        int subscribeId = nextRequestId.getAndIncrement();
+        Protocol.write(out, Protocol.subscribe(subscribeId, channelName, LiveChannel.INTEGRITY.bit, LIVE_STARTUP_FRAMES));
+        seekTarget.set(-1);
+        AtomicLongArray capturedAt = new AtomicLongArray(CAPTURE_TIMES); // Micros, by frame number
+        ConcurrentLinkedQueue<Integer> undecodable = new ConcurrentLinkedQueue<>();
+        FramePipeline.Presenter presenter = new FramePipeline.Presenter() {
+            public void present(int frameIndex, BufferedImage image, boolean fromCache) {
+                long micros = LiveChannel.nowMicros() - capturedAt.get(frameIndex % CAPTURE_TIMES);
+                if (micros >= 0) glassToGlass.record(micros * 1000);
+                listener.present(frameIndex, image, fromCache);
+            }
+
+            public void onStall(int stalls) {
+                listener.onStall(stalls);
+            }
+        };
+        long started = System.nanoTime();
+        AtomicLong firstShown = new AtomicLong();
+        FramePipeline pipeline = null;
+        int from = 0;
+        int newest = -1;
+        int played = 0;
+        int stalls = 0;
+        long lastPing = started;
+
+        try {
+            while (!stopped && !socket.isClosed()) {
+                if (System.nanoTime() - lastPing >= LIVE_PING_NANOS) {
+                    ping(); // The relay closes connections it has heard nothing on
+                    lastPing = System.nanoTime();
+                }
+                Protocol.Response response = Protocol.readResponse(in, bufferPool, LiveChannel.INTEGRITY);
+                if (response.requestId != subscribeId) {
+                    response.release(); // Left over from an earlier video
+                    continue;
+                }
+                if (response.opcode != Protocol.LIVE) {
+                    listener.onMessage("Relay rejected subscription to " + channelName + ": " + response.message);
+                    listener.onStatus(response.message);
+                    response.release();
+                    break;
+                }
+                recordArrival(response, 1, System.nanoTime());
+                int frameIndex = response.frameIndex;
+                Protocol.write(out, Protocol.liveAck(subscribeId, frameIndex));
+                capturedAt.set(frameIndex % CAPTURE_TIMES, response.capturedAtMicros);
+                if (paused.getAsBoolean()) {
+                    response.release();
+                    if (pipeline != null) {
+                        played += pipeline.nextPlay() - from;
+                        stalls += pipeline.stalls();
+                        pipeline.close();
+                        pipeline = null;
+                    }
+                    continue;
+                }
+
+                // First frame, a channel the origin restarted, or playback too far behind: play
+                // from this frame on a fresh pipeline
+                boolean behind = pipeline != null && frameIndex - pipeline.nextPlay() > LIVE_MAX_BEHIND_FRAMES;
+                if (pipeline == null || frameIndex <= newest || behind) {
+                    if (pipeline != null) {
+                        played += pipeline.nextPlay() - from;
+                        stalls += pipeline.stalls();
+                        pipeline.close();
+                        undecodable.clear();
+                    }
+                    if (behind) {
+                        liveCatchUps.increment();
+                        listener.onStatus("Fell behind live, jumping to frame " + frameIndex);
+                    }
+                    from = frameIndex;
+                    pipeline = startPipeline(from, Integer.MAX_VALUE, LIVE_STARTUP_FRAMES, firstFrameLatency, started, firstShown, presenter, undecodable, paused);
+                } else {
+                    for (int dropped = newest + 1; dropped < frameIndex; dropped++) pipeline.skip(dropped);
+                }
+                newest = frameIndex;
+
+                Integer failed;
+                while ((failed = undecodable.poll()) != null) pipeline.skip(failed);
+                if (intact(response)) {
+                    pipeline.submit(response);
+                } else {
+                    response.release();
+                    pipeline.skip(frameIndex);
+                }
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+                played += pipeline.nextPlay() - from;
+                stalls += pipeline.stalls();
+            }
+            if (!socket.isClosed()) Protocol.write(out, Protocol.unsubscribe(subscribeId));
+        }
+        return new Playback(played, stalls, firstShown.get() == 0 ? -1 : firstShown.get() - started);
+    }
+
+    // A pipeline playing [from, endFrame) whose first shown frame records its delay since
+    // startedAt into latency (once per shownAt), and its time into shownAt.
+    private FramePipeline startPipeline(int from, int endFrame, int startupFrames, Metrics.Histogram latency, long startedAt, AtomicLong shownAt,
+                                        FramePipeline.Presenter presenter, ConcurrentLinkedQueue<Integer> undecodable, BooleanSupplier paused) {
+        FramePipeline pipeline = new FramePipeline(from, endFrame, FPS, startupFrames, decode, new FramePipeline.Presenter() {
+            public void present(int frameIndex, BufferedImage image, boolean fromCache) {
+                if (shownAt.get() == 0 && shownAt.compareAndSet(0, System.nanoTime())) latency.record(shownAt.get() - startedAt);
+                presenter.present(frameIndex, image, fromCache);
+            }
+
+            public void onStall(int stalls) {
+                presenter.onStall(stalls);
+            }
+        }, undecodable::add, paused);
+        this.pipeline = pipeline;
+        return pipeline;
+    }
+
+    // Pipeline of the current (or last) play(), for images to be recycled into
+    FramePipeline pipeline() {
+        return pipeline;
+    }
+
+    // Moves the play() in progress to frame (the start of its segment, in segment mode); safe
+    // from any thread, including the listener's. Seeks made before the last is acted on
+    // collapse into it.
+    void seek(int frame) {
+        seekRequestedAt = System.nanoTime();
+        seekTarget.set(frame);
+    }
+
+    // Ends the play() in progress once its current read returns; the session plays nothing more.
+    void stop() {
+        stopped = true;
+    }
+
+    // Asks for the scrub thumbnail nearest below frame of the video being played: a one-frame
+    // GET of a frame the relay keeps pinned (see ThumbnailStore), so it comes back fast however
+    // cold that part of the video is. The answer goes to the listener's onThumbnail. Safe from
+    // any thread; does nothing if no play() is in progress.
+    void thumbnail(int frame) throws IOException {
+        int videoId = playingVideoId;
+        if (videoId < 0) return;
+        int frameIndex = Math.max(0, frame - frame % ThumbnailStore.STRIDE);
+        synchronized (thumbnailRequests) {
+            int requestId = nextRequestId.getAndIncrement();
+            thumbnailRequests.add(requestId);
+            Protocol.write(out, Protocol.get(requestId, videoId, frameIndex, 1, ThumbnailStore.QUALITY, integrity));
+        }
+    }
+
+    private boolean thumbnailsPending() {
+        synchronized (thumbnailRequests) {
+            return !thumbnailRequests.isEmpty();
+        }
+    }
+
+    private boolean answersThumbnail(int requestId) {
+        synchronized (thumbnailRequests) {
+            return thumbnailRequests.remove(requestId);
+        }
+    }
+
+    void ping() throws IOException {
+        Protocol.write(out, Protocol.ping());
+    }
+
+    void disconnect() throws IOException {
+        Protocol.write(out, Protocol.disconnect());
+        close();
+    }
+
+    // Also ends a play() in progress on another thread: its next read fails.
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void requestFrames(int videoId, int firstFrame, int count, int quality) throws IOException {
+        int requestId = nextRequestId.getAndIncrement();
+        sentAt.put(requestId, System.nanoTime());
+        Protocol.write(out, Protocol.get(requestId, videoId, firstFrame, count, quality, integrity));
+    }
+
+    // Returns the request ID, so the response can be told apart from per-frame answers.
+    private int requestSegment(int videoId, int segmentIndex, int quality) throws IOException {
+        int requestId = nextRequestId.getAndIncrement();
+        sentAt.put(requestId, System.nanoTime());
+        Protocol.write(out, Protocol.getSegment(requestId, videoId, segmentIndex, quality, integrity));
+        return requestId;
+    }
+
+    private void recordArrival(Protocol.Response response, int frames, long now) {
+        bytesReceived.add(response.length);
+        framesReceived.add(frames);
+        if (response.fromCache()) framesFromCache.add(frames);
+        Long sent = sentAt.get(response.requestId);
+        if (sent != null) frameLatency.record(now - sent);
+    }
+
+    // Checksummed while it was read; the emulated link may lose it on the way
+    private boolean intact(Protocol.Response frame) {
+        return !link.loses() && frame.intact();
+    }
+
+    // NACKs a frame that failed its checksum, asking the relay for a fresh copy at the same
+    // quality; false once the frame has been NACKed MAX_RETRANSMITS times. A corrupt frame is a
+    // loss, but the rest of the window is still arriving, so the window is halved (fast
+    // recovery) rather than collapsed to one frame.
+    private boolean retransmit(int videoId, int frameIndex, int quality, Map<Integer, Integer> retransmits,
+                               Listener listener) throws IOException {
+        int attempts = retransmits.merge(frameIndex, 1, Integer::sum);
+        ssthresh = Math.max(cwnd / 2, 1);
+        cwnd = ssthresh;
+        if (attempts > MAX_RETRANSMITS) {
+            listener.onMessage("Frame " + frameIndex + " still corrupt after " + MAX_RETRANSMITS + " retransmissions, skipping");
+            listener.onStatus("Frame " + frameIndex + " is corrupt at the source. Skipping.");
+            return false;
+        }
+        listener.onStatus("Checksum failed for frame " + frameIndex + ". Requesting retransmission.");
+        retransmitted.increment();
+        int requestId = nextRequestId.getAndIncrement();
+        sentAt.put(requestId, System.nanoTime());
+        Protocol.write(out, Protocol.nack(requestId, videoId, frameIndex, quality, integrity));
+        return true;
+    }
+
+    // AIMD congestion control, once per frame delivered intact
+    private void growWindow() {
+        if (cwnd < ssthresh) {
+            cwnd *= 2; // Exponential increase
+        } else {
+            cwnd++; // Additive increase
+        }
+        cwnd = Math.min(cwnd, MAX_CWND);
+    }
+
+    // How one play() went
+    static final class Playback {
+        final int played;            // Frames shown or skipped
+        final int stalls;
+        final long firstFrameNanos;  // -1 if nothing was shown
+
+        Playback(int played, int stalls, long firstFrameNanos) {
+            this.played = played;
+            this.stalls = stalls;
+            this.firstFrameNanos = firstFrameNanos;
+        }
+    }
+
+    // Emulated last mile between the relay and the viewer: a downlink of bytesPerSecond (0 for
+    // no limit), paced as the session reads so TCP flow control pushes back on the relay as a
+    // slow link would, and a chance of each frame arriving corrupt, which the session NACKs.
+    static final class Link {
+        static final Link UNLIMITED = new Link(0, 0);
+        private static final long BURST_NANOS = 10_000_000; // Idle time the link may catch up on
+
+        final long bytesPerSecond;
+        final double loss;
+
+        Link(long bytesPerSecond, double loss) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.loss = loss;
+        }
+
+        InputStream throttle(InputStream in) {
+            return bytesPerSecond <= 0 ? in : new ThrottledInputStream(in, bytesPerSecond);
+        }
+
+        boolean loses() {
+            return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+        }
+
+        private static final class ThrottledInputStream extends FilterInputStream {
+            private static final int CHUNK = 8 * 1024;
+            private final long bytesPerSecond;
+            private long releaseAt = System.nanoTime();
+
+            ThrottledInputStream(InputStream in, long bytesPerSecond) {
+                super(in);
+                this.bytesPerSecond = bytesPerSecond;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) pace(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, Math.min(len, CHUNK));
+                if (n > 0) pace(n);
+                return n;
+            }
+
+            // Holds the reader back until the bytes it just read would have crossed the link
+            private void pace(int bytes) {
+                long now = System.nanoTime();
+                releaseAt = Math.max(releaseAt, now - BURST_NANOS) + bytes * 1_000_000_000L / bytesPerSecond;
+                if (releaseAt > now) LockSupport.parkNanos(releaseAt - now);
+            }
+        }
+    }
+}
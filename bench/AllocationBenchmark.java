@@ -0,0 +1,187 @@
+package streaming;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+// Heap bytes allocated per frame on the paths a frame takes through the client and relay,
+// before (pooled=false) and after (pooled=true) pooled buffers:
+//   receive - client reads a SEGMENT response, unpacks it and checks every frame's checksum
+//             before: a fresh body array plus one copy per frame (the old unpackSegment),
+//                     then a byte sum over each copy
+//             after:  body read into a pooled buffer and checksummed as it arrives, frames
+//                     are views into it
+//   decode  - client decodes a JPEG frame
+//             before: ImageIO.read on a ByteArrayInputStream, new image every frame
+//             after:  FramePipeline.Decoder, one reader per thread, recycled images
+//   forward - relay copies a frame out of the off-heap cache to send it
+//             before: pool disabled, a new array per hit
+//             after:  pooled buffer, released once written
+//
+// An operation is one frame, so the GC profiler's gc.alloc.rate.norm is bytes per frame:
+//
+//   java -jar bench/target/benchmarks.jar AllocationBenchmark -prof gc
+//   java -jar bench/target/benchmarks.jar AllocationBenchmark -prof gc -p width=640 -p height=360
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+    private static final int SEGMENT_FRAMES = 30;
+    private static final long POOL_BYTES = 32L * 1024 * 1024;
+
+    // One segment of JPEG frames, the same on every run
+    @State(Scope.Benchmark)
+    public static class Frames {
+        @Param({ "1280" })
+        int width;
+
+        @Param({ "720" })
+        int height;
+
+        byte[][] frames;
+
+        @Setup
+        public void setUp() throws IOException {
+            Random random = new Random(42);
+            frames = new byte[SEGMENT_FRAMES][];
+            for (int i = 0; i < SEGMENT_FRAMES; i++) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = image.createGraphics();
+                g.setPaint(new GradientPaint(0, 0, new Color(i * 8, 40, 90), width, height, new Color(20, 200, i * 8)));
+                g.fillRect(0, 0, width, height);
+                for (int k = 0; k < 200; k++) {
+                    g.setColor(new Color(random.nextInt()));
+                    g.fillOval(random.nextInt(width), random.nextInt(height), width / 20, height / 20);
+                }
+                g.dispose();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "jpg", out);
+                frames[i] = out.toByteArray();
+            }
+        }
+    }
+
+    // The segment as a SEGMENT response, the way the relay sends it, read again on every call.
+    // Without pooling, frames are copied out and checksummed afterwards, as they were.
+    @State(Scope.Thread)
+    public static class Receive {
+        @Param({ "false", "true" })
+        boolean pooled;
+
+        ByteArrayInputStream stream;
+        DataInputStream in;
+        BufferPool pool;
+        Integrity integrity;
+
+        @Setup
+        public void setUp(Frames frames) throws IOException {
+            int[] lengths = new int[SEGMENT_FRAMES];
+            int[] checksums = new int[SEGMENT_FRAMES];
+            for (int i = 0; i < SEGMENT_FRAMES; i++) {
+                lengths[i] = frames.frames[i].length;
+                checksums[i] = Integrity.CRC32C.compute(frames.frames[i], 0, lengths[i]);
+            }
+            ByteBuffer table = Protocol.segmentTable(0, lengths, checksums);
+            int bodyLength = table.remaining();
+            for (int length : lengths) bodyLength += length;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer header = Protocol.segmentHeader(0, 0, 0, 0, bodyLength);
+            out.write(header.array(), 0, header.limit());
+            out.write(table.array(), 0, table.limit());
+            for (byte[] frame : frames.frames) out.write(frame);
+            stream = new ByteArrayInputStream(out.toByteArray());
+            in = new DataInputStream(stream);
+            pool = pooled ? new BufferPool(POOL_BYTES) : null;
+            integrity = pooled ? Integrity.CRC32C : null;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEGMENT_FRAMES)
+    public void receive(Receive state, Blackhole blackhole) throws IOException {
+        state.stream.reset();
+        Protocol.Response segment = Protocol.readResponse(state.in, state.pool, state.integrity);
+        for (Protocol.Response frame : Protocol.unpackSegment(segment)) {
+            if (state.pooled) {
+                blackhole.consume(frame.intact());
+            } else {
+                byte[] data = Arrays.copyOfRange(frame.data, frame.offset, frame.offset + frame.length);
+                blackhole.consume(Integrity.BYTE_SUM.compute(data, 0, data.length));
+            }
+            frame.release();
+        }
+        segment.release();
+    }
+
+    @State(Scope.Thread)
+    public static class Decode {
+        @Param({ "false", "true" })
+        boolean pooled;
+
+        final FramePipeline.Decoder decoder = new FramePipeline.Decoder();
+        BufferedImage shown;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEGMENT_FRAMES)
+    public void decode(Frames frames, Decode state, Blackhole blackhole) throws IOException {
+        for (byte[] frame : frames.frames) {
+            if (state.pooled) {
+                // The previous frame's image comes back once the next one is shown
+                state.shown = state.decoder.decode(frame, 0, frame.length, state.shown);
+            } else {
+                state.shown = ImageIO.read(new ByteArrayInputStream(frame));
+            }
+            blackhole.consume(state.shown);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Forward {
+        @Param({ "false", "true" })
+        boolean pooled;
+
+        Path directory;
+        OffHeapFrameStore store;
+        FrameKey[] keys;
+        final OutputStream out = OutputStream.nullOutputStream();
+
+        @Setup
+        public void setUp(Frames frames) throws IOException {
+            directory = Files.createTempDirectory("allocation-bench");
+            store = new OffHeapFrameStore(directory.toFile(), 2, 32 * 1024 * 1024, new BufferPool(pooled ? POOL_BYTES : 0));
+            keys = new FrameKey[SEGMENT_FRAMES];
+            for (int i = 0; i < SEGMENT_FRAMES; i++) {
+                keys[i] = new FrameKey("bench", 0, i);
+                store.put(keys[i], new FrameData(frames.frames[i], 0));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            File[] files = directory.toFile().listFiles();
+            if (files != null) for (File f : files) f.delete();
+            directory.toFile().delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEGMENT_FRAMES)
+    public void forward(Forward state) throws IOException {
+        for (FrameKey key : state.keys) {
+            FrameData frame = state.store.get(key);
+            state.out.write(frame.data, 0, frame.length);
+            frame.release();
+        }
+    }
+}
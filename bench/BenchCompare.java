@@ -0,0 +1,125 @@
+package streaming;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compares two JMH runs saved with -rf csv, benchmark by benchmark (with its parameters). A
+// benchmark that got worse by more than 5% with the 99.9% confidence intervals apart (so
+// noise alone is not a regression) is reported as a regression, and the exit status is 1.
+// Scores in a unit per operation (us/op, B/op) are better lower, all others (ops/s) higher;
+// of the profilers' secondary results only the per-operation ones, such as
+// gc.alloc.rate.norm, are compared.
+//
+//   java -cp bench/target/benchmarks.jar streaming.BenchCompare before.csv after.csv
+class BenchCompare {
+    private static final double REGRESSION_TOLERANCE = 0.05;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BenchCompare <before.csv> <after.csv>");
+            System.exit(2);
+        }
+        Map<String, Score> before = load(Paths.get(args[0]));
+        Map<String, Score> after = load(Paths.get(args[1]));
+        boolean regressed = false;
+        for (Map.Entry<String, Score> entry : after.entrySet()) {
+            Score was = before.get(entry.getKey());
+            Score now = entry.getValue();
+            if (was == null) continue;
+            boolean worse = now.regressedFrom(was);
+            regressed |= worse;
+            System.out.printf("%-70s %12.3f -> %12.3f %-8s %+7.1f%%%s%n", entry.getKey(), was.score, now.score, now.unit,
+                    (now.score / was.score - 1) * 100, worse ? "  REGRESSION" : "");
+        }
+        if (regressed) System.exit(1);
+    }
+
+    private static final class Score {
+        final double score;
+        final double error; // Half-width of the 99.9% confidence interval
+        final String unit;
+
+        Score(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        boolean lowerIsBetter() {
+            return unit.endsWith("/op");
+        }
+
+        boolean regressedFrom(Score baseline) {
+            if (lowerIsBetter()) {
+                return score > baseline.score * (1 + REGRESSION_TOLERANCE) && score - error > baseline.score + baseline.error;
+            }
+            return score < baseline.score * (1 - REGRESSION_TOLERANCE) && score + error < baseline.score - baseline.error;
+        }
+    }
+
+    // Comparable scores by benchmark name plus parameters, e.g. "...ChecksumBenchmark.whole algorithm=CRC32C size=98304"
+    private static Map<String, Score> load(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) throw new IOException(file + " is empty");
+        List<String> header = fields(lines.get(0));
+        int name = header.indexOf("Benchmark");
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        int unit = header.indexOf("Unit");
+        if (name < 0 || score < 0 || error < 0 || unit < 0) throw new IOException(file + " is not a JMH CSV result file");
+
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) continue;
+            List<String> row = fields(line);
+            Score result = new Score(Double.parseDouble(row.get(score)), parseError(row.get(error)), row.get(unit));
+            boolean secondary = row.get(name).indexOf(':') >= 0;
+            if (secondary && !result.lowerIsBetter()) continue; // gc.alloc.rate, gc.count and the like
+            StringBuilder key = new StringBuilder(row.get(name));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring("Param: ".length())).append('=').append(row.get(i));
+                }
+            }
+            scores.put(key.toString(), result);
+        }
+        return scores;
+    }
+
+    // A single sample has no confidence interval
+    private static double parseError(String error) {
+        double value = Double.parseDouble(error);
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    // One CSV line; fields may be quoted, with "" for a quote inside
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,154 @@
+package streaming;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+// Compares GC pause time and lookup latency of the relay cache designs under the same load:
+//   lru     - the original per-video Collections.synchronizedMap(LinkedHashMap<Integer, byte[]>)
+//   heap    - RelayCache (S3-FIFO, byte budget, payloads on heap)
+//   offheap - OffHeapFrameStore (payloads in memory-mapped segments, primitive index on heap)
+//
+// Each trial fills the cache, then four readers look up random frames (half of them cached)
+// while one writer keeps inserting new frames so the cache churns the way a busy relay does.
+// The readers' lookups are sampled, so the score comes with its p50/p99/p99.9; the GC
+// profiler gives the pause counts and time:
+//
+//   java -jar bench/target/benchmarks.jar CacheTierBenchmark -prof gc
+//   java -jar bench/target/benchmarks.jar CacheTierBenchmark -p frameKB=16 -p tier=heap,offheap
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CacheTierBenchmark {
+    private static final int FRAMES_PER_VIDEO = 500;
+    private static final int VIDEOS = 8;
+
+    interface Tier {
+        FrameData get(String video, int frameIndex);
+        void put(String video, int frameIndex, FrameData frame);
+    }
+
+    @Param({ "lru", "heap", "offheap" })
+    String tier;
+
+    @Param({ "64" })
+    int frameKB;
+
+    Tier cache;
+    Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        long budget = (long) frameKB * 1024 * FRAMES_PER_VIDEO * VIDEOS;
+        switch (tier) {
+            case "lru": cache = lruTier(); break;
+            case "heap": cache = heapTier(budget); break;
+            default: cache = offHeapTier(budget);
+        }
+        Random random = new Random(42);
+        for (int v = 0; v < VIDEOS; v++) {
+            for (int f = 0; f < FRAMES_PER_VIDEO; f++) cache.put("video" + v, f, newFrame(random));
+        }
+        System.gc();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (directory == null) return;
+        File[] files = directory.toFile().listFiles();
+        if (files != null) for (File f : files) f.delete();
+        directory.toFile().delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        Random random;
+        int next = FRAMES_PER_VIDEO;
+
+        @Setup
+        public void setUp(ThreadParams thread) {
+            random = new Random(thread.getThreadIndex());
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(4)
+    public void read(Local local, Blackhole blackhole) {
+        FrameData frame = cache.get("video" + local.random.nextInt(VIDEOS), local.random.nextInt(FRAMES_PER_VIDEO * 2));
+        if (frame == null) return;
+        blackhole.consume(frame.length);
+        frame.release();
+    }
+
+    // A steady stream of frames outside the warm range forces evictions
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void write(Local local) {
+        cache.put("video" + local.random.nextInt(VIDEOS), local.next++ % (FRAMES_PER_VIDEO * 2), newFrame(local.random));
+        LockSupport.parkNanos(200_000);
+    }
+
+    private Tier lruTier() {
+        Map<String, Map<Integer, byte[]>> cache = new ConcurrentHashMap<>();
+        return new Tier() {
+            public FrameData get(String video, int frameIndex) {
+                Map<Integer, byte[]> videoCache = cache.get(video);
+                byte[] data = videoCache == null ? null : videoCache.get(frameIndex);
+                return data == null ? null : new FrameData(data, 0);
+            }
+
+            public void put(String video, int frameIndex, FrameData frame) {
+                cache.computeIfAbsent(video, v -> Collections.synchronizedMap(new LinkedHashMap<Integer, byte[]>(FRAMES_PER_VIDEO, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                        return size() > FRAMES_PER_VIDEO;
+                    }
+                })).put(frameIndex, frame.data);
+            }
+        };
+    }
+
+    private Tier heapTier(long budget) {
+        RelayCache cache = new RelayCache(budget);
+        return new Tier() {
+            public FrameData get(String video, int frameIndex) {
+                return cache.get(new FrameKey(video, 0, frameIndex));
+            }
+
+            public void put(String video, int frameIndex, FrameData frame) {
+                cache.put(new FrameKey(video, 0, frameIndex), frame);
+            }
+        };
+    }
+
+    private Tier offHeapTier(long budget) throws IOException {
+        directory = Files.createTempDirectory("cache-tier-bench");
+        int segmentBytes = 32 * 1024 * 1024;
+        int segments = (int) Math.max(2, budget / segmentBytes + 1);
+        OffHeapFrameStore store = new OffHeapFrameStore(directory.toFile(), segments, segmentBytes, new BufferPool(64L * 1024 * 1024));
+        return new Tier() {
+            public FrameData get(String video, int frameIndex) {
+                return store.get(new FrameKey(video, 0, frameIndex));
+            }
+
+            public void put(String video, int frameIndex, FrameData frame) {
+                store.put(new FrameKey(video, 0, frameIndex), frame);
+            }
+        };
+    }
+
+    private FrameData newFrame(Random random) {
+        byte[] data = new byte[frameKB * 1024];
+        random.nextBytes(data);
+        return new FrameData(data, 0);
+    }
+}
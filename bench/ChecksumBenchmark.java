@@ -0,0 +1,60 @@
+package streaming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+// Checksum cost over frame-sized payloads: the original byte sum against CRC32C, with the
+// JDK's CRC32 and Adler32 alongside for reference. Each payload size is checksummed whole
+// (whole), the way the server computes it at ingest, and in 32 KB chunks (chunked), the way
+// the client verifies it while reading. Scores are microseconds per payload, so a payload's
+// MB/s is its size divided by its score:
+//
+//   java -jar bench/target/benchmarks.jar ChecksumBenchmark
+//   java -jar bench/target/benchmarks.jar ChecksumBenchmark -p algorithm=CRC32C,byte-sum -p size=98304
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    private static final int CHUNK_BYTES = 32 * 1024;
+
+    @Param({ "byte-sum", "CRC32C", "CRC32", "Adler32" })
+    String algorithm;
+
+    @Param({ "4096", "32768", "98304", "262144", "3145728" })
+    int size;
+
+    byte[] data;
+    Checksum checksum;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        switch (algorithm) {
+            case "byte-sum": checksum = Integrity.BYTE_SUM.newChecksum(); break;
+            case "CRC32C": checksum = Integrity.CRC32C.newChecksum(); break;
+            case "CRC32": checksum = new CRC32(); break;
+            default: checksum = new Adler32();
+        }
+    }
+
+    @Benchmark
+    public void whole(Blackhole blackhole) {
+        checksum.reset();
+        checksum.update(data, 0, size);
+        blackhole.consume(checksum.getValue());
+    }
+
+    @Benchmark
+    public void chunked(Blackhole blackhole) {
+        checksum.reset();
+        for (int done = 0; done < size; done += CHUNK_BYTES) checksum.update(data, done, Math.min(CHUNK_BYTES, size - done));
+        blackhole.consume(checksum.getValue());
+    }
+}
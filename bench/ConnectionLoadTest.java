@@ -0,0 +1,153 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Steps up the number of concurrent viewers against a running relay and reports, per step,
+// how many viewers kept up with 30 fps playback and the p50/p99 frame latency. Start the
+// relay (and server) in the execution model under test, then point this at the relay port:
+//
+//   java streaming.VideoServer nio            (or thread / virtual)
+//   java streaming.VideoRelay nio
+//   java -cp bench/target/benchmarks.jar streaming.ConnectionLoadTest localhost <relayPort> <video> <frames> [100,500,1000,2000] [seconds]
+//
+// A step counts as sustained when every viewer connected, no request failed, the relay
+// delivered at least 95% of the requested 30 fps and p99 latency stayed under
+// SUSTAINED_P99_MS. Raise the open-file limit (ulimit -n) before testing thousands of viewers.
+class ConnectionLoadTest {
+    private static final int FPS = 30;
+    private static final long SUSTAINED_P99_MS = 100;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: ConnectionLoadTest <host> <port> <video> <frames> [steps] [seconds]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String video = args[2];
+        int frames = Integer.parseInt(args[3]);
+        String[] steps = (args.length > 4 ? args[4] : "100,250,500,1000,2000,4000").split(",");
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        int maxSustained = 0;
+        System.out.println("viewers  connected  errors  frames/s  expected  p50(ms)  p99(ms)  sustained");
+        for (String step : steps) {
+            int viewers = Integer.parseInt(step.trim());
+            StepResult result = runStep(host, port, video, frames, viewers, seconds);
+            double expected = (double) viewers * FPS;
+            boolean sustained = result.connected == viewers && result.errors == 0
+                    && result.framesPerSecond >= expected * 0.95 && result.p99Millis <= SUSTAINED_P99_MS;
+            System.out.printf("%7d  %9d  %6d  %8.0f  %8.0f  %7.1f  %7.1f  %s%n", viewers, result.connected, result.errors,
+                    result.framesPerSecond, expected, result.p50Millis, result.p99Millis, sustained ? "yes" : "NO");
+            if (!sustained) break;
+            maxSustained = viewers;
+        }
+        System.out.println("Max sustained viewers: " + maxSustained);
+        System.exit(0);
+    }
+
+    private static StepResult runStep(String host, int port, String video, int frames, int viewers, int seconds) throws InterruptedException {
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong delivered = new AtomicLong();
+        List<long[]> samples = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ready = new CountDownLatch(viewers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int v = 0; v < viewers; v++) {
+            int firstFrame = (v * 7) % frames;
+            // Small stacks so a few thousand viewer threads fit in one JVM
+            Thread thread = new Thread(null, () -> {
+                long[] latencies = new long[FPS * (seconds + 1)];
+                int count = 0;
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    Protocol.write(out, Protocol.open(0, video, Integrity.SUPPORTED));
+                    Protocol.Response opened = Protocol.readResponse(in);
+                    if (opened.opcode != Protocol.VIDEO) throw new IOException("could not open " + video + ": " + opened.message);
+                    connected.incrementAndGet();
+                    ready.countDown();
+                    start.await();
+
+                    long interval = 1_000_000_000L / FPS;
+                    long nextSend = System.nanoTime();
+                    int frameIndex = firstFrame;
+                    int requestId = 1;
+                    while (running.get()) {
+                        long sentAt = System.nanoTime();
+                        Protocol.write(out, Protocol.get(requestId++, opened.videoId, frameIndex, 1, 0, opened.integrity));
+                        if (Protocol.readResponse(in).opcode != Protocol.FRAME) throw new IOException("frame " + frameIndex + " not delivered");
+                        if (count < latencies.length) latencies[count++] = System.nanoTime() - sentAt;
+                        delivered.incrementAndGet();
+
+                        frameIndex = (frameIndex + 1) % frames;
+                        nextSend += interval;
+                        long wait = nextSend - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                    Protocol.write(out, Protocol.disconnect());
+                } catch (Exception e) {
+                    if (running.get()) errors.incrementAndGet();
+                } finally {
+                    ready.countDown();
+                    samples.add(Arrays.copyOf(latencies, count));
+                }
+            }, "viewer-" + v, 256 * 1024);
+            thread.start();
+            threads.add(thread);
+        }
+
+        ready.await(30, TimeUnit.SECONDS);
+        long startNanos = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        long deliveredInWindow = delivered.get();
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        running.set(false);
+        for (Thread thread : threads) thread.join(5000);
+
+        long total = 0;
+        synchronized (samples) {
+            for (long[] s : samples) total += s.length;
+        }
+        long[] all = new long[(int) total];
+        int position = 0;
+        synchronized (samples) {
+            for (long[] s : samples) {
+                System.arraycopy(s, 0, all, position, s.length);
+                position += s.length;
+            }
+        }
+        Arrays.sort(all);
+        return new StepResult(connected.get(), errors.get(), deliveredInWindow / elapsed,
+                percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, sorted.length * p)];
+    }
+
+    private static class StepResult {
+        final int connected;
+        final int errors;
+        final double framesPerSecond;
+        final double p50Millis;
+        final double p99Millis;
+
+        StepResult(int connected, int errors, double framesPerSecond, double p50Millis, double p99Millis) {
+            this.connected = connected;
+            this.errors = errors;
+            this.framesPerSecond = framesPerSecond;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+// Regression benchmarks for the hot paths, as throughput (higher is better):
+//   cache               RelayCache lookups from every core at once; with putPercent=10 a tenth
+//                       of the calls insert, so eviction takes its lock meanwhile
+//   protocolParse       Protocol.parseRequest on GET, GET_SEGMENT and OPEN messages
+//   protocolReader      Protocol.RequestReader reassembling requests from 1460-byte reads
+//   serve               VideoServer.serve answering 30-frame GETs (or GET_SEGMENTs) from a
+//                       stub container through a RelayHandler, over a loopback socket
+//   endToEnd            viewers fetching segments straight from a VideoServer, or through a
+//                       VideoRelay with a warm cache
+// Checksums, the other per-frame cost, are in ChecksumBenchmark.
+//
+// The stub frame set is generated from a fixed seed; endToEnd runs the server and relay as
+// child JVMs on loopback (VideoServer takes port 5000, which must be free). Every fork gets
+// the same fixed heap. To check a change for regressions, save a run before and after it and
+// compare the two (see bench/pom.xml):
+//
+//   java -jar bench/target/benchmarks.jar HotPathBenchmark -rf csv -rff before.csv
+//   ... change something, rebuild ...
+//   java -jar bench/target/benchmarks.jar HotPathBenchmark -rf csv -rff after.csv
+//   java -cp bench/target/benchmarks.jar streaming.BenchCompare before.csv after.csv
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+UseG1GC" })
+public class HotPathBenchmark {
+    private static final long SEED = 42;
+    private static final int STUB_FRAMES = 300; // Whole segments only, so every serve is SEGMENT_FRAMES frames
+    private static final String STUB_VIDEO = "stub";
+    private static final int SERVER_PORT = 5000;
+
+    // Every get of a cached key hits when putPercent is 0; otherwise the keys span twice the
+    // budget, so about half the gets miss and every insert evicts.
+    @State(Scope.Benchmark)
+    public static class Cache {
+        static final int KEYS = 4096;
+        static final int FRAME_BYTES = 16 * 1024;
+
+        @Param({ "0", "10" })
+        int putPercent;
+
+        RelayCache cache;
+        FrameKey[] keys;
+        byte[][] payloads;
+
+        @Setup
+        public void setUp() {
+            long budget = putPercent == 0 ? 2L * KEYS * FRAME_BYTES : (long) KEYS * FRAME_BYTES / 2;
+            cache = new RelayCache(budget);
+            keys = new FrameKey[KEYS];
+            payloads = new byte[16][FRAME_BYTES];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new FrameKey("video" + i % 8, 0, i);
+                FrameData frame = new FrameData(payloads[i % payloads.length], 0);
+                cache.put(keys[i], frame);
+                frame.release();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        SplittableRandom random;
+
+        @Setup
+        public void setUp(ThreadParams thread) {
+            random = new SplittableRandom(SEED + thread.getThreadIndex());
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void cache(Cache state, Caller caller, Blackhole blackhole) {
+        FrameKey key = state.keys[caller.random.nextInt(state.keys.length)];
+        if (caller.random.nextInt(100) < state.putPercent) {
+            FrameData frame = new FrameData(state.payloads[caller.random.nextInt(state.payloads.length)], 0);
+            state.cache.put(key, frame);
+            frame.release();
+            return;
+        }
+        FrameData frame = state.cache.get(key);
+        if (frame != null) {
+            blackhole.consume(frame.length);
+            frame.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Requests {
+        static final int READER_REQUESTS = 1000;
+
+        ByteBuffer[] messages;
+        int next;
+        byte[] stream;
+        Protocol.RequestReader reader;
+
+        @Setup
+        public void setUp() throws IOException {
+            messages = new ByteBuffer[] {
+                    Protocol.get(1, 3, 120, 30, 2, Integrity.CRC32C),
+                    Protocol.getSegment(2, 3, 4, 2, Integrity.CRC32C),
+                    Protocol.open(3, "a video with a longer name.mp4", Integrity.SUPPORTED) };
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < READER_REQUESTS; i++) {
+                ByteBuffer message = i % 10 == 9 ? Protocol.getSegment(i, 1, i, 0, Integrity.CRC32C) : Protocol.get(i, 1, i, 1, 0, Integrity.CRC32C);
+                out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            }
+            stream = out.toByteArray();
+            reader = new Protocol.RequestReader();
+        }
+    }
+
+    @Benchmark
+    public int protocolParse(Requests requests) throws IOException {
+        ByteBuffer message = requests.messages[requests.next++ % requests.messages.length].duplicate();
+        message.position(4); // parseRequest starts after the length prefix
+        return Protocol.parseRequest(message).requestId;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Requests.READER_REQUESTS)
+    public void protocolReader(Requests requests, Blackhole blackhole) throws IOException {
+        byte[] bytes = requests.stream;
+        for (int offset = 0; offset < bytes.length; offset += 1460) {
+            requests.reader.read(ByteBuffer.wrap(bytes, offset, Math.min(1460, bytes.length - offset)), request -> blackhole.consume(request.frameIndex));
+        }
+    }
+
+    // VideoServer.serve through a RelayHandler whose socket is drained by another thread.
+    @State(Scope.Benchmark)
+    public static class Serve {
+        @Param({ "false", "true" })
+        boolean segments;
+
+        Path dir;
+        FrameContainer container;
+        ServerSocketChannel listener;
+        SocketChannel receiver;
+        SocketChannel sender;
+        RelayHandler handler;
+        Protocol.Request[] requests;
+        int next;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("hotpath-serve");
+            File packed = new File(dir.toFile(), STUB_VIDEO + FrameContainer.EXTENSION);
+            FrameContainer.pack(stubFrames(), packed);
+            container = FrameContainer.open(packed);
+            FrameContainer[] ladder = new FrameContainer[Rendition.values().length];
+            Arrays.fill(ladder, container);
+            VideoServer.register(STUB_VIDEO, ladder);
+            int videoId = VideoServer.videoIds.get(STUB_VIDEO);
+
+            requests = new Protocol.Request[STUB_FRAMES / VideoServer.SEGMENT_FRAMES];
+            for (int s = 0; s < requests.length; s++) {
+                ByteBuffer message = segments
+                        ? Protocol.getSegment(s, videoId, s, 0, Integrity.CRC32C)
+                        : Protocol.get(s, videoId, s * VideoServer.SEGMENT_FRAMES, VideoServer.SEGMENT_FRAMES, 0, Integrity.CRC32C);
+                message.position(4);
+                requests[s] = Protocol.parseRequest(message);
+            }
+
+            listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver = SocketChannel.open(listener.getLocalAddress());
+            sender = listener.accept();
+            Thread drain = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (receiver.read(buffer) >= 0) buffer.clear();
+                } catch (IOException ignored) {}
+            }, "drain");
+            drain.setDaemon(true);
+            drain.start();
+            handler = new RelayHandler(sender);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            sender.close();
+            receiver.close();
+            listener.close();
+            container.close();
+            deleteTree(dir.toFile());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VideoServer.SEGMENT_FRAMES)
+    public void serve(Serve state) throws IOException {
+        VideoServer.serve(state.requests[state.next++ % state.requests.length], state.handler);
+    }
+
+    // A VideoServer (and VideoRelay) in child JVMs, with the stub video packed for them.
+    @State(Scope.Benchmark)
+    public static class Topology {
+        @Param({ "false", "true" })
+        boolean throughRelay;
+
+        Path dir;
+        List<Process> processes = new ArrayList<>();
+        int port = SERVER_PORT;
+
+        @Setup
+        public void setUp() throws IOException {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), SERVER_PORT).close();
+                throw new IOException("port " + SERVER_PORT + " is in use; stop the running VideoServer first");
+            } catch (ConnectException expected) {
+                // Free
+            }
+            dir = Files.createTempDirectory("hotpath-e2e");
+            File source = new File(dir.toFile(), VideoServer.VIDEO_DIR + STUB_VIDEO + ".mp4");
+            source.getParentFile().mkdirs();
+            Files.write(source.toPath(), new byte[1024]); // Never read: its containers are already packed
+            List<byte[]> frames = stubFrames();
+            for (Rendition rendition : Rendition.values()) {
+                File container = new File(dir.toFile(), rendition.containerFile(STUB_VIDEO).getPath());
+                container.getParentFile().mkdirs();
+                FrameContainer.pack(frames, container);
+            }
+
+            processes.add(start(dir, "server.log", "streaming.VideoServer", "nio"));
+            if (throughRelay) {
+                try (ServerSocket free = new ServerSocket(0)) {
+                    port = free.getLocalPort();
+                }
+                processes.add(start(dir, "relay.log", "streaming.VideoRelay", "nio", "aimd", "0", "--port=" + port,
+                        "--upstream=localhost:" + SERVER_PORT, "--cache=" + new File(dir.toFile(), "relay cache")));
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            for (Process process : processes) process.destroy();
+            for (Process process : processes) process.waitFor(10, TimeUnit.SECONDS);
+            deleteTree(dir.toFile());
+        }
+    }
+
+    // One connection playing the stub video segment by segment, one request at a time.
+    @State(Scope.Thread)
+    public static class Viewer {
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        final BufferPool pool = new BufferPool(4L * 1024 * 1024);
+        Protocol.Response opened;
+        int requestId = 1;
+        int nextSegment;
+
+        @Setup
+        public void setUp(Topology topology, ThreadParams thread) throws Exception {
+            long deadline = System.currentTimeMillis() + 60_000;
+            Protocol.Response response = null;
+            while (socket == null && System.currentTimeMillis() < deadline) {
+                Socket connected = null;
+                try {
+                    connected = new Socket(InetAddress.getLoopbackAddress(), topology.port);
+                    connected.setTcpNoDelay(true);
+                    out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+                    in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+                    Protocol.write(out, Protocol.open(0, STUB_VIDEO, Integrity.SUPPORTED));
+                    response = Protocol.readResponse(in);
+                    if (response.opcode == Protocol.VIDEO) {
+                        socket = connected;
+                        break;
+                    }
+                } catch (IOException e) {
+                    // Not listening yet
+                }
+                if (connected != null) connected.close();
+                Thread.sleep(250); // Starting up, or the stub video is still being registered
+            }
+            if (socket == null) throw new IOException("could not open " + STUB_VIDEO + " on port " + topology.port + ": " + response);
+            opened = response;
+            nextSegment = thread.getThreadIndex(); // Viewers start spread over the video
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OperationsPerInvocation(VideoServer.SEGMENT_FRAMES)
+    public void endToEnd(Viewer viewer) throws IOException {
+        int segment = viewer.nextSegment++ % (viewer.opened.frameCount / viewer.opened.segmentFrames);
+        Protocol.write(viewer.out, Protocol.getSegment(viewer.requestId++, viewer.opened.videoId, segment, 0, viewer.opened.integrity));
+        Protocol.Response response = Protocol.readResponse(viewer.in, viewer.pool, null);
+        if (response.opcode != Protocol.SEGMENT) throw new IOException("segment " + segment + ": " + response);
+        response.release();
+    }
+
+    private static Process start(Path dir, String log, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(new File(dir.toFile(), log)).start();
+        process.getOutputStream().close();
+        return process;
+    }
+
+    // JPEG-sized frames of 12-20 KB, the same on every run
+    private static List<byte[]> stubFrames() {
+        Random random = new Random(SEED);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < STUB_FRAMES; i++) {
+            byte[] frame = new byte[12 * 1024 + random.nextInt(8 * 1024)];
+            random.nextBytes(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteTree(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,289 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Simulated viewers against a running relay, for capacity testing. Each viewer is a headless
+// ViewerSession - the client's own protocol, AIMD window, ABR and playout clock, without
+// decoding or a window - on its own connection, behind an emulated link:
+//
+//   java -cp bench/target/benchmarks.jar streaming.LoadGenerator <host> <port> <video[,video...]> [options]
+//
+//   --viewers=N        simulated viewers (default 100)
+//   --ramp=S           viewers start spread evenly over the first S seconds (default 10)
+//   --duration=S       test length in seconds, ramp included (default 60)
+//   --zipf=S           popularity skew over the listed videos, most popular first: the k-th
+//                      is picked with weight 1/k^S (default 1; 0 picks uniformly)
+//   --watch=S          mean seconds watched before the viewer may seek (default 10)
+//   --seek=P           chance the viewer then seeks to a random frame, after fetching its
+//                      scrub thumbnail, instead of watching on (default 0.3); at the end of a
+//                      video it picks a new one
+//   --rate=KBPS        downlink of each viewer, 0 for unlimited (default 0)
+//   --loss=P           chance each frame arrives corrupt and is NACKed (default 0)
+//   --frames           per-frame GETs instead of whole segments
+//   --live             the listed names are live channels (VideoServer --live): every viewer
+//                      subscribes to a Zipf-picked one and watches it to the end of the test;
+//                      --watch and --seek do not apply
+//   --model=thread|virtual   one platform or virtual (Java 21+) thread per viewer
+//   --relay-metrics=URL      the relay's /metrics (run it with -Dmetrics.port=N), for
+//                      relay-side throughput and cache hit rate
+//
+// On loopback, for instance:
+//
+//   java streaming.VideoServer nio
+//   java -Dmetrics.port=9100 streaming.VideoRelay nio aimd 0 --port=6000 --upstream=localhost:5000
+//   java -cp bench/target/benchmarks.jar streaming.LoadGenerator localhost 6000 demo,trailer --viewers=1000 --relay-metrics=http://localhost:9100/metrics
+//
+// Reports what the viewers received (throughput, share of frames the relay served from its
+// cache, time to first frame after each start and after each seek, request-to-frame latency,
+// glass-to-glass latency of live channels, stalls) and, with --relay-metrics, what the relay
+// says it served. Raise the open-file limit (ulimit -n) for thousands of viewers.
+class LoadGenerator {
+    private static final int FPS = ViewerSession.FPS;
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+    private static final String[] RELAY_METRICS = {
+            "relay_requests_total", "relay_frames_served_total", "relay_bytes_served_total",
+            "relay_cache_hits_total", "relay_cache_misses_total", "relay_nacks_total", "relay_cancels_total",
+            "relay_live_dropped_total" };
+
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger errors = new AtomicInteger();
+    private static final AtomicInteger seeks = new AtomicInteger();
+    private static final AtomicInteger thumbnails = new AtomicInteger();
+    // Ends each viewer's playback at the end of the test
+    private static final ScheduledExecutorService stopper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "viewer-stopper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--")) options.put(eq > 0 ? arg.substring(2, eq) : arg.substring(2), eq > 0 ? arg.substring(eq + 1) : "");
+            else positional.add(arg);
+        }
+        if (positional.size() < 3) {
+            System.out.println("Usage: LoadGenerator <host> <port> <video[,video...]> [--viewers=N] [--ramp=S] [--duration=S] [--zipf=S]");
+            System.out.println("       [--watch=S] [--seek=P] [--rate=KBPS] [--loss=P] [--frames] [--live] [--model=thread|virtual] [--relay-metrics=URL]");
+            return;
+        }
+        String host = positional.get(0);
+        int port = Integer.parseInt(positional.get(1));
+        String[] videos = positional.get(2).split(",");
+        int viewers = Integer.parseInt(options.getOrDefault("viewers", "100"));
+        double ramp = Double.parseDouble(options.getOrDefault("ramp", "10"));
+        double duration = Double.parseDouble(options.getOrDefault("duration", "60"));
+        double[] popularity = zipf(videos.length, Double.parseDouble(options.getOrDefault("zipf", "1")));
+        double watch = Double.parseDouble(options.getOrDefault("watch", "10"));
+        double seek = Double.parseDouble(options.getOrDefault("seek", "0.3"));
+        ViewerSession.Link link = new ViewerSession.Link(Long.parseLong(options.getOrDefault("rate", "0")) * 1000 / 8,
+                Double.parseDouble(options.getOrDefault("loss", "0")));
+        boolean segmentMode = !options.containsKey("frames");
+        boolean live = options.containsKey("live");
+        ExecutionModel model = ExecutionModel.valueOf(options.getOrDefault("model", "thread").toUpperCase(Locale.ROOT));
+        String relayMetrics = options.get("relay-metrics");
+
+        System.out.printf("%d viewers on %s:%d over %.0f s (ramp %.0f s), %s %s (zipf %s), watch %.0f s, seek %.0f%%, link %s, loss %.1f%%%n",
+                viewers, host, port, duration, ramp, live ? "live channels" : "videos", Arrays.toString(videos), options.getOrDefault("zipf", "1"),
+                watch, seek * 100, link.bytesPerSecond > 0 ? link.bytesPerSecond * 8 / 1000 + " kbps" : "unlimited", link.loss * 100);
+
+        Map<String, Double> relayBefore = relayMetrics != null ? scrape(relayMetrics) : null;
+        BufferPool bufferPool = new BufferPool(256L * 1024 * 1024); // Shared: thousands of 32 MB pools would not fit
+        long start = System.nanoTime();
+        long end = start + (long) (duration * 1e9);
+        ExecutorService executor = model.connectionExecutor();
+        for (int i = 0; i < viewers; i++) {
+            long startAt = start + (long) (ramp * 1e9 * i / viewers);
+            long seed = i;
+            executor.execute(() -> viewer(host, port, videos, popularity, watch, seek, link, segmentMode, live, bufferPool,
+                    startAt, end, new SplittableRandom(seed)));
+        }
+        executor.shutdown();
+
+        long lastFrames = 0;
+        long lastProgress = System.nanoTime();
+        while (!executor.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            long frames = Metrics.counter("client_frames_received_total").get();
+            long now = System.nanoTime();
+            System.out.printf("%5.0f s  %5d viewers playing  %8.0f frames/s  %d errors%n", (now - start) / 1e9, active.get(),
+                    (frames - lastFrames) * 1e9 / (now - lastProgress), errors.get());
+            lastFrames = frames;
+            lastProgress = now;
+            if (now > end + 30_000_000_000L) {
+                System.out.println("Viewers still playing 30 s after the end; reporting without them");
+                executor.shutdownNow();
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report(viewers, seconds);
+        if (relayBefore != null) {
+            Map<String, Double> relayAfter = scrape(relayMetrics);
+            if (relayAfter != null) reportRelay(relayBefore, relayAfter, seconds);
+        }
+        System.exit(0);
+    }
+
+    // One simulated viewer: waits for its start, then plays Zipf-picked videos until the test
+    // ends. After each run of watching it may scrub to a random frame and seek there, within the
+    // same play(), as the client's timeline does. A live viewer watches one channel throughout.
+    private static void viewer(String host, int port, String[] videos, double[] popularity, double watch, double seek,
+                               ViewerSession.Link link, boolean segmentMode, boolean live, BufferPool bufferPool,
+                               long startAt, long end, SplittableRandom random) {
+        try {
+            long wait = startAt - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            return;
+        }
+        active.incrementAndGet();
+        try (ViewerSession session = new ViewerSession(host, port, bufferPool, segmentMode, false, link)) {
+            connected.incrementAndGet();
+            stopper.schedule(session::stop, end - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (live) {
+                String channel = videos[pick(popularity, random)];
+                session.watchLive(channel, new ViewerSession.Listener() {
+                    public void present(int frameIndex, java.awt.image.BufferedImage image, boolean fromCache) {}
+
+                    public void onStall(int stalls) {}
+                }, () -> false);
+                if (System.nanoTime() < end) throw new IOException("could not watch " + channel);
+            }
+            while (System.nanoTime() < end) {
+                String video = videos[pick(popularity, random)];
+                Protocol.Response opened = session.open(video);
+                if (opened.opcode != Protocol.VIDEO) throw new IOException("could not open " + video + ": " + opened.message);
+                session.play(opened, 0, opened.frameCount, new SeekingViewer(session, opened.frameCount, watch, seek, random.split()), () -> false);
+            }
+            session.disconnect();
+        } catch (IOException e) {
+            if (errors.incrementAndGet() <= 10) System.out.println("Viewer failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    // Counts down a randomly drawn run of frames as they are shown; at its end either seeks to
+    // a random frame, scrubbing to its thumbnail first, or draws another run. Called on the
+    // presentation thread, and briefly on the previous pipeline's after a seek.
+    private static final class SeekingViewer implements ViewerSession.Listener {
+        private final ViewerSession session;
+        private final int frameCount;
+        private final double watch;
+        private final double seek;
+        private final SplittableRandom random;
+        private int runLeft;
+
+        SeekingViewer(ViewerSession session, int frameCount, double watch, double seek, SplittableRandom random) {
+            this.session = session;
+            this.frameCount = frameCount;
+            this.watch = watch;
+            this.seek = seek;
+            this.random = random;
+            this.runLeft = watchFrames();
+        }
+
+        public synchronized void present(int frameIndex, java.awt.image.BufferedImage image, boolean fromCache) {
+            if (--runLeft > 0) return;
+            runLeft = watchFrames();
+            if (random.nextDouble() >= seek) return;
+            int target = random.nextInt(frameCount);
+            try {
+                session.thumbnail(target);
+                thumbnails.incrementAndGet();
+            } catch (IOException e) {
+                return; // The session's own read fails too, and ends the viewer
+            }
+            session.seek(target);
+            seeks.incrementAndGet();
+        }
+
+        public void onStall(int stalls) {}
+
+        private int watchFrames() {
+            return (int) Math.max(FPS, -Math.log(1 - random.nextDouble()) * watch * FPS);
+        }
+    }
+
+    // Cumulative distribution of a Zipf law over n items with exponent s
+    private static double[] zipf(int n, double s) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int k = 1; k <= n; k++) cdf[k - 1] = total += 1 / Math.pow(k, s);
+        for (int i = 0; i < n; i++) cdf[i] /= total;
+        return cdf;
+    }
+
+    private static int pick(double[] cdf, SplittableRandom random) {
+        double u = random.nextDouble();
+        for (int i = 0; i < cdf.length; i++) {
+            if (u < cdf[i]) return i;
+        }
+        return cdf.length - 1;
+    }
+
+    private static void report(int viewers, double seconds) {
+        long frames = Metrics.counter("client_frames_received_total").get();
+        long fromCache = Metrics.counter("client_frames_from_cache_total").get();
+        System.out.println();
+        System.out.printf("Viewers      %d started, %d connected, %d failed, %d seeks (%d thumbnails)%n", viewers, connected.get(),
+                errors.get(), seeks.get(), thumbnails.get());
+        System.out.printf("Received     %.0f frames/s, %.1f MB/s (%d frames in %.0f s)%n", frames / seconds,
+                Metrics.counter("client_bytes_received_total").get() / seconds / 1e6, frames, seconds);
+        System.out.printf("Cache        %.1f%% of frames served from the relay's cache%n", frames == 0 ? 0.0 : 100.0 * fromCache / frames);
+        System.out.printf("Stalls       %d rebuffers, %d retransmissions%n", Metrics.counter("client_rebuffers_total").get(),
+                Metrics.counter("client_retransmits_total").get());
+        System.out.println(latencies("First frame ", Metrics.histogram("client_first_frame_seconds")));
+        System.out.println(latencies("Seek        ", Metrics.histogram("client_seek_seconds")));
+        System.out.println(latencies("Frame       ", Metrics.histogram("client_frame_latency_seconds")));
+        System.out.println(latencies("Glass2glass ", Metrics.histogram("client_glass_to_glass_seconds"))
+                + String.format(", %d catch-ups", Metrics.counter("client_live_catchups_total").get()));
+    }
+
+    private static String latencies(String label, Metrics.Histogram histogram) {
+        Metrics.Histogram.Snapshot snapshot = histogram.snapshot();
+        StringBuilder line = new StringBuilder(label).append(' ');
+        for (int i = 0; i < Metrics.Histogram.QUANTILES.length; i++) {
+            line.append(String.format("%s %.1f ms  ", Metrics.Histogram.QUANTILE_LABELS[i], snapshot.percentile(Metrics.Histogram.QUANTILES[i]) / 1e6));
+        }
+        return line.append(String.format("max %.1f ms  (%d samples)", snapshot.max / 1e6, snapshot.count)).toString();
+    }
+
+    private static void reportRelay(Map<String, Double> before, Map<String, Double> after, double seconds) {
+        Map<String, Double> delta = new HashMap<>();
+        for (String name : RELAY_METRICS) delta.put(name, after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0));
+        double hits = delta.get("relay_cache_hits_total");
+        double lookups = hits + delta.get("relay_cache_misses_total");
+        System.out.printf("Relay        %.0f requests/s, %.0f frames/s, %.1f MB/s served, %.1f%% cache hits, %.0f NACKs, %.0f cancels, %.0f live frames dropped%n",
+                delta.get("relay_requests_total") / seconds, delta.get("relay_frames_served_total") / seconds,
+                delta.get("relay_bytes_served_total") / seconds / 1e6, lookups == 0 ? 0.0 : 100 * hits / lookups,
+                delta.get("relay_nacks_total"), delta.get("relay_cancels_total"), delta.get("relay_live_dropped_total"));
+    }
+
+    // Counter values from a Prometheus text endpoint; null if it cannot be read.
+    private static Map<String, Double> scrape(String url) {
+        Map<String, Double> values = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new URL(url).openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                int space = line.lastIndexOf(' ');
+                if (space > 0) values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+            }
+            return values;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not read relay metrics from " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package streaming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Starts a tiered CDN on loopback - the origin VideoServer, a mid tier of relays that fetch
+// from it, and an edge tier of relays that fetch from the mid tier - each in its own JVM,
+// then checks that a video can be played through every edge relay. With "failover" it then
+// kills the mid relay that owns the video on the edges' hash ring and plays it again, which
+// must succeed through the next mid relay on the ring. Run from the directory holding
+// Videos/ (the origin serves whatever it finds there):
+//
+//   java -cp bench/target/benchmarks.jar streaming.TopologyHarness <video> [midRelays] [edgeRelays] [thread|virtual|nio] [failover]
+//
+// Mid relays listen on 6100, 6101, ..., edge relays on 6200, 6201, ...; each logs to
+// "Topology/<role>-<port>.log" and keeps its off-heap cache in "Topology/<role>-<port> cache".
+// Everything is left running for manual testing (point VideoClient at an edge port) until
+// Enter is pressed.
+class TopologyHarness {
+    private static final int ORIGIN_PORT = 5000; // VideoServer's fixed port
+    private static final int MID_PORT = 6100;
+    private static final int EDGE_PORT = 6200;
+    private static final long STARTUP_TIMEOUT_MS = 120_000;
+    private static final int CHECK_FRAMES = 60;
+    private static final File WORK_DIR = new File("Topology");
+
+    private static final List<Process> processes = new CopyOnWriteArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: TopologyHarness <video> [midRelays] [edgeRelays] [thread|virtual|nio] [failover]");
+            return;
+        }
+        String video = args[0];
+        int mids = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int edges = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        String model = args.length > 3 ? args[3] : "nio";
+        boolean failover = args.length > 4 && args[4].equals("failover");
+        WORK_DIR.mkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+
+        start("origin", ORIGIN_PORT, "streaming.VideoServer", model);
+        awaitPort(ORIGIN_PORT);
+
+        List<String> midAddresses = new ArrayList<>();
+        Map<String, Process> midProcesses = new HashMap<>();
+        for (int i = 0; i < mids; i++) {
+            int port = MID_PORT + i;
+            midProcesses.put("localhost:" + port, start("mid", port, "streaming.VideoRelay", model, "aimd", "0",
+                    "--port=" + port, "--upstream=localhost:" + ORIGIN_PORT, "--cache=" + cacheDir("mid", port)));
+            midAddresses.add("localhost:" + port);
+        }
+        String midList = String.join(",", midAddresses);
+        List<Integer> edgePorts = new ArrayList<>();
+        for (int i = 0; i < edges; i++) {
+            int port = EDGE_PORT + i;
+            start("edge", port, "streaming.VideoRelay", model, "aimd", "0",
+                    "--port=" + port, "--upstream=" + midList, "--cache=" + cacheDir("edge", port));
+            edgePorts.add(port);
+        }
+        for (String mid : midAddresses) awaitPort(Integer.parseInt(mid.substring(mid.indexOf(':') + 1)));
+        for (int port : edgePorts) awaitPort(port);
+
+        // Same ring the edges build: points come from the parents' "host:port"
+        List<String> route = new HashRing<>(midAddresses).route(video);
+        System.out.println("Topology up: origin :" + ORIGIN_PORT + ", mid " + midAddresses + ", edge " + edgePorts);
+        System.out.println(video + " routes to " + route.get(0) + (route.size() > 1 ? ", fails over to " + route.subList(1, route.size()) : ""));
+
+        boolean ok = checkEdges(video, edgePorts);
+        if (failover && mids > 1) {
+            System.out.println("Killing " + route.get(0) + " ...");
+            Process owner = midProcesses.get(route.get(0));
+            owner.destroyForcibly().waitFor();
+            // A different frame range, so the edges miss their caches and have to go upstream
+            ok &= checkEdges(video, edgePorts, CHECK_FRAMES);
+        }
+        System.out.println(ok ? "All checks passed." : "CHECKS FAILED.");
+        System.out.println("Press Enter to stop the topology.");
+        new BufferedReader(new InputStreamReader(System.in)).readLine();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static String cacheDir(String role, int port) {
+        return new File(WORK_DIR, role + "-" + port + " cache").getPath();
+    }
+
+    // Launches a component in its own JVM with this one's classpath; output goes to its log.
+    private static Process start(String role, int port, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(List.of(args));
+        File log = new File(WORK_DIR, role + "-" + port + ".log");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        process.getOutputStream().close(); // No stdin prompts: relays get --upstream
+        processes.add(process);
+        System.out.println("Started " + role + " on :" + port + " (log: " + log + ")");
+        return process;
+    }
+
+    private static void awaitPort(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(200);
+            }
+        }
+        throw new IOException("nothing listening on :" + port + " after " + STARTUP_TIMEOUT_MS + " ms");
+    }
+
+    private static boolean checkEdges(String video, List<Integer> edgePorts) {
+        return checkEdges(video, edgePorts, 0);
+    }
+
+    // Plays CHECK_FRAMES frames from firstFrame through every edge, verifying each checksum.
+    private static boolean checkEdges(String video, List<Integer> edgePorts, int firstFrame) {
+        boolean ok = true;
+        for (int port : edgePorts) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(15_000);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Protocol.write(out, Protocol.open(0, video, Integrity.SUPPORTED));
+                Protocol.Response opened = Protocol.readResponse(in);
+                if (opened.opcode != Protocol.VIDEO) throw new IOException("could not open " + video + ": " + opened);
+                int frames = Math.min(CHECK_FRAMES, Math.max(0, opened.frameCount - firstFrame));
+                for (int i = 0; i < frames; i++) {
+                    Protocol.write(out, Protocol.get(i + 1, opened.videoId, firstFrame + i, 1, 0, opened.integrity));
+                    Protocol.Response frame = Protocol.readResponse(in, null, opened.integrity);
+                    if (frame.opcode != Protocol.FRAME) throw new IOException("frame " + (firstFrame + i) + ": " + frame);
+                    if (!frame.intact()) throw new IOException("frame " + (firstFrame + i) + " arrived corrupt");
+                }
+                Protocol.write(out, Protocol.disconnect());
+                System.out.printf("edge :%d  %d frames from %d OK in %.0f ms%n", port, frames, firstFrame, (System.nanoTime() - start) / 1e6);
+            } catch (IOException e) {
+                System.out.println("edge :" + port + "  FAILED: " + e.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,47 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+// HashRing over parent addresses, routing video names.
+class HashRingTest {
+    private static final List<String> PARENTS = List.of("10.0.0.1:8080", "10.0.0.2:8080", "10.0.0.3:8080", "10.0.0.4:8080");
+
+    @Test
+    void routeListsEveryNodeOnce() {
+        HashRing<String> ring = new HashRing<>(PARENTS);
+        for (int i = 0; i < 200; i++) {
+            List<String> route = ring.route("video" + i);
+            assertEquals(PARENTS.size(), route.size());
+            assertEquals(new HashSet<>(PARENTS), new HashSet<>(route));
+        }
+    }
+
+    @Test
+    void routeDoesNotDependOnTheOrderNodesAreListed() {
+        List<String> reversed = new ArrayList<>(PARENTS);
+        Collections.reverse(reversed);
+        HashRing<String> ring = new HashRing<>(PARENTS);
+        HashRing<String> other = new HashRing<>(reversed);
+        for (int i = 0; i < 200; i++) assertEquals(ring.route("video" + i), other.route("video" + i));
+    }
+
+    @Test
+    void removingANodeOnlyMovesTheKeysItOwned() {
+        HashRing<String> ring = new HashRing<>(PARENTS);
+        HashRing<String> smaller = new HashRing<>(PARENTS.subList(1, PARENTS.size()));
+        for (int i = 0; i < 200; i++) {
+            List<String> route = new ArrayList<>(ring.route("video" + i));
+            route.remove(PARENTS.get(0));
+            assertEquals(route, smaller.route("video" + i)); // Failover order is kept too
+        }
+    }
+
+    @Test
+    void singleNodeOwnsEverything() {
+        HashRing<String> ring = new HashRing<>(List.of("origin:8080"));
+        assertEquals(List.of("origin:8080"), ring.route("anything"));
+    }
+}
@@ -0,0 +1,118 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.zip.*;
+import org.junit.jupiter.api.Test;
+
+// Checksum negotiation and the algorithms themselves: a frame must checksum the same
+// whether it is computed whole at ingest or a chunk at a time while it is read.
+class IntegrityTest {
+
+    @Test
+    void negotiatePrefersCrc32c() {
+        assertEquals(Integrity.CRC32C, Integrity.negotiate(Integrity.SUPPORTED));
+        assertEquals(Integrity.CRC32C, Integrity.negotiate(Integrity.CRC32C.bit));
+    }
+
+    @Test
+    void negotiateFallsBackToByteSumForOldClients() {
+        assertEquals(Integrity.BYTE_SUM, Integrity.negotiate(Integrity.BYTE_SUM.bit));
+        assertEquals(Integrity.BYTE_SUM, Integrity.negotiate(Integrity.BYTE_SUM.bit | 0x80)); // Unknown bits are ignored
+    }
+
+    @Test
+    void negotiateWithNothingSharedIsNull() {
+        assertNull(Integrity.negotiate(0));
+        assertNull(Integrity.negotiate(0x80));
+    }
+
+    @Test
+    void fromBitRoundTripsEveryAlgorithm() {
+        for (Integrity integrity : Integrity.values()) assertEquals(integrity, Integrity.fromBit(integrity.bit));
+    }
+
+    @Test
+    void fromBitOfAnUnknownOrCombinedBitIsNull() {
+        assertNull(Integrity.fromBit(0));
+        assertNull(Integrity.fromBit(0x40));
+        assertNull(Integrity.fromBit(Integrity.SUPPORTED));
+    }
+
+    @Test
+    void incrementalChecksumMatchesOneShot() {
+        byte[] data = new byte[100_000];
+        new Random(7).nextBytes(data);
+        for (Integrity integrity : Integrity.values()) {
+            int whole = integrity.compute(data, 0, data.length);
+            for (int chunk : new int[] { 1, 13, 4096, 32 * 1024, data.length }) {
+                Checksum checksum = integrity.newChecksum();
+                for (int done = 0; done < data.length; done += chunk) checksum.update(data, done, Math.min(chunk, data.length - done));
+                assertEquals(whole, (int) checksum.getValue(), integrity + " in chunks of " + chunk);
+            }
+        }
+    }
+
+    @Test
+    void checksumIsOfTheGivenRangeOnly() {
+        byte[] data = new byte[1000];
+        new Random(8).nextBytes(data);
+        byte[] range = Arrays.copyOfRange(data, 100, 600);
+        for (Integrity integrity : Integrity.values()) {
+            assertEquals(integrity.compute(range, 0, range.length), integrity.compute(data, 100, 500), integrity.toString());
+        }
+    }
+
+    @Test
+    void crc32cMatchesTheJdk() {
+        byte[] data = new byte[5000];
+        new Random(9).nextBytes(data);
+        CRC32C expected = new CRC32C();
+        expected.update(data, 0, data.length);
+        assertEquals((int) expected.getValue(), Integrity.CRC32C.compute(data, 0, data.length));
+    }
+
+    @Test
+    void newChecksumResets() {
+        byte[] data = new byte[5000];
+        new Random(10).nextBytes(data);
+        for (Integrity integrity : Integrity.values()) {
+            Checksum checksum = integrity.newChecksum();
+            checksum.update(data, 0, 100);
+            checksum.reset();
+            checksum.update(data, 0, data.length);
+            assertEquals(integrity.compute(data, 0, data.length), (int) checksum.getValue(), integrity.toString());
+        }
+    }
+
+    @Test
+    void crc32cDetectsReorderedBytesThatByteSumMisses() {
+        byte[] data = new byte[96 * 1024];
+        new Random(11).nextBytes(data);
+        byte[] reordered = data.clone();
+        // Two bytes swapped, as a reordered write or a misplaced packet would leave them
+        int a = 1000;
+        int b = 50_000;
+        while (reordered[a] == reordered[b]) b++;
+        byte swapped = reordered[a];
+        reordered[a] = reordered[b];
+        reordered[b] = swapped;
+
+        assertEquals(Integrity.BYTE_SUM.compute(data, 0, data.length), Integrity.BYTE_SUM.compute(reordered, 0, reordered.length));
+        assertNotEquals(Integrity.CRC32C.compute(data, 0, data.length), Integrity.CRC32C.compute(reordered, 0, reordered.length));
+    }
+
+    @Test
+    void crc32cDetectsSwappedBlocks() {
+        byte[] data = new byte[64 * 1024];
+        new Random(12).nextBytes(data);
+        byte[] reordered = new byte[data.length];
+        // The two halves of the frame in the wrong order
+        System.arraycopy(data, data.length / 2, reordered, 0, data.length / 2);
+        System.arraycopy(data, 0, reordered, data.length / 2, data.length / 2);
+
+        assertEquals(Integrity.BYTE_SUM.compute(data, 0, data.length), Integrity.BYTE_SUM.compute(reordered, 0, reordered.length));
+        assertNotEquals(Integrity.CRC32C.compute(data, 0, data.length), Integrity.CRC32C.compute(reordered, 0, reordered.length));
+    }
+}
@@ -0,0 +1,430 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+// Every message encoded by Protocol and read back the way the peer reads it, plus the
+// truncated, oversized and otherwise malformed frames a peer must reject or skip.
+class ProtocolTest {
+
+    // ----- Requests -----
+
+    private static Protocol.Request request(ByteBuffer message) throws IOException {
+        return Protocol.readRequest(new DataInputStream(new ByteArrayInputStream(bytes(message))));
+    }
+
+    @Test
+    void openRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.open(7, "trailer é.mp4", Integrity.SUPPORTED));
+        assertEquals(Protocol.OPEN, request.opcode);
+        assertEquals(7, request.requestId);
+        assertEquals("trailer é.mp4", request.videoName);
+        assertEquals(Integrity.SUPPORTED, request.checksums);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void getRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.get(8, 3, 120, 30, 2, Integrity.CRC32C));
+        assertEquals(Protocol.GET, request.opcode);
+        assertEquals(8, request.requestId);
+        assertEquals(3, request.videoId);
+        assertEquals(120, request.frameIndex);
+        assertEquals(30, request.count);
+        assertEquals(2, request.quality);
+        assertEquals(Integrity.CRC32C, request.integrity);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void getSegmentRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.getSegment(9, 3, 4, 1, Integrity.BYTE_SUM));
+        assertEquals(Protocol.GET_SEGMENT, request.opcode);
+        assertEquals(9, request.requestId);
+        assertEquals(3, request.videoId);
+        assertEquals(4, request.segmentIndex);
+        assertEquals(1, request.quality);
+        assertEquals(Integrity.BYTE_SUM, request.integrity);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void nackRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.nack(10, 3, 57, 2, Integrity.CRC32C));
+        assertEquals(Protocol.NACK, request.opcode);
+        assertEquals(10, request.requestId);
+        assertEquals(3, request.videoId);
+        assertEquals(57, request.frameIndex);
+        assertEquals(1, request.count);
+        assertEquals(2, request.quality);
+        assertEquals(Integrity.CRC32C, request.integrity);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void subscribeRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.subscribe(11, "camera", Integrity.CRC32C.bit, 25));
+        assertEquals(Protocol.SUBSCRIBE, request.opcode);
+        assertEquals(11, request.requestId);
+        assertEquals("camera", request.videoName);
+        assertEquals(Integrity.CRC32C.bit, request.checksums);
+        assertEquals(25, request.count);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void liveAckRoundTrip() throws IOException {
+        Protocol.Request request = request(Protocol.liveAck(11, 1234));
+        assertEquals(Protocol.LIVE_ACK, request.opcode);
+        assertEquals(11, request.requestId);
+        assertEquals(1234, request.frameIndex);
+        assertNull(request.malformed);
+    }
+
+    @Test
+    void bodilessRequestsRoundTrip() throws IOException {
+        Protocol.Request cancel = request(Protocol.cancel(42));
+        assertEquals(Protocol.CANCEL, cancel.opcode);
+        assertEquals(42, cancel.requestId);
+        assertNull(cancel.malformed);
+
+        Protocol.Request unsubscribe = request(Protocol.unsubscribe(11));
+        assertEquals(Protocol.UNSUBSCRIBE, unsubscribe.opcode);
+        assertEquals(11, unsubscribe.requestId);
+        assertNull(unsubscribe.malformed);
+
+        assertEquals(Protocol.PING, request(Protocol.ping()).opcode);
+        assertNull(request(Protocol.ping()).malformed);
+        assertEquals(Protocol.DISCONNECT, request(Protocol.disconnect()).opcode);
+        assertNull(request(Protocol.disconnect()).malformed);
+    }
+
+    @Test
+    void getBatchOutOfRangeIsMalformed() throws IOException {
+        assertNotNull(request(Protocol.get(1, 3, 0, 0, 0, Integrity.CRC32C)).malformed);
+        assertNotNull(request(Protocol.get(1, 3, 0, Protocol.MAX_BATCH_FRAMES + 1, 0, Integrity.CRC32C)).malformed);
+        assertNull(request(Protocol.get(1, 3, 0, Protocol.MAX_BATCH_FRAMES, 0, Integrity.CRC32C)).malformed);
+    }
+
+    @Test
+    void negativeSegmentIndexIsMalformed() throws IOException {
+        assertNotNull(request(Protocol.getSegment(1, 3, -1, 0, Integrity.CRC32C)).malformed);
+    }
+
+    @Test
+    void unknownOpcodeIsMalformed() throws IOException {
+        Protocol.Request request = request(message((byte) 0x42, 5, new byte[3]));
+        assertEquals(5, request.requestId);
+        assertTrue(request.malformed.startsWith("unknown opcode"), request.malformed);
+    }
+
+    @Test
+    void unknownChecksumAlgorithmIsMalformed() throws IOException {
+        ByteBuffer get = Protocol.get(1, 3, 0, 1, 0, Integrity.CRC32C);
+        get.put(get.limit() - 1, (byte) 0x40);
+        Protocol.Request request = request(get);
+        assertNull(request.integrity);
+        assertTrue(request.malformed.startsWith("unknown checksum algorithm"), request.malformed);
+    }
+
+    @Test
+    void trailingBytesAreMalformed() throws IOException {
+        Protocol.Request request = request(message(Protocol.PING, 0, new byte[2]));
+        assertTrue(request.malformed.endsWith("unexpected trailing bytes"), request.malformed);
+    }
+
+    @Test
+    void truncatedRequestIsMalformedNotThrown() throws IOException {
+        for (ByteBuffer whole : List.of(
+                Protocol.open(1, "video", Integrity.SUPPORTED),
+                Protocol.get(2, 3, 0, 1, 0, Integrity.CRC32C),
+                Protocol.getSegment(3, 3, 0, 0, Integrity.CRC32C),
+                Protocol.nack(4, 3, 0, 0, Integrity.CRC32C),
+                Protocol.subscribe(5, "camera", Integrity.CRC32C.bit, 1),
+                Protocol.liveAck(6, 1))) {
+            byte[] message = bytes(whole);
+            // Shorter bodies whose length prefix says so: the message is whole, its body is not
+            for (int body = 5; body < message.length - 4; body++) {
+                byte[] cut = Arrays.copyOf(message, 4 + body);
+                ByteBuffer.wrap(cut).putInt(0, body);
+                Protocol.Request request = request(ByteBuffer.wrap(cut));
+                assertNotNull(request.malformed, "body of " + body + " bytes of " + request);
+                assertTrue(request.malformed.startsWith("truncated"), request.malformed);
+            }
+        }
+    }
+
+    @Test
+    void requestCutShortByTheStreamThrows() {
+        byte[] message = bytes(Protocol.get(1, 3, 0, 1, 0, Integrity.CRC32C));
+        byte[] cut = Arrays.copyOf(message, message.length - 3);
+        assertThrows(EOFException.class, () -> request(ByteBuffer.wrap(cut)));
+    }
+
+    @Test
+    void endOfStreamBetweenRequestsIsNull() throws IOException {
+        assertNull(request(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void requestLengthOutOfRangeThrows() {
+        assertThrows(ProtocolException.class, () -> request(lengthOnly(Protocol.MAX_REQUEST_BYTES + 1)));
+        assertThrows(ProtocolException.class, () -> request(lengthOnly(4)));
+        assertThrows(ProtocolException.class, () -> request(lengthOnly(-1)));
+    }
+
+    @Test
+    void requestReaderReassemblesSplitRequests() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) stream.write(bytes(Protocol.get(i, 3, i, 1, 0, Integrity.CRC32C)));
+        stream.write(bytes(Protocol.open(50, "video", Integrity.SUPPORTED)));
+        byte[] all = stream.toByteArray();
+
+        for (int chunk : new int[] { 1, 7, 1460, all.length }) {
+            List<Protocol.Request> requests = new ArrayList<>();
+            Protocol.RequestReader reader = new Protocol.RequestReader();
+            for (int offset = 0; offset < all.length; offset += chunk) {
+                reader.read(ByteBuffer.wrap(all, offset, Math.min(chunk, all.length - offset)), requests::add);
+            }
+            assertEquals(51, requests.size(), "chunks of " + chunk);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, requests.get(i).requestId);
+                assertEquals(i, requests.get(i).frameIndex);
+            }
+            assertEquals("video", requests.get(50).videoName);
+        }
+    }
+
+    @Test
+    void requestReaderRejectsOversizedLength() {
+        Protocol.RequestReader reader = new Protocol.RequestReader();
+        assertThrows(ProtocolException.class, () -> reader.read(lengthOnly(Protocol.MAX_REQUEST_BYTES + 1), request -> fail()));
+    }
+
+    // ----- Responses -----
+
+    private static Protocol.Response response(Integrity integrity, ByteBuffer... parts) throws IOException {
+        return Protocol.readResponse(new DataInputStream(new ByteArrayInputStream(bytes(parts))), null, integrity);
+    }
+
+    @Test
+    void videoRoundTrip() throws IOException {
+        Protocol.Response response = response(null, Protocol.video(1, 3, 150, 30, new int[] { 4000, 9000, 20000 }, Integrity.CRC32C));
+        assertEquals(Protocol.VIDEO, response.opcode);
+        assertEquals(1, response.requestId);
+        assertEquals(3, response.videoId);
+        assertEquals(150, response.frameCount);
+        assertEquals(30, response.segmentFrames);
+        assertArrayEquals(new int[] { 4000, 9000, 20000 }, response.frameBytes);
+        assertEquals(Integrity.CRC32C, response.integrity);
+    }
+
+    @Test
+    void videoWithUnknownChecksumAlgorithmThrows() {
+        ByteBuffer video = Protocol.video(1, 3, 150, 30, new int[] { 4000 }, Integrity.CRC32C);
+        video.put(video.limit() - 1, (byte) 0x40);
+        assertThrows(ProtocolException.class, () -> response(null, video));
+    }
+
+    @Test
+    void frameRoundTrip() throws IOException {
+        byte[] payload = payload(5000, 1);
+        int checksum = Integrity.CRC32C.compute(payload, 0, payload.length);
+        Protocol.Response response = response(Integrity.CRC32C,
+                Protocol.frameHeader(2, 57, 1, Protocol.FLAG_FROM_CACHE, checksum, payload.length), ByteBuffer.wrap(payload));
+        assertEquals(Protocol.FRAME, response.opcode);
+        assertEquals(2, response.requestId);
+        assertEquals(57, response.frameIndex);
+        assertEquals(1, response.quality);
+        assertTrue(response.fromCache());
+        assertEquals(checksum, response.checksum);
+        assertArrayEquals(payload, Arrays.copyOfRange(response.data, response.offset, response.offset + response.length));
+        assertTrue(response.intact());
+    }
+
+    @Test
+    void frameCorruptedOnTheWayIsNotIntact() throws IOException {
+        byte[] payload = payload(5000, 1);
+        int checksum = Integrity.CRC32C.compute(payload, 0, payload.length);
+        payload[1234] ^= 1;
+        Protocol.Response response = response(Integrity.CRC32C,
+                Protocol.frameHeader(2, 57, 1, 0, checksum, payload.length), ByteBuffer.wrap(payload));
+        assertFalse(response.intact());
+    }
+
+    @Test
+    void frameReadWithoutIntegrityCannotBeChecked() throws IOException {
+        Protocol.Response response = response(null, Protocol.frameHeader(2, 57, 1, 0, 0, 0));
+        assertEquals(0, response.length);
+        assertThrows(IllegalStateException.class, response::intact);
+    }
+
+    @Test
+    void segmentRoundTrip() throws IOException {
+        byte[][] payloads = { payload(3000, 1), payload(0, 2), payload(7000, 3) };
+        int[] lengths = new int[payloads.length];
+        int[] checksums = new int[payloads.length];
+        int bodyLength = 6 + 8 * payloads.length;
+        for (int i = 0; i < payloads.length; i++) {
+            lengths[i] = payloads[i].length;
+            checksums[i] = Integrity.CRC32C.compute(payloads[i], 0, lengths[i]);
+            bodyLength += lengths[i];
+        }
+        checksums[2] ^= 1; // The third frame was corrupted before it was sent
+        List<ByteBuffer> parts = new ArrayList<>(List.of(
+                Protocol.segmentHeader(3, 4, 2, 0, bodyLength), Protocol.segmentTable(120, lengths, checksums)));
+        for (byte[] payload : payloads) parts.add(ByteBuffer.wrap(payload));
+
+        Protocol.Response segment = response(Integrity.CRC32C, parts.toArray(new ByteBuffer[0]));
+        assertEquals(Protocol.SEGMENT, segment.opcode);
+        assertEquals(3, segment.requestId);
+        assertEquals(4, segment.segmentIndex);
+        assertEquals(2, segment.quality);
+        assertEquals(bodyLength, segment.length);
+
+        List<Protocol.Response> frames = Protocol.unpackSegment(segment);
+        assertEquals(payloads.length, frames.size());
+        for (int i = 0; i < payloads.length; i++) {
+            Protocol.Response frame = frames.get(i);
+            assertEquals(Protocol.FRAME, frame.opcode);
+            assertEquals(120 + i, frame.frameIndex);
+            assertEquals(2, frame.quality);
+            assertEquals(checksums[i], frame.checksum);
+            assertArrayEquals(payloads[i], Arrays.copyOfRange(frame.data, frame.offset, frame.offset + frame.length));
+            assertEquals(i != 2, frame.intact());
+        }
+    }
+
+    @Test
+    void segmentTableOverrunningTheBodyIsRejected() throws IOException {
+        ByteBuffer table = Protocol.segmentTable(0, new int[] { 100 }, new int[] { 0 });
+        Protocol.Response segment = response(Integrity.CRC32C,
+                Protocol.segmentHeader(1, 0, 0, 0, table.remaining() + 50), table, ByteBuffer.allocate(50));
+        assertThrows(ProtocolException.class, () -> Protocol.unpackSegment(segment));
+    }
+
+    @Test
+    void liveRoundTrip() throws IOException {
+        byte[] payload = payload(2000, 4);
+        int checksum = LiveChannel.INTEGRITY.compute(payload, 0, payload.length);
+        Protocol.Response response = response(LiveChannel.INTEGRITY,
+                Protocol.liveHeader(5, 99, 0, 0, checksum, 1_700_000_000_123_456L, payload.length), ByteBuffer.wrap(payload));
+        assertEquals(Protocol.LIVE, response.opcode);
+        assertEquals(5, response.requestId);
+        assertEquals(99, response.frameIndex);
+        assertEquals(1_700_000_000_123_456L, response.capturedAtMicros);
+        assertArrayEquals(payload, Arrays.copyOfRange(response.data, response.offset, response.offset + response.length));
+        assertTrue(response.intact());
+    }
+
+    @Test
+    void notFoundRoundTrip() throws IOException {
+        Protocol.Response response = response(null, Protocol.notFound(6, 149));
+        assertEquals(Protocol.NOT_FOUND, response.opcode);
+        assertEquals(6, response.requestId);
+        assertEquals(149, response.frameIndex);
+    }
+
+    @Test
+    void errorRoundTrip() throws IOException {
+        Protocol.Response response = response(null, Protocol.error(7, -1, Protocol.UNKNOWN_VIDEO, "no such video"));
+        assertEquals(Protocol.ERROR, response.opcode);
+        assertEquals(7, response.requestId);
+        assertEquals(-1, response.frameIndex);
+        assertEquals(Protocol.UNKNOWN_VIDEO, response.code);
+        assertEquals("no such video", response.message);
+    }
+
+    @Test
+    void longErrorTextIsTruncated() throws IOException {
+        String reason = "x".repeat(2000);
+        Protocol.Response response = response(null, Protocol.error(7, 3, Protocol.BAD_REQUEST, reason));
+        assertEquals(512, response.message.length());
+        assertTrue(reason.startsWith(response.message));
+    }
+
+    @Test
+    void unknownResponseOpcodeIsSkipped() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes(
+                message((byte) 0x90, 8, new byte[40]), Protocol.notFound(9, 1))));
+        Protocol.Response unknown = Protocol.readResponse(in);
+        assertEquals((byte) 0x90, unknown.opcode);
+        assertEquals(8, unknown.requestId);
+        Protocol.Response next = Protocol.readResponse(in);
+        assertEquals(Protocol.NOT_FOUND, next.opcode);
+        assertEquals(9, next.requestId);
+    }
+
+    @Test
+    void responseLengthOutOfRangeThrows() {
+        assertThrows(ProtocolException.class, () -> response(null, lengthOnly(Protocol.MAX_RESPONSE_BYTES + 1)));
+        assertThrows(ProtocolException.class, () -> response(null, lengthOnly(Integer.MAX_VALUE)));
+        assertThrows(ProtocolException.class, () -> response(null, lengthOnly(4)));
+    }
+
+    @Test
+    void responseCutShortByTheStreamThrows() {
+        byte[] payload = payload(5000, 1);
+        byte[] whole = bytes(Protocol.frameHeader(2, 57, 1, 0, 0, payload.length), ByteBuffer.wrap(payload));
+        for (int length : new int[] { 2, 7, Protocol.FRAME_HEADER_BYTES, whole.length - 1 }) {
+            ByteBuffer cut = ByteBuffer.wrap(whole, 0, length);
+            assertThrows(EOFException.class, () -> response(Integrity.CRC32C, cut), "cut to " + length);
+        }
+    }
+
+    @Test
+    void responseTooShortForItsHeaderThrows() {
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.FRAME, 1, new byte[5])));
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.SEGMENT, 1, new byte[3])));
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.LIVE, 1, new byte[17])));
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.VIDEO, 1, new byte[12])));
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.NOT_FOUND, 1, new byte[6])));
+        assertThrows(ProtocolException.class, () -> response(null, message(Protocol.ERROR, 1, new byte[6])));
+    }
+
+    @Test
+    void pooledReadCutShortReturnsItsBuffer() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] whole = bytes(Protocol.frameHeader(2, 57, 1, 0, 0, 20_000), ByteBuffer.allocate(20_000));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(whole, 0, whole.length - 1));
+        assertThrows(EOFException.class, () -> Protocol.readResponse(in, pool, Integrity.CRC32C));
+        assertEquals(1, pool.stats().returned);
+    }
+
+    // ----- Helpers -----
+
+    private static byte[] bytes(ByteBuffer... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer part : parts) {
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+        }
+        return out.toByteArray();
+    }
+
+    // A message with the given opcode and requestId whose body is raw bytes
+    private static ByteBuffer message(byte opcode, int requestId, byte[] body) {
+        ByteBuffer message = ByteBuffer.allocate(4 + 1 + 4 + body.length);
+        message.putInt(1 + 4 + body.length).put(opcode).putInt(requestId).put(body);
+        message.flip();
+        return message;
+    }
+
+    // Just a length prefix, followed by enough bytes that only the length can be wrong
+    private static ByteBuffer lengthOnly(int length) {
+        ByteBuffer message = ByteBuffer.allocate(4 + 16);
+        message.putInt(length).put(Protocol.PING);
+        message.clear();
+        return message;
+    }
+
+    private static byte[] payload(int length, long seed) {
+        byte[] payload = new byte[length];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+}
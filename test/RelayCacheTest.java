@@ -0,0 +1,137 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+// RelayCache with 100-byte frames under a 1000-byte budget: ten frames fit, and the small
+// FIFO's target is one frame, so every insert past the tenth evicts.
+class RelayCacheTest {
+    private static final int FRAME_BYTES = 100;
+    private static final long BUDGET = 10 * FRAME_BYTES;
+
+    private final RelayCache cache = new RelayCache(BUDGET);
+
+    private static FrameKey key(int frameIndex) {
+        return new FrameKey("video", 0, frameIndex);
+    }
+
+    private void put(int frameIndex) {
+        FrameData frame = new FrameData(new byte[FRAME_BYTES], 0);
+        cache.put(key(frameIndex), frame);
+        frame.release();
+    }
+
+    private boolean hit(int frameIndex) {
+        FrameData frame = cache.get(key(frameIndex));
+        if (frame == null) return false;
+        frame.release();
+        return true;
+    }
+
+    @Test
+    void getCountsHitsAndMisses() {
+        put(1);
+        assertTrue(hit(1));
+        assertFalse(hit(2));
+        RelayCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.insertions);
+        assertEquals(FRAME_BYTES, stats.bytes);
+    }
+
+    @Test
+    void putIgnoresAKeyAlreadyCached() {
+        put(1);
+        put(1);
+        assertEquals(1, cache.stats().insertions);
+        assertEquals(FRAME_BYTES, cache.stats().bytes);
+    }
+
+    @Test
+    void frameLargerThanTheBudgetIsNotAdmitted() {
+        FrameData frame = new FrameData(new byte[(int) BUDGET + 1], 0);
+        cache.put(key(1), frame);
+        frame.release();
+        assertFalse(cache.contains(key(1)));
+        assertEquals(0, cache.stats().bytes);
+    }
+
+    @Test
+    void staysWithinTheByteBudget() {
+        for (int i = 0; i < 100; i++) {
+            put(i);
+            assertTrue(cache.stats().bytes <= BUDGET);
+        }
+        RelayCache.Stats stats = cache.stats();
+        assertEquals(10, stats.entries);
+        assertEquals(BUDGET, stats.bytes);
+        assertEquals(90, stats.evictions);
+    }
+
+    @Test
+    void scanDoesNotFlushAFrameHitWhileInSmall() {
+        put(0);
+        assertTrue(hit(0)); // Promoted to main once it reaches the head of small
+        for (int i = 1; i <= 50; i++) put(i);
+        assertTrue(cache.contains(key(0)));
+        assertFalse(cache.contains(key(1)));
+    }
+
+    @Test
+    void reinsertedGhostGoesStraightToMain() {
+        for (int i = 0; i <= 10; i++) put(i);
+        assertFalse(cache.contains(key(0))); // Evicted from small unhit, remembered as a ghost
+        put(0);
+        for (int i = 11; i <= 50; i++) put(i);
+        assertTrue(cache.contains(key(0)));
+    }
+
+    @Test
+    void removeDropsTheFrameWithoutCountingAnEviction() {
+        put(1);
+        put(2);
+        assertTrue(cache.remove(key(1)));
+        assertFalse(cache.contains(key(1)));
+        assertFalse(hit(1));
+        assertFalse(cache.remove(key(1)));
+        RelayCache.Stats stats = cache.stats();
+        assertEquals(0, stats.evictions);
+        assertEquals(1, stats.entries);
+        assertEquals(FRAME_BYTES, stats.bytes);
+    }
+
+    @Test
+    void removedFrameIsNotRememberedAsAGhost() {
+        put(0);
+        cache.remove(key(0));
+        put(0); // Admitted to small again, not main
+        for (int i = 1; i <= 10; i++) put(i);
+        assertFalse(cache.contains(key(0)));
+    }
+
+    @Test
+    void evictionSkipsRemovedEntriesAndKeepsTheBudget() {
+        for (int i = 0; i < 10; i++) put(i);
+        cache.remove(key(0));
+        cache.remove(key(5));
+        put(0); // A fresh entry while the removed one is still queued
+        for (int i = 10; i < 40; i++) {
+            put(i);
+            assertTrue(cache.stats().bytes <= BUDGET);
+        }
+        RelayCache.Stats stats = cache.stats();
+        assertEquals((long) stats.entries * FRAME_BYTES, stats.bytes);
+        assertEquals(10, stats.entries);
+    }
+
+    @Test
+    void removeReleasesTheCachesReference() {
+        FrameData frame = new FrameData(new byte[FRAME_BYTES], 0);
+        cache.put(key(1), frame);
+        frame.release(); // Only the cache's reference is left
+        cache.remove(key(1));
+        assertFalse(frame.tryRetain());
+    }
+}
@@ -0,0 +1,130 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+
+// SingleFlightFetcher over a stub parent whose answers the test completes by hand, caching
+// into a RelayCache as VideoRelay does. Frames carry a checksum that tells the copies apart.
+class SingleFlightFetcherTest {
+    private static final int CORRUPT = 1;
+    private static final int FRESH = 2;
+    private static final FrameKey KEY = new FrameKey("video", 0, 7);
+
+    // Hands out one pending future per GET and per NACK, in the order they were sent
+    private static final class StubRouter extends UpstreamRouter {
+        final Deque<CompletableFuture<FrameData>> gets = new ArrayDeque<>();
+        final Deque<CompletableFuture<FrameData>> nacks = new ArrayDeque<>();
+
+        StubRouter() {
+            super(List.of(new UpstreamPool("localhost", 0, 0, null)));
+        }
+
+        @Override
+        CompletableFuture<FrameData> fetch(String videoName, int quality, int frameIndex) {
+            CompletableFuture<FrameData> answer = new CompletableFuture<>();
+            gets.add(answer);
+            return answer;
+        }
+
+        @Override
+        CompletableFuture<FrameData> refetch(String videoName, int quality, int frameIndex) {
+            CompletableFuture<FrameData> answer = new CompletableFuture<>();
+            nacks.add(answer);
+            return answer;
+        }
+    }
+
+    private final StubRouter upstream = new StubRouter();
+    private final RelayCache cache = new RelayCache(1024 * 1024);
+    private final SingleFlightFetcher fetcher = new SingleFlightFetcher(upstream, cache::put);
+
+    private static void answer(CompletableFuture<FrameData> request, int checksum) {
+        request.complete(new FrameData(new byte[100], checksum));
+    }
+
+    private int cachedChecksum() {
+        FrameData frame = cache.get(KEY);
+        assertNotNull(frame, "nothing cached");
+        int checksum = frame.checksum;
+        frame.release();
+        return checksum;
+    }
+
+    private static int checksumOf(CompletableFuture<FrameData> waiter) throws Exception {
+        FrameData frame = waiter.get(1, TimeUnit.SECONDS);
+        int checksum = frame.checksum;
+        frame.release();
+        return checksum;
+    }
+
+    @Test
+    void concurrentMissesShareOneFetch() throws Exception {
+        CompletableFuture<FrameData> first = fetcher.fetch(KEY);
+        CompletableFuture<FrameData> second = fetcher.fetch(KEY);
+        assertEquals(1, upstream.gets.size());
+        assertEquals(1, fetcher.inFlight());
+
+        answer(upstream.gets.poll(), FRESH);
+        assertEquals(FRESH, checksumOf(first));
+        assertEquals(FRESH, checksumOf(second));
+        assertEquals(FRESH, cachedChecksum());
+        assertEquals(1, fetcher.originated());
+        assertEquals(1, fetcher.coalesced());
+        assertEquals(0, fetcher.inFlight());
+    }
+
+    @Test
+    void fetchThatFinishesAfterARefetchDoesNotReplaceTheFreshCopy() throws Exception {
+        CompletableFuture<FrameData> stale = fetcher.fetch(KEY);
+        CompletableFuture<FrameData> refetched = fetcher.refetch(KEY, () -> cache.remove(KEY));
+
+        answer(upstream.nacks.poll(), FRESH);
+        answer(upstream.gets.poll(), CORRUPT); // The older fetch lands last
+
+        assertEquals(FRESH, checksumOf(refetched));
+        assertEquals(CORRUPT, checksumOf(stale)); // Its own caller still gets an answer
+        assertEquals(FRESH, cachedChecksum());
+        assertEquals(0, fetcher.inFlight());
+    }
+
+    @Test
+    void fetchThatFinishesBeforeTheRefetchIsNotCached() throws Exception {
+        fetcher.fetch(KEY).thenAccept(FrameData::release);
+        CompletableFuture<FrameData> refetched = fetcher.refetch(KEY, () -> cache.remove(KEY));
+
+        answer(upstream.gets.poll(), CORRUPT);
+        assertFalse(cache.contains(KEY));
+
+        answer(upstream.nacks.poll(), FRESH);
+        assertEquals(FRESH, checksumOf(refetched));
+        assertEquals(FRESH, cachedChecksum());
+    }
+
+    @Test
+    void refetchEvictsAfterTakingTheFetchsPlace() throws Exception {
+        fetcher.fetch(KEY).thenAccept(FrameData::release);
+        answer(upstream.gets.poll(), CORRUPT);
+        assertEquals(CORRUPT, cachedChecksum());
+
+        CompletableFuture<FrameData> refetched = fetcher.refetch(KEY, () -> cache.remove(KEY));
+        assertFalse(cache.contains(KEY));
+        answer(upstream.nacks.poll(), FRESH);
+        assertEquals(FRESH, checksumOf(refetched));
+        assertEquals(FRESH, cachedChecksum());
+    }
+
+    @Test
+    void missDuringARefetchJoinsIt() throws Exception {
+        CompletableFuture<FrameData> refetched = fetcher.refetch(KEY, () -> cache.remove(KEY));
+        CompletableFuture<FrameData> joined = fetcher.fetch(KEY);
+        assertTrue(upstream.gets.isEmpty());
+
+        answer(upstream.nacks.poll(), FRESH);
+        assertEquals(FRESH, checksumOf(refetched));
+        assertEquals(FRESH, checksumOf(joined));
+        assertEquals(1, fetcher.coalesced());
+    }
+}
@@ -0,0 +1,87 @@
+package streaming;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+
+// ThumbnailStore warmed from a stub parent that answers at once: a 20-frame video has two
+// thumbnails, frames 0 and STRIDE. Frames carry a checksum that tells the copies apart.
+class ThumbnailStoreTest {
+    private static final int CORRUPT = 1;
+    private static final int FRESH = 2;
+
+    // Serves every frame at once from memory, with the given checksum
+    private static final class StubRouter extends UpstreamRouter {
+        StubRouter() {
+            super(List.of(new UpstreamPool("localhost", 0, 0, null)));
+        }
+
+        @Override
+        CompletableFuture<FrameData> fetch(String videoName, int quality, int frameIndex) {
+            return CompletableFuture.completedFuture(new FrameData(new byte[100], CORRUPT));
+        }
+    }
+
+    private final ThumbnailStore thumbnails = new ThumbnailStore(new StubRouter(), 1024 * 1024);
+    private final RelayCache relayCache = new RelayCache(1024 * 1024);
+
+    private static FrameKey key(int frameIndex) {
+        return new FrameKey("video", ThumbnailStore.QUALITY, frameIndex);
+    }
+
+    // The lookup order of VideoRelay.cachedFrame, down to the heap tier
+    private int servedChecksum(FrameKey key) {
+        FrameData frame = thumbnails.get(key);
+        if (frame == null) frame = relayCache.get(key);
+        assertNotNull(frame, "no copy of " + key);
+        int checksum = frame.checksum;
+        frame.release();
+        return checksum;
+    }
+
+    @Test
+    void warmPinsEveryStrideFrame() {
+        thumbnails.warm("video", 20);
+        assertTrue(thumbnails.contains(key(0)));
+        assertTrue(thumbnails.contains(key(ThumbnailStore.STRIDE)));
+        assertFalse(thumbnails.contains(key(1)));
+        assertEquals(200, thumbnails.bytes());
+    }
+
+    @Test
+    void nackedThumbnailIsServedFreshOnTheNextGet() {
+        thumbnails.warm("video", 20);
+        assertEquals(CORRUPT, servedChecksum(key(0)));
+
+        // What VideoRelay does on the NACK: evict, then cache the retransmission
+        assertTrue(thumbnails.remove(key(0)));
+        FrameData fresh = new FrameData(new byte[100], FRESH);
+        relayCache.put(key(0), fresh);
+        fresh.release();
+
+        assertEquals(FRESH, servedChecksum(key(0)));
+        assertTrue(thumbnails.contains(key(ThumbnailStore.STRIDE)));
+        assertEquals(100, thumbnails.bytes());
+    }
+
+    @Test
+    void removeReleasesTheStoresReference() {
+        thumbnails.warm("video", 20);
+        FrameData frame = thumbnails.get(key(0));
+        frame.release(); // Only the store's reference is left
+        assertTrue(thumbnails.remove(key(0)));
+        assertFalse(frame.tryRetain());
+        assertFalse(thumbnails.remove(key(0)));
+    }
+
+    @Test
+    void removeIgnoresFramesThatAreNotThumbnails() {
+        thumbnails.warm("video", 20);
+        assertFalse(thumbnails.remove(key(1)));
+        assertFalse(thumbnails.remove(new FrameKey("video", ThumbnailStore.QUALITY + 1, 0)));
+        assertFalse(thumbnails.remove(new FrameKey("other", ThumbnailStore.QUALITY, 0)));
+        assertEquals(200, thumbnails.bytes());
+    }
+}